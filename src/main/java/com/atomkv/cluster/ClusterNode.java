@@ -0,0 +1,303 @@
+package com.atomkv.cluster;
+
+import com.atomkv.persistence.AofRecord;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * This node's part in a cluster: the {@link SlotTable} it believes in, the slots it is moving to
+ * other nodes or taking in from them, and the decision whether a command is served here or the
+ * client is redirected.
+ *
+ * <p>Once a second the node asks every node it knows of for its table and merges it into its
+ * own, so ownership changes spread through the cluster without a coordinator.
+ *
+ * <p>A slot moves while both nodes keep serving it. The new owner is told to import it, and from
+ * then on the old owner answers {@code ASK} for keys of the slot it no longer has, which the new
+ * owner serves to clients that send {@code ASKING} first. Keys are copied in pipelined batches
+ * and each one is deleted here only if it has not been written since it was copied; one that was
+ * is copied again in the next round. When no keys are left the slot is handed over at the next
+ * epoch and the old owner answers {@code MOVED}.
+ */
+public class ClusterNode implements AutoCloseable {
+    private static final long GOSSIP_MILLIS = 1_000;
+    private static final int MIGRATE_BATCH = 128;
+    private static final long STRAGGLER_WAIT_MILLIS = 100;
+
+    private final String self;
+    private final InMemoryStore store;
+    private final Set<String> seeds;
+    private volatile SlotTable table;
+
+    final Map<Integer, String> migrating = new ConcurrentHashMap<>(); // slot -> new owner
+    private final Map<Integer, String> importing = new ConcurrentHashMap<>(); // slot -> old owner
+    private final Set<Integer> migrations = ConcurrentHashMap.newKeySet(); // slots being moved away
+
+    private final Map<String, NodeLink> gossipLinks = new HashMap<>(); // only touched by the gossip thread
+    private final ScheduledExecutorService gossip = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cluster-gossip");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * @param self this node's client address as the other nodes reach it, {@code host:port}
+     * @param claimed the slots this node starts out owning, see {@link SlotTable#claim}
+     * @param seeds other nodes to exchange tables with until their slots are known
+     */
+    public ClusterNode(String self, InMemoryStore store, SlotTable claimed, Collection<String> seeds) {
+        this.self = self;
+        this.store = store;
+        this.table = claimed;
+        this.seeds = new TreeSet<>(seeds);
+        this.seeds.remove(self);
+        store.indexSlots(HashSlots::slot, HashSlots.SLOTS);
+    }
+
+    /**
+     * Start exchanging tables with the other nodes.
+     */
+    public void start() {
+        gossip.scheduleWithFixedDelay(this::exchangeTables, 0, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public SlotTable table() {
+        return table;
+    }
+
+    /**
+     * Adopt whatever {@code other} knows that is newer than this node's table.
+     */
+    public synchronized void merge(SlotTable other) {
+        SlotTable merged = table.merge(other);
+        if (merged != table) {
+            table = merged;
+            importing.keySet().removeIf(slot -> self.equals(merged.owner(slot)));
+        }
+    }
+
+    /**
+     * Where a command on keys of {@code slot} has to go.
+     *
+     * @param asking the client sent ASKING just before this command
+     * @param keys how many keys the command names
+     * @param missingKeys counts how many of them this node does not have; only asked while the
+     *                    slot is moving away
+     * @return the error that redirects the client, or null to execute the command here
+     */
+    public String redirect(int slot, boolean asking, int keys, IntSupplier missingKeys) {
+        String owner = table.owner(slot);
+
+        if (self.equals(owner)) {
+            String target = migrating.get(slot);
+            if (target == null) {
+                return null;
+            }
+
+            int missing = missingKeys.getAsInt();
+            if (missing == 0) {
+                return null;
+            }
+            return missing == keys ? "ASK " + slot + " " + target : "TRYAGAIN Multiple keys request during rehashing of slot";
+        }
+
+        if (asking && importing.containsKey(slot)) {
+            return null;
+        }
+
+        return owner == null ? "CLUSTERDOWN Hash slot not served" : "MOVED " + slot + " " + owner;
+    }
+
+    /**
+     * Serve {@code slot} to clients that ask, while {@code source} moves its keys here.
+     */
+    public void importSlot(int slot, String source) {
+        if (self.equals(table.owner(slot))) {
+            throw new IllegalStateException("slot " + slot + " is already served here");
+        }
+        importing.put(slot, source);
+    }
+
+    /**
+     * Stop importing {@code slot}, as when its migration was abandoned.
+     */
+    public void stable(int slot) {
+        importing.remove(slot);
+    }
+
+    /**
+     * Move {@code slot} and its keys to {@code target} in the background.
+     *
+     * @return completed with the number of keys moved once {@code target} owns the slot, or
+     *         with the error that stopped the move
+     * @throws IllegalStateException if the slot is not served here or already moving
+     */
+    public CompletableFuture<Long> migrate(int slot, String target) {
+        if (!self.equals(table.owner(slot))) {
+            throw new IllegalStateException("slot " + slot + " is not served here");
+        }
+        if (self.equals(target)) {
+            throw new IllegalArgumentException("slot " + slot + " is already served here");
+        }
+        if (!migrations.add(slot)) {
+            throw new IllegalStateException("slot " + slot + " is already migrating");
+        }
+
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        Thread t = new Thread(() -> {
+            try {
+                done.complete(moveSlot(slot, target));
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            }
+        }, "cluster-migrate-" + slot);
+        t.setDaemon(true);
+        t.start();
+
+        return done;
+    }
+
+    private long moveSlot(int slot, String target) throws IOException, InterruptedException {
+        try (NodeLink link = new NodeLink(target)) {
+            link.call("CLUSTER", "SETSLOT", Integer.toString(slot), "IMPORTING", self);
+            migrating.put(slot, target);
+
+            long moved = moveKeys(slot, link);
+
+            // hand the slot over; from here on this node answers MOVED for it
+            SlotTable handedOver;
+            synchronized (this) {
+                handedOver = table.assign(slot, target);
+                table = handedOver;
+            }
+            migrating.remove(slot);
+            link.call("CLUSTER", "TABLE", handedOver.encode());
+
+            // a command routed here just before the handover may still have written a key
+            Thread.sleep(STRAGGLER_WAIT_MILLIS);
+            return moved + moveKeys(slot, link);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            migrating.remove(slot);
+            throw e;
+        } finally {
+            migrations.remove(slot);
+        }
+    }
+
+    /**
+     * Copy every key of {@code slot} to the other end of {@code link} and delete it here, in
+     * rounds until none is left.
+     */
+    private long moveKeys(int slot, NodeLink link) throws IOException {
+        long moved = 0;
+
+        while (true) {
+            List<String> keys = store.keysInSlot(slot);
+            if (keys.isEmpty()) {
+                return moved;
+            }
+
+            for (int from = 0; from < keys.size(); from += MIGRATE_BATCH) {
+                List<AofRecord> batch = new ArrayList<>(MIGRATE_BATCH);
+                for (String key : keys.subList(from, Math.min(keys.size(), from + MIGRATE_BATCH))) {
+                    AofRecord copy = store.dump(key);
+                    if (copy != null) {
+                        batch.add(copy);
+                        link.send(restore("RESTORE", copy));
+                    }
+                }
+                link.flush();
+                for (int i = 0; i < batch.size(); i++) {
+                    link.read();
+                }
+
+                for (AofRecord copy : batch) {
+                    if (store.removeIfUnchanged(copy)) {
+                        moved++;
+                    } else if (store.dump(copy.key()) == null) {
+                        // deleted here after it was copied: take the copy back, unless a client
+                        // sent there by ASK has written the key since
+                        link.call(restore("DISCARD", copy));
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[][] restore(String subcommand, AofRecord copy) {
+        return new byte[][]{ascii("CLUSTER"), ascii(subcommand), copy.key().getBytes(StandardCharsets.UTF_8), copy.valueBytes(),
+                ascii(Long.toString(copy.number()))};
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void exchangeTables() {
+        Set<String> peers = new TreeSet<>(seeds);
+        peers.addAll(table.nodes());
+        peers.remove(self);
+
+        for (Iterator<Map.Entry<String, NodeLink>> it = gossipLinks.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, NodeLink> e = it.next();
+            if (!peers.contains(e.getKey())) {
+                e.getValue().close();
+                it.remove();
+            }
+        }
+
+        for (String peer : peers) {
+            try {
+                NodeLink link = gossipLinks.get(peer);
+                if (link == null) {
+                    link = new NodeLink(peer);
+                    gossipLinks.put(peer, link);
+                }
+
+                Object reply = link.call("CLUSTER", "TABLE");
+                if (reply instanceof String text) {
+                    merge(SlotTable.parse(text));
+                }
+            } catch (IOException | RuntimeException e) {
+                NodeLink broken = gossipLinks.remove(peer);
+                if (broken != null) {
+                    broken.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        gossip.shutdownNow();
+        try {
+            gossip.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (NodeLink link : gossipLinks.values()) {
+            link.close();
+        }
+        gossipLinks.clear();
+    }
+}
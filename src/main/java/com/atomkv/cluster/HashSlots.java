@@ -0,0 +1,62 @@
+package com.atomkv.cluster;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps keys to the 16384 hash slots of a cluster the way Redis Cluster does: CRC16 (XMODEM) of
+ * the key, modulo 16384. When a key contains a non-empty {@code {tag}}, only the tag is hashed,
+ * so keys sharing a tag land in the same slot and can be used together in one command.
+ */
+public final class HashSlots {
+    public static final int SLOTS = 16384;
+
+    private static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16[i] = crc & 0xFFFF;
+        }
+    }
+
+    private HashSlots() {
+    }
+
+    public static int slot(String key) {
+        byte[] b = key.getBytes(StandardCharsets.UTF_8);
+        return slot(b, 0, b.length);
+    }
+
+    /**
+     * The slot of the key in {@code b[off, off + len)}, straight from request bytes.
+     */
+    public static int slot(byte[] b, int off, int len) {
+        int end = off + len;
+        for (int open = off; open < end; open++) {
+            if (b[open] == '{') {
+                for (int close = open + 1; close < end; close++) {
+                    if (b[close] == '}') {
+                        if (close > open + 1) {
+                            return crc16(b, open + 1, close) & (SLOTS - 1);
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+
+        return crc16(b, off, end) & (SLOTS - 1);
+    }
+
+    static int crc16(byte[] b, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) ^ CRC16[((crc >>> 8) ^ b[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+}
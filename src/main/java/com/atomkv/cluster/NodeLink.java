@@ -0,0 +1,160 @@
+package com.atomkv.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A RESP connection from one node to another's client port, for exchanging slot tables and
+ * moving keys. Commands can be pipelined: {@link #send} several, {@link #flush()}, then
+ * {@link #read()} as many replies.
+ */
+final class NodeLink implements AutoCloseable {
+    private static final int TIMEOUT_MILLIS = 5_000;
+
+    private final String address;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    NodeLink(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IOException("node address must be host:port, got: " + address);
+        }
+
+        this.address = address;
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedInputStream(socket.getInputStream(), 1 << 16);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+
+            // speak RESP before the node takes the silence for a line client waiting to be greeted
+            call("PING");
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    String address() {
+        return address;
+    }
+
+    void send(String... args) throws IOException {
+        byte[][] raw = new byte[args.length][];
+        for (int i = 0; i < args.length; i++) {
+            raw[i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        send(raw);
+    }
+
+    /**
+     * Same as {@link #send(String...)} for arguments that are raw bytes, such as values.
+     */
+    void send(byte[]... args) throws IOException {
+        out.write(('*' + Integer.toString(args.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        for (byte[] b : args) {
+            out.write(('$' + Integer.toString(b.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b);
+            out.write('\r');
+            out.write('\n');
+        }
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Send one command and wait for its reply.
+     */
+    Object call(String... args) throws IOException {
+        send(args);
+        flush();
+        return read();
+    }
+
+    Object call(byte[]... args) throws IOException {
+        send(args);
+        flush();
+        return read();
+    }
+
+    /**
+     * The next reply: a String for simple and bulk strings, a Long for integers, null for a nil.
+     *
+     * @throws NodeException if the node answered with an error
+     */
+    Object read() throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            throw new EOFException("connection to " + address + " closed");
+        }
+        String line = readLine();
+
+        switch (type) {
+            case '+':
+                return line;
+            case '-':
+                throw new NodeException(line);
+            case ':':
+                return Long.parseLong(line);
+            case '$': {
+                int len = Integer.parseInt(line);
+                if (len < 0) {
+                    return null;
+                }
+
+                byte[] b = in.readNBytes(len);
+                if (b.length < len || in.read() != '\r' || in.read() != '\n') {
+                    throw new EOFException("connection to " + address + " closed in a reply");
+                }
+                return new String(b, StandardCharsets.UTF_8);
+            }
+            default:
+                throw new IOException("unexpected reply from " + address + ": " + (char) type + line);
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c < 0) {
+                throw new EOFException("connection to " + address + " closed");
+            }
+            line.write(c);
+        }
+        in.read(); // '\n'
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An error reply from another node.
+     */
+    static final class NodeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NodeException(String message) {
+            super(message);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,223 @@
+package com.atomkv.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Which node owns each hash slot, as {@code host:port}. Every slot carries an epoch that grows
+ * each time it changes hands, so two tables are merged slot by slot: the higher epoch wins, and
+ * on a tie the smaller address, so every node settles on the same owner whatever order tables
+ * arrive in. Tables are immutable; changes return a new one.
+ *
+ * <p>Nodes exchange tables as text, one line per run of slots with the same owner and epoch:
+ * {@code <first>-<last> <epoch> <host:port>}.
+ */
+public final class SlotTable {
+    private static final SlotTable EMPTY = new SlotTable(new String[HashSlots.SLOTS], new long[HashSlots.SLOTS]);
+
+    private final String[] owners;
+    private final long[] epochs;
+
+    private SlotTable(String[] owners, long[] epochs) {
+        this.owners = owners;
+        this.epochs = epochs;
+    }
+
+    public static SlotTable empty() {
+        return EMPTY;
+    }
+
+    /**
+     * A table in which {@code node} owns the slots of {@code ranges}, such as
+     * {@code 0-5460,10000}, at epoch 1 and nobody owns the rest.
+     */
+    public static SlotTable claim(String node, String ranges) {
+        String[] owners = new String[HashSlots.SLOTS];
+        long[] epochs = new long[HashSlots.SLOTS];
+
+        for (String range : ranges.split(",")) {
+            range = range.trim();
+            if (range.isEmpty()) {
+                continue;
+            }
+
+            int dash = range.indexOf('-');
+            int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash).trim());
+            int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+            if (first < 0 || last >= HashSlots.SLOTS || first > last) {
+                throw new IllegalArgumentException("bad slot range: " + range);
+            }
+
+            for (int slot = first; slot <= last; slot++) {
+                owners[slot] = node;
+                epochs[slot] = 1;
+            }
+        }
+
+        return new SlotTable(owners, epochs);
+    }
+
+    /**
+     * Owner of {@code slot}, null if no node serves it.
+     */
+    public String owner(int slot) {
+        return owners[slot];
+    }
+
+    public long epoch(int slot) {
+        return epochs[slot];
+    }
+
+    /**
+     * This table with {@code slot} handed to {@code node} at the next epoch.
+     */
+    public SlotTable assign(int slot, String node) {
+        String[] o = owners.clone();
+        long[] e = epochs.clone();
+        o[slot] = node;
+        e[slot] = epochs[slot] + 1;
+        return new SlotTable(o, e);
+    }
+
+    /**
+     * The newer owner of every slot between this table and {@code other}; this same table if
+     * {@code other} has nothing newer.
+     */
+    public SlotTable merge(SlotTable other) {
+        String[] o = null;
+        long[] e = null;
+
+        for (int slot = 0; slot < HashSlots.SLOTS; slot++) {
+            if (newer(other.owners[slot], other.epochs[slot], owners[slot], epochs[slot])) {
+                if (o == null) {
+                    o = owners.clone();
+                    e = epochs.clone();
+                }
+                o[slot] = other.owners[slot];
+                e[slot] = other.epochs[slot];
+            }
+        }
+
+        return o == null ? this : new SlotTable(o, e);
+    }
+
+    private static boolean newer(String owner, long epoch, String current, long currentEpoch) {
+        if (owner == null || epoch < currentEpoch) {
+            return false;
+        }
+        return epoch > currentEpoch || current == null || owner.compareTo(current) < 0;
+    }
+
+    /**
+     * How many slots {@code node} owns.
+     */
+    public int owned(String node) {
+        int n = 0;
+        for (String o : owners) {
+            if (node.equals(o)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Every node that owns at least one slot.
+     */
+    public Set<String> nodes() {
+        Set<String> nodes = new TreeSet<>();
+        for (String o : owners) {
+            if (o != null) {
+                nodes.add(o);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * One run of consecutive slots with the same owner and epoch.
+     */
+    public static final class Range {
+        public final int first;
+        public final int last;
+        public final long epoch;
+        public final String owner;
+
+        Range(int first, int last, long epoch, String owner) {
+            this.first = first;
+            this.last = last;
+            this.epoch = epoch;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * The owned slots as runs, in slot order.
+     */
+    public List<Range> ranges() {
+        List<Range> out = new ArrayList<>();
+        int slot = 0;
+
+        while (slot < HashSlots.SLOTS) {
+            int first = slot;
+            while (slot + 1 < HashSlots.SLOTS && epochs[slot + 1] == epochs[first]
+                    && Objects.equals(owners[slot + 1], owners[first])) {
+                slot++;
+            }
+            if (owners[first] != null) {
+                out.add(new Range(first, slot, epochs[first], owners[first]));
+            }
+            slot++;
+        }
+
+        return out;
+    }
+
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Range r : ranges()) {
+            sb.append(r.first).append('-').append(r.last).append(' ').append(r.epoch).append(' ').append(r.owner).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read a table written by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException if a line is malformed
+     */
+    public static SlotTable parse(String text) {
+        String[] owners = new String[HashSlots.SLOTS];
+        long[] epochs = new long[HashSlots.SLOTS];
+
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] f = line.split(" ");
+            int dash = f[0].indexOf('-');
+            if (f.length != 3 || dash < 0) {
+                throw new IllegalArgumentException("bad slot table line: " + line);
+            }
+
+            int first = Integer.parseInt(f[0].substring(0, dash));
+            int last = Integer.parseInt(f[0].substring(dash + 1));
+            if (first < 0 || last >= HashSlots.SLOTS || first > last) {
+                throw new IllegalArgumentException("bad slot table line: " + line);
+            }
+
+            long epoch = Long.parseLong(f[1]);
+            for (int slot = first; slot <= last; slot++) {
+                owners[slot] = f[2];
+                epochs[slot] = epoch;
+            }
+        }
+
+        return new SlotTable(owners, epochs);
+    }
+}
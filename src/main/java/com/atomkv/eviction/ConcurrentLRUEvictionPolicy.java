@@ -0,0 +1,166 @@
+package com.atomkv.eviction;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Approximate LRU in which cache hits never wait for a lock.
+ *
+ * <p>Accesses are appended to one of several striped, lock-free ring buffers (picked by thread)
+ * and replayed into the access-ordered map in batches by whichever thread wins a
+ * {@code tryLock}. When a buffer is full the access is dropped: the order becomes slightly less
+ * exact, but the read path stays wait-free. Puts, removes and evictions still take the lock, and
+ * drain the buffers first so they see every access recorded so far.
+ *
+ * <p>A buffered access only refreshes a key that is still tracked; it never brings back a key
+ * that was removed after the access was recorded.
+ */
+public class ConcurrentLRUEvictionPolicy implements EvictionPolicy {
+    private static final int BUFFER_SIZE = 64; // power of two
+    private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+
+    private final int capacity;
+    private final LinkedHashMap<String, Boolean> accessOrder;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[STRIPES];
+
+    public ConcurrentLRUEvictionPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+        for (int i = 0; i < STRIPES; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        ReadBuffer buffer = readBuffers[stripe()];
+        int pending = buffer.offer(key);
+
+        if (pending < 0 || pending >= DRAIN_THRESHOLD) {
+            tryDrain();
+        }
+    }
+
+    @Override
+    public void recordPut(String key) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            accessOrder.put(key, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void recordRemove(String key) {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            accessOrder.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<String> evictKey() {
+        lock.lock();
+        try {
+            drainReadBuffers();
+            Iterator<String> it = accessOrder.keySet().iterator();
+
+            if (it.hasNext()) {
+                String oldest = it.next();
+                it.remove();
+                return Optional.of(oldest);
+            }
+
+            return Optional.empty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    private void tryDrain() {
+        if (lock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // caller holds the lock
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.drainTo(accessOrder);
+        }
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().threadId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h >>> 16) & (STRIPES - 1);
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring of keys. Producers claim a slot with a CAS on
+     * {@code writeIndex}; the consumer runs under the policy lock.
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        private final AtomicLong writeIndex = new AtomicLong();
+        private volatile long readIndex;
+
+        /**
+         * @return number of accesses waiting after this one, or -1 if the buffer was full and the
+         *         access was dropped
+         */
+        int offer(String key) {
+            long read = readIndex;
+            long write = writeIndex.get();
+
+            if (write - read >= BUFFER_SIZE) {
+                return -1;
+            }
+
+            if (!writeIndex.compareAndSet(write, write + 1)) {
+                // lost the race to another reader on this stripe; dropping is cheaper than retrying
+                return 0;
+            }
+
+            slots.lazySet((int) write & (BUFFER_SIZE - 1), key);
+            return (int) (write + 1 - read);
+        }
+
+        void drainTo(LinkedHashMap<String, Boolean> accessOrder) {
+            long read = readIndex;
+            long write = writeIndex.get();
+
+            for (; read < write; read++) {
+                int index = (int) read & (BUFFER_SIZE - 1);
+                String key = slots.get(index);
+                if (key == null) {
+                    // slot claimed but not yet filled; pick it up on the next drain
+                    break;
+                }
+
+                slots.lazySet(index, null);
+                accessOrder.get(key); // moves the key to the tail if it is still tracked
+            }
+
+            readIndex = read;
+        }
+    }
+}
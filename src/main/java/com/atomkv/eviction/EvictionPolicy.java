@@ -9,7 +9,15 @@ public interface EvictionPolicy {
     
     void recordRemove(String key);
     
-    Optional<String> evictKeyIfNeeded(int currentSize);
+    /**
+     * Stop tracking and return the key that should be evicted next, whatever the current size;
+     * empty if no key is tracked. Used when the store is over its memory budget.
+     */
+    Optional<String> evictKey();
+
+    default Optional<String> evictKeyIfNeeded(int currentSize) {
+        return currentSize <= capacity() ? Optional.empty() : evictKey();
+    }
     
     int capacity();
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package com.atomkv.eviction;
+
+import java.util.Locale;
+import java.util.function.IntFunction;
+
+/**
+ * Eviction policies that can be chosen at startup, each with a factory taking the capacity.
+ */
+public enum EvictionPolicyType {
+    /** Exact LRU; every access takes the policy lock. */
+    LRU(LRUEvictionPolicy::new),
+    /** Approximate LRU with lock-free buffered accesses, see {@link ConcurrentLRUEvictionPolicy}. */
+    APPROX_LRU(ConcurrentLRUEvictionPolicy::new),
+    /** Frequency-aware admission that resists scans, see {@link WTinyLFUEvictionPolicy}. */
+    W_TINYLFU(WTinyLFUEvictionPolicy::new);
+
+    private final IntFunction<EvictionPolicy> factory;
+
+    EvictionPolicyType(IntFunction<EvictionPolicy> factory) {
+        this.factory = factory;
+    }
+
+    public EvictionPolicy create(int capacity) {
+        return factory.apply(capacity);
+    }
+
+    /**
+     * Parse a command line name such as {@code lru}, {@code approx-lru} or {@code w-tinylfu}.
+     */
+    public static EvictionPolicyType fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
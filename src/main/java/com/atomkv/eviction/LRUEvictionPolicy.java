@@ -1,14 +1,18 @@
 package com.atomkv.eviction;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Simple synchronized LRU eviction policy using LinkedHashMap.
+ * Simple LRU eviction policy using LinkedHashMap.
  * Tracks access order externally and provides a key to evict when size exceeds capacity.
+ * Guarded by a ReentrantLock rather than synchronized so contended callers on virtual
+ * threads park instead of pinning their carrier.
  */
 public class LRUEvictionPolicy implements EvictionPolicy {
     private final int capacity;
     private final LinkedHashMap<String, Boolean> accessOrder;
+    private final ReentrantLock lock = new ReentrantLock();
 
     public LRUEvictionPolicy(int capacity) {
         this.capacity = Math.max(1, capacity);
@@ -16,39 +20,55 @@ public class LRUEvictionPolicy implements EvictionPolicy {
     }
 
     @Override
-    public synchronized void recordAccess(String key) {
-        accessOrder.put(key, Boolean.TRUE);
+    public void recordAccess(String key) {
+        lock.lock();
+        try {
+            accessOrder.put(key, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized void recordPut(String key) {
-        accessOrder.put(key, Boolean.TRUE);
+    public void recordPut(String key) {
+        lock.lock();
+        try {
+            accessOrder.put(key, Boolean.TRUE);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized void recordRemove(String key) {
-        accessOrder.remove(key);
+    public void recordRemove(String key) {
+        lock.lock();
+        try {
+            accessOrder.remove(key);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized Optional<String> evictKeyIfNeeded(int currentSize) {
-        if (currentSize <= capacity) {
-            return Optional.empty();
-        }
+    public Optional<String> evictKey() {
+        lock.lock();
+        try {
+            Iterator<String> it = accessOrder.keySet().iterator();
+
+            if (it.hasNext()) {
+                String oldest = it.next();
+                it.remove();
+                return Optional.of(oldest);
+            }
 
-        Iterator<String> it = accessOrder.keySet().iterator();
-        
-        if (it.hasNext()) {
-            String oldest = it.next();
-            it.remove();
-            return Optional.of(oldest);
+            return Optional.empty();
+        } finally {
+            lock.unlock();
         }
-        
-        return Optional.empty();
     }
 
     @Override
-    public synchronized int capacity() {
+    public int capacity() {
         return capacity;
     }
 }
@@ -0,0 +1,149 @@
+package com.atomkv.eviction;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * W-TinyLFU: a small LRU admission window in front of a segmented LRU main region, with a
+ * {@link FrequencySketch} deciding which keys are worth keeping.
+ *
+ * <p>New keys enter the window (1% of the capacity). Keys pushed out of the window join the
+ * probation segment of the main region, and a key accessed while on probation moves to the
+ * protected segment (80% of the main region). When the store is over capacity, the newest
+ * probation key (the candidate) is compared with the oldest one (the victim), and whichever has
+ * the lower estimated frequency is evicted. A one-off scan therefore cycles through the window
+ * and probation without pushing out keys that are used often.
+ */
+public class WTinyLFUEvictionPolicy implements EvictionPolicy {
+    private final int capacity;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+
+    // access-ordered: a get() moves the key to the most recently used end
+    private final LinkedHashMap<String, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public WTinyLFUEvictionPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.windowCapacity = Math.max(1, this.capacity / 100);
+        this.protectedCapacity = (int) ((this.capacity - windowCapacity) * 0.8);
+        this.sketch = new FrequencySketch(this.capacity);
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        lock.lock();
+        try {
+            sketch.increment(key);
+            touch(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void recordPut(String key) {
+        lock.lock();
+        try {
+            sketch.increment(key);
+            if (touch(key)) {
+                return;
+            }
+
+            window.put(key, Boolean.TRUE);
+            while (window.size() > windowCapacity) {
+                String oldest = eldest(window);
+                window.remove(oldest);
+                probation.put(oldest, Boolean.TRUE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void recordRemove(String key) {
+        lock.lock();
+        try {
+            recordRemoveLocked(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<String> evictKey() {
+        lock.lock();
+        try {
+            String evicted = selectVictim();
+            if (evicted != null) {
+                recordRemoveLocked(evicted);
+            }
+            return Optional.ofNullable(evicted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Move a tracked key to the most recently used end of its segment, promoting it out of
+     * probation. Returns false if the key is not tracked.
+     */
+    private boolean touch(String key) {
+        if (window.get(key) != null || protectedSegment.get(key) != null) {
+            return true;
+        }
+
+        if (probation.remove(key) == null) {
+            return false;
+        }
+
+        protectedSegment.put(key, Boolean.TRUE);
+        while (protectedSegment.size() > protectedCapacity) {
+            // demoted keys get another chance on probation
+            String oldest = eldest(protectedSegment);
+            protectedSegment.remove(oldest);
+            probation.put(oldest, Boolean.TRUE);
+        }
+
+        return true;
+    }
+
+    private String selectVictim() {
+        if (probation.isEmpty()) {
+            if (!protectedSegment.isEmpty()) {
+                return eldest(protectedSegment);
+            }
+            return window.isEmpty() ? null : eldest(window);
+        }
+
+        String victim = eldest(probation);
+        String candidate = newest(probation);
+
+        // on a tie the newcomer goes, so a steady stream of new keys cannot flush established ones
+        return sketch.frequency(candidate) > sketch.frequency(victim) ? victim : candidate;
+    }
+
+    private void recordRemoveLocked(String key) {
+        if (window.remove(key) == null && probation.remove(key) == null) {
+            protectedSegment.remove(key);
+        }
+    }
+
+    private static String eldest(LinkedHashMap<String, Boolean> segment) {
+        return segment.firstEntry().getKey();
+    }
+
+    private static String newest(LinkedHashMap<String, Boolean> segment) {
+        return segment.lastEntry().getKey();
+    }
+}
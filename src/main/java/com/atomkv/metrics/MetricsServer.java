@@ -1,5 +1,9 @@
 package com.atomkv.metrics;
 
+import com.atomkv.persistence.AofLoadStats;
+import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.replication.ReplicationFollower;
+import com.atomkv.replication.ReplicationLeader;
 import com.atomkv.store.InMemoryStore;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
@@ -18,8 +22,25 @@ public class MetricsServer {
     private final HttpServer server;
 
     public MetricsServer(int port, InMemoryStore store) throws IOException {
+        this(port, store, null);
+    }
+
+    /**
+     * @param aof whose buffer is reported too, or null
+     */
+    public MetricsServer(int port, InMemoryStore store, AppendOnlyFile aof) throws IOException {
+        this(port, store, aof, null, null);
+    }
+
+    /**
+     * @param aof whose buffer is reported too, or null
+     * @param leader whose followers are reported, or null
+     * @param follower whose link to the leader is reported, or null
+     */
+    public MetricsServer(int port, InMemoryStore store, AppendOnlyFile aof, ReplicationLeader leader,
+                         ReplicationFollower follower) throws IOException {
         server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/metrics", new MetricsHandler(store));
+        server.createContext("/metrics", new MetricsHandler(store, aof, leader, follower));
         server.createContext("/insights", new DataHandler(store));
         server.setExecutor(null);
     }
@@ -34,14 +55,55 @@ public class MetricsServer {
 
     static class MetricsHandler implements HttpHandler {
         private final InMemoryStore store;
+        private final AppendOnlyFile aof;
+        private final ReplicationLeader leader;
+        private final ReplicationFollower follower;
 
-        MetricsHandler(InMemoryStore store) {
+        MetricsHandler(InMemoryStore store, AppendOnlyFile aof, ReplicationLeader leader, ReplicationFollower follower) {
             this.store = store;
+            this.aof = aof;
+            this.leader = leader;
+            this.follower = follower;
         }
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String json = String.format("{\"keys\":%d,\"hits\":%d,\"misses\":%d}", store.keys(), store.hits(), store.misses());
+            String json = String.format("{\"keys\":%d,\"hits\":%d,\"misses\":%d,\"shards\":%d,\"used_memory\":%d,\"maxmemory\":%d,"
+                            + "\"expired_keys\":%d,\"expire_cycle_last_us\":%d,\"expire_cycle_total_ms\":%d,\"expired_time_cap_reached_count\":%d}",
+                    store.keys(), store.hits(), store.misses(), store.shardCount(), store.usedMemory(), store.maxMemory(),
+                    store.expiredKeys(), store.lastExpireCycleMicros(), store.expireCycleMillis(), store.expireTimeCapReached());
+
+            if (aof != null) {
+                json = json.substring(0, json.length() - 1) + String.format(",\"aof_buffer_bytes\":%d,\"aof_buffer_capacity\":%d,\"aof_lag_ms\":%d,"
+                                + "\"aof_blocked_appends\":%d,\"aof_dropped_appends\":%d,\"aof_rejected_appends\":%d}",
+                        aof.bufferedBytes(), aof.bufferCapacity(), aof.lagMillis(),
+                        aof.blockedAppends(), aof.droppedAppends(), aof.rejectedAppends());
+
+                AofLoadStats load = aof.lastLoad();
+                if (load != null) {
+                    json = json.substring(0, json.length() - 1) + String.format(",\"aof_loaded_records\":%d,\"aof_skipped_records\":%d,"
+                                    + "\"aof_truncated_bytes\":%d,\"aof_load_ms\":%d}",
+                            load.records(), load.skipped(), load.truncatedBytes(), load.millis());
+                }
+            }
+
+            if (leader != null) {
+                long maxLag = 0;
+                int followers = 0;
+                for (ReplicationLeader.FollowerStatus f : leader.followers()) {
+                    maxLag = Math.max(maxLag, f.lagBytes);
+                    followers++;
+                }
+                json = json.substring(0, json.length() - 1) + String.format(",\"repl_role\":\"leader\",\"repl_offset\":%d,"
+                                + "\"repl_connected_followers\":%d,\"repl_max_lag_bytes\":%d}",
+                        leader.offset(), followers, maxLag);
+            } else if (follower != null) {
+                json = json.substring(0, json.length() - 1) + String.format(",\"repl_role\":\"follower\",\"repl_link_up\":%b,"
+                                + "\"repl_offset\":%d,\"repl_leader_offset\":%d,\"repl_lag_bytes\":%d,\"repl_lag_ms\":%d,"
+                                + "\"repl_full_syncs\":%d,\"repl_partial_syncs\":%d}",
+                        follower.linkUp(), follower.offset(), follower.leaderOffset(), follower.lagBytes(), follower.lagMillis(),
+                        follower.fullSyncs(), follower.partialSyncs());
+            }
             
             byte[] out = json.getBytes(StandardCharsets.UTF_8);
             
@@ -0,0 +1,22 @@
+package com.atomkv.persistence;
+
+import java.util.Locale;
+
+/**
+ * What an append does when the AOF buffer is full because the disk cannot keep up.
+ */
+public enum AofBackpressure {
+    /** Wait for the writer to make room; writes slow down to the speed of the disk. */
+    BLOCK,
+    /** Leave the write out of the AOF and count it; the store keeps it, a restart loses it. */
+    DROP,
+    /**
+     * Leave the write out of the AOF, count it and throw, so the client gets an error. The store
+     * logs before it applies a write, so a refused write is not done at all.
+     */
+    FAIL;
+
+    public static AofBackpressure fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
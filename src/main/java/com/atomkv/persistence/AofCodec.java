@@ -0,0 +1,499 @@
+package com.atomkv.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary AOF format.
+ *
+ * <p>A file starts with the 8 byte header {@code "AKVAOF"} followed by a big-endian format
+ * version. Each record after it is:
+ * <pre>
+ * varint  payload length
+ * payload opcode byte, then the fields of that opcode
+ * int32   CRC32C of the payload, big-endian
+ * </pre>
+ * Strings are a varint byte length followed by the key's UTF-8 or the value's raw bytes, numbers
+ * are zigzag varints, so any key or value comes back exactly as it went in. Fields by opcode: SET key value px, SETPXAT key
+ * value deadline, EXPIRE key seconds, PEXPIREAT key deadline, APPEND and RENAME key value, MSET
+ * count then the strings, FLUSHALL nothing, all others key.
+ *
+ * <p>A rewritten file may instead start with a {@link SnapshotFile} preamble, followed directly by
+ * records in this format. A file with neither header is an old text AOF, one command per line.
+ */
+public final class AofCodec {
+    static final byte[] MAGIC = {'A', 'K', 'V', 'A', 'O', 'F'};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 2;
+
+    private static final int MAX_VARINT_LENGTH = 5;
+
+    /**
+     * Longest payload a record may have. Two values at the largest bulk string a client can send
+     * fit, and a garbage length read from a damaged file cannot make the reader allocate gigabytes.
+     */
+    static final int MAX_RECORD_LENGTH = 1 << 30;
+
+    /**
+     * What a file starts with.
+     */
+    enum Format {
+        /** One text command per line, as written by older versions. */
+        TEXT,
+        /** The AOF header, then records. */
+        BINARY,
+        /** A snapshot of the store, then records. */
+        SNAPSHOT_PREAMBLE
+    }
+
+    private AofCodec() {
+    }
+
+    static byte[] header() {
+        byte[] h = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+        h[MAGIC.length] = (byte) (VERSION >>> 8);
+        h[MAGIC.length + 1] = (byte) VERSION;
+        return h;
+    }
+
+    /**
+     * Tell the format of a file from its first bytes. An empty file counts as binary, since that
+     * is what will be written to it. Only the AOF header's version is checked here; a snapshot
+     * preamble checks its own when it is loaded.
+     *
+     * @throws IOException if it has the header of a format version this code cannot read
+     */
+    static Format format(FileChannel ch) throws IOException {
+        if (ch.size() == 0) {
+            return Format.BINARY;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(HEADER_LENGTH);
+        while (head.hasRemaining() && ch.read(head, head.position()) > 0) {
+            // keep reading
+        }
+
+        if (head.position() < HEADER_LENGTH) {
+            return Format.TEXT;
+        }
+        if (Arrays.equals(head.array(), 0, MAGIC.length, SnapshotFile.MAGIC, 0, MAGIC.length)) {
+            return Format.SNAPSHOT_PREAMBLE;
+        }
+        if (!Arrays.equals(head.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            return Format.TEXT;
+        }
+
+        int version = head.getShort(MAGIC.length) & 0xFFFF;
+        if (version != VERSION) {
+            throw new IOException("unsupported AOF format version " + version);
+        }
+
+        return Format.BINARY;
+    }
+
+    /**
+     * Append the encoded record to {@code out}.
+     *
+     * @throws IllegalArgumentException if the payload is longer than {@link #MAX_RECORD_LENGTH};
+     *         {@code out} is left as it was
+     */
+    public static void encode(AofRecord r, Output out) {
+        int start = out.size;
+
+        // leave room for the longest length prefix and close the gap once the length is known
+        out.ensure(MAX_VARINT_LENGTH);
+        out.size += MAX_VARINT_LENGTH;
+        int payloadStart = out.size;
+
+        out.writeByte(r.op().code);
+        switch (r.op()) {
+            case SET, SETPXAT -> {
+                out.writeString(r.key());
+                out.writeBytes(r.valueBytes());
+                out.writeSignedVarLong(r.number());
+            }
+            case APPEND, RENAME -> {
+                out.writeString(r.key());
+                out.writeBytes(r.valueBytes());
+            }
+            case EXPIRE, PEXPIREAT -> {
+                out.writeString(r.key());
+                out.writeSignedVarLong(r.number());
+            }
+            case MSET -> {
+                out.writeVarInt(r.pairs().length);
+                for (byte[] b : r.pairs()) {
+                    out.writeBytes(b);
+                }
+            }
+            case FLUSHALL -> { }
+            default -> out.writeString(r.key());
+        }
+
+        int payloadLength = out.size - payloadStart;
+        if (payloadLength > MAX_RECORD_LENGTH) {
+            out.size = start;
+            throw new IllegalArgumentException("AOF record of " + payloadLength + " bytes is longer than "
+                    + MAX_RECORD_LENGTH);
+        }
+        int prefixLength = varIntLength(payloadLength);
+        int gap = MAX_VARINT_LENGTH - prefixLength;
+
+        System.arraycopy(out.buf, payloadStart, out.buf, payloadStart - gap, payloadLength);
+        out.size = start;
+        out.writeVarInt(payloadLength);
+        out.size += payloadLength;
+
+        out.crc.reset();
+        out.crc.update(out.buf, out.size - payloadLength, payloadLength);
+        out.writeInt((int) out.crc.getValue());
+    }
+
+    private static int varIntLength(int v) {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Growable byte buffer that records are encoded into before being written in one go.
+     */
+    public static final class Output {
+        private byte[] buf;
+        private int size;
+        private final CRC32C crc = new CRC32C();
+
+        public Output(int initialCapacity) {
+            buf = new byte[initialCapacity];
+        }
+
+        public byte[] array() {
+            return buf;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int capacity() {
+            return buf.length;
+        }
+
+        public void reset() {
+            size = 0;
+        }
+
+        void write(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        private void ensure(int more) {
+            if (size + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+            }
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >>> 24);
+            buf[size++] = (byte) (v >>> 16);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+        }
+
+        private void writeVarInt(int v) {
+            ensure(MAX_VARINT_LENGTH);
+            while ((v & ~0x7F) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        private void writeSignedVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[size++] = (byte) zigzag;
+        }
+
+        private void writeString(String s) {
+            writeBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeBytes(byte[] b) {
+            if (b == null) {
+                writeVarInt(0);
+                return;
+            }
+            writeVarInt(b.length);
+            write(b);
+        }
+    }
+
+    /**
+     * Decode one record as {@link #encode} wrote it, filling {@code a[off, off + len)} exactly.
+     *
+     * @throws IOException on a checksum mismatch, a length that does not match, or an unknown
+     *                     opcode
+     */
+    public static AofRecord decode(byte[] a, int off, int len) throws IOException {
+        Fields prefix = new Fields(a, off, off + len);
+        int length = prefix.varInt();
+        int payload = prefix.pos;
+        if (length <= 0 || payload + length + 4 != off + len) {
+            throw new IOException("bad record length " + length);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(a, payload, length);
+        if ((int) crc.getValue() != ByteBuffer.wrap(a, payload + length, 4).getInt()) {
+            throw new IOException("CRC mismatch");
+        }
+
+        return decodePayload(a, payload, length);
+    }
+
+    private static AofRecord decodePayload(byte[] a, int off, int length) throws IOException {
+        Fields f = new Fields(a, off + 1, off + length);
+        AofRecord.Op op = AofRecord.Op.fromCode(a[off]);
+        if (op == null) {
+            throw new IOException("unknown opcode " + a[off]);
+        }
+
+        AofRecord r = switch (op) {
+            case SET, SETPXAT -> new AofRecord(op, f.string(), f.bytes(), f.signedVarLong(), null);
+            case APPEND, RENAME -> new AofRecord(op, f.string(), f.bytes(), 0, null);
+            case EXPIRE, PEXPIREAT -> new AofRecord(op, f.string(), null, f.signedVarLong(), null);
+            case MSET -> {
+                byte[][] pairs = new byte[f.varInt()][];
+                for (int i = 0; i < pairs.length; i++) {
+                    pairs[i] = f.bytes();
+                }
+                yield AofRecord.mset(pairs);
+            }
+            case FLUSHALL -> AofRecord.flushAll();
+            default -> new AofRecord(op, f.string(), null, 0, null);
+        };
+
+        if (f.pos != f.end) {
+            throw new IOException("record length does not match its fields");
+        }
+
+        return r;
+    }
+
+    /**
+     * Streaming decoder over a channel positioned just after the header.
+     */
+    public static final class Reader {
+        private final ReadableByteChannel in;
+        private final CRC32C crc = new CRC32C();
+        private ByteBuffer buf = ByteBuffer.allocate(1 << 20).limit(0);
+        private long offset; // file offset of buf.position()
+        private final long end;
+        private boolean eof;
+
+        public Reader(ReadableByteChannel in, long offset) {
+            this(in, offset, Long.MAX_VALUE);
+        }
+
+        /**
+         * @param end file offset where {@code in} ends, so a record claiming to run past it is
+         *        known to be cut short before it is read
+         */
+        public Reader(ReadableByteChannel in, long offset, long end) {
+            this.in = in;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        /**
+         * File offset of the next record.
+         */
+        public long offset() {
+            return offset;
+        }
+
+        /**
+         * The next record, or null at the end of the file.
+         *
+         * @throws IOException on a checksum mismatch, a record cut short, or an unknown opcode
+         */
+        public AofRecord next() throws IOException {
+            if (!fill(1)) {
+                return null;
+            }
+
+            int start = buf.position();
+            int length = 0;
+            int prefix = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (prefix == MAX_VARINT_LENGTH) {
+                    throw corrupt("bad record length");
+                }
+                if (!fill(prefix + 1)) {
+                    throw new EOFException("AOF record cut short at offset " + offset);
+                }
+
+                byte b = buf.get(start + prefix++);
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+
+            if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                throw corrupt("bad record length " + length);
+            }
+            if (length > end - offset - prefix - 4 || !fill(prefix + length + 4)) {
+                throw new EOFException("AOF record cut short at offset " + offset);
+            }
+
+            byte[] a = buf.array();
+            int payload = buf.position() + prefix;
+
+            crc.reset();
+            crc.update(a, payload, length);
+            if ((int) crc.getValue() != buf.getInt(payload + length)) {
+                throw corrupt("CRC mismatch");
+            }
+
+            AofRecord record = decode(a, payload, length);
+            int consumed = prefix + length + 4;
+            buf.position(buf.position() + consumed);
+            offset += consumed;
+
+            return record;
+        }
+
+        private AofRecord decode(byte[] a, int off, int length) throws IOException {
+            try {
+                return decodePayload(a, off, length);
+            } catch (IOException e) {
+                throw corrupt(e.getMessage());
+            }
+        }
+
+        /**
+         * Make sure at least {@code n} bytes are buffered; false if the file ends first.
+         */
+        private boolean fill(int n) throws IOException {
+            if (buf.remaining() >= n) {
+                return true;
+            }
+
+            buf.compact();
+            if (buf.capacity() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(n, buf.capacity() * 2));
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+
+            while (buf.position() < n && !eof) {
+                if (in.read(buf) < 0) {
+                    eof = true;
+                }
+            }
+            buf.flip();
+
+            return buf.remaining() >= n;
+        }
+
+        private IOException corrupt(String what) {
+            return new IOException("corrupt AOF record at offset " + offset + ": " + what);
+        }
+    }
+
+    /**
+     * Cursor over the fields of one payload.
+     */
+    private static final class Fields {
+        private final byte[] a;
+        private final int end;
+        private int pos;
+
+        Fields(byte[] a, int pos, int end) {
+            this.a = a;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int varInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = next();
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IOException("bad varint in AOF record");
+        }
+
+        long signedVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = next();
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+            throw new IOException("bad varint in AOF record");
+        }
+
+        String string() throws IOException {
+            int len = length();
+            String s = new String(a, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        byte[] bytes() throws IOException {
+            int len = length();
+            byte[] b = Arrays.copyOfRange(a, pos, pos + len);
+            pos += len;
+            return b;
+        }
+
+        private int length() throws IOException {
+            int len = varInt();
+            if (len < 0 || len > end - pos) {
+                throw new IOException("bad string length in AOF record");
+            }
+            return len;
+        }
+
+        private byte next() throws IOException {
+            if (pos >= end) {
+                throw new IOException("AOF record shorter than its fields");
+            }
+            return a[pos++];
+        }
+    }
+}
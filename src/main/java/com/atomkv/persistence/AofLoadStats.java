@@ -0,0 +1,60 @@
+package com.atomkv.persistence;
+
+/**
+ * What a {@link AppendOnlyFile#replay replay} did: how many records it loaded, how many it had to
+ * skip, how much of a torn tail it cut off and how fast it went.
+ */
+public final class AofLoadStats {
+    long records; // keys of a snapshot base count as one record each
+    long skipped;
+    long truncatedBytes;
+    long bytes;
+    long nanos;
+
+    AofLoadStats() {
+    }
+
+    public long records() {
+        return records;
+    }
+
+    /**
+     * Text lines that could not be parsed and records the store could not apply, such as an INCR of
+     * a value that is not a number.
+     */
+    public long skipped() {
+        return skipped;
+    }
+
+    /**
+     * Bytes of a record cut short by a crash that were truncated off the end of a file.
+     */
+    public long truncatedBytes() {
+        return truncatedBytes;
+    }
+
+    /**
+     * Total size of the files read.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    public long millis() {
+        return nanos / 1_000_000;
+    }
+
+    public double recordsPerSecond() {
+        return nanos == 0 ? 0 : records * 1e9 / nanos;
+    }
+
+    public double megabytesPerSecond() {
+        return nanos == 0 ? 0 : bytes * 1e9 / nanos / (1 << 20);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d records (%d skipped, %d bytes truncated) in %d ms, %.1f MB/s, %.0f records/s",
+                records, skipped, truncatedBytes, millis(), megabytesPerSecond(), recordsPerSecond());
+    }
+}
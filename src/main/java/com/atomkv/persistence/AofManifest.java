@@ -0,0 +1,181 @@
+package com.atomkv.persistence;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which files make up a segmented {@link AppendOnlyFile}: at most one base, the state of the
+ * store at the last rewrite, followed by the incremental segments written since, oldest first.
+ * Loading the base and then every segment in order gives the current state.
+ *
+ * <p>The manifest is a small text file, one line per file:
+ * <pre>
+ * file appendonly.aof.7.base.akv seq 7 type b
+ * file appendonly.aof.8.incr.aof seq 8 type i
+ * </pre>
+ * It is replaced as a whole by writing a temporary file and renaming it over the old one, so
+ * adding a segment or swapping in a new base is atomic: after a crash the manifest lists either
+ * the old set of files or the new one. Files in the directory that it does not list are left over
+ * from such a crash and are deleted when the AOF is opened.
+ *
+ * <p>Instances are immutable.
+ */
+final class AofManifest {
+    static final AofManifest EMPTY = new AofManifest(null, List.of());
+
+    /**
+     * One file of the AOF; its sequence number is unique among all files ever created for it.
+     */
+    static final class Entry {
+        final String name;
+        final long seq;
+
+        Entry(String name, long seq) {
+            this.name = name;
+            this.seq = seq;
+        }
+    }
+
+    private final Entry base; // null before the first rewrite
+    private final List<Entry> incrs;
+
+    private AofManifest(Entry base, List<Entry> incrs) {
+        this.base = base;
+        this.incrs = Collections.unmodifiableList(incrs);
+    }
+
+    Entry base() {
+        return base;
+    }
+
+    List<Entry> incrs() {
+        return incrs;
+    }
+
+    /**
+     * The base, if any, then the segments in order.
+     */
+    List<Entry> files() {
+        List<Entry> all = new ArrayList<>(incrs.size() + 1);
+        if (base != null) {
+            all.add(base);
+        }
+        all.addAll(incrs);
+        return all;
+    }
+
+    /**
+     * The highest sequence number in use, 0 if there are no files.
+     */
+    long lastSeq() {
+        long last = base == null ? 0 : base.seq;
+        for (Entry e : incrs) {
+            last = Math.max(last, e.seq);
+        }
+        return last;
+    }
+
+    AofManifest withIncr(Entry segment) {
+        List<Entry> more = new ArrayList<>(incrs);
+        more.add(segment);
+        return new AofManifest(base, more);
+    }
+
+    /**
+     * A new base, keeping only the segments from {@code firstSeq} on, which were written after it
+     * was cut.
+     */
+    AofManifest withBase(Entry newBase, long firstSeq) {
+        List<Entry> after = new ArrayList<>();
+        for (Entry e : incrs) {
+            if (e.seq >= firstSeq) {
+                after.add(e);
+            }
+        }
+        return new AofManifest(newBase, after);
+    }
+
+    /**
+     * @return null if there is no manifest
+     * @throws IOException if it cannot be read or parsed
+     */
+    static AofManifest read(Path path) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        Entry base = null;
+        List<Entry> incrs = new ArrayList<>();
+        for (String line : lines) {
+            if (line.isBlank()) {
+                continue;
+            }
+
+            String[] f = line.trim().split(" ");
+            if (f.length != 6 || !f[0].equals("file") || !f[2].equals("seq") || !f[4].equals("type")) {
+                throw new IOException("bad AOF manifest line: " + line);
+            }
+
+            Entry e;
+            try {
+                e = new Entry(f[1], Long.parseLong(f[3]));
+            } catch (NumberFormatException ex) {
+                throw new IOException("bad AOF manifest line: " + line);
+            }
+
+            switch (f[5]) {
+                case "b" -> {
+                    if (base != null) {
+                        throw new IOException("AOF manifest has more than one base");
+                    }
+                    base = e;
+                }
+                case "i" -> incrs.add(e);
+                default -> throw new IOException("bad AOF manifest line: " + line);
+            }
+        }
+
+        return new AofManifest(base, incrs);
+    }
+
+    /**
+     * Replace the manifest at {@code path} with this one atomically and durably.
+     */
+    void write(Path path) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (base != null) {
+            sb.append("file ").append(base.name).append(" seq ").append(base.seq).append(" type b\n");
+        }
+        for (Entry e : incrs) {
+            sb.append("file ").append(e.name).append(" seq ").append(e.seq).append(" type i\n");
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            out.write(StandardCharsets.UTF_8.encode(sb.toString()));
+            out.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.getParent());
+    }
+
+    static void forceDirectory(Path dir) {
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        } catch (IOException ignored) {
+            // not every platform can open a directory; the rename itself is still atomic
+        }
+    }
+}
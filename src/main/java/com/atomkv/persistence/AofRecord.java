@@ -0,0 +1,348 @@
+package com.atomkv.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * One logged write. The store creates records as it changes, the {@link AppendOnlyFile} writer
+ * encodes them (see {@link AofCodec}), and replay decodes them back and hands them to
+ * {@link com.atomkv.store.InMemoryStore#loadRecord}; a follower hands the records it receives to
+ * {@link com.atomkv.store.InMemoryStore#applyReplicated}.
+ *
+ * <p>Which fields are used depends on the {@link Op}: {@code key} for all but FLUSHALL,
+ * {@code value} for SET, SETPXAT and APPEND (the new name for RENAME), kept as the bytes the
+ * client sent so binary values survive, {@code number} for the
+ * absolute deadline in epoch millis of SETPXAT and PEXPIREAT, and {@code pairs} only for MSET, with
+ * the keys in UTF-8 and the values again as the client sent them.
+ *
+ * <p>The store logs deadlines as absolute times, so a replay expires a key when it would have
+ * expired originally, however long after the write it runs. SET with a relative PX (0 for none)
+ * and EXPIRE with relative seconds come only from files written before that; their TTL can only
+ * be counted from the replay.
+ */
+public final class AofRecord {
+    public enum Op {
+        SET(1), DEL(2), PERSIST(3), EXPIRE(4), INCR(5), DECR(6), APPEND(7), RENAME(8), FLUSHALL(9), MSET(10),
+        SETPXAT(11), PEXPIREAT(12);
+
+        private static final Op[] BY_CODE = new Op[16];
+
+        static {
+            for (Op op : values()) {
+                BY_CODE[op.code] = op;
+            }
+        }
+
+        final byte code;
+
+        Op(int code) {
+            this.code = (byte) code;
+        }
+
+        static Op fromCode(int code) {
+            return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+    }
+
+    private static final AofRecord FLUSH_ALL = new AofRecord(Op.FLUSHALL, null, null, 0, null);
+
+    private final Op op;
+    private final String key;
+    private final byte[] value;
+    private final long number;
+    private final byte[][] pairs;
+
+    AofRecord(Op op, String key, byte[] value, long number, byte[][] pairs) {
+        this.op = op;
+        this.key = key;
+        this.value = value;
+        this.number = number;
+        this.pairs = pairs;
+    }
+
+    /**
+     * @param pxMillis time to live in milliseconds, 0 or less for none
+     */
+    public static AofRecord set(String key, String value, long pxMillis) {
+        return set(key, bytes(value), pxMillis);
+    }
+
+    /**
+     * @param pxMillis time to live in milliseconds, 0 or less for none
+     */
+    public static AofRecord set(String key, byte[] value, long pxMillis) {
+        return new AofRecord(Op.SET, key, value, Math.max(0, pxMillis), null);
+    }
+
+    /**
+     * @param expireAtMillis absolute deadline, 0 or less for none
+     */
+    public static AofRecord setAt(String key, String value, long expireAtMillis) {
+        return setAt(key, bytes(value), expireAtMillis);
+    }
+
+    /**
+     * @param expireAtMillis absolute deadline, 0 or less for none
+     */
+    public static AofRecord setAt(String key, byte[] value, long expireAtMillis) {
+        if (expireAtMillis <= 0) {
+            return new AofRecord(Op.SET, key, value, 0, null);
+        }
+        return new AofRecord(Op.SETPXAT, key, value, expireAtMillis, null);
+    }
+
+    public static AofRecord del(String key) {
+        return new AofRecord(Op.DEL, key, null, 0, null);
+    }
+
+    public static AofRecord persist(String key) {
+        return new AofRecord(Op.PERSIST, key, null, 0, null);
+    }
+
+    public static AofRecord expire(String key, long seconds) {
+        return new AofRecord(Op.EXPIRE, key, null, seconds, null);
+    }
+
+    public static AofRecord expireAt(String key, long expireAtMillis) {
+        return new AofRecord(Op.PEXPIREAT, key, null, expireAtMillis, null);
+    }
+
+    public static AofRecord incr(String key) {
+        return new AofRecord(Op.INCR, key, null, 0, null);
+    }
+
+    public static AofRecord decr(String key) {
+        return new AofRecord(Op.DECR, key, null, 0, null);
+    }
+
+    public static AofRecord append(String key, String suffix) {
+        return append(key, bytes(suffix));
+    }
+
+    public static AofRecord append(String key, byte[] suffix) {
+        return new AofRecord(Op.APPEND, key, suffix, 0, null);
+    }
+
+    public static AofRecord rename(String key, String newKey) {
+        return new AofRecord(Op.RENAME, key, bytes(newKey), 0, null);
+    }
+
+    public static AofRecord flushAll() {
+        return FLUSH_ALL;
+    }
+
+    /**
+     * @param pairs keys and values alternating, keys in UTF-8
+     */
+    public static AofRecord mset(byte[][] pairs) {
+        return new AofRecord(Op.MSET, null, null, 0, pairs);
+    }
+
+    public Op op() {
+        return op;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    /**
+     * The value decoded as UTF-8, or the new name for RENAME.
+     */
+    public String value() {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The value as raw bytes; callers must not modify them.
+     */
+    public byte[] valueBytes() {
+        return value;
+    }
+
+    public long number() {
+        return number;
+    }
+
+    /**
+     * Keys and values alternating, for MSET; callers must not modify them.
+     */
+    public byte[][] pairs() {
+        return pairs;
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+
+    /**
+     * The line this record was written as in the original text format. Values are trimmed, and a
+     * value with quotes inside does not come back intact; that is why new files are binary.
+     */
+    String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(op == Op.SETPXAT ? "SET" : op.name());
+        String value = value();
+
+        switch (op) {
+            case SET, SETPXAT -> {
+                sb.append(' ').append(escape(key)).append(' ').append(escape(value));
+                if (number > 0) {
+                    sb.append(op == Op.SET ? " PX " : " PXAT ").append(number);
+                }
+            }
+            case APPEND, RENAME -> sb.append(' ').append(escape(key)).append(' ').append(escape(value));
+            case EXPIRE, PEXPIREAT -> sb.append(' ').append(escape(key)).append(' ').append(number);
+            case MSET -> {
+                for (byte[] b : pairs) {
+                    sb.append(' ').append(escape(new String(b, StandardCharsets.UTF_8)));
+                }
+            }
+            case FLUSHALL -> { }
+            default -> sb.append(' ').append(escape(key));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Parse a line of the text format, or return null for blank, unknown or incomplete lines.
+     *
+     * @throws NumberFormatException if a PX or EXPIRE argument is not a number
+     */
+    public static AofRecord parseText(String line) {
+        String[] parts = splitPreserveQuotes(line);
+        if (parts.length == 0) {
+            return null;
+        }
+
+        Op op;
+        try {
+            op = Op.valueOf(parts[0].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        switch (op) {
+            case SET: {
+                if (parts.length < 3) {
+                    return null;
+                }
+
+                long px = 0;
+                if (parts.length >= 5 && "PX".equalsIgnoreCase(parts[3])) {
+                    px = Long.parseLong(parts[4]);
+                } else if (parts.length >= 5 && "PXAT".equalsIgnoreCase(parts[3])) {
+                    return setAt(unescape(parts[1]), unescape(parts[2]), Long.parseLong(parts[4]));
+                }
+
+                return set(unescape(parts[1]), unescape(parts[2]), px);
+            }
+
+            case APPEND:
+            case RENAME:
+                return parts.length < 3 ? null : new AofRecord(op, unescape(parts[1]), bytes(unescape(parts[2])), 0, null);
+
+            case EXPIRE:
+                return parts.length < 3 ? null : expire(unescape(parts[1]), Long.parseLong(parts[2]));
+
+            case PEXPIREAT:
+                return parts.length < 3 ? null : expireAt(unescape(parts[1]), Long.parseLong(parts[2]));
+
+            case SETPXAT:
+                return null; // written as SET ... PXAT
+
+            case MSET: {
+                if (parts.length < 3) {
+                    return null;
+                }
+
+                byte[][] kv = new byte[parts.length - 1][];
+                for (int i = 1; i < parts.length; i++) {
+                    kv[i - 1] = bytes(unescape(parts[i]));
+                }
+                return mset(kv);
+            }
+
+            case FLUSHALL:
+                return FLUSH_ALL;
+
+            default:
+                return parts.length < 2 ? null : new AofRecord(op, unescape(parts[1]), null, 0, null);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String s) {
+        if (s == null) {
+            return "";
+        }
+
+        s = s.trim();
+
+        if (s.contains(" ") || s.contains("\n") || s.contains("\r")) {
+            return '"' + s.replace("\"", "\\\"") + '"';
+        }
+
+        return s;
+    }
+
+    private static String unescape(String s) {
+        if (s == null) {
+            return null;
+        }
+
+        s = s.trim();
+
+        if (s.startsWith("\"") && s.endsWith("\"")) {
+            String inner = s.substring(1, s.length() - 1);
+            return inner.replace("\\\"", "\"");
+        }
+
+        return s;
+    }
+
+    private static String[] splitPreserveQuotes(String line) {
+        List<String> parts = new ArrayList<>();
+
+        if (line == null || line.isBlank()) {
+            return new String[0];
+        }
+
+        StringBuilder cur = new StringBuilder();
+        boolean inQuotes = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (c == '"') {
+                inQuotes = !inQuotes;
+                cur.append(c);
+                continue;
+            }
+
+            if (c == ' ' && !inQuotes) {
+                if (cur.length() > 0) {
+                    parts.add(cur.toString());
+                    cur.setLength(0);
+                }
+
+                continue;
+            }
+
+            cur.append(c);
+        }
+
+        if (cur.length() > 0) {
+            parts.add(cur.toString());
+        }
+
+        return parts.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,225 @@
+package com.atomkv.persistence;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded many-producer, one-consumer queue of encoded AOF records, laid out in a single byte
+ * array.
+ *
+ * <p>A producer claims room for its frame by moving the tail forward with a CAS, copies the record
+ * in and then publishes the frame by writing its length with release semantics. The consumer reads
+ * frames from the head until it meets one that is not published yet, then zeroes what it read and
+ * moves the head past it, which gives the room back. Frames never wrap: one that does not fit
+ * before the end of the array is preceded by a padding frame and goes to the start.
+ *
+ * <p>Frame layout, 16-byte aligned:
+ * <pre>
+ * int32  frame length including this header, 0 while unpublished
+ * int32  type: data, padding, or large
+ * int64  System.nanoTime() of the append
+ * bytes  the encoded record
+ * </pre>
+ * Records bigger than an eighth of the buffer are kept on the side instead and only a large frame
+ * holding their place goes through the array, so a single huge value cannot wedge the queue.
+ *
+ * <p>Positions are byte offsets that only grow; the position just past a record's frame doubles
+ * as its sequence number.
+ */
+final class AofRingBuffer {
+    static final int MIN_CAPACITY = 1 << 16;
+    static final int MAX_CAPACITY = 1 << 30;
+
+    private static final int HEADER_LENGTH = 16;
+    private static final int ALIGNMENT = HEADER_LENGTH; // so even padding has room for a header
+    private static final int DATA = 1;
+    private static final int PADDING = 2;
+    private static final int LARGE = 3;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Receives records from {@link #read}. The array is only valid during the call.
+     */
+    interface Consumer {
+        void accept(long position, long appendNanos, byte[] buf, int offset, int length);
+    }
+
+    private final byte[] buf;
+    private final int mask;
+    private final int maxFrame;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head; // written by the consumer only
+    private final ConcurrentHashMap<Long, byte[]> large = new ConcurrentHashMap<>();
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param capacity in bytes, rounded up to a power of two between 64 KiB and 1 GiB
+     */
+    AofRingBuffer(int capacity) {
+        int c = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, capacity));
+        c = Integer.bitCount(c) == 1 ? c : Integer.highestOneBit(c) << 1;
+        this.buf = new byte[c];
+        this.mask = c - 1;
+        this.maxFrame = c >>> 3;
+    }
+
+    int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * Bytes claimed by producers and not yet read, headers and padding included.
+     */
+    long size() {
+        return tail.get() - head;
+    }
+
+    /**
+     * Position just past the last claimed frame.
+     */
+    long claimed() {
+        return tail.get();
+    }
+
+    /**
+     * Position of the next frame the consumer will read.
+     */
+    long head() {
+        return head;
+    }
+
+    /**
+     * Copy {@code length} bytes of {@code src} in as one record.
+     *
+     * @return the position just past the record, or -1 if there is no room for it
+     */
+    long write(byte[] src, int offset, int length, long appendNanos) {
+        boolean isLarge = HEADER_LENGTH + length > maxFrame;
+        int recordLength = isLarge ? HEADER_LENGTH : HEADER_LENGTH + length;
+        int frame = align(recordLength);
+
+        long t;
+        int index;
+        int padding;
+        do {
+            t = tail.get();
+            index = (int) t & mask;
+            padding = index + frame > buf.length ? buf.length - index : 0;
+            if (t + padding + frame - head > buf.length) {
+                return -1;
+            }
+        } while (!tail.compareAndSet(t, t + padding + frame));
+
+        if (padding > 0) {
+            publish(index, padding, PADDING, appendNanos);
+            t += padding;
+            index = 0;
+        }
+
+        if (isLarge) {
+            large.put(t, Arrays.copyOfRange(src, offset, offset + length));
+            publish(index, recordLength, LARGE, appendNanos);
+        } else {
+            System.arraycopy(src, offset, buf, index + HEADER_LENGTH, length);
+            publish(index, recordLength, DATA, appendNanos);
+        }
+
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return t + frame;
+    }
+
+    private void publish(int index, int length, int type, long appendNanos) {
+        INT.set(buf, index + 4, type);
+        LONG.set(buf, index + 8, appendNanos);
+        INT.setRelease(buf, index, length);
+    }
+
+    /**
+     * Hand published records to {@code consumer} in order, stopping at the first unpublished frame
+     * or once about {@code limit} bytes were read, then give their room back. Consumer thread only.
+     *
+     * @return the number of bytes read, 0 if nothing was published
+     */
+    int read(Consumer consumer, int limit) {
+        long start = head;
+        long h = start;
+
+        while (h - start < limit) {
+            int index = (int) h & mask;
+            int length = (int) INT.getAcquire(buf, index);
+            if (length == 0) {
+                break;
+            }
+
+            int type = (int) INT.get(buf, index + 4);
+            if (type == DATA) {
+                consumer.accept(h, (long) LONG.get(buf, index + 8), buf, index + HEADER_LENGTH, length - HEADER_LENGTH);
+            } else if (type == LARGE) {
+                byte[] record = large.remove(h);
+                consumer.accept(h, (long) LONG.get(buf, index + 8), record, 0, record.length);
+            }
+            h += type == PADDING ? length : align(length);
+        }
+
+        int n = (int) (h - start);
+        if (n > 0) {
+            // any offset may hold a header on the next lap, so everything read goes back to zero
+            int from = (int) start & mask;
+            int first = Math.min(n, buf.length - from);
+            Arrays.fill(buf, from, from + first, (byte) 0);
+            Arrays.fill(buf, 0, n - first, (byte) 0);
+            head = h;
+        }
+        return n;
+    }
+
+    /**
+     * When the oldest record still waiting was appended, in System.nanoTime(), 0 if none is.
+     * Safe to call from any thread.
+     */
+    long oldestAppendNanos() {
+        long h = head;
+        if (tail.get() == h) {
+            return 0;
+        }
+
+        int index = (int) h & mask;
+        int length = (int) INT.getAcquire(buf, index);
+        long appendNanos = (long) LONG.get(buf, index + 8);
+        // a zero length means it is not published yet; a moved head means it was read meanwhile
+        return length == 0 || head != h ? 0 : appendNanos;
+    }
+
+    /**
+     * Park the consumer for up to {@code nanos}, 0 for no limit, unless something was claimed.
+     * Producers unpark it after publishing; anyone else can wake it with LockSupport.unpark.
+     */
+    void awaitRecords(long nanos) {
+        parkedConsumer = Thread.currentThread();
+        try {
+            if (tail.get() == head) {
+                if (nanos > 0) {
+                    LockSupport.parkNanos(this, nanos);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } finally {
+            parkedConsumer = null;
+        }
+    }
+
+    private static int align(int length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+}
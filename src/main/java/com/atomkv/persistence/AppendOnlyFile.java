@@ -1,83 +1,1180 @@
 package com.atomkv.persistence;
 
 import com.atomkv.store.InMemoryStore;
+import com.atomkv.store.StoreSnapshot;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Very simple AOF-like appender: writes commands as lines to a file.
+ * Very simple AOF-like appender: writes {@link AofRecord}s to a file.
  * Supports append and replay on startup.
+ *
+ * <p>The AOF for {@code appendonly.aof} lives in the directory {@code appendonly.aof.d}: an
+ * {@link AofManifest} lists a base file, the state of the store at the last rewrite, and the
+ * incremental segments written since. Records go to the last segment in the checksummed binary
+ * format of {@link AofCodec}; once it reaches the segment size the writer forces it and starts a
+ * new one. A single file written by older versions, in any format including one text command per
+ * line, becomes the base the first time it is opened.
+ *
+ * <p>Appends are group-committed: callers encode their record and copy the bytes into a bounded
+ * {@link AofRingBuffer} without taking a lock, and the aof-writer thread takes everything that
+ * piled up while it was busy and writes it with a single write, then forces it to disk according
+ * to the {@link FsyncPolicy}. When the disk falls behind and the buffer fills up, the
+ * {@link AofBackpressure} decides whether appends wait, are dropped or fail. Every record's end
+ * position in the buffer is its sequence number; with {@link FsyncPolicy#ALWAYS} a thread can
+ * {@link #awaitDurable() wait} until its own last record has been forced before acknowledging it.
+ *
+ * <p>{@link #rewriteInBackground} compacts the AOF: it takes a
+ * {@link InMemoryStore#snapshot point-in-time snapshot} and the writer thread starts a new segment
+ * exactly where the snapshot was cut. The snapshot is written as a new base, a {@link SnapshotFile}
+ * that replay loads in bulk or, with the preamble turned off, one SET record per live key, forcing
+ * it every few megabytes rather than all at the end. The writer thread then swaps the manifest to
+ * the new base and the segments from the cut on, and deletes the files it no longer lists. Nothing
+ * is copied and no append is lost. {@link #enableAutoRewrite} starts a rewrite by itself once the
+ * AOF has grown enough since the last one.
  */
-public class AppendOnlyFile implements AutoCloseable {
-    private final Path file;
-    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
-    private final AtomicBoolean running = new AtomicBoolean(true);
+public final class AppendOnlyFile implements AutoCloseable {
+    public static final int DEFAULT_BUFFER_SIZE = 16 << 20;
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    private static final long EVERYSEC_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_SPARE_CAPACITY = 1 << 20;
+    private static final int WRITE_CHUNK = 1 << 16;
+    private static final long AUTO_REWRITE_RETRY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long SPACE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long NO_REWRITE = Long.MAX_VALUE;
+    private static final int READ_AHEAD_CHUNK = 1 << 20;
+
+    private final String name;
+    private final Path dir;
+    private final Path manifestPath;
+    private final long segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final boolean snapshotPreamble;
+    private final AofBackpressure backpressure;
+    private final AofRingBuffer ring;
     private final Thread writerThread;
-    private BufferedWriter writer;
+    private final AtomicLong nextSeq;
+    private volatile AofManifest manifest; // replaced by the writer thread only, once open
+    private FileChannel channel; // the last segment, replaced by the writer thread
+    private volatile boolean legacyText; // the base is in the old text format
+    private volatile boolean running = true;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition durable = lock.newCondition();
+    private final Condition space = lock.newCondition();
+
+    // changed under lock, read without it by appends
+    private volatile IOException failure;
+
+    // guarded by lock
+    private boolean stopped; // the writer thread has exited
+    private boolean rewriting;
+    private CompletableFuture<Void> rewriteDone; // completed when the running rewrite is listed or failed
+    private volatile int waitingForSpace; // changed under lock, read without it by the writer
+
+    private volatile long rewriteFrom = NO_REWRITE; // buffer position of the rewrite's snapshot
+    private volatile AofManifest.Entry rewriteBase; // set once the new base is on disk
+
+    // owned by the writer thread
+    private AofCodec.Output batch = new AofCodec.Output(WRITE_CHUNK);
+    private long batchOldestNanos;
+    private int cutOffset = -1; // where in the batch the rewrite's snapshot was cut, -1 if not in it
+    private long cutFor = NO_REWRITE; // the rewrite the last cut segment was started for
+    private long firstSeqAfterCut;
+    private long segmentBytes;
+    private final AofRingBuffer.Consumer take = this::take;
+
+    // sizes in bytes of all listed files, updated by the writer thread
+    private volatile long currentSize;
+    private volatile long baseSize;
+
+    private volatile InMemoryStore autoRewriteStore;
+    private volatile int autoRewritePercentage;
+    private volatile long autoRewriteMinSize;
+    private volatile long lastRewriteFailure; // System.nanoTime(), 0 if none
+    private volatile AofLoadStats lastLoad;
+
+    // published under lock, read without it on the fast path
+    private volatile long durableSeq;
+
+    // append time of the oldest record the writer is writing right now, 0 if none
+    private volatile long writingSinceNanos;
+
+    private final AtomicLong blockedAppends = new AtomicLong();
+    private final AtomicLong droppedAppends = new AtomicLong();
+    private final AtomicLong rejectedAppends = new AtomicLong();
+
+    // the last record appended by each thread, only tracked when someone may wait for it
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    private final ThreadLocal<AofCodec.Output> encodeBuffer = ThreadLocal.withInitial(() -> new AofCodec.Output(256));
 
     public AppendOnlyFile(Path file) throws IOException {
-        this.file = file;
-        Files.createDirectories(file.getParent());
-        boolean exists = Files.exists(file);
-        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.APPEND);
+        this(file, FsyncPolicy.EVERYSEC);
+    }
+
+    public AppendOnlyFile(Path file, FsyncPolicy fsyncPolicy) throws IOException {
+        this(file, fsyncPolicy, true);
+    }
+
+    /**
+     * @param snapshotPreamble whether rewrites start the file with a snapshot rather than SET records
+     */
+    public AppendOnlyFile(Path file, FsyncPolicy fsyncPolicy, boolean snapshotPreamble) throws IOException {
+        this(file, fsyncPolicy, snapshotPreamble, DEFAULT_BUFFER_SIZE, AofBackpressure.BLOCK);
+    }
+
+    /**
+     * @param bufferSize bytes of records that may wait for the writer, rounded up to a power of two
+     * @param backpressure what an append does when they do not fit
+     */
+    public AppendOnlyFile(Path file, FsyncPolicy fsyncPolicy, boolean snapshotPreamble, int bufferSize,
+                          AofBackpressure backpressure) throws IOException {
+        this(file, fsyncPolicy, snapshotPreamble, bufferSize, backpressure, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param file names the AOF; its files live in the directory of the same name plus {@code .d}
+     * @param segmentSize bytes after which the writer starts a new segment
+     */
+    public AppendOnlyFile(Path file, FsyncPolicy fsyncPolicy, boolean snapshotPreamble, int bufferSize,
+                          AofBackpressure backpressure, long segmentSize) throws IOException {
+        this.name = file.getFileName().toString();
+        this.dir = file.resolveSibling(name + ".d");
+        this.manifestPath = dir.resolve(name + ".manifest");
+        this.segmentSize = Math.max(AofCodec.HEADER_LENGTH + 1, segmentSize);
+        this.fsyncPolicy = fsyncPolicy;
+        this.snapshotPreamble = snapshotPreamble;
+        this.backpressure = backpressure;
+        this.ring = new AofRingBuffer(bufferSize);
+        Files.createDirectories(dir);
+
+        AofManifest m = AofManifest.read(manifestPath);
+        if (m == null) {
+            m = AofManifest.EMPTY;
+            // a single file from before segments becomes the base, whatever its format
+            if (Files.isRegularFile(file) && Files.size(file) > 0) {
+                AofManifest.Entry base = new AofManifest.Entry(carriedOverBaseName(), 1);
+                Files.move(file, dir.resolve(base.name), StandardCopyOption.ATOMIC_MOVE);
+                m = m.withBase(base, Long.MAX_VALUE);
+            }
+        }
+        deleteUnlisted(m);
+        nextSeq = new AtomicLong(m.lastSeq() + 1);
+
+        if (m.base() != null) {
+            try (FileChannel in = FileChannel.open(dir.resolve(m.base().name), StandardOpenOption.READ)) {
+                legacyText = AofCodec.format(in) == AofCodec.Format.TEXT;
+            }
+        }
+
+        if (m.incrs().isEmpty()) {
+            manifest = m;
+            rotate();
+        } else {
+            manifest = m;
+            channel = FileChannel.open(dir.resolve(m.incrs().get(m.incrs().size() - 1).name), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            segmentBytes = channel.size();
+        }
+
+        currentSize = sizeOf(manifest);
+        baseSize = currentSize;
         writerThread = new Thread(this::writerLoop, "aof-writer");
         writerThread.setDaemon(true);
         writerThread.start();
     }
 
+    /**
+     * Delete files of this AOF that {@code m} does not list, left over from a crash.
+     */
+    private void deleteUnlisted(AofManifest m) throws IOException {
+        Set<String> listed = new HashSet<>();
+        for (AofManifest.Entry e : m.files()) {
+            listed.add(e.name);
+        }
+        listed.add(manifestPath.getFileName().toString());
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, name + ".*")) {
+            for (Path f : files) {
+                if (!listed.contains(f.getFileName().toString())) {
+                    Files.deleteIfExists(f);
+                }
+            }
+        }
+    }
+
+    private long sizeOf(AofManifest m) throws IOException {
+        long total = 0;
+        for (AofManifest.Entry e : m.files()) {
+            total += Files.size(dir.resolve(e.name));
+        }
+        return total;
+    }
+
+    /**
+     * The base, if any, then the segments, in the order replay reads them.
+     */
+    List<Path> files() {
+        List<Path> paths = new ArrayList<>();
+        for (AofManifest.Entry e : manifest.files()) {
+            paths.add(dir.resolve(e.name));
+        }
+        return paths;
+    }
+
+    Path directory() {
+        return dir;
+    }
+
+    public FsyncPolicy fsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public long currentSize() {
+        return currentSize;
+    }
+
+    /**
+     * Size of the AOF right after the last rewrite, or when it was opened.
+     */
+    public long baseSize() {
+        return baseSize;
+    }
+
+    /**
+     * Whether the base is still a file in the old text format; a rewrite converts it.
+     */
+    public boolean isLegacyText() {
+        return legacyText;
+    }
+
+    /**
+     * Whether there is a base or anything in the segments besides their headers.
+     */
+    public boolean hasRecords() {
+        AofManifest m = manifest;
+        return m.base() != null || currentSize > (long) m.incrs().size() * AofCodec.HEADER_LENGTH;
+    }
+
+    /**
+     * What the last {@link #replay} loaded, or null if there was none.
+     */
+    public AofLoadStats lastLoad() {
+        return lastLoad;
+    }
+
+    public boolean rewriteInProgress() {
+        lock.lock();
+        try {
+            return rewriting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int bufferCapacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * Bytes of records waiting in the buffer for the writer thread.
+     */
+    public long bufferedBytes() {
+        return ring.size();
+    }
+
+    /**
+     * How long the oldest record not yet written to the file has been waiting, in milliseconds.
+     */
+    public long lagMillis() {
+        long oldest = writingSinceNanos;
+        long waiting = ring.oldestAppendNanos();
+        if (oldest == 0 || (waiting != 0 && waiting - oldest < 0)) {
+            oldest = waiting;
+        }
+
+        return oldest == 0 ? 0 : Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest));
+    }
+
+    /**
+     * Appends that had to wait for room in the buffer.
+     */
+    public long blockedAppends() {
+        return blockedAppends.get();
+    }
+
+    /**
+     * Appends left out of the file because the buffer was full.
+     */
+    public long droppedAppends() {
+        return droppedAppends.get();
+    }
+
+    /**
+     * Appends refused with an error because the buffer was full.
+     */
+    public long rejectedAppends() {
+        return rejectedAppends.get();
+    }
+
+    /**
+     * Rewrite the file from {@code store} by itself once it is at least {@code minSize} bytes and
+     * has grown by {@code percentage} percent since the last rewrite. Call after replaying, so the
+     * replay does not trigger it.
+     */
+    public void enableAutoRewrite(InMemoryStore store, int percentage, long minSize) {
+        this.autoRewritePercentage = percentage;
+        this.autoRewriteMinSize = minSize;
+        this.autoRewriteStore = percentage > 0 ? store : null;
+    }
+
     private void writerLoop() {
+        long writtenSeq = 0;
+        long lastForce = System.nanoTime();
+
         try {
-            while (running.get() || !queue.isEmpty()) {
-                String cmd = queue.take();
-                writer.write(cmd);
-                writer.write('\n');
-                writer.flush();
+            while (true) {
+                if (ring.size() == 0 && running && rewriteBase == null) {
+                    if (fsyncPolicy != FsyncPolicy.EVERYSEC || writtenSeq == durableSeq) {
+                        ring.awaitRecords(0);
+                        continue;
+                    }
+
+                    // written but not yet forced: wake up in time for the next second
+                    long wait = lastForce + EVERYSEC_NANOS - System.nanoTime();
+                    if (wait > 0) {
+                        ring.awaitRecords(wait);
+                        continue;
+                    }
+                }
+
+                boolean stopping = !running;
+                AofManifest.Entry newBase = rewriteBase;
+                rewriteBase = null;
+
+                int taken = ring.read(take, ring.capacity());
+                // an append that got room before the close still finishes copying its record in
+                while (stopping && ring.size() > 0) {
+                    Thread.yield();
+                    ring.read(take, ring.capacity());
+                }
+                if (taken == 0 && !stopping && newBase == null && ring.size() > 0) {
+                    // room is claimed but the record is still being copied in
+                    Thread.yield();
+                    continue;
+                }
+
+                long batchSeq = ring.head();
+                if (waitingForSpace > 0) {
+                    signalSpace();
+                }
+                writingSinceNanos = batchOldestNanos;
+                batchOldestNanos = 0;
+
+                if (cutOffset >= 0) {
+                    // records before the cut are in the snapshot, so they close the old segment
+                    write(batch.array(), 0, cutOffset);
+                    rotateAtCut(cutFor);
+                    write(batch.array(), cutOffset, batch.size() - cutOffset);
+                    cutOffset = -1;
+                } else {
+                    write(batch.array(), 0, batch.size());
+                }
+                batch.reset();
+                writtenSeq = batchSeq;
+                writingSinceNanos = 0;
+
+                if (batch.capacity() > MAX_SPARE_CAPACITY) {
+                    batch = new AofCodec.Output(WRITE_CHUNK);
+                }
+
+                if (newBase != null) {
+                    // nothing was appended since the cut, so the new segment starts here
+                    if (cutFor != rewriteFrom) {
+                        rotateAtCut(rewriteFrom);
+                    }
+                    swapInRewrite(newBase);
+                } else if (segmentBytes >= segmentSize && !stopping) {
+                    rotate();
+                }
+
+                boolean force = switch (fsyncPolicy) {
+                    case ALWAYS -> true;
+                    case EVERYSEC -> stopping || System.nanoTime() - lastForce >= EVERYSEC_NANOS;
+                    case NO -> stopping;
+                };
+
+                if (force && writtenSeq > durableSeq) {
+                    channel.force(false);
+                    lastForce = System.nanoTime();
+                    markDurable(writtenSeq);
+                }
+
+                if (stopping) {
+                    return;
+                }
+
+                maybeAutoRewrite();
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         } catch (IOException e) {
             System.err.println("AOF writer error: " + e.getMessage());
+            fail(e);
+        } finally {
+            lock.lock();
+            try {
+                stopped = true;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes one record out of the buffer into the batch, noting where a rewrite's snapshot was cut.
+     */
+    private void take(long position, long appendNanos, byte[] buf, int offset, int length) {
+        if (batchOldestNanos == 0) {
+            batchOldestNanos = appendNanos;
+        }
+
+        long from = rewriteFrom;
+        if (position >= from && cutFor != from && cutOffset < 0) {
+            cutOffset = batch.size();
+            cutFor = from;
+        }
+        batch.write(buf, offset, length);
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(bytes, offset, length);
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+
+        currentSize += length;
+        segmentBytes += length;
+    }
+
+    private static void writeFully(FileChannel target, AofCodec.Output out) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(out.array(), 0, out.size());
+        while (bytes.hasRemaining()) {
+            target.write(bytes);
+        }
+        out.reset();
+    }
+
+    /**
+     * Force the last segment and carry on in a new one, listed in the manifest before anything is
+     * written to it.
+     */
+    private void rotate() throws IOException {
+        // only the last segment can end in a torn write
+        if (channel != null) {
+            channel.force(false);
+        }
+
+        long seq = nextSeq.getAndIncrement();
+        AofManifest.Entry segment = new AofManifest.Entry(name + "." + seq + ".incr.aof", seq);
+        Path path = dir.resolve(segment.name);
+
+        FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            next.write(ByteBuffer.wrap(AofCodec.header()));
+            next.force(false);
+            AofManifest m = manifest.withIncr(segment);
+            m.write(manifestPath);
+            manifest = m;
+        } catch (IOException e) {
+            next.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+
+        FileChannel old = channel;
+        channel = next;
+        segmentBytes = AofCodec.HEADER_LENGTH;
+        currentSize += AofCodec.HEADER_LENGTH;
+        if (old != null) {
+            old.close();
+        }
+    }
+
+    private void rotateAtCut(long from) throws IOException {
+        rotate();
+        cutFor = from;
+        firstSeqAfterCut = manifest.incrs().get(manifest.incrs().size() - 1).seq;
+    }
+
+    /**
+     * Finish a rewrite on the writer thread: list the new base and the segments since its cut in
+     * the manifest, then delete the files that are not listed anymore. On failure the old
+     * manifest, which covers every record, stays.
+     */
+    private void swapInRewrite(AofManifest.Entry newBase) {
+        rewriteFrom = NO_REWRITE;
+        IOException failed = null;
+
+        try {
+            AofManifest old = manifest;
+            AofManifest m = old.withBase(newBase, firstSeqAfterCut);
+            m.write(manifestPath);
+            manifest = m;
+
+            legacyText = false;
+            Set<String> kept = new HashSet<>();
+            for (AofManifest.Entry e : m.files()) {
+                kept.add(e.name);
+            }
+            for (AofManifest.Entry e : old.files()) {
+                if (!kept.contains(e.name)) {
+                    Files.deleteIfExists(dir.resolve(e.name));
+                }
+            }
+            AofManifest.forceDirectory(dir);
+
+            currentSize = sizeOf(m);
+            baseSize = currentSize;
+        } catch (IOException e) {
+            System.err.println("AOF rewrite failed: " + e.getMessage());
+            lastRewriteFailure = System.nanoTime();
+            deleteQuietly(newBase);
+            failed = e;
+        } finally {
+            finishRewrite(failed);
+        }
+    }
+
+    /**
+     * Let the next rewrite start, and tell whoever waits for this one how it went.
+     */
+    private void finishRewrite(IOException failed) {
+        CompletableFuture<Void> done;
+        lock.lock();
+        try {
+            rewriting = false;
+            done = rewriteDone;
+            rewriteDone = null;
+        } finally {
+            lock.unlock();
+        }
+
+        if (done != null) {
+            if (failed == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(failed);
+            }
+        }
+    }
+
+    private void maybeAutoRewrite() {
+        InMemoryStore store = autoRewriteStore;
+        if (store == null) {
+            return;
+        }
+
+        // do not retry a failing rewrite after every batch
+        long failedAt = lastRewriteFailure;
+        if (failedAt != 0 && System.nanoTime() - failedAt < AUTO_REWRITE_RETRY_NANOS) {
+            return;
+        }
+
+        long size = currentSize;
+        long base = baseSize;
+        if (size >= autoRewriteMinSize && (size - base) * 100 >= base * autoRewritePercentage) {
+            rewriteInBackground(store);
         }
     }
 
-    public void append(String commandLine) {
-        if (!running.get()) {
+    /**
+     * Start compacting the file from {@code store} on a background thread.
+     *
+     * @return false if a rewrite is already running or the file is closed
+     */
+    public boolean rewriteInBackground(InMemoryStore store) {
+        return startRewrite(store) != null;
+    }
+
+    /**
+     * Compact the file from {@code store} and return once the new base is listed in the manifest,
+     * as when a store loaded without logging has to be in the AOF before it takes writes.
+     *
+     * @throws IOException if the rewrite failed or could not start; the files listed before it,
+     *         which cover every record, stay
+     */
+    public void rewriteAndWait(InMemoryStore store) throws IOException {
+        CompletableFuture<Void> done = startRewrite(store);
+        if (done == null) {
+            throw new IOException("an AOF rewrite is already running or the AOF is closed");
+        }
+
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw new IOException("AOF rewrite failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the AOF rewrite");
+        }
+    }
+
+    /**
+     * @return completed once the rewrite is listed or has failed, or null if none was started
+     */
+    private CompletableFuture<Void> startRewrite(InMemoryStore store) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        lock.lock();
+        try {
+            if (rewriting || !running) {
+                return null;
+            }
+            rewriting = true;
+            rewriteDone = done;
+        } finally {
+            lock.unlock();
+        }
+
+        Thread t = new Thread(() -> rewrite(store), "aof-rewrite");
+        t.setDaemon(true);
+        t.start();
+        return done;
+    }
+
+    private void rewrite(InMemoryStore store) {
+        long seq = nextSeq.getAndIncrement();
+        AofManifest.Entry base = new AofManifest.Entry(name + "." + seq + (snapshotPreamble ? ".base.akv" : ".base.aof"), seq);
+
+        try {
+            StoreSnapshot snapshot = store.snapshot(this::cut);
+
+            try (FileChannel target = FileChannel.open(dir.resolve(base.name), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (snapshotPreamble) {
+                    SnapshotFile.write(snapshot, target);
+                } else {
+                    writeSetRecords(snapshot, target);
+                }
+                target.force(false);
+            }
+
+            rewriteBase = base;
+            LockSupport.unpark(writerThread);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("AOF rewrite failed: " + e.getMessage());
+            lastRewriteFailure = System.nanoTime();
+            rewriteFrom = NO_REWRITE;
+            deleteQuietly(base);
+            finishRewrite(e instanceof IOException io ? io : new IOException(e.getMessage(), e));
+        }
+    }
+
+    private void writeSetRecords(StoreSnapshot snapshot, FileChannel target) throws IOException {
+        AofCodec.Output out = new AofCodec.Output(WRITE_CHUNK * 2);
+        out.write(AofCodec.header());
+        long[] unsynced = {0};
+
+        snapshot.forEach((key, value, expireAt) -> {
+            AofCodec.encode(AofRecord.setAt(key, value, expireAt), out);
+
+            if (out.size() >= WRITE_CHUNK) {
+                unsynced[0] += out.size();
+                writeFully(target, out);
+                // force as we go, so the final force does not stall the disk for everyone else
+                if (unsynced[0] >= SnapshotFile.INCREMENTAL_FSYNC_BYTES) {
+                    target.force(false);
+                    unsynced[0] = 0;
+                }
+            }
+        });
+        writeFully(target, out);
+    }
+
+    /**
+     * Runs while the store holds back every write, so whatever is in the buffer is in the snapshot
+     * and everything appended from here on goes to segments started after it.
+     */
+    private void cut() {
+        rewriteFrom = ring.claimed();
+    }
+
+    private void deleteQuietly(AofManifest.Entry e) {
+        try {
+            Files.deleteIfExists(dir.resolve(e.name));
+        } catch (IOException ignored) {}
+    }
+
+    private void markDurable(long seq) {
+        lock.lock();
+        try {
+            durableSeq = seq;
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(IOException e) {
+        CompletableFuture<Void> done;
+        lock.lock();
+        try {
+            failure = e;
+            running = false;
+            durable.signalAll();
+            space.signalAll();
+            // the writer will not list a new base anymore
+            done = rewriteDone;
+            rewriteDone = null;
+        } finally {
+            lock.unlock();
+        }
+
+        if (done != null) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    private void signalSpace() {
+        lock.lock();
+        try {
+            space.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Log {@code record}.
+     *
+     * @throws IllegalStateException if the file is closed or the writer has failed, or if the
+     *         buffer is full and the backpressure is {@link AofBackpressure#FAIL}
+     */
+    public void append(AofRecord record) {
+        if (!running) {
+            throw notRunning();
+        }
+
+        AofCodec.Output encoded = encodeBuffer.get();
+        encoded.reset();
+        AofCodec.encode(record, encoded);
+        if (encoded.capacity() > MAX_SPARE_CAPACITY) {
+            encodeBuffer.remove();
+        }
+
+        long seq = ring.write(encoded.array(), 0, encoded.size(), System.nanoTime());
+        if (seq < 0) {
+            seq = whenFull(encoded);
+        }
+
+        if (seq > 0 && fsyncPolicy == FsyncPolicy.ALWAYS) {
+            lastAppended.get()[0] = seq;
+        }
+    }
+
+    /**
+     * @return the record's sequence number, or -1 if it was left out
+     */
+    private long whenFull(AofCodec.Output encoded) {
+        switch (backpressure) {
+            case DROP -> {
+                droppedAppends.incrementAndGet();
+                return -1;
+            }
+            case FAIL -> {
+                rejectedAppends.incrementAndGet();
+                throw new IllegalStateException("AOF buffer is full");
+            }
+            default -> blockedAppends.incrementAndGet();
+        }
+
+        lock.lock();
+        try {
+            waitingForSpace++;
+            while (running) {
+                long seq = ring.write(encoded.array(), 0, encoded.size(), System.nanoTime());
+                if (seq >= 0) {
+                    return seq;
+                }
+
+                LockSupport.unpark(writerThread);
+                // the writer signals once it made room; the timeout only guards against a missed signal
+                space.awaitNanos(SPACE_WAIT_NANOS);
+            }
+            throw notRunning();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for room in the AOF buffer", e);
+        } finally {
+            waitingForSpace--;
+            lock.unlock();
+        }
+    }
+
+    private IllegalStateException notRunning() {
+        IOException e = failure;
+        return e != null ? new IllegalStateException("AOF write failed: " + e.getMessage(), e) : new IllegalStateException("AOF is closed");
+    }
+
+    /**
+     * With {@link FsyncPolicy#ALWAYS}, block until every record this thread appended is on disk;
+     * with the other policies return at once. Callers acknowledge writes only after this returns.
+     *
+     * @throws IOException if the writer failed, so the records may never reach the disk; with
+     *         {@link FsyncPolicy#ALWAYS} from then on, whatever this thread appended before
+     */
+    public void awaitDurable() throws IOException {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS) {
             return;
         }
 
-        queue.offer(commandLine);
+        // nothing is acknowledged once the AOF stopped taking writes
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IOException("AOF write failed", failed);
+        }
+
+        long seq = lastAppended.get()[0];
+        if (seq <= durableSeq) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            while (durableSeq < seq) {
+                if (failure != null) {
+                    throw new IOException("AOF write failed", failure);
+                }
+                // only a record that raced the close can be missing once the writer is gone
+                if (stopped) {
+                    throw new IOException("AOF is closed");
+                }
+                durable.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Load every record of the AOF into {@code store}: the base, in any of its formats, then each
+     * segment in order. A snapshot base is loaded in bulk. Records go through the store's
+     * {@link InMemoryStore#loadRecord load path}, so nothing is appended back to the AOF and
+     * eviction waits until the end.
+     *
+     * <p>A record cut short at the end of the last segment, or of a base carried over from a
+     * single-file AOF, is what a crash in the middle of a write leaves behind: that file is
+     * truncated to the last whole record and loading goes on. Unparsable lines of a text base are
+     * skipped. A bad record anywhere else, including the end of a base a rewrite wrote and forced
+     * before listing it, is corruption rather than a torn write and stops replay.
+     *
+     * @throws IOException if the base or a binary record is corrupt
+     */
+    public AofLoadStats replay(InMemoryStore store) throws IOException {
+        return replay(store, 1);
+    }
+
+    /**
+     * Same as {@link #replay(InMemoryStore)}, loading records on {@code threads} worker threads
+     * (see {@link ParallelReplay}) while the calling thread decodes. A snapshot base still loads on
+     * the calling thread.
+     */
+    public AofLoadStats replay(InMemoryStore store, int threads) throws IOException {
+        return replay(store, threads, true);
+    }
+
+    /**
+     * @param loadTruncated false to fail instead on a torn tail, an unparsable text line or a record
+     *        the store cannot apply
+     */
+    public AofLoadStats replay(InMemoryStore store, int threads, boolean loadTruncated) throws IOException {
+        AofManifest m = manifest;
+        List<AofManifest.Entry> files = m.files();
+        AofLoadStats stats = new AofLoadStats();
+        long start = System.nanoTime();
+        ExecutorService readAhead = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "aof-readahead");
+            t.setDaemon(true);
+            return t;
+        });
+
+        try (ParallelReplay workers = threads > 1 ? new ParallelReplay(store, threads, loadTruncated) : null) {
+            for (int i = 0; i < files.size(); i++) {
+                if (i + 1 < files.size()) {
+                    readAhead(readAhead, dir.resolve(files.get(i + 1).name));
+                }
+
+                AofManifest.Entry e = files.get(i);
+                boolean mayBeTorn = i == files.size() - 1 || (e == m.base() && e.name.equals(carriedOverBaseName()));
+                replay(e, mayBeTorn, store, workers, loadTruncated, stats);
+            }
+
+            if (workers != null) {
+                workers.barrier();
+                // they were counted as loaded when handed to a worker
+                stats.records -= workers.skipped();
+                stats.skipped += workers.skipped();
+            }
+        } finally {
+            readAhead.shutdownNow();
+        }
+        store.finishLoad();
+
+        stats.nanos = System.nanoTime() - start;
+        lastLoad = stats;
+        return stats;
+    }
+
+    /**
+     * @param mayBeTorn whether a crash can have cut the file short: the last segment, or a base
+     *        carried over from a single-file AOF
+     */
+    private void replay(AofManifest.Entry file, boolean mayBeTorn, InMemoryStore store, ParallelReplay workers,
+                        boolean loadTruncated, AofLoadStats stats) throws IOException {
+        Path path = dir.resolve(file.name);
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            // whatever is appended from here on is not part of this replay
+            long end = in.size();
+            stats.bytes += end;
+
+            long recordsStart;
+            switch (AofCodec.format(in)) {
+                case TEXT -> {
+                    replayText(path, in, end, store, workers, loadTruncated, stats);
+                    return;
+                }
+                case SNAPSHOT_PREAMBLE -> {
+                    SnapshotFile.Loaded loaded = SnapshotFile.load(in, 0, end, store, SnapshotFile.DEFAULT_WINDOW);
+                    stats.records += loaded.entries;
+                    recordsStart = loaded.end;
+                }
+                default -> recordsStart = Math.min(end, AofCodec.HEADER_LENGTH);
+            }
+
+            in.position(recordsStart);
+            AofCodec.Reader r = new AofCodec.Reader(upTo(in, end), recordsStart, end);
+            while (true) {
+                AofRecord record;
+                try {
+                    record = r.next();
+                } catch (EOFException e) {
+                    if (!mayBeTorn) {
+                        throw new IOException(file.name + ": " + e.getMessage(), e);
+                    }
+                    torn(path, r.offset(), end, loadTruncated, stats);
+                    return;
+                } catch (IOException e) {
+                    // a write the disk never got to may leave zeros instead of a short file
+                    if (mayBeTorn && zeroFrom(in, r.offset(), end)) {
+                        torn(path, r.offset(), end, loadTruncated, stats);
+                        return;
+                    }
+                    throw new IOException(file.name + ": " + e.getMessage(), e);
+                }
+
+                if (record == null) {
+                    return;
+                }
+                load(path, record, store, workers, loadTruncated, stats);
+            }
+        }
+    }
+
+    private void replayText(Path path, FileChannel in, long end, InMemoryStore store, ParallelReplay workers,
+                            boolean loadTruncated, AofLoadStats stats) throws IOException {
+        // every line ends in a newline, so anything after the last one was cut short
+        long whole = end;
+        ByteBuffer b = ByteBuffer.allocate(1);
+        while (whole > 0 && in.read(b.clear(), whole - 1) == 1 && b.get(0) != '\n') {
+            whole--;
+        }
+
+        in.position(0);
+        BufferedReader r = new BufferedReader(Channels.newReader(upTo(in, whole), StandardCharsets.UTF_8), 1 << 16);
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+
+            AofRecord record;
+            try {
+                record = AofRecord.parseText(line);
+            } catch (NumberFormatException e) {
+                record = null;
+            }
+            if (record == null) {
+                if (!loadTruncated) {
+                    throw new IOException(path.getFileName() + ": bad AOF line: " + line);
+                }
+                System.err.println("Skipping bad AOF line: " + line);
+                stats.skipped++;
+                continue;
+            }
+
+            load(path, record, store, workers, loadTruncated, stats);
+        }
+
+        if (whole < end) {
+            torn(path, whole, end, loadTruncated, stats);
+        }
+    }
+
+    /**
+     * Name of the base a single file from before segments is moved to. A rewrite numbers its base
+     * after the segments already listed, which start at 1, so it never gets this name.
+     */
+    private String carriedOverBaseName() {
+        return name + ".1.base.aof";
+    }
+
+    /**
+     * The file from {@code from} on is a record cut short by a crash: cut it off if allowed.
+     */
+    private void torn(Path path, long from, long end, boolean truncate, AofLoadStats stats) throws IOException {
+        if (!truncate) {
+            throw new IOException(path.getFileName() + " ends in an incomplete record at offset " + from
+                    + "; start with --aof-load-truncated yes to truncate it");
+        }
+
+        System.err.printf("AOF %s ends in an incomplete record, truncating %d bytes at offset %d%n",
+                path.getFileName(), end - from, from);
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            out.truncate(from);
+            out.force(false);
+        }
+
+        stats.truncatedBytes += end - from;
+        currentSize -= end - from;
+        if (path.equals(dir.resolve(manifest.incrs().get(manifest.incrs().size() - 1).name))) {
+            segmentBytes -= end - from;
+        }
     }
 
-    public void replay(InMemoryStore store) throws IOException {
-        if (!Files.exists(file)) {
+    private static boolean zeroFrom(FileChannel in, long from, long end) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(1 << 16);
+        for (long pos = from; pos < end; ) {
+            b.clear();
+            int n = in.read(b, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (b.get(i) != 0) {
+                    return false;
+                }
+            }
+            pos += n;
+        }
+        return true;
+    }
+
+    private static void load(Path path, AofRecord record, InMemoryStore store, ParallelReplay workers,
+                             boolean loadTruncated, AofLoadStats stats) throws IOException {
+        if (workers != null) {
+            workers.submit(record);
+            stats.records++;
             return;
         }
 
-        try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                store.applyCommandFromAOF(line);
+        try {
+            store.loadRecord(record);
+            stats.records++;
+        } catch (RuntimeException e) {
+            if (!loadTruncated) {
+                throw new IOException(path.getFileName() + ": cannot apply AOF record " + record + ": " + e.getMessage(), e);
             }
+            System.err.println("Skipping AOF record that cannot be applied: " + record + " -> " + e.getMessage());
+            stats.skipped++;
         }
     }
 
+    /**
+     * Read {@code path} in the background and throw the bytes away, so it is in the page cache by
+     * the time replay gets to it.
+     */
+    private static void readAhead(ExecutorService pool, Path path) {
+        pool.execute(() -> {
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.allocateDirect(READ_AHEAD_CHUNK);
+                while (!Thread.currentThread().isInterrupted() && in.read(buf) > 0) {
+                    buf.clear();
+                }
+            } catch (IOException ignored) {
+                // only a hint; replay reports the file's real problems
+            }
+        });
+    }
+
+    /**
+     * {@code in} read from its position up to {@code end} only.
+     */
+    private static ReadableByteChannel upTo(FileChannel in, long end) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                long left = end - in.position();
+                if (left <= 0) {
+                    return -1;
+                }
+                if (dst.remaining() <= left) {
+                    return in.read(dst);
+                }
+
+                int n = in.read(dst.slice(dst.position(), (int) left));
+                if (n > 0) {
+                    dst.position(dst.position() + n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return in.isOpen();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Stop accepting appends, write and force whatever is still pending, and close the segment.
+     */
     @Override
-    public void close() throws Exception {
-        running.set(false);
-        writerThread.interrupt();
-        
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(writerThread);
+        signalSpace();
+
         try {
-            writerThread.join(1000);
+            writerThread.join(5000);
         } catch (InterruptedException ignored) {}
-        
-        if (writer != null) {
-            writer.close();
-        }
+
+        // a rewrite that had not reached the writer is never listed now
+        finishRewrite(new IOException("AOF is closed"));
+        channel.close();
     }
 }
@@ -0,0 +1,19 @@
+package com.atomkv.persistence;
+
+import java.util.Locale;
+
+/**
+ * When the AOF writer asks the operating system to put written batches on disk.
+ */
+public enum FsyncPolicy {
+    /** Force every batch before its writers are acknowledged; nothing acknowledged is lost. */
+    ALWAYS,
+    /** Force at most once a second; a crash loses up to about a second of writes. */
+    EVERYSEC,
+    /** Never force; the operating system writes back when it likes. */
+    NO;
+
+    public static FsyncPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
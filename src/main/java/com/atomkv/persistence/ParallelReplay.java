@@ -0,0 +1,193 @@
+package com.atomkv.persistence;
+
+import com.atomkv.store.InMemoryStore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads AOF records into a store on several threads. The thread that decodes the file hands each
+ * record to a worker picked by the hash of its key, in batches, so all records of one key are
+ * loaded by the same worker in file order. Records that touch more than one key (FLUSHALL, RENAME,
+ * MSET) are a barrier: every worker first finishes what it was given, then the record is loaded on
+ * the decoding thread, and only then do the workers get more.
+ *
+ * <p>Queues are bounded, so a slow worker holds up decoding instead of piling up records.
+ *
+ * <p>A record the store cannot apply is skipped and counted, or fails the load if skipping is not
+ * allowed.
+ */
+final class ParallelReplay implements AutoCloseable {
+    private static final int BATCH_SIZE = 1024;
+    private static final int QUEUED_BATCHES = 16;
+    private static final Runnable STOP = () -> {};
+
+    private final InMemoryStore store;
+    private final boolean skipFailed;
+    private final AtomicLong skipped = new AtomicLong();
+    private final Thread[] threads;
+    private final List<BlockingQueue<Runnable>> queues = new ArrayList<>();
+    private final List<List<AofRecord>> batches = new ArrayList<>();
+    private volatile Throwable failure;
+
+    ParallelReplay(InMemoryStore store, int workers, boolean skipFailed) {
+        this.store = store;
+        this.skipFailed = skipFailed;
+        this.threads = new Thread[workers];
+
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+            queues.add(queue);
+            batches.add(new ArrayList<>(BATCH_SIZE));
+
+            threads[i] = new Thread(() -> work(queue), "aof-load-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    private void work(BlockingQueue<Runnable> queue) {
+        while (true) {
+            Runnable task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (task == STOP) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if a worker failed, or this record failed to load on the calling thread
+     */
+    void submit(AofRecord record) throws IOException {
+        switch (record.op()) {
+            case FLUSHALL, RENAME, MSET -> {
+                barrier();
+                try {
+                    load(record);
+                } catch (RuntimeException e) {
+                    throw new IOException("AOF load failed: " + e.getMessage(), e);
+                }
+            }
+            default -> {
+                int h = record.key().hashCode() * 0x9E3779B9;
+                int worker = (int) (((h >>> 1) * (long) threads.length) >>> 31);
+
+                List<AofRecord> batch = batches.get(worker);
+                batch.add(record);
+                if (batch.size() == BATCH_SIZE) {
+                    handOff(worker);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until every record submitted so far is loaded.
+     *
+     * @throws IOException if a worker failed
+     */
+    void barrier() throws IOException {
+        CountDownLatch drained = new CountDownLatch(threads.length);
+        for (int i = 0; i < threads.length; i++) {
+            handOff(i);
+            put(i, drained::countDown);
+        }
+
+        try {
+            drained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading the AOF");
+        }
+
+        Throwable f = failure;
+        if (f != null) {
+            throw new IOException("AOF load failed: " + f.getMessage(), f);
+        }
+    }
+
+    private void handOff(int worker) throws IOException {
+        List<AofRecord> batch = batches.get(worker);
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        batches.set(worker, new ArrayList<>(BATCH_SIZE));
+        put(worker, () -> {
+            // after a failure only drain, so the decoding thread never blocks on a full queue; the
+            // barrier's tasks still run
+            if (failure != null) {
+                return;
+            }
+            for (AofRecord r : batch) {
+                load(r);
+            }
+        });
+    }
+
+    private void load(AofRecord record) {
+        try {
+            store.loadRecord(record);
+        } catch (RuntimeException e) {
+            if (!skipFailed) {
+                throw new IllegalStateException("cannot apply AOF record " + record + ": " + e.getMessage(), e);
+            }
+            System.err.println("Skipping AOF record that cannot be applied: " + record + " -> " + e.getMessage());
+            skipped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records skipped so far because the store could not apply them.
+     */
+    long skipped() {
+        return skipped.get();
+    }
+
+    private void put(int worker, Runnable task) throws IOException {
+        try {
+            queues.get(worker).put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while loading the AOF");
+        }
+    }
+
+    /**
+     * Stop the workers; call {@link #barrier()} first to wait for what was submitted.
+     */
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < threads.length; i++) {
+            queues.get(i).clear();
+            put(i, STOP);
+        }
+
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package com.atomkv.persistence;
+
+import com.atomkv.store.InMemoryStore;
+import com.atomkv.store.StoreSnapshot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Point-in-time binary dump of the store, written by SAVE and BGSAVE and loaded at startup.
+ *
+ * <p>Layout:
+ * <pre>
+ * 8 bytes  "AKVRDB" + big-endian format version
+ * int64    wall clock time of the snapshot
+ * int64    entry count
+ * entries  int32 key length, key UTF-8, int32 value length (-1 for null), value bytes,
+ *          int64 absolute expiry in epoch millis (-1 for none)
+ * int32    CRC32C of everything between the header and this trailer
+ * </pre>
+ * Deadlines are absolute, so a key keeps expiring when it would have however long the server was
+ * down. The file is written to a temporary file and renamed over the old one, so a crash leaves
+ * either the old or the new snapshot. Loading memory-maps the file a window at a time and hands
+ * entries straight to {@link InMemoryStore#loadEntry}, skipping the command path.
+ *
+ * <p>The same encoding is the base of a rewritten {@link AppendOnlyFile}. Files from before the
+ * AOF had segments may also have AOF records after it.
+ */
+public class SnapshotFile {
+    static final byte[] MAGIC = {'A', 'K', 'V', 'R', 'D', 'B'};
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 2;
+
+    private static final int WRITE_CHUNK = 1 << 20;
+    static final int DEFAULT_WINDOW = 1 << 30;
+    static final int INCREMENTAL_FSYNC_BYTES = 4 << 20;
+
+    private final Path file;
+    private final Path tempFile;
+    private final int windowSize;
+
+    private final Object lock = new Object();
+    private boolean saving; // guarded by lock
+    private volatile long lastSaveMillis;
+    private volatile boolean lastBackgroundSaveFailed;
+
+    public SnapshotFile(Path file) {
+        this(file, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param windowSize how many bytes of the file are mapped at once while loading
+     */
+    SnapshotFile(Path file, int windowSize) {
+        this.file = file;
+        this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.windowSize = windowSize;
+    }
+
+    public Path path() {
+        return file;
+    }
+
+    public boolean exists() {
+        return Files.exists(file);
+    }
+
+    /**
+     * Wall clock time the last successful save finished, 0 if there was none.
+     */
+    public long lastSaveMillis() {
+        return lastSaveMillis;
+    }
+
+    public boolean lastBackgroundSaveFailed() {
+        return lastBackgroundSaveFailed;
+    }
+
+    public boolean saveInProgress() {
+        synchronized (lock) {
+            return saving;
+        }
+    }
+
+    /**
+     * Save on the calling thread.
+     *
+     * @return false if a background save is running
+     */
+    public boolean save(InMemoryStore store) throws IOException {
+        if (!startSave()) {
+            return false;
+        }
+
+        try {
+            save(store.snapshot(() -> {}));
+            return true;
+        } finally {
+            endSave();
+        }
+    }
+
+    /**
+     * Take a snapshot now and write it on a background thread.
+     *
+     * @return false if a save is already running
+     */
+    public boolean saveInBackground(InMemoryStore store) {
+        if (!startSave()) {
+            return false;
+        }
+
+        Thread t = new Thread(() -> {
+            try {
+                save(store.snapshot(() -> {}));
+                lastBackgroundSaveFailed = false;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Background save failed: " + e.getMessage());
+                lastBackgroundSaveFailed = true;
+            } finally {
+                endSave();
+            }
+        }, "snapshot-save");
+        t.setDaemon(true);
+        t.start();
+        return true;
+    }
+
+    private boolean startSave() {
+        synchronized (lock) {
+            if (saving) {
+                return false;
+            }
+            saving = true;
+            return true;
+        }
+    }
+
+    private void endSave() {
+        synchronized (lock) {
+            saving = false;
+        }
+    }
+
+    private void save(StoreSnapshot snapshot) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+
+        try {
+            try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                write(snapshot, out);
+                out.force(false);
+            }
+
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+
+        try (FileChannel dir = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+            // not every platform can open a directory; the rename itself is still atomic
+        }
+
+        lastSaveMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Write {@code snapshot} to {@code out} from its current position, header included.
+     */
+    public static void write(StoreSnapshot snapshot, FileChannel out) throws IOException {
+        ChunkWriter w = new ChunkWriter(out);
+        w.header();
+        w.putLong(snapshot.takenAtMillis());
+        w.putLong(snapshot.size());
+
+        snapshot.forEach((key, value, expireAt) -> {
+            w.putString(key);
+            w.putBytes(value);
+            w.putLong(expireAt);
+        });
+
+        w.finish();
+    }
+
+    /**
+     * Insert every entry of the file that has not expired yet into {@code store}, then let it
+     * evict down to its limits.
+     *
+     * @return the number of entries loaded, 0 if there is no file
+     * @throws IOException if the file is corrupt or cut short
+     */
+    public long load(InMemoryStore store) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            Loaded loaded = load(in, 0, in.size(), store, windowSize);
+            if (loaded.end != in.size()) {
+                throw new IOException("unexpected data after the snapshot at offset " + loaded.end);
+            }
+
+            store.finishLoad();
+            return loaded.entries;
+        }
+    }
+
+    /**
+     * What {@link #load(FileChannel, long, long, InMemoryStore, int)} read.
+     */
+    static final class Loaded {
+        final long entries;
+        final long end; // offset just past the snapshot
+
+        Loaded(long entries, long end) {
+            this.entries = entries;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Load the snapshot that starts at {@code start} of {@code in} and ends before {@code limit};
+     * it may be followed by other data. The store is left for the caller to
+     * {@link InMemoryStore#finishLoad() finish}.
+     */
+    static Loaded load(FileChannel in, long start, long limit, InMemoryStore store, int windowSize) throws IOException {
+        MappedReader r = new MappedReader(in, start, limit, windowSize);
+        r.header();
+        r.require(16);
+        r.getLong(); // taken at; deadlines are absolute
+        long count = r.getLong();
+        long now = System.currentTimeMillis();
+        long loaded = 0;
+
+        for (long i = 0; i < count; i++) {
+            String key = r.getString();
+            byte[] value = r.getBytes();
+            r.require(8);
+            long expireAt = r.getLong();
+
+            if (key == null) {
+                throw r.corrupt("null key");
+            }
+            if (expireAt > 0 && expireAt <= now) {
+                continue;
+            }
+
+            store.loadEntry(key, value, expireAt);
+            loaded++;
+        }
+
+        long trailerAt = r.position();
+        int expected = r.checksum();
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        while (trailer.hasRemaining() && trailerAt + 4 <= limit && in.read(trailer, trailerAt + trailer.position()) > 0) {
+            // keep reading
+        }
+        if (trailer.hasRemaining()) {
+            throw new EOFException("snapshot cut short");
+        }
+        if (trailer.getInt(0) != expected) {
+            throw new IOException("snapshot CRC mismatch");
+        }
+
+        return new Loaded(loaded, trailerAt + 4);
+    }
+
+    /**
+     * Buffers output in chunks, keeping the checksum of everything after the header.
+     */
+    private static final class ChunkWriter {
+        private final FileChannel out;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_CHUNK);
+        private final CRC32C crc = new CRC32C();
+        private boolean pastHeader;
+        private long unsynced;
+
+        ChunkWriter(FileChannel out) {
+            this.out = out;
+        }
+
+        void header() throws IOException {
+            buf.put(MAGIC).putShort((short) VERSION);
+            flush();
+            pastHeader = true;
+        }
+
+        void putLong(long v) throws IOException {
+            room(8);
+            buf.putLong(v);
+        }
+
+        void putString(String s) throws IOException {
+            putBytes(s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void putBytes(byte[] b) throws IOException {
+            if (b == null) {
+                room(4);
+                buf.putInt(-1);
+                return;
+            }
+
+            room(4);
+            buf.putInt(b.length);
+
+            if (b.length <= buf.capacity()) {
+                room(b.length);
+                buf.put(b);
+            } else {
+                flush();
+                ByteBuffer big = ByteBuffer.wrap(b);
+                crc.update(big.duplicate());
+                writeFully(big);
+            }
+        }
+
+        void finish() throws IOException {
+            flush();
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            writeFully(buf);
+            buf.clear();
+        }
+
+        private void room(int n) throws IOException {
+            if (buf.remaining() < n) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            if (pastHeader) {
+                crc.update(buf.duplicate());
+            }
+            writeFully(buf);
+            buf.clear();
+        }
+
+        private void writeFully(ByteBuffer b) throws IOException {
+            unsynced += b.remaining();
+            while (b.hasRemaining()) {
+                out.write(b);
+            }
+
+            // force as we go, so the final force does not have gigabytes of dirty pages to flush
+            if (unsynced >= INCREMENTAL_FSYNC_BYTES) {
+                out.force(false);
+                unsynced = 0;
+            }
+        }
+    }
+
+    /**
+     * Reads a region of the file through a sliding memory-mapped window, checksumming every byte
+     * it moves past.
+     */
+    private static final class MappedReader {
+        private final FileChannel in;
+        private final long end;
+        private final int windowSize;
+        private final CRC32C crc = new CRC32C();
+        private MappedByteBuffer window;
+        private long windowStart;
+        private boolean pastHeader;
+        private byte[] scratch = new byte[256];
+
+        MappedReader(FileChannel in, long start, long end, int windowSize) throws IOException {
+            this.in = in;
+            this.end = end;
+            this.windowSize = windowSize;
+            this.windowStart = start;
+            this.window = in.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, Math.min(windowSize, end - start)));
+        }
+
+        void header() throws IOException {
+            require(HEADER_LENGTH);
+            byte[] magic = new byte[MAGIC.length];
+            window.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("not a snapshot file");
+            }
+
+            int version = window.getShort() & 0xFFFF;
+            if (version != VERSION) {
+                throw new IOException("unsupported snapshot format version " + version);
+            }
+
+            // the checksum starts after the header
+            windowStart += window.position();
+            window = in.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, end - windowStart));
+            pastHeader = true;
+        }
+
+        long getLong() {
+            return window.getLong();
+        }
+
+        String getString() throws IOException {
+            int len = length();
+            if (len == -1) {
+                return null;
+            }
+
+            require(len);
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            window.get(scratch, 0, len);
+            return new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * A value, read straight into the array the store keeps.
+         */
+        byte[] getBytes() throws IOException {
+            int len = length();
+            if (len == -1) {
+                return null;
+            }
+
+            require(len);
+            byte[] b = new byte[len];
+            window.get(b);
+            return b;
+        }
+
+        private int length() throws IOException {
+            require(4);
+            int len = window.getInt();
+            if (len < -1) {
+                throw corrupt("bad string length " + len);
+            }
+            return len;
+        }
+
+        /**
+         * Make sure the next {@code n} bytes are inside the window, sliding it forward if needed.
+         */
+        void require(int n) throws IOException {
+            if (window.remaining() >= n) {
+                return;
+            }
+
+            long position = windowStart + window.position();
+            if (end - position < n) {
+                throw new EOFException("snapshot cut short at offset " + position);
+            }
+
+            consumed();
+            windowStart = position;
+            window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(windowSize, n), end - position));
+        }
+
+        long position() {
+            return windowStart + window.position();
+        }
+
+        /**
+         * Checksum of everything read so far; call once the last entry is read.
+         */
+        int checksum() {
+            consumed();
+            return (int) crc.getValue();
+        }
+
+        IOException corrupt(String what) {
+            return new IOException("corrupt snapshot at offset " + (windowStart + window.position()) + ": " + what);
+        }
+
+        private void consumed() {
+            if (pastHeader) {
+                crc.update(window.duplicate().flip());
+            }
+        }
+    }
+}
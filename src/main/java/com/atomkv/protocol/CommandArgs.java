@@ -0,0 +1,198 @@
+package com.atomkv.protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The arguments of one decoded command, as slices of the buffer the decoder read them from.
+ * Nothing is copied or decoded until a caller asks for it, so a command that is dispatched on its
+ * name and answered from a single key costs one String, not one per argument plus a split array.
+ *
+ * <p>An instance is owned by its decoder and reused for every command; it is only valid until the
+ * sink returns. Call {@link #string(int)}, {@link #bytes(int)}, {@link #toArray(int)} or
+ * {@link #copy()} to keep anything longer.
+ */
+public final class CommandArgs {
+    private byte[] buf;
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+    private int count;
+
+    /**
+     * Arguments backed by their own buffer, for callers that start from strings.
+     */
+    public static CommandArgs of(String... args) {
+        byte[][] encoded = new byte[args.length][];
+        int total = 0;
+        for (int i = 0; i < args.length; i++) {
+            encoded[i] = args[i].getBytes(StandardCharsets.UTF_8);
+            total += encoded[i].length;
+        }
+
+        CommandArgs result = new CommandArgs();
+        result.reset(new byte[total]);
+
+        int pos = 0;
+        for (byte[] e : encoded) {
+            System.arraycopy(e, 0, result.buf, pos, e.length);
+            result.add(pos, e.length);
+            pos += e.length;
+        }
+
+        return result;
+    }
+
+    /**
+     * The same arguments backed by a buffer of their own, for a command that is run after the
+     * sink has returned.
+     */
+    public CommandArgs copy() {
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            total += lengths[i];
+        }
+
+        CommandArgs result = new CommandArgs();
+        result.reset(new byte[total]);
+
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(buf, offsets[i], result.buf, pos, lengths[i]);
+            result.add(pos, lengths[i]);
+            pos += lengths[i];
+        }
+
+        return result;
+    }
+
+    void reset(byte[] buf) {
+        this.buf = buf;
+        this.count = 0;
+    }
+
+    void add(int off, int len) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+
+        offsets[count] = off;
+        lengths[count] = len;
+        count++;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public int offset(int i) {
+        return offsets[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * Argument {@code i} decoded as UTF-8.
+     */
+    public String string(int i) {
+        return new String(buf, offsets[i], lengths[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A copy of argument {@code i}'s bytes, for a value the store keeps.
+     */
+    public byte[] bytes(int i) {
+        return Arrays.copyOfRange(buf, offsets[i], offsets[i] + lengths[i]);
+    }
+
+    /**
+     * Arguments {@code from} to the end as strings.
+     */
+    public String[] toArray(int from) {
+        String[] out = new String[Math.max(0, count - from)];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = string(from + i);
+        }
+        return out;
+    }
+
+    /**
+     * Argument {@code i} as a decimal long, with the same rules as {@link Long#parseLong(String)}
+     * but without building the String first.
+     *
+     * @throws NumberFormatException if the argument is not a valid long
+     */
+    public long parseLong(int i) {
+        int pos = offsets[i];
+        int end = pos + lengths[i];
+
+        if (pos == end) {
+            throw new NumberFormatException("empty number");
+        }
+
+        boolean negative = buf[pos] == '-';
+        if (negative || buf[pos] == '+') {
+            pos++;
+            if (pos == end) {
+                throw new NumberFormatException("invalid number");
+            }
+        }
+
+        // accumulate negatively so Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long v = 0;
+
+        for (; pos < end; pos++) {
+            int d = buf[pos] - '0';
+            if (d < 0 || d > 9 || v < multmin) {
+                throw new NumberFormatException("invalid number");
+            }
+
+            v *= 10;
+            if (v < limit + d) {
+                throw new NumberFormatException("invalid number");
+            }
+            v -= d;
+        }
+
+        return negative ? v : -v;
+    }
+
+    /**
+     * Compare argument {@code i} with an ASCII word, ignoring case.
+     */
+    public boolean equalsIgnoreCase(int i, String ascii) {
+        int len = lengths[i];
+        if (len != ascii.length()) {
+            return false;
+        }
+
+        int off = offsets[i];
+        for (int j = 0; j < len; j++) {
+            if (toUpper(buf[off + j]) != toUpper((byte) ascii.charAt(j))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * ASCII upper-casing of a single byte; bytes outside {@code a-z} are returned unchanged.
+     */
+    public static int toUpper(byte b) {
+        return (b >= 'a' && b <= 'z') ? b - 32 : b;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" ", toArray(0));
+    }
+}
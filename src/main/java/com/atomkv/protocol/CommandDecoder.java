@@ -0,0 +1,33 @@
+package com.atomkv.protocol;
+
+import java.io.IOException;
+
+/**
+ * Incremental request framing for one connection. Bytes are fed as they arrive; every complete
+ * command is handed to the sink in order and incomplete input is kept for the next feed.
+ * Commands are passed as {@link CommandArgs} slices of the input, which are only valid during the
+ * sink call.
+ */
+public interface CommandDecoder {
+    interface CommandSink {
+        /**
+         * @return false to stop decoding; the rest of the input is discarded
+         */
+        boolean onCommand(CommandArgs args) throws IOException;
+    }
+
+    /**
+     * Decode every complete command in {@code buf[off, off + len)}.
+     *
+     * @return false if the sink asked to stop
+     * @throws ProtocolException if the input is malformed; the connection should be closed
+     */
+    boolean feed(byte[] buf, int off, int len, CommandSink sink) throws IOException;
+
+    /**
+     * Called at end of stream with whatever is still buffered.
+     *
+     * @return false if the sink asked to stop
+     */
+    boolean finish(CommandSink sink) throws IOException;
+}
@@ -0,0 +1,114 @@
+package com.atomkv.protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Framing for the AtomKV line protocol. Line terminators follow
+ * {@link java.io.BufferedReader#readLine()}: LF, CR or CRLF. Each line is trimmed and split on
+ * single spaces, with the same results as {@code line.trim().split(" ")}; blank lines are ignored.
+ * Arguments are sliced straight out of the read buffer. Bytes of a line that is split across
+ * reads are kept until its terminator arrives.
+ */
+public final class LineDecoder implements CommandDecoder {
+    private final CommandArgs args = new CommandArgs();
+    private byte[] partial = new byte[0];
+    private int partialLen;
+    private boolean skipLF;
+
+    @Override
+    public boolean feed(byte[] buf, int off, int len, CommandSink sink) throws IOException {
+        int start = off;
+        int limit = off + len;
+
+        for (int i = off; i < limit; i++) {
+            byte b = buf[i];
+
+            if (skipLF) {
+                skipLF = false;
+                if (b == '\n') {
+                    start = i + 1;
+                    continue;
+                }
+            }
+
+            if (b != '\n' && b != '\r') {
+                continue;
+            }
+
+            boolean keepGoing;
+            if (partialLen == 0) {
+                keepGoing = dispatch(buf, start, i, sink);
+            } else {
+                stash(buf, start, i - start);
+                int lineLen = partialLen;
+                partialLen = 0;
+                keepGoing = dispatch(partial, 0, lineLen, sink);
+            }
+
+            skipLF = b == '\r';
+            start = i + 1;
+
+            if (!keepGoing) {
+                return false;
+            }
+        }
+
+        stash(buf, start, limit - start);
+        return true;
+    }
+
+    /**
+     * A final line without terminator still counts, like BufferedReader.readLine.
+     */
+    @Override
+    public boolean finish(CommandSink sink) throws IOException {
+        if (partialLen == 0) {
+            return true;
+        }
+
+        int lineLen = partialLen;
+        partialLen = 0;
+        return dispatch(partial, 0, lineLen, sink);
+    }
+
+    private boolean dispatch(byte[] b, int from, int to, CommandSink sink) throws IOException {
+        // String.trim: drop everything up to and including ' ' at both ends
+        while (from < to && (b[from] & 0xff) <= ' ') {
+            from++;
+        }
+        while (to > from && (b[to - 1] & 0xff) <= ' ') {
+            to--;
+        }
+
+        if (from == to) {
+            return true;
+        }
+
+        // split(" "): every single space separates, so "a  b" has an empty middle argument
+        args.reset(b);
+        int start = from;
+        for (int i = from; i < to; i++) {
+            if (b[i] == ' ') {
+                args.add(start, i - start);
+                start = i + 1;
+            }
+        }
+        args.add(start, to - start);
+
+        return sink.onCommand(args);
+    }
+
+    private void stash(byte[] src, int off, int len) {
+        if (len == 0) {
+            return;
+        }
+
+        if (partialLen + len > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(partialLen + len, Math.max(64, partial.length * 2)));
+        }
+
+        System.arraycopy(src, off, partial, partialLen, len);
+        partialLen += len;
+    }
+}
@@ -0,0 +1,79 @@
+package com.atomkv.protocol;
+
+/**
+ * Replies in the AtomKV line protocol: every element is one {@code \n}-terminated line.
+ * Values are sent as {@code +value}, missing values and empty lists as {@code $-1}.
+ */
+public final class LineReplyWriter implements ReplyWriter {
+    private final ReplyBuffer out;
+
+    public LineReplyWriter(ReplyBuffer out) {
+        this.out = out;
+    }
+
+    @Override
+    public int protocolVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean switchProtocol(int version) {
+        return false;
+    }
+
+    @Override
+    public void ok() {
+        out.writeAscii("+OK\n");
+    }
+
+    @Override
+    public void simple(String s) {
+        out.writeByte('+');
+        out.writeUtf8(s);
+        out.writeByte('\n');
+    }
+
+    @Override
+    public void error(String message) {
+        out.writeByte('-');
+        out.writeUtf8(message);
+        out.writeByte('\n');
+    }
+
+    @Override
+    public void integer(long v) {
+        out.writeByte(':');
+        out.writeLong(v);
+        out.writeByte('\n');
+    }
+
+    @Override
+    public void bulk(String s) {
+        simple(s);
+    }
+
+    @Override
+    public void bulk(byte[] b) {
+        out.writeByte('+');
+        out.write(b);
+        out.writeByte('\n');
+    }
+
+    @Override
+    public void nil() {
+        out.writeAscii("$-1\n");
+    }
+
+    @Override
+    public void arrayHeader(int n) {
+        // elements are simply listed one per line; an empty list reads as nil
+        if (n == 0) {
+            nil();
+        }
+    }
+
+    @Override
+    public void mapHeader(int n) {
+        arrayHeader(n * 2);
+    }
+}
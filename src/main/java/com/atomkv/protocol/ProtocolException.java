@@ -0,0 +1,14 @@
+package com.atomkv.protocol;
+
+import java.io.IOException;
+
+/**
+ * Malformed request framing. The connection cannot be resynchronised and should be closed.
+ */
+public class ProtocolException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
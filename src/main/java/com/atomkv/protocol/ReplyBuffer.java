@@ -0,0 +1,162 @@
+package com.atomkv.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer that replies are encoded into before they hit the socket.
+ * Strings are written as UTF-8 directly, without an intermediate byte[] per reply.
+ */
+public final class ReplyBuffer {
+    private static final int SHRINK_ABOVE = 64 * 1024;
+
+    private final int initialCapacity;
+    private byte[] buf;
+    private int len;
+
+    public ReplyBuffer(int initialCapacity) {
+        this.initialCapacity = Math.max(16, initialCapacity);
+        this.buf = new byte[this.initialCapacity];
+    }
+
+    public void writeByte(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    public void write(byte[] src) {
+        write(src, 0, src.length);
+    }
+
+    public void write(byte[] src, int off, int n) {
+        ensure(n);
+        System.arraycopy(src, off, buf, len, n);
+        len += n;
+    }
+
+    /**
+     * Write a string known to be ASCII (protocol tokens, numbers); each char becomes one byte.
+     */
+    public void writeAscii(String s) {
+        int n = s.length();
+        ensure(n);
+
+        for (int i = 0; i < n; i++) {
+            buf[len++] = (byte) s.charAt(i);
+        }
+    }
+
+    public void writeUtf8(String s) {
+        ensure(utf8Length(s));
+
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                buf[len++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xC0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[len++] = (byte) (0xF0 | (cp >> 18));
+                buf[len++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[len++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[len++] = '?'; // unpaired surrogate, same substitution as String.getBytes
+            } else {
+                buf[len++] = (byte) (0xE0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Number of bytes {@link #writeUtf8(String)} will produce for {@code s}.
+     */
+    public static int utf8Length(String s) {
+        int n = s.length();
+        int bytes = n;
+
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                continue;
+            }
+
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 2; // four bytes for the two chars of the pair
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                bytes += 2;
+            }
+        }
+
+        return bytes;
+    }
+
+    public void writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            writeAscii(Long.toString(v));
+            return;
+        }
+
+        ensure(20);
+
+        if (v < 0) {
+            buf[len++] = '-';
+            v = -v;
+        }
+
+        int start = len;
+        do {
+            buf[len++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+
+        for (int i = start, j = len - 1; i < j; i++, j--) {
+            byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    public byte[] array() {
+        return buf;
+    }
+
+    public int size() {
+        return len;
+    }
+
+    public boolean isEmpty() {
+        return len == 0;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, len);
+    }
+
+    /**
+     * Drop the contents. A buffer that grew for one large reply goes back to its initial size so an
+     * idle connection does not keep it.
+     */
+    public void reset() {
+        len = 0;
+        if (buf.length > SHRINK_ABOVE) {
+            buf = new byte[initialCapacity];
+        }
+    }
+
+    private void ensure(int extra) {
+        if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + extra, buf.length * 2));
+        }
+    }
+}
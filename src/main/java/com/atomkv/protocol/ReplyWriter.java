@@ -0,0 +1,41 @@
+package com.atomkv.protocol;
+
+/**
+ * Encoding-independent view of a reply. Command code describes what it answers; the
+ * implementation decides how that looks on the wire for the connection's protocol.
+ */
+public interface ReplyWriter {
+    /** Protocol version of the connection: 0 for the AtomKV line protocol, otherwise 2 or 3 for RESP. */
+    int protocolVersion();
+
+    /**
+     * Switch the connection to another RESP version (HELLO).
+     *
+     * @return false if the version is not supported on this connection
+     */
+    boolean switchProtocol(int version);
+
+    void ok();
+
+    /** Status reply; must not contain CR or LF. */
+    void simple(String s);
+
+    /** Error reply, e.g. {@code "ERR wrong number of args"}. */
+    void error(String message);
+
+    void integer(long v);
+
+    void bulk(String s);
+
+    /** Bulk reply of raw bytes, written as they are. */
+    void bulk(byte[] b);
+
+    /** Missing value. */
+    void nil();
+
+    /** Announces {@code n} elements that follow. */
+    void arrayHeader(int n);
+
+    /** Announces {@code n} key/value pairs (2n elements) that follow. */
+    void mapHeader(int n);
+}
@@ -0,0 +1,240 @@
+package com.atomkv.protocol;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Framing for RESP requests: arrays of bulk strings ({@code *2\r\n$3\r\nGET\r\n$1\r\nk\r\n}).
+ * Bulk payloads are located by their length prefix, never scanned, so values may contain spaces,
+ * CR or LF. Inline commands (a plain line, as typed into telnet) are accepted as well.
+ * Arguments are handed on as slices of the input; nothing is decoded into Strings here.
+ */
+public final class RespDecoder implements CommandDecoder {
+    private static final int MAX_ARGS = 1024 * 1024;
+    private static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+    private static final int MAX_INLINE_LENGTH = 64 * 1024;
+
+    private byte[] pending = new byte[0];
+    private int pendingLen;
+
+    // result of the last decodeOne call; decoded is false when the frame carried no command
+    private final CommandArgs args = new CommandArgs();
+    private boolean decoded;
+
+    @Override
+    public boolean feed(byte[] buf, int off, int len, CommandSink sink) throws IOException {
+        byte[] src;
+        int pos;
+        int limit;
+
+        if (pendingLen == 0) {
+            src = buf;
+            pos = off;
+            limit = off + len;
+        } else {
+            append(buf, off, len);
+            src = pending;
+            pos = 0;
+            limit = pendingLen;
+        }
+
+        while (pos < limit) {
+            int next = decodeOne(src, pos, limit);
+            if (next < 0) {
+                break;
+            }
+
+            pos = next;
+            if (decoded) {
+                decoded = false;
+
+                if (!sink.onCommand(args)) {
+                    pendingLen = 0;
+                    return false;
+                }
+            }
+        }
+
+        keep(src, pos, limit);
+        return true;
+    }
+
+    @Override
+    public boolean finish(CommandSink sink) {
+        // an incomplete frame at end of stream is dropped, as Redis does
+        pendingLen = 0;
+        return true;
+    }
+
+    /**
+     * Decode one frame starting at {@code pos}.
+     *
+     * @return the position after the frame, or -1 if more input is needed
+     */
+    private int decodeOne(byte[] b, int pos, int limit) throws ProtocolException {
+        if (b[pos] != '*') {
+            return decodeInline(b, pos, limit);
+        }
+
+        int eol = findCrlf(b, pos + 1, limit);
+        if (eol < 0) {
+            return -1;
+        }
+
+        long count = parseLong(b, pos + 1, eol, "multibulk length");
+        if (count > MAX_ARGS) {
+            throw new ProtocolException("invalid multibulk length");
+        }
+
+        pos = eol + 2;
+        if (count <= 0) {
+            return pos;
+        }
+
+        args.reset(b);
+        for (int i = 0; i < count; i++) {
+            if (pos >= limit) {
+                return -1;
+            }
+
+            if (b[pos] != '$') {
+                throw new ProtocolException("expected '$', got '" + (char) b[pos] + "'");
+            }
+
+            eol = findCrlf(b, pos + 1, limit);
+            if (eol < 0) {
+                return -1;
+            }
+
+            long len = parseLong(b, pos + 1, eol, "bulk length");
+            if (len < 0 || len > MAX_BULK_LENGTH) {
+                throw new ProtocolException("invalid bulk length");
+            }
+
+            int start = eol + 2;
+            long end = start + len;
+            if (end + 2 > limit) {
+                return -1;
+            }
+
+            if (b[(int) end] != '\r' || b[(int) end + 1] != '\n') {
+                throw new ProtocolException("bulk string not terminated by CRLF");
+            }
+
+            args.add(start, (int) len);
+            pos = (int) end + 2;
+        }
+
+        decoded = true;
+        return pos;
+    }
+
+    private int decodeInline(byte[] b, int pos, int limit) throws ProtocolException {
+        int nl = -1;
+        for (int i = pos; i < limit; i++) {
+            if (b[i] == '\n') {
+                nl = i;
+                break;
+            }
+        }
+
+        if (nl < 0) {
+            if (limit - pos > MAX_INLINE_LENGTH) {
+                throw new ProtocolException("too big inline request");
+            }
+            return -1;
+        }
+
+        int end = (nl > pos && b[nl - 1] == '\r') ? nl - 1 : nl;
+        args.reset(b);
+        int i = pos;
+
+        while (i < end) {
+            while (i < end && (b[i] == ' ' || b[i] == '\t')) {
+                i++;
+            }
+
+            int start = i;
+            while (i < end && b[i] != ' ' && b[i] != '\t') {
+                i++;
+            }
+
+            if (i > start) {
+                args.add(start, i - start);
+            }
+        }
+
+        decoded = args.count() > 0;
+        return nl + 1;
+    }
+
+    private static int findCrlf(byte[] b, int from, int limit) throws ProtocolException {
+        for (int i = from; i + 1 < limit; i++) {
+            if (b[i] == '\r') {
+                if (b[i + 1] != '\n') {
+                    throw new ProtocolException("expected CRLF");
+                }
+                return i;
+            }
+        }
+
+        if (limit - from > 32) {
+            throw new ProtocolException("length prefix too long");
+        }
+
+        return -1;
+    }
+
+    private static long parseLong(byte[] b, int from, int to, String what) throws ProtocolException {
+        if (from == to) {
+            throw new ProtocolException("invalid " + what);
+        }
+
+        boolean negative = b[from] == '-';
+        int i = negative ? from + 1 : from;
+        long v = 0;
+
+        if (i == to) {
+            throw new ProtocolException("invalid " + what);
+        }
+
+        for (; i < to; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10) {
+                throw new ProtocolException("invalid " + what);
+            }
+            v = v * 10 + d;
+        }
+
+        return negative ? -v : v;
+    }
+
+    private void append(byte[] src, int off, int len) {
+        if (pendingLen + len > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pendingLen + len, pending.length * 2));
+        }
+
+        System.arraycopy(src, off, pending, pendingLen, len);
+        pendingLen += len;
+    }
+
+    private void keep(byte[] src, int pos, int limit) {
+        int rest = limit - pos;
+
+        if (src == pending) {
+            System.arraycopy(pending, pos, pending, 0, rest);
+            pendingLen = rest;
+
+            // do not hold on to the room a single large value needed
+            if (rest == 0 && pending.length > MAX_INLINE_LENGTH) {
+                pending = new byte[0];
+            }
+            return;
+        }
+
+        pendingLen = 0;
+        if (rest > 0) {
+            append(src, pos, rest);
+        }
+    }
+}
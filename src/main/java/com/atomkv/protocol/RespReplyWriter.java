@@ -0,0 +1,102 @@
+package com.atomkv.protocol;
+
+/**
+ * Replies in RESP2, or RESP3 once the client has sent {@code HELLO 3}. The two differ only
+ * in how nil and maps are framed.
+ */
+public final class RespReplyWriter implements ReplyWriter {
+    private final ReplyBuffer out;
+    private int version;
+
+    public RespReplyWriter(ReplyBuffer out, int version) {
+        this.out = out;
+        this.version = version;
+    }
+
+    @Override
+    public int protocolVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean switchProtocol(int version) {
+        if (version != 2 && version != 3) {
+            return false;
+        }
+
+        this.version = version;
+        return true;
+    }
+
+    @Override
+    public void ok() {
+        out.writeAscii("+OK\r\n");
+    }
+
+    @Override
+    public void simple(String s) {
+        out.writeByte('+');
+        out.writeUtf8(s);
+        crlf();
+    }
+
+    @Override
+    public void error(String message) {
+        out.writeByte('-');
+        out.writeUtf8(message);
+        crlf();
+    }
+
+    @Override
+    public void integer(long v) {
+        out.writeByte(':');
+        out.writeLong(v);
+        crlf();
+    }
+
+    @Override
+    public void bulk(String s) {
+        out.writeByte('$');
+        out.writeLong(ReplyBuffer.utf8Length(s));
+        crlf();
+        out.writeUtf8(s);
+        crlf();
+    }
+
+    @Override
+    public void bulk(byte[] b) {
+        out.writeByte('$');
+        out.writeLong(b.length);
+        crlf();
+        out.write(b);
+        crlf();
+    }
+
+    @Override
+    public void nil() {
+        out.writeAscii(version >= 3 ? "_\r\n" : "$-1\r\n");
+    }
+
+    @Override
+    public void arrayHeader(int n) {
+        out.writeByte('*');
+        out.writeLong(n);
+        crlf();
+    }
+
+    @Override
+    public void mapHeader(int n) {
+        if (version >= 3) {
+            out.writeByte('%');
+            out.writeLong(n);
+            crlf();
+        } else {
+            arrayHeader(n * 2);
+        }
+    }
+
+    private void crlf() {
+        out.writeByte('\r');
+        out.writeByte('\n');
+    }
+}
@@ -0,0 +1,464 @@
+package com.atomkv.raft;
+
+import com.atomkv.persistence.AofCodec;
+import com.atomkv.persistence.AofRecord;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * What a Raft node keeps on disk: its term and vote, the log entries not yet covered by a
+ * snapshot, and the latest snapshot of the store. Not thread-safe; {@link RaftNode} holds its
+ * lock around every call except {@link #force()}.
+ *
+ * <p>{@code raft.state} holds the term and the vote and is replaced atomically on every change.
+ * {@code raft.log} starts with {@code "AKVRAFT1"} and the index and term of the entry just before
+ * its first one, which is the last entry the snapshot covers, and then holds entries:
+ * <pre>
+ * int32  length of term, clock and record
+ * int64  term
+ * int64  leader's clock when the entry was proposed, epoch millis
+ * bytes  the record as {@link AofCodec#encode} writes it; none for an entry that only moves the clock
+ * int32  CRC32C of term, clock and record
+ * </pre>
+ * A tail cut short by a crash is dropped when the log is opened. Snapshots are
+ * {@link com.atomkv.persistence.SnapshotFile}s named {@code snapshot-<index>-<term>-<clock>.akv}
+ * after the last entry they cover.
+ */
+final class RaftLog implements AutoCloseable {
+    private static final byte[] MAGIC = {'A', 'K', 'V', 'R', 'A', 'F', 'T', '1'};
+    private static final int HEADER_LENGTH = MAGIC.length + 16;
+    private static final int ENTRY_OVERHEAD = 4 + 16 + 4;
+
+    /**
+     * One log entry. The record is encoded once, by the leader, and decoded where it is applied.
+     */
+    static final class Entry {
+        final long term;
+        final long clock;
+        final byte[] data;
+        private AofRecord record;
+
+        Entry(long term, long clock, byte[] data) {
+            this.term = term;
+            this.clock = clock;
+            this.data = data;
+        }
+
+        static Entry of(long term, long clock, AofRecord record) {
+            if (record == null) {
+                return new Entry(term, clock, new byte[0]);
+            }
+
+            AofCodec.Output out = new AofCodec.Output(64);
+            AofCodec.encode(record, out);
+            Entry e = new Entry(term, clock, Arrays.copyOf(out.array(), out.size()));
+            e.record = record;
+            return e;
+        }
+
+        /**
+         * The write, or null for an entry that only moves the clock.
+         */
+        AofRecord record() throws IOException {
+            if (record == null && data.length > 0) {
+                record = AofCodec.decode(data, 0, data.length);
+            }
+            return record;
+        }
+    }
+
+    private final Path dir;
+    private final Path logFile;
+    private final Path stateFile;
+    private volatile FileChannel channel; // replaced when the log is compacted
+
+    private long term;
+    private String votedFor;
+
+    private long baseIndex; // last index covered by the snapshot
+    private long baseTerm;
+    private long baseClock;
+    private final List<Entry> entries = new ArrayList<>();
+    private long[] offsets = new long[1024]; // file offset of each entry, parallel to entries
+    private long end; // file offset just past the last entry
+
+    private Path snapshot;
+
+    private RaftLog(Path dir) {
+        this.dir = dir;
+        this.logFile = dir.resolve("raft.log");
+        this.stateFile = dir.resolve("raft.state");
+    }
+
+    /**
+     * Read what an earlier run left in {@code dir}, or start empty.
+     *
+     * @throws IOException if the files are corrupt or the log starts after the latest snapshot
+     */
+    static RaftLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        RaftLog log = new RaftLog(dir);
+        log.readState();
+        log.findSnapshot();
+        log.readLog();
+        return log;
+    }
+
+    private void readState() throws IOException {
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(stateFile))) {
+            term = in.readLong();
+            String vote = in.readUTF();
+            votedFor = vote.isEmpty() ? null : vote;
+        }
+    }
+
+    private void findSnapshot() throws IOException {
+        long bestIndex = 0;
+        long bestTerm = 0;
+        long bestClock = 0;
+        List<Path> found = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*")) {
+            for (Path p : files) {
+                String[] f = p.getFileName().toString().split("[-.]");
+                if (f.length != 5 || !f[4].equals("akv")) {
+                    Files.deleteIfExists(p); // left over from a snapshot that was not finished
+                    continue;
+                }
+
+                found.add(p);
+                long index = Long.parseLong(f[1]);
+                if (snapshot == null || index > bestIndex) {
+                    snapshot = p;
+                    bestIndex = index;
+                    bestTerm = Long.parseLong(f[2]);
+                    bestClock = Long.parseLong(f[3]);
+                }
+            }
+        }
+
+        for (Path p : found) {
+            if (!p.equals(snapshot)) {
+                Files.deleteIfExists(p);
+            }
+        }
+
+        baseIndex = bestIndex;
+        baseTerm = bestTerm;
+        baseClock = bestClock;
+    }
+
+    private void readLog() throws IOException {
+        long snapshotIndex = baseIndex;
+        long snapshotTerm = baseTerm;
+        long snapshotClock = baseClock;
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (channel.size() < HEADER_LENGTH) {
+            rewrite(snapshotIndex, snapshotTerm);
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(header, 0);
+        if (!Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException(logFile + " is not a Raft log");
+        }
+        baseIndex = header.getLong(MAGIC.length);
+        baseTerm = header.getLong(MAGIC.length + 8);
+        if (baseIndex > snapshotIndex) {
+            throw new IOException("the log starts after index " + baseIndex + " but the latest snapshot ends at " + snapshotIndex);
+        }
+
+        CRC32C crc = new CRC32C();
+        long pos = HEADER_LENGTH;
+        long size = channel.size();
+        ByteBuffer len = ByteBuffer.allocate(4);
+        while (pos + ENTRY_OVERHEAD <= size) {
+            len.clear();
+            readFully(len, pos);
+            int length = len.getInt(0);
+            if (length < 16 || pos + 4 + length + 4 > size) {
+                break;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(length + 4);
+            readFully(body, pos + 4);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != body.getInt(length)) {
+                break;
+            }
+
+            add(new Entry(body.getLong(0), body.getLong(8), Arrays.copyOfRange(body.array(), 16, length)), pos);
+            pos += 4 + length + 4;
+        }
+
+        if (pos < size) {
+            System.err.printf("Raft log: dropping %d bytes of a torn tail at offset %d%n", size - pos, pos);
+            channel.truncate(pos);
+        }
+        end = pos;
+
+        // a snapshot taken after the log was last compacted covers its first entries
+        if (snapshotIndex > baseIndex) {
+            compact(snapshotIndex, snapshotTerm, snapshotClock);
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException(logFile + " ended early");
+            }
+        }
+    }
+
+    private void add(Entry e, long offset) {
+        if (entries.size() == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[entries.size()] = offset;
+        entries.add(e);
+    }
+
+    long term() {
+        return term;
+    }
+
+    String votedFor() {
+        return votedFor;
+    }
+
+    /**
+     * Durably record the current term and the vote cast in it, null for none yet.
+     */
+    void saveState(long term, String votedFor) throws IOException {
+        Path tmp = dir.resolve("raft.state.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream data = new DataOutputStream(Channels.newOutputStream(out))) {
+            data.writeLong(term);
+            data.writeUTF(votedFor == null ? "" : votedFor);
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.term = term;
+        this.votedFor = votedFor;
+    }
+
+    /**
+     * Index of the last entry the snapshot covers; entries up to it are no longer kept.
+     */
+    long baseIndex() {
+        return baseIndex;
+    }
+
+    /**
+     * Clock of the last entry the snapshot covers.
+     */
+    long baseClock() {
+        return baseClock;
+    }
+
+    long lastIndex() {
+        return baseIndex + entries.size();
+    }
+
+    long lastTerm() {
+        return entries.isEmpty() ? baseTerm : entries.get(entries.size() - 1).term;
+    }
+
+    /**
+     * Clock of the last entry, whether still in the log or covered by the snapshot.
+     */
+    long lastClock() {
+        return entries.isEmpty() ? baseClock : entries.get(entries.size() - 1).clock;
+    }
+
+    /**
+     * Term of the entry at {@code index}, -1 if it is not in the log or covered by the snapshot.
+     */
+    long termAt(long index) {
+        if (index == baseIndex) {
+            return baseTerm;
+        }
+        if (index < baseIndex || index > lastIndex()) {
+            return -1;
+        }
+        return entries.get((int) (index - baseIndex - 1)).term;
+    }
+
+    Entry get(long index) {
+        return entries.get((int) (index - baseIndex - 1));
+    }
+
+    /**
+     * Entries {@code from} to {@code to}, both included, at most {@code max} of them.
+     */
+    List<Entry> slice(long from, long to, int max) {
+        int first = (int) (from - baseIndex - 1);
+        int last = (int) Math.min(to - baseIndex, first + (long) max);
+        return new ArrayList<>(entries.subList(first, last));
+    }
+
+    /**
+     * Write entries after the last one. They are durable once {@link #force()} returns.
+     */
+    void append(List<Entry> added) throws IOException {
+        int bytes = 0;
+        for (Entry e : added) {
+            bytes += ENTRY_OVERHEAD + e.data.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(bytes);
+        CRC32C crc = new CRC32C();
+        long offset = end;
+        for (Entry e : added) {
+            int start = buf.position();
+            buf.putInt(16 + e.data.length).putLong(e.term).putLong(e.clock).put(e.data);
+            crc.reset();
+            crc.update(buf.array(), start + 4, 16 + e.data.length);
+            buf.putInt((int) crc.getValue());
+
+            add(e, offset);
+            offset += buf.position() - start;
+        }
+
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf, end + buf.position());
+        }
+        end = offset;
+    }
+
+    void force() throws IOException {
+        FileChannel ch = channel;
+        try {
+            ch.force(false);
+        } catch (ClosedChannelException e) {
+            if (ch == channel) {
+                throw e;
+            }
+            // compacted meanwhile; whatever was appended since went to the new file
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Drop the entries from {@code index} on, which a new leader's log does not have.
+     */
+    void truncateFrom(long index) throws IOException {
+        int keep = (int) (index - baseIndex - 1);
+        if (keep >= entries.size()) {
+            return;
+        }
+
+        end = offsets[keep];
+        entries.subList(keep, entries.size()).clear();
+        channel.truncate(end);
+    }
+
+    /**
+     * The latest snapshot, or null if there is none yet.
+     */
+    Path snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * A new file to write a snapshot to before {@link #snapshotSaved} takes it over.
+     */
+    Path snapshotTemp() throws IOException {
+        return Files.createTempFile(dir, "snapshot-", ".tmp");
+    }
+
+    /**
+     * Take over the snapshot written to {@code tmp} as covering the log up to {@code index} and
+     * drop the entries it covers. Entries after it stay if the log agrees on the term at
+     * {@code index}; otherwise, as when a leader sent the snapshot, the whole log is dropped. A
+     * snapshot no newer than the current one is deleted instead.
+     *
+     * @param clock clock of the entry at {@code index}
+     */
+    void snapshotSaved(Path tmp, long index, long term, long clock) throws IOException {
+        if (index <= baseIndex) {
+            Files.deleteIfExists(tmp);
+            return;
+        }
+
+        Path file = dir.resolve("snapshot-" + index + "-" + term + "-" + clock + ".akv");
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Path old = snapshot;
+        snapshot = file;
+        if (old != null && !old.equals(file)) {
+            Files.deleteIfExists(old);
+        }
+
+        compact(index, term, clock);
+    }
+
+    private void compact(long index, long term, long clock) throws IOException {
+        List<Entry> kept = index < lastIndex() && termAt(index) == term
+                ? new ArrayList<>(entries.subList((int) (index - baseIndex), entries.size()))
+                : new ArrayList<>();
+
+        rewrite(index, term);
+        baseClock = clock;
+        if (!kept.isEmpty()) {
+            append(kept);
+            force();
+        }
+    }
+
+    /**
+     * Replace the log file with an empty one that starts after {@code index}.
+     */
+    private void rewrite(long index, long term) throws IOException {
+        Path tmp = dir.resolve("raft.log.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).putLong(index).putLong(term).flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            out.force(true);
+        }
+        Files.move(tmp, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        baseIndex = index;
+        baseTerm = term;
+        entries.clear();
+        end = HEADER_LENGTH;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,1327 @@
+package com.atomkv.raft;
+
+import com.atomkv.persistence.AofRecord;
+import com.atomkv.persistence.SnapshotFile;
+import com.atomkv.store.InMemoryStore;
+import com.atomkv.store.StoreSnapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This server's part in a Raft group: a fixed set of nodes that apply the same writes in the same
+ * order, so that a write acknowledged to a client survives the loss of any minority of them.
+ *
+ * <p>Clients write to the leader. Each write becomes an entry of the {@link RaftLog}; the leader
+ * appends it to its own log and sends it to the followers, and once a majority has it on disk it
+ * is committed and every node applies it to its store. Entries proposed while earlier ones are on
+ * their way go out together in the next AppendEntries, and up to {@link #MAX_IN_FLIGHT} of those
+ * are sent to a follower without waiting for its replies. The leader forces its own log once for
+ * everything appended since the last force.
+ *
+ * <p>Only the leader serves reads, from its own store, and only while it holds a lease: a majority
+ * has answered something it sent less than 90% of the minimum election timeout ago. A follower
+ * that has heard from the leader within the minimum election timeout votes for nobody else, so
+ * no other leader can be elected while the lease lasts and a read never misses a committed write.
+ *
+ * <p>Every entry carries the leader's clock, which never runs backwards along the log, and is
+ * applied as if the store's clock read that. The store is told to leave expired keys alone (see
+ * {@link InMemoryStore#deferExpiry}) and is swept only before the first entry of every
+ * {@code SWEEP_MILLIS} of that clock, which is the same entry on every node. Every node therefore
+ * agrees on which keys an entry finds expired, however late it applies the entry and however it
+ * batches the entries.
+ *
+ * <p>Once {@code snapshotEntries} entries have been applied since the last snapshot, the store is
+ * snapshotted and the log up to there dropped. A follower that needs entries no longer in the log
+ * is sent the snapshot instead.
+ *
+ * <p>Nodes talk on a port of their own. Each node connects to every other and sends its requests
+ * on that connection; replies come back on it in order:
+ * <pre>
+ * 1 RequestVote      term candidate lastIndex lastTerm                     -&gt; 4 term granted
+ * 2 AppendEntries    term leader leaderClient seq prevIndex prevTerm commit
+ *                    count, then per entry: term clock length record      -&gt; 5 term seq success index
+ * 3 InstallSnapshot  term leader leaderClient seq index term clock length
+ *                    snapshot                                              -&gt; 5 term seq success index
+ * </pre>
+ * A successful reply carries the last index the follower now matches the leader up to; a failed
+ * one the index to retry from after.
+ */
+public class RaftNode implements AutoCloseable {
+    public enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+    private static final byte VOTE = 1;
+    private static final byte APPEND = 2;
+    private static final byte SNAPSHOT = 3;
+    private static final byte VOTE_REPLY = 4;
+    private static final byte APPEND_REPLY = 5;
+
+    private static final int MAX_BATCH = 512;
+    private static final int MAX_IN_FLIGHT = 8;
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long SWEEP_MILLIS = 100;
+    private static final long RETRY_MILLIS = 100;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1_000;
+    private static final int CHUNK = 64 << 10;
+
+    private final String self;
+    private final String announce;
+    private final InMemoryStore store;
+    private final RaftLog log;
+    private final long electionNanos;
+    private final long heartbeatNanos;
+    private final long leaseNanos;
+    private final long snapshotEntries;
+    private final int quorum;
+    private final List<Peer> peers = new ArrayList<>();
+
+    private final Object applyLock = new Object(); // held while the store is changed by the log
+    private final List<Thread> threads = new CopyOnWriteArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    // guarded by this
+    private Role role = Role.FOLLOWER;
+    private String leader;
+    private String leaderClient;
+    private final Set<String> votes = new HashSet<>();
+    private long electionDeadline;
+    private long leaderContact; // when the leader was last heard from
+    private long leaderSince; // when this node became leader
+    private long leaderStart; // index of the first entry this node appended as leader
+    private long lastProposal;
+    private long commitIndex;
+    private long durableIndex; // last index forced to disk
+    private long lastClock;
+    private final Map<Long, CompletableFuture<Object>> waiting = new HashMap<>();
+    private final List<CompletableFuture<Void>> leaseWaiters = new ArrayList<>();
+
+    private volatile long lastApplied;
+    private long appliedClock; // clock of the entry at lastApplied, guarded by applyLock
+
+    /**
+     * Read back the log and the latest snapshot from {@code dir} and load the snapshot into
+     * {@code store}; the entries after it are applied once a leader says they are committed.
+     *
+     * @param self this node's Raft address, {@code host:port}
+     * @param announce the client address redirected clients are sent to when this node leads
+     * @param members the Raft addresses of all nodes of the group; {@code self} may be among them
+     * @param electionTimeoutMillis the least time without a leader before a node stands for
+     *                              election; each waits a random time up to twice that
+     * @param snapshotEntries applied entries after which the store is snapshotted and the log
+     *                        truncated
+     */
+    public RaftNode(String self, String announce, Collection<String> members, Path dir, InMemoryStore store,
+                    long electionTimeoutMillis, long snapshotEntries) throws IOException {
+        this.self = self;
+        this.announce = announce;
+        this.store = store;
+        this.electionNanos = TimeUnit.MILLISECONDS.toNanos(electionTimeoutMillis);
+        this.heartbeatNanos = electionNanos / 10;
+        this.leaseNanos = electionNanos * 9 / 10;
+        this.snapshotEntries = Math.max(1, snapshotEntries);
+
+        Set<String> others = new TreeSet<>(members);
+        others.remove(self);
+        this.quorum = (others.size() + 1) / 2 + 1;
+        for (String address : others) {
+            peers.add(new Peer(address));
+        }
+
+        this.log = RaftLog.open(dir);
+        if (log.snapshot() != null) {
+            long keys = new SnapshotFile(log.snapshot()).load(store);
+            System.out.printf("Raft: loaded %d keys from %s%n", keys, log.snapshot());
+        }
+        this.commitIndex = log.baseIndex();
+        this.lastApplied = log.baseIndex();
+        this.appliedClock = log.baseClock();
+        this.durableIndex = log.lastIndex();
+        this.lastClock = log.lastClock();
+
+        store.deferExpiry(true);
+    }
+
+    /**
+     * Accept the other nodes on this node's port and start taking part in elections.
+     */
+    public synchronized void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port(self)));
+
+        running = true;
+        electionDeadline = nextElection(System.nanoTime());
+        spawn("raft-accept", this::acceptLoop);
+        spawn("raft-tick", this::tickLoop);
+        spawn("raft-flush", this::flushLoop);
+        spawn("raft-apply", this::applyLoop);
+        for (Peer peer : peers) {
+            spawn("raft-send-" + peer.address, peer::sendLoop);
+        }
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public synchronized Role role() {
+        return role;
+    }
+
+    public synchronized boolean isLeader() {
+        return role == Role.LEADER;
+    }
+
+    public synchronized long term() {
+        return log.term();
+    }
+
+    /**
+     * Client address of the leader this node knows of, null if none.
+     */
+    public synchronized String leader() {
+        return leaderClient;
+    }
+
+    public synchronized long commitIndex() {
+        return commitIndex;
+    }
+
+    public long lastApplied() {
+        return lastApplied;
+    }
+
+    public synchronized long lastIndex() {
+        return log.lastIndex();
+    }
+
+    /**
+     * Index of the last entry the latest snapshot covers, 0 if there is none.
+     */
+    public synchronized long snapshotIndex() {
+        return log.baseIndex();
+    }
+
+    /**
+     * Append {@code record} to the log, to be applied once a majority has it.
+     *
+     * @return completed once this node has applied the write, with what it answers: a Long for
+     *         counts, lengths and new values, 1 for writes that answer OK; failed with
+     *         {@link NotLeaderException} if this node does not lead or stops leading before
+     *         then, or with the error the write meets when applied
+     */
+    public CompletableFuture<Object> propose(AofRecord record) {
+        CompletableFuture<Object> done = new CompletableFuture<>();
+
+        synchronized (this) {
+            if (role != Role.LEADER || !running) {
+                done.completeExceptionally(new NotLeaderException(leaderClient));
+                return done;
+            }
+
+            try {
+                waiting.put(appendLocal(record), done);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+            }
+        }
+
+        return done;
+    }
+
+    /**
+     * Wait for this node to be allowed to serve reads from its store: it leads, holds a lease, and
+     * has applied everything committed before it was elected.
+     *
+     * @return completed at once if it may read now, else once it may; failed with
+     *         {@link NotLeaderException} if this node does not lead or stops leading before then
+     */
+    public synchronized CompletableFuture<Void> lease() {
+        if (role != Role.LEADER || !running) {
+            return CompletableFuture.failedFuture(new NotLeaderException(leaderClient));
+        }
+        if (leaseHeld(System.nanoTime())) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> held = new CompletableFuture<>();
+        leaseWaiters.add(held);
+        return held;
+    }
+
+    /**
+     * Raised where a write or a read needs the leader and this node is not it.
+     */
+    public static final class NotLeaderException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        private final String leader;
+
+        NotLeaderException(String leader) {
+            super(leader == null ? "no leader elected" : "the leader is " + leader);
+            this.leader = leader;
+        }
+
+        /**
+         * Client address of the leader, null if none is known.
+         */
+        public String leader() {
+            return leader;
+        }
+    }
+
+    // ---- leader ----
+
+    /**
+     * Append an entry for {@code record}, null for one that only moves the clock, stamped with
+     * this node's clock unless an earlier entry has a later one.
+     *
+     * @return its index
+     */
+    private long appendLocal(AofRecord record) throws IOException {
+        lastClock = Math.max(System.currentTimeMillis(), lastClock);
+        log.append(List.of(RaftLog.Entry.of(log.term(), lastClock, record)));
+        lastProposal = System.nanoTime();
+        notifyAll();
+        return log.lastIndex();
+    }
+
+    private void becomeLeader() {
+        long now = System.nanoTime();
+        role = Role.LEADER;
+        leader = self;
+        leaderClient = announce;
+        leaderSince = now;
+        for (Peer peer : peers) {
+            peer.lead(now);
+        }
+        System.out.printf("Raft: %s leads term %d%n", self, log.term());
+
+        try {
+            // commits whatever earlier leaders left uncommitted, and marks when reads may start
+            leaderStart = appendLocal(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The latest time a majority, this node included, had been sent something they answered.
+     */
+    private long quorumContact(long now) {
+        long[] times = new long[peers.size() + 1];
+        times[0] = now;
+        for (int i = 0; i < peers.size(); i++) {
+            times[i + 1] = peers.get(i).acked;
+        }
+        Arrays.sort(times);
+        return times[times.length - quorum];
+    }
+
+    private boolean leaseHeld(long now) {
+        return now - quorumContact(now) < leaseNanos && lastApplied >= leaderStart;
+    }
+
+    /**
+     * Let the reads waiting for the lease go ahead, if it is held now.
+     */
+    private void grantLease() {
+        if (leaseWaiters.isEmpty() || role != Role.LEADER || !leaseHeld(System.nanoTime())) {
+            return;
+        }
+
+        for (CompletableFuture<Void> f : leaseWaiters) {
+            f.complete(null);
+        }
+        leaseWaiters.clear();
+    }
+
+    /**
+     * Commit up to the last entry of this term a majority has on disk.
+     */
+    private void advanceCommit() {
+        long[] match = new long[peers.size() + 1];
+        match[0] = durableIndex;
+        for (int i = 0; i < peers.size(); i++) {
+            match[i + 1] = peers.get(i).matchIndex;
+        }
+        Arrays.sort(match);
+
+        long n = match[match.length - quorum];
+        if (n > commitIndex && log.termAt(n) == log.term()) {
+            commitIndex = n;
+            notifyAll();
+        }
+    }
+
+    private void onVoteReply(long term, boolean granted, Peer peer) {
+        if (term > log.term()) {
+            stepDown(term);
+        } else if (role == Role.CANDIDATE && term == log.term() && granted) {
+            votes.add(peer.address);
+            if (votes.size() >= quorum) {
+                becomeLeader();
+            }
+        }
+    }
+
+    private void onAppendReply(long term, long seq, boolean success, long index, Peer peer, long connection) {
+        if (term > log.term()) {
+            stepDown(term);
+            return;
+        }
+        if (role != Role.LEADER || term != log.term() || connection != peer.connection) {
+            return;
+        }
+
+        long[] sent = null;
+        while (!peer.inFlight.isEmpty() && peer.inFlight.peek()[0] <= seq) {
+            long[] f = peer.inFlight.poll();
+            if (f[0] == seq) {
+                sent = f;
+            }
+        }
+        if (sent == null) {
+            return; // sent before the follower's position was reset
+        }
+
+        peer.acked = Math.max(peer.acked, sent[1]);
+        if (seq == peer.snapshotSeq) {
+            peer.snapshotSeq = 0;
+        }
+
+        if (success) {
+            peer.matchIndex = Math.max(peer.matchIndex, index);
+            peer.nextIndex = Math.max(peer.nextIndex, peer.matchIndex + 1);
+            advanceCommit();
+        } else {
+            // whatever else is in flight builds on the mismatch and fails too
+            peer.nextIndex = Math.max(peer.matchIndex, index) + 1;
+            peer.inFlight.clear();
+        }
+        grantLease();
+        notifyAll();
+    }
+
+    // ---- elections ----
+
+    private long nextElection(long now) {
+        return now + electionNanos + ThreadLocalRandom.current().nextLong(electionNanos);
+    }
+
+    private void startElection(long now) {
+        saveState(log.term() + 1, self);
+        role = Role.CANDIDATE;
+        leader = null;
+        leaderClient = null;
+        votes.clear();
+        votes.add(self);
+        electionDeadline = nextElection(now);
+        System.out.printf("Raft: %s stands for term %d%n", self, log.term());
+
+        if (votes.size() >= quorum) {
+            becomeLeader();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Follow whoever leads {@code term}, not yet known.
+     */
+    private void stepDown(long term) {
+        if (term > log.term()) {
+            saveState(term, null);
+            leader = null;
+            leaderClient = null;
+        }
+        if (role != Role.FOLLOWER) {
+            role = Role.FOLLOWER;
+            leader = null;
+            leaderClient = null;
+            electionDeadline = nextElection(System.nanoTime());
+        }
+        failWaiting();
+        notifyAll();
+    }
+
+    private void failWaiting() {
+        for (CompletableFuture<Object> f : waiting.values()) {
+            f.completeExceptionally(new NotLeaderException(leaderClient));
+        }
+        waiting.clear();
+        for (CompletableFuture<Void> f : leaseWaiters) {
+            f.completeExceptionally(new NotLeaderException(leaderClient));
+        }
+        leaseWaiters.clear();
+    }
+
+    private void saveState(long term, String votedFor) {
+        try {
+            log.saveState(term, votedFor);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized boolean onVote(long term, String candidate, long lastIndex, long lastTerm) {
+        long now = System.nanoTime();
+
+        // a node that still hears from a leader does not help depose it
+        if (term > log.term() && (role == Role.LEADER || (leader != null && now - leaderContact < electionNanos))) {
+            return false;
+        }
+        if (term > log.term()) {
+            stepDown(term);
+        }
+
+        boolean upToDate = lastTerm > log.lastTerm() || (lastTerm == log.lastTerm() && lastIndex >= log.lastIndex());
+        boolean granted = term == log.term() && upToDate && (log.votedFor() == null || log.votedFor().equals(candidate));
+        if (granted) {
+            saveState(term, candidate);
+            electionDeadline = nextElection(now);
+        }
+        return granted;
+    }
+
+    // ---- follower ----
+
+    /**
+     * Accept {@code leaderId} as the leader of {@code term}, if that is not an old term.
+     */
+    private boolean follow(long term, String leaderId, String client) {
+        if (term < log.term()) {
+            return false;
+        }
+
+        if (term > log.term() || role != Role.FOLLOWER) {
+            stepDown(term);
+        }
+        leader = leaderId;
+        leaderClient = client;
+        leaderContact = System.nanoTime();
+        electionDeadline = nextElection(leaderContact);
+        return true;
+    }
+
+    private synchronized Reply onAppend(long term, String leaderId, String client, long prevIndex, long prevTerm,
+                                        long leaderCommit, List<RaftLog.Entry> entries) throws IOException {
+        if (!follow(term, leaderId, client)) {
+            return new Reply(log.term(), false, log.lastIndex(), false);
+        }
+
+        // entries the snapshot covers are committed, and so the same as the leader's
+        if (prevIndex < log.baseIndex()) {
+            int skip = (int) Math.min(entries.size(), log.baseIndex() - prevIndex);
+            entries = entries.subList(skip, entries.size());
+            prevIndex += skip;
+            if (prevIndex < log.baseIndex()) {
+                return new Reply(log.term(), true, prevIndex, false);
+            }
+            prevTerm = log.termAt(prevIndex);
+        }
+
+        if (log.termAt(prevIndex) != prevTerm) {
+            return new Reply(log.term(), false, retryFrom(prevIndex), false);
+        }
+
+        long index = prevIndex + 1;
+        int i = 0;
+        while (i < entries.size() && index <= log.lastIndex() && log.termAt(index) == entries.get(i).term) {
+            i++;
+            index++;
+        }
+
+        boolean appended = i < entries.size();
+        if (appended) {
+            if (index <= log.lastIndex()) {
+                log.truncateFrom(index);
+                durableIndex = Math.min(durableIndex, index - 1);
+            }
+            List<RaftLog.Entry> added = entries.subList(i, entries.size());
+            log.append(added);
+            lastClock = Math.max(lastClock, added.get(added.size() - 1).clock);
+        }
+
+        long match = prevIndex + entries.size();
+        if (Math.min(leaderCommit, match) > commitIndex) {
+            commitIndex = Math.min(leaderCommit, match);
+            notifyAll();
+        }
+        return new Reply(log.term(), true, match, appended);
+    }
+
+    /**
+     * Where the leader should look for agreement after a mismatch at {@code prevIndex}: the end of
+     * this log if it is shorter, else before the conflicting term.
+     */
+    private long retryFrom(long prevIndex) {
+        if (prevIndex > log.lastIndex()) {
+            return log.lastIndex();
+        }
+
+        long conflict = log.termAt(prevIndex);
+        long index = prevIndex - 1;
+        while (index > log.baseIndex() && log.termAt(index) == conflict) {
+            index--;
+        }
+        return index;
+    }
+
+    private synchronized void durable(long index) {
+        durableIndex = Math.max(durableIndex, Math.min(index, log.lastIndex()));
+    }
+
+    /**
+     * A leader is still sending a snapshot; it counts as hearing from it.
+     */
+    private synchronized void touch(long term) {
+        if (term == log.term() && role == Role.FOLLOWER && leader != null) {
+            leaderContact = System.nanoTime();
+            electionDeadline = nextElection(leaderContact);
+        }
+    }
+
+    private Reply onSnapshot(long term, String leaderId, String client, long index, long indexTerm, long clock,
+                             Path file) throws IOException {
+        synchronized (this) {
+            if (!follow(term, leaderId, client)) {
+                Files.deleteIfExists(file);
+                return new Reply(log.term(), false, log.lastIndex(), false);
+            }
+        }
+
+        synchronized (applyLock) {
+            if (index <= lastApplied) {
+                Files.deleteIfExists(file);
+                return new Reply(term(), true, index, false);
+            }
+
+            store.applyReplicated(AofRecord.flushAll());
+            long keys = new SnapshotFile(file).load(store);
+
+            synchronized (this) {
+                log.snapshotSaved(file, index, indexTerm, clock);
+                commitIndex = Math.max(commitIndex, index);
+                lastApplied = index;
+                appliedClock = clock;
+                durableIndex = log.lastIndex();
+                lastClock = Math.max(lastClock, clock);
+                notifyAll();
+            }
+            System.out.printf("Raft: %s installed a snapshot of %d keys up to index %d%n", self, keys, index);
+        }
+
+        return new Reply(term(), true, index, false);
+    }
+
+    private static final class Reply {
+        final long term;
+        final boolean success;
+        final long index;
+        final boolean appended; // the log has to be forced before answering
+
+        Reply(long term, boolean success, long index, boolean appended) {
+            this.term = term;
+            this.success = success;
+            this.index = index;
+            this.appended = appended;
+        }
+    }
+
+    // ---- background threads ----
+
+    private void spawn(String name, Runnable body) {
+        Thread t = new Thread(() -> {
+            try {
+                body.run();
+            } catch (RuntimeException e) {
+                if (running) {
+                    System.err.println("Raft: " + name + " failed: " + e);
+                }
+            } finally {
+                threads.remove(Thread.currentThread());
+            }
+        }, name);
+        t.setDaemon(true);
+        threads.add(t);
+        t.start();
+    }
+
+    private void tickLoop() {
+        long tickMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(heartbeatNanos) / 2);
+
+        synchronized (this) {
+            while (running) {
+                long now = System.nanoTime();
+
+                if (role == Role.LEADER) {
+                    if (now - Math.max(leaderSince, quorumContact(now)) > electionNanos) {
+                        System.out.printf("Raft: %s lost touch with a majority, stepping down%n", self);
+                        stepDown(log.term());
+                    } else if (now - lastProposal >= IDLE_NANOS) {
+                        try {
+                            // lets deadlines pass on every node while no writes come
+                            appendLocal(null);
+                        } catch (IOException e) {
+                            System.err.println("Raft: log append failed: " + e.getMessage());
+                        }
+                    }
+                } else if (now >= electionDeadline) {
+                    startElection(now);
+                }
+                grantLease();
+
+                waitQuietly(tickMillis);
+            }
+        }
+    }
+
+    /**
+     * Force what the leader appended, for everything appended meanwhile at once.
+     */
+    private void flushLoop() {
+        while (running) {
+            long target;
+            synchronized (this) {
+                while (running && (role != Role.LEADER || durableIndex >= log.lastIndex())) {
+                    waitQuietly(0);
+                }
+                if (!running) {
+                    return;
+                }
+                target = log.lastIndex();
+            }
+
+            try {
+                log.force();
+            } catch (IOException e) {
+                System.err.println("Raft: log force failed: " + e.getMessage());
+                synchronized (this) {
+                    waitQuietly(RETRY_MILLIS);
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                durableIndex = Math.max(durableIndex, Math.min(target, log.lastIndex()));
+                if (role == Role.LEADER) {
+                    advanceCommit();
+                }
+            }
+        }
+    }
+
+    private void applyLoop() {
+        while (running) {
+            long from;
+            List<RaftLog.Entry> batch;
+            synchronized (this) {
+                while (running && lastApplied >= commitIndex) {
+                    waitQuietly(0);
+                }
+                if (!running) {
+                    return;
+                }
+                from = lastApplied + 1;
+                batch = log.slice(from, commitIndex, MAX_BATCH);
+            }
+
+            Object[] results = new Object[batch.size()];
+            synchronized (applyLock) {
+                if (lastApplied != from - 1) {
+                    continue; // a snapshot was installed meanwhile
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    RaftLog.Entry e = batch.get(i);
+                    if (e.clock / SWEEP_MILLIS != appliedClock / SWEEP_MILLIS) {
+                        store.expireUpTo(e.clock);
+                    }
+                    try {
+                        results[i] = apply(e);
+                    } catch (RuntimeException ex) {
+                        // fails the same way on every node, so the stores stay alike
+                        results[i] = ex;
+                    }
+                    appliedClock = e.clock;
+                    lastApplied = from + i;
+                }
+            }
+
+            List<CompletableFuture<Object>> done = new ArrayList<>(batch.size());
+            synchronized (this) {
+                for (int i = 0; i < batch.size(); i++) {
+                    done.add(waiting.remove(from + i));
+                }
+                grantLease();
+                notifyAll();
+            }
+            for (int i = 0; i < done.size(); i++) {
+                CompletableFuture<Object> f = done.get(i);
+                if (f != null && results[i] instanceof RuntimeException e) {
+                    f.completeExceptionally(e);
+                } else if (f != null) {
+                    f.complete(results[i]);
+                }
+            }
+
+            if (lastApplied - snapshotIndex() >= snapshotEntries) {
+                try {
+                    takeSnapshot();
+                } catch (IOException e) {
+                    System.err.println("Raft: snapshot failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply one committed entry at its clock.
+     *
+     * @return what the write answers, or the RuntimeException it fails with
+     */
+    private Object apply(RaftLog.Entry e) {
+        AofRecord r;
+        try {
+            r = e.record();
+        } catch (IOException ex) {
+            throw new UncheckedIOException("committed entry is corrupt", ex);
+        }
+        if (r == null) {
+            return null;
+        }
+
+        long clock = e.clock;
+        String key = r.key();
+        switch (r.op()) {
+            case DEL, EXPIRE, PEXPIREAT -> {
+                boolean existed = store.peek(key, clock) != null;
+                store.applyReplicated(r, clock);
+                return existed ? 1L : 0L;
+            }
+            case PERSIST -> {
+                AofRecord before = store.peek(key, clock);
+                store.applyReplicated(r, clock);
+                return before != null && before.number() > 0 ? 1L : 0L;
+            }
+            case INCR, DECR -> {
+                AofRecord before = store.peek(key, clock);
+                if (before != null && before.value() != null) {
+                    try {
+                        Long.parseLong(before.value());
+                    } catch (NumberFormatException ex) {
+                        return new IllegalStateException("value is not an integer");
+                    }
+                }
+                store.applyReplicated(r, clock);
+                return Long.parseLong(store.peek(key, clock).value());
+            }
+            case APPEND -> {
+                store.applyReplicated(r, clock);
+                AofRecord after = store.peek(key, clock);
+                return after == null || after.valueBytes() == null ? 0L : (long) after.valueBytes().length;
+            }
+            case RENAME -> {
+                if (store.peek(key, clock) == null) {
+                    return new IllegalStateException("no such key");
+                }
+                store.applyReplicated(r, clock);
+                return 1L;
+            }
+            default -> {
+                store.applyReplicated(r, clock);
+                return 1L;
+            }
+        }
+    }
+
+    private void takeSnapshot() throws IOException {
+        long index;
+        long term;
+        long clock;
+        StoreSnapshot cut;
+        synchronized (applyLock) {
+            index = lastApplied;
+            synchronized (this) {
+                if (index <= log.baseIndex()) {
+                    return;
+                }
+                RaftLog.Entry e = log.get(index);
+                term = e.term;
+                clock = e.clock;
+            }
+            cut = store.snapshot(() -> { }, clock);
+        }
+
+        Path tmp = log.snapshotTemp();
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SnapshotFile.write(cut, out);
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+
+        synchronized (this) {
+            log.snapshotSaved(tmp, index, term, clock);
+        }
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    // ---- connections ----
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket s = serverSocket.accept();
+                s.setTcpNoDelay(true);
+                inbound.add(s);
+                spawn("raft-serve-" + s.getRemoteSocketAddress(), () -> serve(s));
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Raft: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer the requests another node sends on the connection it opened.
+     */
+    private void serve(Socket s) {
+        try (s; DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16))) {
+            while (running) {
+                int type = in.read();
+                if (type < 0) {
+                    return;
+                }
+
+                switch (type) {
+                    case VOTE -> {
+                        long term = in.readLong();
+                        String candidate = in.readUTF();
+                        long lastIndex = in.readLong();
+                        long lastTerm = in.readLong();
+                        boolean granted = onVote(term, candidate, lastIndex, lastTerm);
+                        out.writeByte(VOTE_REPLY);
+                        out.writeLong(term());
+                        out.writeBoolean(granted);
+                    }
+                    case APPEND -> {
+                        long term = in.readLong();
+                        String leaderId = in.readUTF();
+                        String client = in.readUTF();
+                        long seq = in.readLong();
+                        long prevIndex = in.readLong();
+                        long prevTerm = in.readLong();
+                        long commit = in.readLong();
+                        int count = in.readInt();
+                        List<RaftLog.Entry> entries = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            long entryTerm = in.readLong();
+                            long clock = in.readLong();
+                            byte[] data = new byte[in.readInt()];
+                            in.readFully(data);
+                            entries.add(new RaftLog.Entry(entryTerm, clock, data));
+                        }
+
+                        Reply r = onAppend(term, leaderId, client, prevIndex, prevTerm, commit, entries);
+                        if (r.appended) {
+                            log.force();
+                            durable(r.index);
+                        }
+                        reply(out, r, seq);
+                    }
+                    case SNAPSHOT -> {
+                        long term = in.readLong();
+                        String leaderId = in.readUTF();
+                        String client = in.readUTF();
+                        long seq = in.readLong();
+                        long index = in.readLong();
+                        long indexTerm = in.readLong();
+                        long clock = in.readLong();
+                        long length = in.readLong();
+
+                        Path file = receive(in, length, term);
+                        reply(out, onSnapshot(term, leaderId, client, index, indexTerm, clock, file), seq);
+                    }
+                    default -> throw new IOException("unknown Raft message " + type);
+                }
+
+                // replies to pipelined requests go out together
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // the other node closed the connection or went away; it reconnects
+        } finally {
+            inbound.remove(s);
+        }
+    }
+
+    private static void reply(DataOutputStream out, Reply r, long seq) throws IOException {
+        out.writeByte(APPEND_REPLY);
+        out.writeLong(r.term);
+        out.writeLong(seq);
+        out.writeBoolean(r.success);
+        out.writeLong(r.index);
+    }
+
+    private Path receive(DataInputStream in, long length, long term) throws IOException {
+        Path file;
+        synchronized (this) {
+            file = log.snapshotTemp();
+        }
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            byte[] chunk = new byte[CHUNK];
+            long left = length;
+            while (left > 0) {
+                int n = (int) Math.min(chunk.length, left);
+                in.readFully(chunk, 0, n);
+                out.write(chunk, 0, n);
+                left -= n;
+                touch(term);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        return file;
+    }
+
+    private static int port(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Raft address must be host:port, got: " + address);
+        }
+        return Integer.parseInt(address.substring(colon + 1));
+    }
+
+    /**
+     * Another node as this one sends to it: its position in the log while this node leads, and
+     * the connection the requests go out on.
+     */
+    private final class Peer {
+        final String address;
+
+        // guarded by RaftNode.this
+        long nextIndex;
+        long matchIndex;
+        long acked; // when the latest request it answered was sent
+        final ArrayDeque<long[]> inFlight = new ArrayDeque<>(); // seq and send time of unanswered requests
+        long seq;
+        long snapshotSeq; // of the snapshot being sent, 0 if none
+        long lastSend;
+        long votedTerm; // the term a vote was last requested for
+        long connection;
+
+        private volatile Socket socket;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Start over after this node was elected.
+         */
+        void lead(long now) {
+            nextIndex = log.lastIndex() + 1;
+            matchIndex = 0;
+            acked = now - 2 * electionNanos;
+            inFlight.clear();
+            snapshotSeq = 0;
+            lastSend = now - heartbeatNanos;
+        }
+
+        void sendLoop() {
+            while (running) {
+                Socket s = new Socket();
+                long conn;
+                try {
+                    s.connect(new InetSocketAddress(address.substring(0, address.lastIndexOf(':')), port(address)), CONNECT_TIMEOUT_MILLIS);
+                    s.setTcpNoDelay(true);
+                } catch (IOException e) {
+                    closeQuietly(s);
+                    synchronized (RaftNode.this) {
+                        waitQuietly(RETRY_MILLIS);
+                    }
+                    continue;
+                }
+
+                synchronized (RaftNode.this) {
+                    conn = ++connection;
+                    // the follower is where it was, but nothing sent before is answered any more
+                    nextIndex = Math.max(matchIndex + 1, log.lastIndex() + 1);
+                    inFlight.clear();
+                    snapshotSeq = 0;
+                    votedTerm = 0;
+                    socket = s;
+                }
+                spawn("raft-recv-" + address, () -> receiveLoop(s, conn));
+
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16))) {
+                    Outgoing m;
+                    while ((m = next(s)) != null) {
+                        out.write(m.head);
+                        if (m.body != null) {
+                            try (InputStream body = m.body) {
+                                body.transferTo(out);
+                            }
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // reconnect
+                } finally {
+                    closeQuietly(s);
+                }
+            }
+        }
+
+        /**
+         * Wait for something to send: a vote request, entries, a snapshot or a heartbeat.
+         *
+         * @return null once the connection or the node is closed
+         */
+        private Outgoing next(Socket s) throws IOException {
+            synchronized (RaftNode.this) {
+                while (running && !s.isClosed()) {
+                    long now = System.nanoTime();
+                    Outgoing m = build(now);
+                    if (m != null) {
+                        return m;
+                    }
+
+                    long idle = role == Role.LEADER ? heartbeatNanos - (now - lastSend) : heartbeatNanos;
+                    waitQuietly(Math.max(1, TimeUnit.NANOSECONDS.toMillis(idle)));
+                }
+                return null;
+            }
+        }
+
+        private Outgoing build(long now) throws IOException {
+            long term = log.term();
+            if (role == Role.CANDIDATE && votedTerm != term) {
+                votedTerm = term;
+                ByteArrayOutputStream b = new ByteArrayOutputStream(64);
+                DataOutputStream d = new DataOutputStream(b);
+                d.writeByte(VOTE);
+                d.writeLong(term);
+                d.writeUTF(self);
+                d.writeLong(log.lastIndex());
+                d.writeLong(log.lastTerm());
+                return new Outgoing(b.toByteArray(), null);
+            }
+
+            if (role != Role.LEADER || snapshotSeq != 0) {
+                return null;
+            }
+
+            if (nextIndex <= log.baseIndex()) {
+                return inFlight.isEmpty() ? snapshot(term, now) : null;
+            }
+
+            boolean entries = nextIndex <= log.lastIndex() && inFlight.size() < MAX_IN_FLIGHT;
+            if (!entries && now - lastSend < heartbeatNanos) {
+                return null;
+            }
+
+            List<RaftLog.Entry> batch = nextIndex <= log.lastIndex() ? log.slice(nextIndex, log.lastIndex(), MAX_BATCH) : List.of();
+            ByteArrayOutputStream b = new ByteArrayOutputStream(128);
+            DataOutputStream d = new DataOutputStream(b);
+            d.writeByte(APPEND);
+            d.writeLong(term);
+            d.writeUTF(self);
+            d.writeUTF(announce);
+            d.writeLong(++seq);
+            d.writeLong(nextIndex - 1);
+            d.writeLong(log.termAt(nextIndex - 1));
+            d.writeLong(commitIndex);
+            d.writeInt(batch.size());
+            for (RaftLog.Entry e : batch) {
+                d.writeLong(e.term);
+                d.writeLong(e.clock);
+                d.writeInt(e.data.length);
+                d.write(e.data);
+            }
+
+            nextIndex += batch.size();
+            inFlight.add(new long[]{seq, now});
+            lastSend = now;
+            return new Outgoing(b.toByteArray(), null);
+        }
+
+        private Outgoing snapshot(long term, long now) throws IOException {
+            Path file = log.snapshot();
+            // opened now, so a newer snapshot replacing it meanwhile does not cut the transfer
+            InputStream body = Files.newInputStream(file);
+            long length = Files.size(file);
+
+            ByteArrayOutputStream b = new ByteArrayOutputStream(128);
+            DataOutputStream d = new DataOutputStream(b);
+            d.writeByte(SNAPSHOT);
+            d.writeLong(term);
+            d.writeUTF(self);
+            d.writeUTF(announce);
+            d.writeLong(++seq);
+            d.writeLong(log.baseIndex());
+            d.writeLong(log.termAt(log.baseIndex()));
+            d.writeLong(log.baseClock());
+            d.writeLong(length);
+
+            snapshotSeq = seq;
+            inFlight.add(new long[]{seq, now});
+            lastSend = now;
+            System.out.printf("Raft: sending %s a snapshot up to index %d%n", address, log.baseIndex());
+            return new Outgoing(b.toByteArray(), body);
+        }
+
+        private void receiveLoop(Socket s, long conn) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16))) {
+                while (running) {
+                    int type = in.read();
+                    if (type < 0) {
+                        return;
+                    }
+
+                    if (type == VOTE_REPLY) {
+                        long term = in.readLong();
+                        boolean granted = in.readBoolean();
+                        synchronized (RaftNode.this) {
+                            onVoteReply(term, granted, this);
+                        }
+                    } else if (type == APPEND_REPLY) {
+                        long term = in.readLong();
+                        long replySeq = in.readLong();
+                        boolean success = in.readBoolean();
+                        long index = in.readLong();
+                        synchronized (RaftNode.this) {
+                            onAppendReply(term, replySeq, success, index, this, conn);
+                        }
+                    } else {
+                        throw new IOException("unknown Raft reply " + type);
+                    }
+                }
+            } catch (IOException e) {
+                // the sender notices the closed socket and reconnects
+            } finally {
+                closeQuietly(s);
+                synchronized (RaftNode.this) {
+                    RaftNode.this.notifyAll();
+                }
+            }
+        }
+
+        void close() {
+            Socket s = socket;
+            if (s != null) {
+                closeQuietly(s);
+            }
+        }
+    }
+
+    private static final class Outgoing {
+        final byte[] head;
+        final InputStream body;
+
+        Outgoing(byte[] head, InputStream body) {
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Stop taking part in the group. The store is left as it is.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            failWaiting();
+            notifyAll();
+        }
+
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {}
+        for (Socket s : inbound) {
+            closeQuietly(s);
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join(1_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (applyLock) {
+            synchronized (this) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    System.err.println("Raft: closing the log failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.atomkv.replication;
+
+import com.atomkv.persistence.AofCodec;
+import com.atomkv.persistence.AofRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The most recent writes of a leader, encoded as AOF records (see {@link AofCodec}) into a
+ * fixed-size ring of bytes. The store appends every write it logs; followers read from it at
+ * their own offset.
+ *
+ * <p>Offsets count every byte ever appended, starting at 0, so the offset just past a record
+ * names the state of the store after it. Only the last {@code size} bytes are kept: a follower
+ * whose offset has been overwritten can no longer continue from the backlog and needs a full
+ * resync.
+ *
+ * <p>A full resync can take longer than the ring lasts, so the leader {@link #hold holds} the
+ * writes from the snapshot's cut on for that follower, apart from the ring, until it has caught up.
+ */
+public final class ReplicationBacklog {
+    public static final int DEFAULT_SIZE = 1 << 20;
+
+    private static final int MAX_SPARE_CAPACITY = 1 << 20;
+
+    private final byte[] buf;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private long offset; // guarded by lock
+    private final List<Hold> holds = new ArrayList<>(); // guarded by lock
+
+    private final ThreadLocal<AofCodec.Output> encodeBuffer = ThreadLocal.withInitial(() -> new AofCodec.Output(256));
+
+    /**
+     * @param size bytes of the most recent writes kept for followers that reconnect
+     */
+    public ReplicationBacklog(int size) {
+        this.buf = new byte[Math.max(1 << 10, size)];
+    }
+
+    public int size() {
+        return buf.length;
+    }
+
+    /**
+     * Offset just past the last record appended.
+     */
+    public long offset() {
+        lock.lock();
+        try {
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Oldest offset still in the backlog.
+     */
+    public long firstOffset() {
+        lock.lock();
+        try {
+            return Math.max(0, offset - buf.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether a follower at {@code from} can continue from the backlog.
+     */
+    public boolean contains(long from) {
+        lock.lock();
+        try {
+            return inRing(from);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean inRing(long from) {
+        return from >= Math.max(0, offset - buf.length) && from <= offset;
+    }
+
+    /**
+     * Encode {@code record} and add it. The store calls this while it still holds the key's lock,
+     * so the records of one key go in in the order the store applied them.
+     */
+    public void append(AofRecord record) {
+        AofCodec.Output encoded = encodeBuffer.get();
+        encoded.reset();
+        AofCodec.encode(record, encoded);
+        if (encoded.capacity() > MAX_SPARE_CAPACITY) {
+            encodeBuffer.remove();
+        }
+
+        byte[] b = encoded.array();
+        int n = encoded.size();
+        lock.lock();
+        try {
+            // a record bigger than the whole backlog only leaves its tail; followers resync
+            int skip = Math.max(0, n - buf.length);
+            int index = (int) ((offset + skip) % buf.length);
+            int first = Math.min(n - skip, buf.length - index);
+            System.arraycopy(b, skip, buf, index, first);
+            System.arraycopy(b, skip + first, buf, 0, n - skip - first);
+            offset += n;
+
+            for (int i = holds.size() - 1; i >= 0; i--) {
+                if (!holds.get(i).add(b, n)) {
+                    holds.remove(i);
+                }
+            }
+
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copy the bytes from {@code from} on into {@code dst}, as many as fit.
+     *
+     * @return the number of bytes copied, 0 if there are none yet, or -1 if {@code from} is no
+     *         longer in the backlog
+     */
+    public int read(long from, byte[] dst) {
+        return read(from, dst, null);
+    }
+
+    /**
+     * {@link #read(long, byte[])}, falling back to what {@code hold} kept for the offsets the
+     * ring has already overwritten.
+     */
+    int read(long from, byte[] dst, Hold hold) {
+        lock.lock();
+        try {
+            if (inRing(from)) {
+                int n = (int) Math.min(dst.length, offset - from);
+                int index = (int) (from % buf.length);
+                int first = Math.min(n, buf.length - index);
+                System.arraycopy(buf, index, dst, 0, first);
+                System.arraycopy(buf, 0, dst, first, n - first);
+                return n;
+            }
+
+            return hold == null ? -1 : hold.read(from, dst);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait up to {@code millis} until something is appended past {@code from}.
+     */
+    public void awaitBeyond(long from, long millis) throws InterruptedException {
+        long left = TimeUnit.MILLISECONDS.toNanos(millis);
+        lock.lock();
+        try {
+            while (offset <= from && left > 0) {
+                left = appended.awaitNanos(left);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start keeping every write from the current offset on, until {@link #release released}. Past {@code limit} bytes kept the hold is dropped, and reading from
+     * it fails as reading an overwritten offset does.
+     */
+    Hold hold(int limit) {
+        lock.lock();
+        try {
+            Hold hold = new Hold(offset, limit);
+            holds.add(hold);
+            return hold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(Hold hold) {
+        lock.lock();
+        try {
+            holds.remove(hold);
+            hold.data = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The writes from {@link #from} on, kept for one follower; guarded by the backlog's lock.
+     */
+    static final class Hold {
+        final long from;
+        private final int limit;
+        private byte[] data = new byte[1 << 12];
+        private long start; // offset of data[0]
+        private int size;
+
+        private Hold(long from, int limit) {
+            this.from = from;
+            this.limit = limit;
+            this.start = from;
+        }
+
+        /**
+         * @return false if the bytes kept would pass the limit; the hold is then dropped
+         */
+        private boolean add(byte[] b, int n) {
+            if (data == null || (long) size + n > limit) {
+                data = null;
+                return false;
+            }
+
+            if (size + n > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(limit, Math.max((long) size + n, data.length * 2L)));
+            }
+            System.arraycopy(b, 0, data, size, n);
+            size += n;
+            return true;
+        }
+
+        private int read(long position, byte[] dst) {
+            if (data == null || position < start || position > start + size) {
+                return -1;
+            }
+
+            // what the follower got is not needed again; drop it once it is half of what is kept
+            int consumed = (int) (position - start);
+            if (consumed > 0 && consumed >= size / 2) {
+                System.arraycopy(data, consumed, data, 0, size - consumed);
+                size -= consumed;
+                start = position;
+                consumed = 0;
+            }
+
+            int n = Math.min(dst.length, size - consumed);
+            System.arraycopy(data, consumed, dst, 0, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.atomkv.replication;
+
+import com.atomkv.persistence.AofCodec;
+import com.atomkv.persistence.AofRecord;
+import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.persistence.SnapshotFile;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a read-only store in step with a {@link ReplicationLeader}: connects, loads a snapshot
+ * when it has to resync in full, then applies the leader's writes as they arrive, logging them to
+ * its own AOF. After a disconnect it reconnects with the leader's replication id and its own
+ * offset, which continues from the leader's backlog when the offset is still there.
+ */
+public final class ReplicationFollower implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final int READ_TIMEOUT_MILLIS = (int) (5 * ReplicationLeader.HEARTBEAT_MILLIS);
+    private static final long RETRY_MILLIS = 1_000;
+    private static final long ACK_MILLIS = 1_000;
+    private static final long REWRITE_RETRY_MILLIS = 50;
+
+    private final String host;
+    private final int port;
+    private final InMemoryStore store;
+    private final AppendOnlyFile aof;
+    private final Path syncFile;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+
+    private volatile boolean linkUp;
+    private volatile String replicationId = "?";
+    private volatile long offset = -1; // applied, -1 before the first sync
+    private volatile long leaderOffset;
+    private volatile long caughtUpNanos = System.nanoTime(); // last time offset reached leaderOffset
+    private final AtomicLong fullSyncs = new AtomicLong();
+    private final AtomicLong partialSyncs = new AtomicLong();
+
+    /**
+     * Make {@code store} read-only and start following the leader at {@code host:port}.
+     *
+     * @param aof the store's AOF, rewritten after a full resync so it has the snapshot too; null if
+     *            there is none
+     * @param syncFile where the snapshot of a full resync is received before it is loaded
+     */
+    public ReplicationFollower(String host, int port, InMemoryStore store, AppendOnlyFile aof, Path syncFile) {
+        this.host = host;
+        this.port = port;
+        this.store = store;
+        this.aof = aof;
+        this.syncFile = syncFile;
+
+        store.setReadOnly(true);
+        thread = new Thread(this::run, "repl-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean linkUp() {
+        return linkUp;
+    }
+
+    public String replicationId() {
+        return replicationId;
+    }
+
+    /**
+     * The leader's offset this store has applied, -1 before the first sync.
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * The leader's offset as of the last frame received.
+     */
+    public long leaderOffset() {
+        return leaderOffset;
+    }
+
+    public long lagBytes() {
+        return Math.max(0, leaderOffset - offset);
+    }
+
+    /**
+     * How long this store has been behind the leader, 0 when it has applied everything received.
+     */
+    public long lagMillis() {
+        return offset >= leaderOffset ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - caughtUpNanos);
+    }
+
+    public long fullSyncs() {
+        return fullSyncs.get();
+    }
+
+    public long partialSyncs() {
+        return partialSyncs.get();
+    }
+
+    /**
+     * Drop the connection to the leader; the follower reconnects and continues where it was.
+     */
+    public void disconnect() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                follow();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Replication from " + host + ":" + port + " failed: " + e.getMessage());
+                }
+            } finally {
+                linkUp = false;
+                disconnect();
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow() throws IOException {
+        Socket s = new Socket();
+        socket = s;
+        if (!running) {
+            return;
+        }
+        s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        s.setSoTimeout(READ_TIMEOUT_MILLIS);
+        s.setTcpNoDelay(true);
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+        OutputStream out = s.getOutputStream();
+        out.write(("PSYNC " + replicationId + " " + offset + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        String reply = readLine(in);
+        if (reply.equals("+CONTINUE")) {
+            partialSyncs.incrementAndGet();
+            System.out.println("Continuing replication from offset " + offset);
+        } else if (reply.startsWith("+FULLRESYNC ")) {
+            String[] f = reply.split(" ");
+            if (f.length != 4) {
+                throw new IOException("bad reply from the leader: " + reply);
+            }
+            fullSync(in, f[1], Long.parseLong(f[2]), Long.parseLong(f[3]));
+        } else {
+            throw new IOException("leader refused to sync: " + reply);
+        }
+
+        linkUp = true;
+        Thread acks = new Thread(() -> sendAcks(s, out), "repl-acks");
+        acks.setDaemon(true);
+        acks.start();
+
+        AofCodec.Reader r = new AofCodec.Reader(new Frames(in), offset);
+        AofRecord record;
+        while ((record = r.next()) != null) {
+            store.applyReplicated(record);
+            offset = r.offset();
+            if (offset >= leaderOffset) {
+                caughtUpNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private void fullSync(DataInputStream in, String id, long at, long length) throws IOException {
+        Files.createDirectories(syncFile.toAbsolutePath().getParent());
+        try (FileChannel file = FileChannel.open(syncFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] chunk = new byte[1 << 16];
+            for (long left = length; left > 0; ) {
+                int n = in.read(chunk, 0, (int) Math.min(chunk.length, left));
+                if (n < 0) {
+                    throw new EOFException("snapshot from the leader cut short");
+                }
+                file.write(ByteBuffer.wrap(chunk, 0, n));
+                left -= n;
+            }
+        }
+
+        long start = System.nanoTime();
+        store.applyReplicated(AofRecord.flushAll());
+        long keys = new SnapshotFile(syncFile).load(store);
+        Files.deleteIfExists(syncFile);
+
+        replicationId = id;
+        offset = at;
+        leaderOffset = at;
+        caughtUpNanos = System.nanoTime();
+        fullSyncs.incrementAndGet();
+        System.out.printf("Loaded %d keys from the leader at offset %d in %d ms%n", keys, at,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        // the snapshot was loaded without logging it; a rewrite started from here has it
+        if (aof != null) {
+            while (running && !aof.rewriteInBackground(store)) {
+                try {
+                    Thread.sleep(REWRITE_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting to rewrite the AOF", e);
+                }
+            }
+        }
+    }
+
+    private void sendAcks(Socket s, OutputStream out) {
+        try {
+            while (!s.isClosed()) {
+                out.write(("ACK " + offset + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                Thread.sleep(ACK_MILLIS);
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // the link is gone; the reading side reconnects
+        }
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new EOFException("leader closed the connection");
+            }
+            sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The AOF records inside the leader's frames, noting the leader's offset from every frame.
+     */
+    private final class Frames implements ReadableByteChannel {
+        private final DataInputStream in;
+        private int remaining;
+
+        Frames(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            while (remaining == 0) {
+                long leader;
+                try {
+                    leader = in.readLong();
+                } catch (EOFException e) {
+                    return -1;
+                }
+                remaining = in.readInt();
+                leaderOffset = leader;
+
+                // a heartbeat while nothing is waiting to be applied means this store is caught up
+                if (remaining == 0 && offset >= leader) {
+                    caughtUpNanos = System.nanoTime();
+                }
+            }
+
+            int n = Math.min(remaining, dst.remaining());
+            in.readFully(dst.array(), dst.arrayOffset() + dst.position(), n);
+            dst.position(dst.position() + n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        disconnect();
+    }
+}
@@ -0,0 +1,311 @@
+package com.atomkv.replication;
+
+import com.atomkv.persistence.SnapshotFile;
+import com.atomkv.store.InMemoryStore;
+import com.atomkv.store.StoreSnapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves followers on a port of its own. Every write the store logs also goes into a
+ * {@link ReplicationBacklog}, and each follower gets the backlog streamed from its offset on.
+ *
+ * <p>The protocol, after a follower connects:
+ * <pre>
+ * follower: PSYNC &lt;replication id&gt; &lt;offset&gt;\n     "? -1" the first time
+ * leader:   +CONTINUE\n                            the offset is still in the backlog, or
+ *           +FULLRESYNC &lt;id&gt; &lt;offset&gt; &lt;length&gt;\n   followed by a snapshot of that length
+ * leader:   frames of int64 leader offset, int32 length, that many bytes of AOF records; a frame
+ *           without bytes is a heartbeat, sent every second while nothing is written
+ * follower: ACK &lt;offset&gt;\n every second, the offset it has applied
+ * </pre>
+ * A full resync takes a {@link InMemoryStore#snapshot point-in-time snapshot} and notes the
+ * backlog offset at its cut, so the follower loads the snapshot and continues from exactly there.
+ * The snapshot is written to a temporary file first and then sent, so the follower knows its
+ * length. The writes made meanwhile are {@link ReplicationBacklog#hold held} for that follower, up
+ * to 256 MB, so a backlog smaller than them does not send it into another full resync. A follower
+ * that falls so far behind that its offset is overwritten is disconnected and resyncs in full
+ * when it reconnects.
+ *
+ * <p>The replication id is new every time the leader starts, since the backlog does not survive
+ * a restart.
+ */
+public class ReplicationLeader implements AutoCloseable {
+    static final long HEARTBEAT_MILLIS = 1_000;
+    private static final int CHUNK = 64 << 10;
+    private static final int SYNC_HOLD_LIMIT = 256 << 20;
+
+    private final InMemoryStore store;
+    private final ReplicationBacklog backlog;
+    private final ServerSocket serverSocket;
+    private final String replicationId;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+    private final Thread acceptor;
+
+    /**
+     * Start logging the store's writes into {@code backlog} and accept followers on {@code port}.
+     * Call before the store serves requests.
+     */
+    public ReplicationLeader(int port, InMemoryStore store, ReplicationBacklog backlog) throws IOException {
+        this.store = store;
+        this.backlog = backlog;
+        this.serverSocket = new ServerSocket(port);
+
+        byte[] id = new byte[20];
+        new SecureRandom().nextBytes(id);
+        this.replicationId = HexFormat.of().formatHex(id);
+
+        store.replicateTo(backlog);
+        acceptor = new Thread(this::acceptLoop, "repl-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * The port actually bound, useful when constructed with port 0.
+     */
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String replicationId() {
+        return replicationId;
+    }
+
+    public long offset() {
+        return backlog.offset();
+    }
+
+    public ReplicationBacklog backlog() {
+        return backlog;
+    }
+
+    /**
+     * The followers connected right now.
+     */
+    public List<FollowerStatus> followers() {
+        List<FollowerStatus> out = new ArrayList<>();
+        long now = System.nanoTime();
+        long offset = backlog.offset();
+
+        for (Link l : links) {
+            long acked = l.ackedOffset;
+            out.add(new FollowerStatus(l.address, acked, Math.max(0, offset - acked),
+                    TimeUnit.NANOSECONDS.toMillis(now - l.lastAckNanos)));
+        }
+        return out;
+    }
+
+    /**
+     * One follower as the leader sees it.
+     */
+    public static final class FollowerStatus {
+        public final String address;
+        public final long ackedOffset;
+        public final long lagBytes;
+        public final long lastAckMillis; // since the last ACK
+
+        FollowerStatus(String address, long ackedOffset, long lagBytes, long lastAckMillis) {
+            this.address = address;
+            this.ackedOffset = ackedOffset;
+            this.lagBytes = lagBytes;
+            this.lastAckMillis = lastAckMillis;
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Replication accept failed: " + e.getMessage());
+                }
+                return;
+            }
+
+            Link link = new Link(s);
+            Thread t = new Thread(link::run, "repl-follower-" + link.address);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * One connected follower: the thread that sends to it, and one that reads its ACKs.
+     */
+    private final class Link {
+        final Socket socket;
+        final String address;
+        volatile long ackedOffset;
+        volatile long lastAckNanos = System.nanoTime();
+        volatile boolean acked; // the follower has sent an ACK, so it has loaded any snapshot
+        ReplicationBacklog.Hold hold; // the writes since the snapshot, until the follower catches up
+
+        Link(Socket socket) {
+            this.socket = socket;
+            this.address = socket.getRemoteSocketAddress().toString();
+        }
+
+        void run() {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK + 12));
+
+                String line = in.readLine();
+                String[] psync = line == null ? null : line.split(" ");
+                if (psync == null || psync.length != 3 || !psync[0].equalsIgnoreCase("PSYNC")) {
+                    out.write("-ERR expected PSYNC <replication id> <offset>\n".getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    return;
+                }
+
+                long from = start(psync[1], psync[2], out);
+                ackedOffset = from;
+                links.add(this);
+
+                Thread acks = new Thread(() -> readAcks(in), "repl-acks-" + address);
+                acks.setDaemon(true);
+                acks.start();
+
+                stream(from, out);
+            } catch (IOException e) {
+                System.err.println("Replication link to " + address + " closed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                links.remove(this);
+                if (hold != null) {
+                    backlog.release(hold);
+                }
+            }
+        }
+
+        /**
+         * Answer the PSYNC, sending a snapshot if the follower cannot continue from the backlog.
+         *
+         * @return the offset to stream from
+         */
+        private long start(String id, String offset, DataOutputStream out) throws IOException {
+            long from;
+            try {
+                from = Long.parseLong(offset);
+            } catch (NumberFormatException e) {
+                from = -1;
+            }
+
+            if (id.equals(replicationId) && backlog.contains(from)) {
+                out.write("+CONTINUE\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                System.out.println("Follower " + address + " continues from offset " + from);
+                return from;
+            }
+
+            StoreSnapshot snapshot = store.snapshot(() -> hold = backlog.hold(SYNC_HOLD_LIMIT));
+            long cut = hold.from;
+
+            Path temp = Files.createTempFile("atomkv-sync", ".akv");
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                SnapshotFile.write(snapshot, file);
+                long length = file.size();
+
+                out.write(("+FULLRESYNC " + replicationId + " " + cut + " " + length + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+
+                WritableByteChannel target = Channels.newChannel((OutputStream) out);
+                for (long sent = 0; sent < length; ) {
+                    sent += file.transferTo(sent, length - sent, target);
+                }
+                out.flush();
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+
+            System.out.printf("Sent a snapshot of %d keys at offset %d to follower %s%n", snapshot.size(), cut, address);
+            return cut;
+        }
+
+        private void stream(long from, DataOutputStream out) throws IOException, InterruptedException {
+            byte[] chunk = new byte[CHUNK];
+            long position = from;
+
+            while (!socket.isClosed()) {
+                if (hold != null && acked && backlog.contains(position)) {
+                    backlog.release(hold);
+                    hold = null;
+                }
+
+                int n = backlog.read(position, chunk, hold);
+                if (n < 0) {
+                    throw new IOException("fell out of the backlog at offset " + position);
+                }
+
+                if (n == 0) {
+                    backlog.awaitBeyond(position, HEARTBEAT_MILLIS);
+                    n = backlog.read(position, chunk, hold);
+                    if (n < 0) {
+                        throw new IOException("fell out of the backlog at offset " + position);
+                    }
+                }
+
+                // with nothing to send this is the heartbeat
+                out.writeLong(backlog.offset());
+                out.writeInt(n);
+                out.write(chunk, 0, n);
+                out.flush();
+                position += n;
+            }
+        }
+
+        private void readAcks(BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("ACK ")) {
+                        ackedOffset = Long.parseLong(line.substring(4).trim());
+                        lastAckNanos = System.nanoTime();
+                        acked = true;
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+                // the sending side notices the closed socket
+            }
+
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Link l : links) {
+            try {
+                l.socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
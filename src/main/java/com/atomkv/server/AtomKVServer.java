@@ -1,55 +1,143 @@
 package com.atomkv.server;
 
+import com.atomkv.cluster.ClusterNode;
+import com.atomkv.cluster.SlotTable;
 import com.atomkv.metrics.MetricsServer;
+import com.atomkv.persistence.AofLoadStats;
 import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.persistence.SnapshotFile;
+import com.atomkv.raft.RaftNode;
+import com.atomkv.replication.ReplicationBacklog;
+import com.atomkv.replication.ReplicationFollower;
+import com.atomkv.replication.ReplicationLeader;
 import com.atomkv.store.InMemoryStore;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.file.Path;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class AtomKVServer {
     public static void main(String[] args) throws Exception {
-        int tcpPort = 6379;
-        int metricsPort = 8080;
-        int maxEntries = 10000;
-        Path aofPath = Path.of(System.getProperty("user.home"), ".atomkv", "appendonly.aof");
+        ServerConfig config = ServerConfig.parse(args);
 
         System.out.println("Starting AtomKV...");
 
-        AppendOnlyFile aof = new AppendOnlyFile(aofPath);
-        InMemoryStore store = new InMemoryStore(maxEntries, aof);
+        // in a Raft group the Raft log keeps the writes instead of an AOF
+        boolean raftMode = config.raftSelf() != null;
+        AppendOnlyFile aof = raftMode ? null : new AppendOnlyFile(config.aofPath(), config.appendFsync(), config.aofPreamble(),
+                config.aofBufferSize(), config.aofBackpressure(), config.aofSegmentSize());
+        SnapshotFile snapshots = new SnapshotFile(config.snapshotPath());
+        InMemoryStore store = new InMemoryStore(config.maxEntries(), config.maxMemory(), config.shards(), config.evictionPolicy(),
+                config.expiryMode(), config.expiryEffort(), aof, snapshots);
 
-        try {
-            aof.replay(store);
-        } catch (IOException e) {
-            System.err.println("AOF replay failed: " + e.getMessage());
+        RaftNode raft = null;
+        if (raftMode) {
+            raft = new RaftNode(config.raftSelf(), config.raftAnnounce(), config.raftNodes(), config.raftDir(), store,
+                    config.raftElectionTimeoutMillis(), config.raftSnapshotEntries());
+            raft.start();
+            System.out.println("Raft node " + raft.self() + " of " + config.raftNodes().size() + " nodes, log in " + config.raftDir());
+        } else if (!aof.hasRecords() && snapshots.exists()) {
+            // the AOF has every write, so a snapshot only seeds a store that has no AOF yet
+            try {
+                long start = System.nanoTime();
+                long loaded = snapshots.load(store);
+                System.out.printf("Loaded %d keys from %s in %d ms%n", loaded, snapshots.path(),
+                        (System.nanoTime() - start) / 1_000_000);
+            } catch (IOException e) {
+                // a partial store would be logged on top of, and the snapshot never read again
+                exit("Snapshot load failed, not starting: " + e.getMessage(), store, aof);
+            }
+
+            // put them in the AOF before any write, or a restart would replay the AOF without them
+            try {
+                aof.rewriteAndWait(store);
+            } catch (IOException e) {
+                exit("Writing the snapshot to the AOF failed, not starting: " + e.getMessage(), store, aof);
+            }
+        } else {
+            try {
+                AofLoadStats stats = aof.replay(store, config.aofLoadThreads(), config.aofLoadTruncated());
+                System.out.println("Loaded " + stats + " from " + config.aofPath());
+            } catch (IOException e) {
+                // serving a partial store would log new writes after the damage and bury it
+                exit("AOF replay failed, not starting: " + e.getMessage(), store, aof);
+            }
+            if (aof.isLegacyText() && aof.rewriteInBackground(store)) {
+                System.out.println("Converting text AOF to the binary format");
+            }
+        }
+        if (aof != null) {
+            aof.enableAutoRewrite(store, config.autoAofRewritePercentage(), config.autoAofRewriteMinSize());
         }
 
-        MetricsServer metrics = new MetricsServer(metricsPort, store);
-        metrics.start();
+        ReplicationLeader leader = null;
+        ReplicationFollower follower = null;
+        if (config.replPort() != 0) {
+            leader = new ReplicationLeader(config.replPort(), store, new ReplicationBacklog(config.replBacklogSize()));
+            System.out.println("Serving followers on port " + leader.port());
+        } else if (config.replicaOfHost() != null) {
+            follower = new ReplicationFollower(config.replicaOfHost(), config.replicaOfPort(), store, aof,
+                    config.snapshotPath().resolveSibling("replica-sync.akv"));
+            System.out.println("Replicating from " + config.replicaOfHost() + ":" + config.replicaOfPort());
+        }
 
-        System.out.println("Metrics available at http://localhost:" + metricsPort + "/metrics");
+        ClusterNode cluster = null;
+        if (config.cluster()) {
+            cluster = new ClusterNode(config.clusterAnnounce(), store, SlotTable.claim(config.clusterAnnounce(), config.clusterSlots()),
+                    config.clusterNodes());
+            cluster.start();
+            System.out.println("Cluster node " + cluster.self() + " serving " + cluster.table().owned(cluster.self()) + " slots");
+        }
 
-        ExecutorService clients = Executors.newCachedThreadPool(r -> new Thread(r, "client-worker"));
+        MetricsServer metrics = new MetricsServer(config.metricsPort(), store, aof, leader, follower);
+        metrics.start();
+
+        System.out.println("Metrics available at http://localhost:" + config.metricsPort() + "/metrics");
 
-        try (ServerSocket ss = new ServerSocket(tcpPort)) {
-            System.out.println("AtomKV listening on port " + tcpPort);
-            
-            while (true) {
-                Socket s = ss.accept();
-                clients.submit(new ClientHandler(s, store));
+        try {
+            switch (config.ioMode()) {
+                case NIO -> serveNio(config, store, cluster, raft);
+                case THREADS -> serveBlocking(config, store, cluster, raft, false);
+                case VIRTUAL -> serveBlocking(config, store, cluster, raft, true);
             }
         } catch (IOException e) {
             System.err.println("Server socket failed: " + e.getMessage());
         } finally {
-            clients.shutdownNow();
             metrics.stop(0);
+            if (cluster != null) {
+                cluster.close();
+            }
+            if (leader != null) {
+                leader.close();
+            }
+            if (follower != null) {
+                follower.close();
+            }
+            if (raft != null) {
+                raft.close();
+            }
             store.close();
-            aof.close();
+            if (aof != null) {
+                aof.close();
+            }
+        }
+    }
+
+    private static void exit(String message, InMemoryStore store, AppendOnlyFile aof) throws IOException {
+        System.err.println(message);
+        store.close();
+        aof.close();
+        System.exit(1);
+    }
+
+    private static void serveNio(ServerConfig config, InMemoryStore store, ClusterNode cluster, RaftNode raft) throws IOException {
+        try (NioServer server = new NioServer(config.tcpPort(), config.ioThreads(), config.greetingDelayMillis(), store, cluster, raft)) {
+            server.serve();
+        }
+    }
+
+    private static void serveBlocking(ServerConfig config, InMemoryStore store, ClusterNode cluster, RaftNode raft,
+                                      boolean virtualThreads) throws IOException {
+        try (BlockingServer server = new BlockingServer(config.tcpPort(), store, virtualThreads, config.greetingDelayMillis(), cluster, raft)) {
+            server.serve();
         }
     }
 }
@@ -0,0 +1,96 @@
+package com.atomkv.server;
+
+import com.atomkv.cluster.ClusterNode;
+import com.atomkv.raft.RaftNode;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Classic accept loop that runs one {@link ClientHandler} per connection, either on a
+ * platform thread from a cached pool or on its own virtual thread.
+ */
+public class BlockingServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final InMemoryStore store;
+    private final boolean virtualThreads;
+    private final long greetingDelayMillis;
+    private final ClusterNode cluster;
+    private final RaftNode raft;
+    private final ExecutorService clients;
+
+    public BlockingServer(int port, InMemoryStore store, boolean virtualThreads) throws IOException {
+        this(port, store, virtualThreads, ClientSession.DEFAULT_GREETING_DELAY_MILLIS);
+    }
+
+    /**
+     * @param greetingDelayMillis how long a silent client may take before it is greeted as a line
+     *                            client; 0 greets immediately, which RESP clients cannot parse
+     */
+    public BlockingServer(int port, InMemoryStore store, boolean virtualThreads, long greetingDelayMillis) throws IOException {
+        this(port, store, virtualThreads, greetingDelayMillis, null);
+    }
+
+    /**
+     * @param cluster the node this server is in a cluster, or null
+     */
+    public BlockingServer(int port, InMemoryStore store, boolean virtualThreads, long greetingDelayMillis,
+                          ClusterNode cluster) throws IOException {
+        this(port, store, virtualThreads, greetingDelayMillis, cluster, null);
+    }
+
+    /**
+     * @param raft the node this server is in a Raft group, or null
+     */
+    public BlockingServer(int port, InMemoryStore store, boolean virtualThreads, long greetingDelayMillis,
+                          ClusterNode cluster, RaftNode raft) throws IOException {
+        this.serverSocket = new ServerSocket(port, 1024);
+        this.store = store;
+        this.virtualThreads = virtualThreads;
+        this.greetingDelayMillis = greetingDelayMillis;
+        this.cluster = cluster;
+        this.raft = raft;
+        this.clients = virtualThreads
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-vthread-", 0).factory())
+                : Executors.newCachedThreadPool(r -> new Thread(r, "client-worker"));
+    }
+
+    /**
+     * The port actually bound, useful when constructed with port 0.
+     */
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept connections on the calling thread until the server is closed.
+     */
+    public void serve() throws IOException {
+        System.out.println("AtomKV listening on port " + port() + (virtualThreads ? " (virtual threads)" : " (platform threads)"));
+
+        while (!serverSocket.isClosed()) {
+            Socket s;
+            try {
+                s = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+
+            s.setTcpNoDelay(true);
+            clients.submit(new ClientHandler(s, store, greetingDelayMillis, cluster, raft));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        clients.shutdownNow();
+    }
+}
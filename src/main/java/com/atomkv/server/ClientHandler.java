@@ -1,280 +1,95 @@
 package com.atomkv.server;
 
+import com.atomkv.cluster.ClusterNode;
+import com.atomkv.raft.RaftNode;
 import com.atomkv.store.InMemoryStore;
 
 import java.io.*;
 import java.net.Socket;
-import java.time.Duration;
-import java.util.Locale;
-
+import java.net.SocketTimeoutException;
+
+/**
+ * Blocking thread-per-connection handler, used by the {@code threads} and {@code virtual} I/O modes.
+ * Pipelined commands are drained from each read, executed in order, and their replies flushed
+ * with a single write once the AOF says their writes may be acknowledged. Replies the session
+ * deferred, such as Raft writes, are waited for here, once for all the writes of the read.
+ */
 public class ClientHandler implements Runnable {
     private final Socket socket;
-    private final InMemoryStore store;
+    private final CommandProcessor processor;
+    private final long greetingDelayMillis;
 
     public ClientHandler(Socket socket, InMemoryStore store) {
+        this(socket, store, ClientSession.DEFAULT_GREETING_DELAY_MILLIS);
+    }
+
+    public ClientHandler(Socket socket, InMemoryStore store, long greetingDelayMillis) {
+        this(socket, store, greetingDelayMillis, null);
+    }
+
+    /**
+     * @param cluster the node this server is in a cluster, or null
+     */
+    public ClientHandler(Socket socket, InMemoryStore store, long greetingDelayMillis, ClusterNode cluster) {
+        this(socket, store, greetingDelayMillis, cluster, null);
+    }
+
+    /**
+     * @param raft the node this server is in a Raft group, or null
+     */
+    public ClientHandler(Socket socket, InMemoryStore store, long greetingDelayMillis, ClusterNode cluster,
+                         RaftNode raft) {
         this.socket = socket;
-        this.store = store;
+        this.processor = new CommandProcessor(store, cluster, raft);
+        this.greetingDelayMillis = greetingDelayMillis;
     }
- 
+
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()))) {
-            String line;
-
-            out.write("OK AtomKV\n");
-            out.flush();
+        try (InputStream in = socket.getInputStream();
+             OutputStream out = socket.getOutputStream()) {
+            byte[] buf = new byte[8192];
+            ClientSession session = new ClientSession(processor);
+            int n;
+
+            if (greetingDelayMillis <= 0) {
+                session.greet();
+                flush(session, out);
+            } else {
+                socket.setSoTimeout((int) greetingDelayMillis);
+            }
 
-            while ((line = in.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) {
+            while (true) {
+                try {
+                    n = in.read(buf);
+                } catch (SocketTimeoutException e) {
+                    // silent client: assume it is a line client waiting to be greeted
+                    session.greet();
+                    flush(session, out);
+                    socket.setSoTimeout(0);
                     continue;
                 }
 
-                String[] parts = line.split(" ");
-                String cmd = parts[0].toUpperCase(Locale.ROOT);
-                
-                switch (cmd) {
-                    case "EXISTS": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        boolean e = store.exists(parts[1]);
-                        out.write((e ? ":1\n" : ":0\n"));
-                        break;
-                    }
-
-                    case "KEYS": {
-                        String pattern = "*";
-                        if (parts.length >= 2) pattern = parts[1];
-
-                        var keys = store.keys(pattern);
-                        if (keys.isEmpty()) {
-                            out.write("$-1\n");
-                        } else {
-                            for (String k : keys) {
-                                out.write("+" + k + "\n");
-                            }
-                        }
-
-                        break;
-                    }
-
-                    case "TYPE": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        String t = store.type(parts[1]);
-                        out.write("+" + t + "\n");
-                        break;
-                    }
-
-                    case "FLUSHALL": {
-                        store.flushAll();
-                        out.write("+OK\n");
-                        break;
-                    }
-
-                    case "APPEND": {
-                        if (parts.length < 3) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        String key = parts[1];
-                        String value = parts[2];
-                        store.append(key, value);
-                        out.write("+OK\n");
-                        break;
-                    }
-
-                    case "INCR": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        long v = store.incr(parts[1]);
-                        out.write(":" + v + "\n");
-                        break;
-                    }
-
-                    case "DECR": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        long v = store.decr(parts[1]);
-                        out.write(":" + v + "\n");
-                        break;
-                    }
-
-                    case "STRLEN": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        long len = store.strlen(parts[1]);
-                        out.write(":" + len + "\n");
-                        break;
-                    }
-                    case "GET": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        var val = store.get(parts[1]);
-                        out.write(val.map(v -> "+" + v + "\n").orElse("$-1\n"));
-                        
-                        break;
-                    }
-                    
-                    case "MGET": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        String[] keys = new String[parts.length - 1];
-                        System.arraycopy(parts, 1, keys, 0, keys.length);
-                        var vals = store.mget(keys);
-                        for (String vv : vals) {
-                            if (vv == null) out.write("$-1\n");
-                            else out.write("+" + vv + "\n");
-                        }
-
-                        break;
-                    }
-
-                    case "MSET": {
-                        if (parts.length < 3 || (parts.length - 1) % 2 != 0) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        String[] kv = new String[parts.length - 1];
-                        System.arraycopy(parts, 1, kv, 0, kv.length);
-                        store.mset(kv);
-                        out.write("+OK\n");
-                        break;
-                    }
-
-                    case "EXPIRE": {
-                        if (parts.length < 3) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        try {
-                            long secs = Long.parseLong(parts[2]);
-                            int ok = store.expire(parts[1], secs);
-                            out.write(":" + ok + "\n");
-                        } catch (NumberFormatException e) {
-                            out.write("-ERR invalid number\n");
-                        }
-
-                        break;
-                    }
-
-                    case "RENAME": {
-                        if (parts.length < 3) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        boolean ok = store.rename(parts[1], parts[2]);
-                        out.write((ok ? "+OK\n" : "-ERR no such key\n"));
-                        break;
-                    }
-
-                    case "PING": {
-                        out.write("+PONG\n");
-                        break;
-                    }
-                    
-                    case "SET": {
-                        if (parts.length < 3) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        String key = parts[1];
-                        String value = parts[2];
-                        Duration ttl = null;
-
-                        if (parts.length >= 4) {
-                            String rest = parts[3];
-                            String[] toks = rest.split(" ");
-
-                            if (toks.length >= 2 && "PX".equalsIgnoreCase(toks[0])) {
-                                try {
-                                    ttl = Duration.ofMillis(Long.parseLong(toks[1]));
-                                } catch (NumberFormatException ignored) {
-                                    // invalid number, ignore :)
-                                }
-                            }
-                        }
-
-                        store.set(key, value, ttl);
-                        out.write("+OK\n");
-                        break;
-                    }
-
-                    case "DEL": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-                        
-                        boolean removed = store.del(parts[1]);
-                        out.write((removed ? ":1\n" : ":0\n"));
-                        
-                        break;
-                    }
-
-                    case "TTL": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
-
-                        long ttl = store.ttl(parts[1]);
-                        out.write(":" + ttl + "\n");
-                        
-                        break;
-                    }
-
-                    case "PERSIST": {
-                        if (parts.length < 2) {
-                            out.write("-ERR wrong number of args\n");
-                            break;
-                        }
+                if (n == -1) {
+                    break;
+                }
 
-                        boolean ok = store.persist(parts[1]);
-                        out.write((ok ? ":1\n" : ":0\n"));
-                        
-                        break;
-                    }
+                if (session.awaitingFirstByte()) {
+                    socket.setSoTimeout(0);
+                }
 
-                    case "QUIT": {
-                        out.write("+BYE\n");
-                        out.flush();
-                        return;
-                    }
+                boolean keepOpen = session.feed(buf, 0, n);
+                keepOpen = settle(session, keepOpen);
+                flush(session, out);
 
-                    default:
-                        out.write("-ERR unknown command\n");
+                if (!keepOpen) {
+                    return;
                 }
-
-                out.flush();
             }
+
+            session.finish();
+            settle(session, true);
+            flush(session, out);
         } catch (IOException e) {
             // client disconnected or IO issue
         } finally {
@@ -283,4 +98,32 @@ public class ClientHandler implements Runnable {
             } catch (IOException ignored) {}
         }
     }
+
+    /**
+     * Wait for the session's deferred replies and run what it held back behind them.
+     *
+     * @return false if the connection should be closed
+     */
+    private static boolean settle(ClientSession session, boolean keepOpen) {
+        while (session.waiting()) {
+            session.awaitReady();
+            keepOpen &= session.resume();
+        }
+        return keepOpen;
+    }
+
+    private void flush(ClientSession session, OutputStream out) throws IOException {
+        if (session.output().isEmpty()) {
+            return;
+        }
+
+        try {
+            processor.awaitDurable();
+
+            session.output().writeTo(out);
+            out.flush();
+        } finally {
+            session.output().reset();
+        }
+    }
 }
@@ -0,0 +1,261 @@
+package com.atomkv.server;
+
+import com.atomkv.protocol.CommandArgs;
+import com.atomkv.protocol.CommandDecoder;
+import com.atomkv.protocol.LineDecoder;
+import com.atomkv.protocol.LineReplyWriter;
+import com.atomkv.protocol.ProtocolException;
+import com.atomkv.protocol.ReplyBuffer;
+import com.atomkv.protocol.ReplyWriter;
+import com.atomkv.protocol.RespDecoder;
+import com.atomkv.protocol.RespReplyWriter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Protocol state of one client connection, independent of how its bytes are moved.
+ *
+ * <p>The protocol is chosen from the first byte the client sends: {@code *} starts a RESP array,
+ * anything else is the AtomKV line protocol. RESP clients speak first and never expect a greeting,
+ * so the {@code OK AtomKV} greeting is held back until the client is known to be a line client,
+ * or until the transport decides the client is waiting for it ({@link #greet()}).
+ *
+ * <p>A reply may also be {@linkplain #deferReply deferred}, as for a write a Raft group has not
+ * committed yet. Replies after it wait for it, and so do the commands that must not run before it
+ * is done: they are copied aside and run by {@link #resume()}, which the transport calls on its
+ * own thread once the session's {@code onReady} callback has fired. Nothing blocks meanwhile.
+ */
+final class ClientSession {
+    /** How long a silent client gets before it is assumed to be a line client waiting for the greeting. */
+    static final long DEFAULT_GREETING_DELAY_MILLIS = 100;
+
+    private static final byte[] GREETING = "OK AtomKV\n".getBytes(StandardCharsets.UTF_8);
+
+    private final CommandProcessor processor;
+    private final ReplyBuffer out = new ReplyBuffer(256);
+    private final CommandDecoder.CommandSink sink = this::execute;
+
+    private final Runnable onReady;
+
+    private CommandDecoder decoder;
+    private ReplyWriter writer;
+    private boolean asking; // ASKING was sent; holds for the next command only
+
+    // replies not written yet, in order, and the commands held back behind them
+    private final ArrayDeque<Deferred> deferred = new ArrayDeque<>();
+    private final ArrayDeque<CommandArgs> held = new ArrayDeque<>();
+    private int barriers; // deferred replies nothing may overtake
+    private boolean resuming;
+    private boolean stalled; // the held command being resumed was held back again
+
+    ClientSession(CommandProcessor processor) {
+        this(processor, () -> {});
+    }
+
+    /**
+     * @param onReady called from any thread when a deferred reply is done and {@link #resume()}
+     *                has something to do
+     */
+    ClientSession(CommandProcessor processor, Runnable onReady) {
+        this.processor = processor;
+        this.onReady = onReady;
+    }
+
+    /**
+     * Nothing has been received yet, so the protocol is still open.
+     */
+    boolean awaitingFirstByte() {
+        return decoder == null;
+    }
+
+    /**
+     * Settle on the line protocol and queue the greeting, unless the protocol is already known.
+     */
+    void greet() {
+        if (decoder == null) {
+            useLineProtocol();
+        }
+    }
+
+    /**
+     * Decode and execute every complete command in {@code buf[off, off + len)}; replies accumulate
+     * in {@link #output()}.
+     *
+     * @return false if the connection should be closed once the output has been written
+     */
+    boolean feed(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) {
+            return true;
+        }
+
+        if (decoder == null) {
+            if (buf[off] == '*') {
+                decoder = new RespDecoder();
+                writer = new RespReplyWriter(out, 2);
+            } else {
+                useLineProtocol();
+            }
+        }
+
+        try {
+            return decoder.feed(buf, off, len, sink);
+        } catch (ProtocolException e) {
+            writer.error("ERR Protocol error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * End of stream: run whatever complete command is still buffered.
+     */
+    void finish() throws IOException {
+        if (decoder != null) {
+            decoder.finish(sink);
+        }
+    }
+
+    /**
+     * Replies produced so far. The transport writes them and then calls {@link ReplyBuffer#reset()}.
+     */
+    ReplyBuffer output() {
+        return out;
+    }
+
+    /**
+     * Let the next command through to a slot this node is importing.
+     */
+    void setAsking() {
+        asking = true;
+    }
+
+    /**
+     * Whether the previous command was ASKING; the flag is cleared.
+     */
+    boolean takeAsking() {
+        boolean a = asking;
+        asking = false;
+        return a;
+    }
+
+    /**
+     * Write {@code reply} once it is done, after the replies before it. While a barrier is
+     * waiting, every later command is held back; otherwise only those {@link #holdsBack} says.
+     */
+    void deferReply(CompletableFuture<Consumer<ReplyWriter>> reply, boolean barrier) {
+        if (deferred.isEmpty() && reply.isDone()) {
+            reply.join().accept(writer);
+            return;
+        }
+
+        deferred.add(new Deferred(reply, barrier));
+        if (barrier) {
+            barriers++;
+        }
+        reply.whenComplete((r, e) -> onReady.run());
+    }
+
+    /**
+     * Whether a command must wait for the deferred replies before it runs: any command while a
+     * barrier waits, and otherwise any command that is not a write. Writes may go ahead, as their
+     * replies queue up behind the others.
+     */
+    boolean holdsBack(boolean write) {
+        return !deferred.isEmpty() && (barriers > 0 || !write);
+    }
+
+    /**
+     * Keep {@code args} until the deferred replies are written; see {@link #holdsBack}.
+     */
+    void holdBack(CommandArgs args) {
+        if (resuming) {
+            stalled = true;
+        } else {
+            held.add(args.copy());
+        }
+    }
+
+    /**
+     * Replies are deferred or commands held back, so {@link #resume()} still has work to do.
+     */
+    boolean waiting() {
+        return !deferred.isEmpty() || !held.isEmpty();
+    }
+
+    /**
+     * Block until the oldest deferred reply is done; for transports that have a thread per
+     * connection.
+     */
+    void awaitReady() {
+        Deferred next = deferred.peek();
+        if (next != null) {
+            next.reply.join();
+        }
+    }
+
+    /**
+     * Write the deferred replies that are done, in order, then run the held-back commands until
+     * one has to wait again. Transport thread only.
+     *
+     * @return false if a command asked to close the connection
+     */
+    boolean resume() {
+        Deferred next;
+        while ((next = deferred.peek()) != null && next.reply.isDone()) {
+            deferred.poll();
+            if (next.barrier) {
+                barriers--;
+            }
+            next.reply.join().accept(writer);
+        }
+
+        CommandArgs args;
+        while ((args = held.peek()) != null) {
+            boolean keepOpen;
+            resuming = true;
+            stalled = false;
+            try {
+                keepOpen = processor.execute(args, writer, this);
+            } finally {
+                resuming = false;
+            }
+            if (stalled) {
+                break;
+            }
+
+            held.poll();
+            if (!keepOpen) {
+                held.clear();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Deferred {
+        final CompletableFuture<Consumer<ReplyWriter>> reply;
+        final boolean barrier;
+
+        Deferred(CompletableFuture<Consumer<ReplyWriter>> reply, boolean barrier) {
+            this.reply = reply;
+            this.barrier = barrier;
+        }
+    }
+
+    private void useLineProtocol() {
+        decoder = new LineDecoder();
+        writer = new LineReplyWriter(out);
+        out.write(GREETING);
+    }
+
+    private boolean execute(CommandArgs args) {
+        if (!held.isEmpty()) {
+            held.add(args.copy());
+            return true;
+        }
+        return processor.execute(args, writer, this);
+    }
+}
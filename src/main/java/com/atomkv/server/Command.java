@@ -0,0 +1,111 @@
+package com.atomkv.server;
+
+import com.atomkv.protocol.CommandArgs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Command names understood by {@link CommandProcessor}. {@link #lookup(CommandArgs)} resolves the
+ * first argument straight from the request bytes through a small open-addressing table built
+ * once, hashing the ASCII upper-cased bytes, so neither a String nor an upper-cased copy is made.
+ */
+enum Command {
+    APPEND, ASKING, BGREWRITEAOF, BGSAVE, CLIENT, CLUSTER, COMMAND, CONFIG, DECR, DEL, ECHO, EXISTS, EXPIRE, FLUSHALL,
+    GET, HELLO, INCR, KEYS, MGET, MSET, PERSIST, PING, QUIT, RENAME, SAVE, SELECT, SET, STRLEN, TTL, TYPE;
+
+    private static final Set<Command> WRITES = EnumSet.of(APPEND, DECR, DEL, EXPIRE, FLUSHALL, INCR, MSET, PERSIST, RENAME, SET);
+
+    private static final int TABLE_SIZE = 128; // power of two, well over twice the command count
+    private static final Command[] TABLE = new Command[TABLE_SIZE];
+
+    static {
+        for (Command c : values()) {
+            int slot = hash(c.name, 0, c.name.length) & (TABLE_SIZE - 1);
+            while (TABLE[slot] != null) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            TABLE[slot] = c;
+        }
+    }
+
+    private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The command named by argument 0, in any letter case, or null if there is none.
+     */
+    static Command lookup(CommandArgs args) {
+        byte[] b = args.buffer();
+        int off = args.offset(0);
+        int len = args.length(0);
+
+        int slot = hash(b, off, len) & (TABLE_SIZE - 1);
+        Command c;
+        while ((c = TABLE[slot]) != null) {
+            if (c.matches(b, off, len)) {
+                return c;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+
+        return null;
+    }
+
+    /**
+     * Whether the command changes the store, and so is refused by a read-only replica.
+     */
+    boolean isWrite() {
+        return WRITES.contains(this);
+    }
+
+    /**
+     * Position of the first key argument, 0 if the command names no key.
+     */
+    int firstKey() {
+        return switch (this) {
+            case APPEND, DECR, DEL, EXISTS, EXPIRE, GET, INCR, MGET, MSET, PERSIST, RENAME, SET, STRLEN, TTL, TYPE -> 1;
+            default -> 0;
+        };
+    }
+
+    /**
+     * Position of the last key argument when the command has {@code count} arguments.
+     */
+    int lastKey(int count) {
+        return switch (this) {
+            case DEL, MGET, MSET -> count - 1;
+            case RENAME -> 2;
+            default -> firstKey();
+        };
+    }
+
+    /**
+     * Distance between key arguments: MSET alternates keys and values.
+     */
+    int keyStep() {
+        return this == MSET ? 2 : 1;
+    }
+
+    private boolean matches(byte[] b, int off, int len) {
+        if (len != name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < len; i++) {
+            if (CommandArgs.toUpper(b[off + i]) != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+        int h = len;
+        for (int i = off; i < off + len; i++) {
+            h = 31 * h + CommandArgs.toUpper(b[i]);
+        }
+        return h ^ (h >>> 7);
+    }
+}
@@ -0,0 +1,817 @@
+package com.atomkv.server;
+
+import com.atomkv.cluster.ClusterNode;
+import com.atomkv.cluster.HashSlots;
+import com.atomkv.cluster.SlotTable;
+import com.atomkv.persistence.AofRecord;
+import com.atomkv.protocol.CommandArgs;
+import com.atomkv.protocol.ReplyWriter;
+import com.atomkv.raft.RaftNode;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Executes decoded commands against the store and describes the answers to a {@link ReplyWriter}.
+ * Shared by the blocking {@link ClientHandler} and the NIO event loops, and by both wire
+ * protocols: the writer decides whether a reply goes out as an AtomKV line or as RESP.
+ *
+ * <p>In cluster mode every command on keys is first checked against the {@link ClusterNode}:
+ * keys of slots other nodes serve get a {@code MOVED} or {@code ASK} redirection instead.
+ *
+ * <p>In Raft mode writes are not executed here but proposed to the {@link RaftNode}, and answered
+ * once the group has committed and this node applied them. Only the leader takes writes and reads
+ * of keys; the other nodes answer {@code NOTLEADER} with the leader's address. Nothing waits for
+ * the group on the calling thread: the reply is {@linkplain ClientSession#deferReply deferred},
+ * and the connection's later commands are held back behind it where they must not overtake it.
+ * Pipelined writes are all proposed at once and so commit together.
+ */
+public class CommandProcessor {
+    private static final long RAFT_TIMEOUT_MILLIS = 5_000;
+
+    private final InMemoryStore store;
+    private final ClusterNode cluster;
+    private final RaftNode raft;
+
+    public CommandProcessor(InMemoryStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param cluster the node this server is in a cluster, or null
+     */
+    public CommandProcessor(InMemoryStore store, ClusterNode cluster) {
+        this(store, cluster, null);
+    }
+
+    /**
+     * @param cluster the node this server is in a cluster, or null
+     * @param raft the node this server is in a Raft group, or null
+     */
+    public CommandProcessor(InMemoryStore store, ClusterNode cluster, RaftNode raft) {
+        this.store = store;
+        this.cluster = cluster;
+        this.raft = raft;
+    }
+
+    /**
+     * Block until the writes executed by this thread may be acknowledged; transports call this
+     * before sending replies.
+     */
+    public void awaitDurable() throws IOException {
+        store.awaitDurable();
+    }
+
+    /**
+     * Execute a single command; argument 0 is the command name. Arguments are turned into Strings
+     * only where the store needs them. In Raft mode this waits for the group, as there is no
+     * connection to defer the reply on.
+     *
+     * @return false if the client asked to close the connection (QUIT)
+     */
+    public boolean execute(CommandArgs args, ReplyWriter out) {
+        return execute(args, out, null);
+    }
+
+    /**
+     * Same as {@link #execute(CommandArgs, ReplyWriter)} for a connection that keeps state
+     * between commands, such as ASKING.
+     */
+    boolean execute(CommandArgs args, ReplyWriter out, ClientSession session) {
+        try {
+            return dispatch(args, out, session);
+        } catch (RuntimeException e) {
+            out.error("ERR " + e.getMessage());
+            return true;
+        }
+    }
+
+    private boolean dispatch(CommandArgs args, ReplyWriter out, ClientSession session) {
+        Command cmd = Command.lookup(args);
+        if (session != null && session.holdsBack(cmd != null && cmd.isWrite())) {
+            session.holdBack(args);
+            return true;
+        }
+
+        boolean asking = session != null && session.takeAsking();
+        if (cmd == null) {
+            out.error("ERR unknown command");
+            return true;
+        }
+
+        if (cmd.isWrite() && store.isReadOnly()) {
+            out.error("READONLY You can't write against a read only replica.");
+            return true;
+        }
+
+        if (cluster != null && cmd.firstKey() > 0 && args.count() > cmd.firstKey()) {
+            String redirect = route(cmd, args, asking);
+            if (redirect != null) {
+                out.error(redirect);
+                return true;
+            }
+        }
+
+        if (raft != null && cmd.isWrite()) {
+            replicate(cmd, args, out, session);
+            return true;
+        }
+        if (raft != null && (cmd.firstKey() > 0 || cmd == Command.KEYS) && !leaseHeld(cmd, args, out, session)) {
+            return true;
+        }
+
+        return run(cmd, args, out, session);
+    }
+
+    private boolean run(Command cmd, CommandArgs args, ReplyWriter out, ClientSession session) {
+        switch (cmd) {
+            case EXISTS: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                boolean e = store.exists(args.string(1));
+                out.integer(e ? 1 : 0);
+                break;
+            }
+
+            case KEYS: {
+                String pattern = "*";
+                if (args.count() >= 2) pattern = args.string(1);
+
+                var keys = store.keys(pattern);
+                out.arrayHeader(keys.size());
+                for (String k : keys) {
+                    out.bulk(k);
+                }
+
+                break;
+            }
+
+            case TYPE: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                String t = store.type(args.string(1));
+                out.simple(t);
+                break;
+            }
+
+            case FLUSHALL: {
+                store.flushAll();
+                out.ok();
+                break;
+            }
+
+            case BGREWRITEAOF: {
+                if (store.rewriteAof()) {
+                    out.simple("Background append only file rewriting started");
+                } else {
+                    out.error("ERR Background append only file rewriting already in progress");
+                }
+                break;
+            }
+
+            case SAVE: {
+                try {
+                    if (store.save()) {
+                        out.ok();
+                    } else {
+                        out.error("ERR Background save already in progress");
+                    }
+                } catch (IOException e) {
+                    out.error("ERR " + e.getMessage());
+                }
+                break;
+            }
+
+            case BGSAVE: {
+                if (store.saveInBackground()) {
+                    out.simple("Background saving started");
+                } else {
+                    out.error("ERR Background save already in progress");
+                }
+                break;
+            }
+
+            case APPEND: {
+                if (args.count() < 3) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                String key = args.string(1);
+                int len = store.append(key, args.bytes(2));
+
+                // the line protocol has always acknowledged APPEND with +OK; RESP answers the new length
+                if (out.protocolVersion() == 0) {
+                    out.ok();
+                } else {
+                    out.integer(len);
+                }
+                break;
+            }
+
+            case INCR: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                long v = store.incr(args.string(1));
+                out.integer(v);
+                break;
+            }
+
+            case DECR: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                long v = store.decr(args.string(1));
+                out.integer(v);
+                break;
+            }
+
+            case STRLEN: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                long len = store.strlen(args.string(1));
+                out.integer(len);
+                break;
+            }
+
+            case GET: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                byte[] val = store.getBytes(args.string(1));
+                if (val != null) {
+                    out.bulk(val);
+                } else {
+                    out.nil();
+                }
+
+                break;
+            }
+
+            case MGET: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                out.arrayHeader(args.count() - 1);
+                for (int i = 1; i < args.count(); i++) {
+                    byte[] vv = store.getBytes(args.string(i));
+                    if (vv == null) out.nil();
+                    else out.bulk(vv);
+                }
+
+                break;
+            }
+
+            case MSET: {
+                if (args.count() < 3 || (args.count() - 1) % 2 != 0) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                // each SET is logged, so the MSET itself is not
+                for (int i = 1; i + 1 < args.count(); i += 2) {
+                    store.set(args.string(i), args.bytes(i + 1), null);
+                }
+                out.ok();
+                break;
+            }
+
+            case EXPIRE: {
+                if (args.count() < 3) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                try {
+                    long secs = args.parseLong(2);
+                    int ok = store.expire(args.string(1), secs);
+                    out.integer(ok);
+                } catch (NumberFormatException e) {
+                    out.error("ERR invalid number");
+                }
+
+                break;
+            }
+
+            case RENAME: {
+                if (args.count() < 3) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                boolean ok = store.rename(args.string(1), args.string(2));
+                if (ok) {
+                    out.ok();
+                } else {
+                    out.error("ERR no such key");
+                }
+                break;
+            }
+
+            case PING: {
+                if (args.count() >= 2 && out.protocolVersion() != 0) {
+                    out.bulk(args.string(1));
+                } else {
+                    out.simple("PONG");
+                }
+                break;
+            }
+
+            case ECHO: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                out.bulk(args.string(1));
+                break;
+            }
+
+            case SET: {
+                if (args.count() < 3) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                String key = args.string(1);
+                byte[] value = args.bytes(2);
+                Duration ttl = null;
+
+                if (args.count() >= 5) {
+                    try {
+                        if (args.equalsIgnoreCase(3, "PX")) {
+                            ttl = Duration.ofMillis(args.parseLong(4));
+                        } else if (args.equalsIgnoreCase(3, "EX")) {
+                            ttl = Duration.ofSeconds(args.parseLong(4));
+                        }
+                    } catch (NumberFormatException ignored) {
+                        // invalid number, ignore :)
+                    }
+                }
+
+                store.set(key, value, ttl);
+                out.ok();
+                break;
+            }
+
+            case DEL: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                int removed = 0;
+                for (int i = 1; i < args.count(); i++) {
+                    if (store.del(args.string(i))) {
+                        removed++;
+                    }
+                }
+                out.integer(removed);
+
+                break;
+            }
+
+            case TTL: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                long ttl = store.ttl(args.string(1));
+                out.integer(ttl);
+
+                break;
+            }
+
+            case PERSIST: {
+                if (args.count() < 2) {
+                    out.error("ERR wrong number of args");
+                    break;
+                }
+
+                boolean ok = store.persist(args.string(1));
+                out.integer(ok ? 1 : 0);
+
+                break;
+            }
+
+            case HELLO: {
+                int version = out.protocolVersion();
+                if (args.count() >= 2) {
+                    try {
+                        version = Math.toIntExact(args.parseLong(1));
+                    } catch (NumberFormatException | ArithmeticException e) {
+                        out.error("ERR Protocol version is not an integer or out of range");
+                        break;
+                    }
+                }
+
+                if (!out.switchProtocol(version)) {
+                    out.error("NOPROTO unsupported protocol version");
+                    break;
+                }
+
+                out.mapHeader(5);
+                out.bulk("server");
+                out.bulk("atomkv");
+                out.bulk("version");
+                out.bulk("1.0");
+                out.bulk("proto");
+                out.integer(version);
+                out.bulk("mode");
+                out.bulk(cluster != null ? "cluster" : raft != null ? "raft" : "standalone");
+                out.bulk("role");
+                out.bulk(store.isReadOnly() || (raft != null && !raft.isLeader()) ? "replica" : "master");
+                break;
+            }
+
+            // connection setup commands sent by Redis clients and tools; accepted so they proceed
+            case SELECT: {
+                if (args.count() < 2 || !args.equalsIgnoreCase(1, "0")) {
+                    out.error("ERR DB index is out of range");
+                } else {
+                    out.ok();
+                }
+                break;
+            }
+
+            case CLIENT: {
+                out.ok();
+                break;
+            }
+
+            case COMMAND:
+            case CONFIG: {
+                out.arrayHeader(0);
+                break;
+            }
+
+            case ASKING: {
+                if (cluster == null) {
+                    out.error("ERR This instance has cluster support disabled");
+                } else {
+                    if (session != null) {
+                        session.setAsking();
+                    }
+                    out.ok();
+                }
+                break;
+            }
+
+            case CLUSTER: {
+                cluster(args, out);
+                break;
+            }
+
+            case QUIT: {
+                if (out.protocolVersion() == 0) {
+                    out.simple("BYE");
+                } else {
+                    out.ok();
+                }
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Propose a write to the Raft group and answer once it is applied here.
+     */
+    private void replicate(Command cmd, CommandArgs args, ReplyWriter out, ClientSession session) {
+        List<AofRecord> records;
+        try {
+            records = records(cmd, args);
+        } catch (IllegalArgumentException e) {
+            String message = e.getMessage();
+            settle(CompletableFuture.completedFuture(w -> w.error(message)), false, out, session);
+            return;
+        }
+
+        List<CompletableFuture<Object>> pending = new ArrayList<>(records.size());
+        for (AofRecord r : records) {
+            pending.add(raft.propose(r));
+        }
+
+        CompletableFuture<Consumer<ReplyWriter>> reply = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                .orTimeout(RAFT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .handle((v, e) -> e == null
+                        ? w -> answer(cmd, pending, w)
+                        : w -> raftError(e, w, "TRYAGAIN Write not committed in time"));
+        settle(reply, false, out, session);
+    }
+
+    private static void answer(Command cmd, List<CompletableFuture<Object>> applied, ReplyWriter out) {
+        long sum = 0;
+        Object last = null;
+        for (CompletableFuture<Object> f : applied) {
+            last = f.join();
+            if (last instanceof Long n) {
+                sum += n;
+            }
+        }
+
+        switch (cmd) {
+            case DEL -> out.integer(sum);
+            case EXPIRE, PERSIST, INCR, DECR -> out.integer((Long) last);
+            case APPEND -> {
+                if (out.protocolVersion() == 0) {
+                    out.ok();
+                } else {
+                    out.integer((Long) last);
+                }
+            }
+            default -> out.ok();
+        }
+    }
+
+    /**
+     * The log records a write command makes. TTLs stay relative: they are counted from the clock
+     * of the entry that carries them.
+     *
+     * @throws IllegalArgumentException with the error reply if the command is malformed
+     */
+    private static List<AofRecord> records(Command cmd, CommandArgs args) {
+        int min = switch (cmd) {
+            case FLUSHALL -> 1;
+            case APPEND, EXPIRE, MSET, RENAME, SET -> 3;
+            default -> 2;
+        };
+        if (args.count() < min || (cmd == Command.MSET && (args.count() - 1) % 2 != 0)) {
+            throw new IllegalArgumentException("ERR wrong number of args");
+        }
+
+        switch (cmd) {
+            case SET: {
+                long px = 0;
+                if (args.count() >= 5) {
+                    try {
+                        if (args.equalsIgnoreCase(3, "PX")) {
+                            px = args.parseLong(4);
+                        } else if (args.equalsIgnoreCase(3, "EX")) {
+                            px = Duration.ofSeconds(args.parseLong(4)).toMillis();
+                        }
+                    } catch (NumberFormatException ignored) {
+                        // invalid number, ignored as without Raft
+                    }
+                }
+                return List.of(AofRecord.set(args.string(1), args.bytes(2), px));
+            }
+            case DEL: {
+                List<AofRecord> dels = new ArrayList<>(args.count() - 1);
+                for (int i = 1; i < args.count(); i++) {
+                    dels.add(AofRecord.del(args.string(i)));
+                }
+                return dels;
+            }
+            case EXPIRE: {
+                try {
+                    return List.of(AofRecord.expire(args.string(1), args.parseLong(2)));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("ERR invalid number");
+                }
+            }
+            case MSET: {
+                byte[][] pairs = new byte[args.count() - 1][];
+                for (int i = 1; i < args.count(); i++) {
+                    pairs[i - 1] = args.bytes(i);
+                }
+                return List.of(AofRecord.mset(pairs));
+            }
+            case APPEND:
+                return List.of(AofRecord.append(args.string(1), args.bytes(2)));
+            case RENAME:
+                return List.of(AofRecord.rename(args.string(1), args.string(2)));
+            case INCR:
+                return List.of(AofRecord.incr(args.string(1)));
+            case DECR:
+                return List.of(AofRecord.decr(args.string(1)));
+            case PERSIST:
+                return List.of(AofRecord.persist(args.string(1)));
+            case FLUSHALL:
+                return List.of(AofRecord.flushAll());
+            default:
+                throw new IllegalStateException("not a write: " + cmd);
+        }
+    }
+
+    /**
+     * Whether this node may read its store now. If not, the read runs once it may, and nothing
+     * after it on the connection runs before; if that does not happen, the client is told where
+     * to go instead.
+     */
+    private boolean leaseHeld(Command cmd, CommandArgs args, ReplyWriter out, ClientSession session) {
+        CompletableFuture<Void> lease = raft.lease();
+        if (lease.isDone() && !lease.isCompletedExceptionally()) {
+            return true;
+        }
+
+        CommandArgs later = args.copy();
+        CompletableFuture<Consumer<ReplyWriter>> reply = lease
+                .orTimeout(RAFT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .handle((v, e) -> e == null
+                        ? w -> runLater(cmd, later, w, session)
+                        : w -> raftError(e, w, "TRYAGAIN Leader lease not held"));
+        settle(reply, true, out, session);
+        return false;
+    }
+
+    private void runLater(Command cmd, CommandArgs args, ReplyWriter out, ClientSession session) {
+        try {
+            run(cmd, args, out, session);
+        } catch (RuntimeException e) {
+            out.error("ERR " + e.getMessage());
+        }
+    }
+
+    /**
+     * Have the session write {@code reply} once it is done or, without a session, wait for it.
+     *
+     * @param barrier whether the connection's later commands must all wait for it
+     */
+    private static void settle(CompletableFuture<Consumer<ReplyWriter>> reply, boolean barrier, ReplyWriter out,
+                               ClientSession session) {
+        if (session != null) {
+            session.deferReply(reply, barrier);
+        } else {
+            reply.join().accept(out);
+        }
+    }
+
+    private static void raftError(Throwable e, ReplyWriter out, String timeout) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+
+        if (e instanceof TimeoutException) {
+            out.error(timeout);
+        } else if (e instanceof RaftNode.NotLeaderException nl) {
+            out.error(nl.leader() == null ? "TRYAGAIN No leader elected yet" : "NOTLEADER " + nl.leader());
+        } else {
+            out.error("ERR " + e.getMessage());
+        }
+    }
+
+    /**
+     * The redirection for a command whose keys are not all served here, or null.
+     */
+    private String route(Command cmd, CommandArgs args, boolean asking) {
+        int first = cmd.firstKey();
+        int last = Math.min(cmd.lastKey(args.count()), args.count() - 1);
+        int step = cmd.keyStep();
+
+        int slot = -1;
+        int keys = 0;
+        for (int i = first; i <= last; i += step) {
+            int s = HashSlots.slot(args.buffer(), args.offset(i), args.length(i));
+            if (slot >= 0 && s != slot) {
+                return "CROSSSLOT Keys in request don't hash to the same slot";
+            }
+            slot = s;
+            keys++;
+        }
+
+        return cluster.redirect(slot, asking, keys, () -> {
+            int missing = 0;
+            for (int i = first; i <= last; i += step) {
+                if (!store.exists(args.string(i))) {
+                    missing++;
+                }
+            }
+            return missing;
+        });
+    }
+
+    /**
+     * CLUSTER subcommands: SLOTS and KEYSLOT for clients, MIGRATE to move a slot to another node,
+     * and TABLE, SETSLOT, RESTORE and DISCARD, which nodes send each other.
+     */
+    private void cluster(CommandArgs args, ReplyWriter out) {
+        if (cluster == null) {
+            out.error("ERR This instance has cluster support disabled");
+            return;
+        }
+        if (args.count() < 2) {
+            out.error("ERR wrong number of args");
+            return;
+        }
+
+        String sub = args.string(1).toUpperCase(Locale.ROOT);
+        switch (sub) {
+            case "SLOTS" -> {
+                List<SlotTable.Range> ranges = cluster.table().ranges();
+                out.arrayHeader(ranges.size());
+                for (SlotTable.Range r : ranges) {
+                    int colon = r.owner.lastIndexOf(':');
+                    out.arrayHeader(3);
+                    out.integer(r.first);
+                    out.integer(r.last);
+                    out.arrayHeader(2);
+                    out.bulk(r.owner.substring(0, colon));
+                    out.integer(Long.parseLong(r.owner.substring(colon + 1)));
+                }
+            }
+            case "KEYSLOT" -> {
+                if (args.count() < 3) {
+                    out.error("ERR wrong number of args");
+                    return;
+                }
+                out.integer(HashSlots.slot(args.buffer(), args.offset(2), args.length(2)));
+            }
+            case "TABLE" -> {
+                if (args.count() >= 3) {
+                    cluster.merge(SlotTable.parse(args.string(2)));
+                    out.ok();
+                } else {
+                    out.bulk(cluster.table().encode());
+                }
+            }
+            case "SETSLOT" -> {
+                if (args.count() < 4) {
+                    out.error("ERR wrong number of args");
+                    return;
+                }
+
+                int slot = slotArg(args, 2);
+                if (args.equalsIgnoreCase(3, "IMPORTING") && args.count() >= 5) {
+                    cluster.importSlot(slot, args.string(4));
+                } else if (args.equalsIgnoreCase(3, "STABLE")) {
+                    cluster.stable(slot);
+                } else {
+                    out.error("ERR expected SETSLOT <slot> IMPORTING <node> or SETSLOT <slot> STABLE");
+                    return;
+                }
+                out.ok();
+            }
+            case "RESTORE", "DISCARD" -> {
+                if (args.count() < 5) {
+                    out.error("ERR wrong number of args");
+                    return;
+                }
+
+                AofRecord copy = AofRecord.setAt(args.string(2), args.bytes(3), args.parseLong(4));
+                if (sub.equals("RESTORE")) {
+                    store.applyReplicated(copy);
+                    out.ok();
+                } else {
+                    out.integer(store.removeIfUnchanged(copy) ? 1 : 0);
+                }
+            }
+            case "MIGRATE" -> {
+                if (args.count() < 4) {
+                    out.error("ERR wrong number of args");
+                    return;
+                }
+
+                try {
+                    int slot = slotArg(args, 2);
+                    String target = args.string(3);
+                    cluster.migrate(slot, target).exceptionally(e -> {
+                        System.err.println("Moving slot " + slot + " to " + target + " failed: " + e.getMessage());
+                        return null;
+                    });
+                    out.simple("Migration started");
+                } catch (IllegalStateException | IllegalArgumentException e) {
+                    out.error("ERR " + e.getMessage());
+                }
+            }
+            default -> out.error("ERR unknown CLUSTER subcommand");
+        }
+    }
+
+    private static int slotArg(CommandArgs args, int i) {
+        long slot = args.parseLong(i);
+        if (slot < 0 || slot >= HashSlots.SLOTS) {
+            throw new IllegalArgumentException("Invalid or out of range slot");
+        }
+        return (int) slot;
+    }
+}
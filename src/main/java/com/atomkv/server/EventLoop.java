@@ -0,0 +1,394 @@
+package com.atomkv.server;
+
+import com.atomkv.protocol.ReplyBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving many connections. The read buffer is owned by the loop and reused
+ * for every connection; a connection only holds bytes of its own while a command is split across
+ * reads or the socket cannot take all of its replies.
+ *
+ * <p>Replies produced during one pass over the selected keys are held until the pass is over and
+ * then written together, after a single {@link CommandProcessor#awaitDurable()}: with
+ * {@code appendfsync always} every write of the pass shares one fsync.
+ *
+ * <p>A connection whose session waits for a deferred reply, such as a write a Raft group has not
+ * committed yet, is not read from until the reply is done; the session then wakes the loop, which
+ * {@linkplain ClientSession#resume() resumes} it and sends what it answered with the next pass.
+ */
+final class EventLoop implements Runnable, AutoCloseable {
+    private final Thread thread;
+    private final Selector selector;
+    private final CommandProcessor processor;
+    private final long greetingDelayMillis;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> woken = new ConcurrentLinkedQueue<>();
+
+    // connections that have not sent anything yet, in accept order and therefore deadline order
+    private final ArrayDeque<Connection> awaitingGreeting = new ArrayDeque<>();
+
+    // connections with replies waiting for the end of the current pass
+    private final ArrayDeque<Connection> replying = new ArrayDeque<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private volatile boolean closed;
+
+    EventLoop(String name, CommandProcessor processor, long greetingDelayMillis) throws IOException {
+        this.selector = Selector.open();
+        this.processor = processor;
+        this.greetingDelayMillis = greetingDelayMillis;
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Hand a freshly accepted, non-blocking channel to this loop. Safe to call from any thread.
+     */
+    void register(SocketChannel ch) {
+        pending.add(ch);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select(millisUntilNextGreeting());
+                registerPending();
+                greetSilentClients();
+                resumeWoken();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            conn.drainPending();
+                        }
+
+                        if (key.isValid() && key.isReadable()) {
+                            onReadable(conn);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // client disconnected or IO issue: drop the connection
+                        conn.close();
+                    }
+                }
+
+                flushQueuedReplies();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // selector closed during shutdown
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void shutdown() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {}
+        }
+
+        SocketChannel ch;
+        while ((ch = pending.poll()) != null) {
+            try {
+                ch.close();
+            } catch (IOException ignored) {}
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void registerPending() {
+        SocketChannel ch;
+        while ((ch = pending.poll()) != null) {
+            try {
+                SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                Connection conn = new Connection(ch, key, processor, this);
+                key.attach(conn);
+
+                if (greetingDelayMillis <= 0) {
+                    conn.session.greet();
+                    flushReplies(conn);
+                } else {
+                    conn.greetAt = System.currentTimeMillis() + greetingDelayMillis;
+                    awaitingGreeting.add(conn);
+                }
+            } catch (IOException e) {
+                try {
+                    ch.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Select timeout: 0 (block) if nobody is waiting for a greeting, otherwise until the oldest is due.
+     */
+    private long millisUntilNextGreeting() {
+        Connection next = awaitingGreeting.peek();
+        if (next == null) {
+            return 0;
+        }
+
+        return Math.max(1, next.greetAt - System.currentTimeMillis());
+    }
+
+    private void greetSilentClients() {
+        long now = System.currentTimeMillis();
+
+        Connection conn;
+        while ((conn = awaitingGreeting.peek()) != null && conn.greetAt <= now) {
+            awaitingGreeting.poll();
+
+            if (!conn.key.isValid() || !conn.session.awaitingFirstByte()) {
+                continue;
+            }
+
+            try {
+                conn.session.greet();
+                flushReplies(conn);
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Called by a session, from any thread, once a reply it deferred is done.
+     */
+    private void wake(Connection conn) {
+        woken.add(conn);
+        selector.wakeup();
+    }
+
+    private void resumeWoken() {
+        Connection conn;
+        while ((conn = woken.poll()) != null) {
+            if (!conn.key.isValid()) {
+                continue;
+            }
+
+            boolean keepOpen;
+            try {
+                keepOpen = conn.session.resume();
+            } catch (RuntimeException e) {
+                conn.close();
+                continue;
+            }
+            queueReplies(conn, keepOpen);
+        }
+    }
+
+    private void onReadable(Connection conn) throws IOException {
+        readBuffer.clear();
+        int n = conn.channel.read(readBuffer);
+
+        if (n < 0) {
+            try {
+                conn.session.finish();
+            } finally {
+                if (conn.session.waiting()) {
+                    // the client is done sending; answer what it sent, then close
+                    queueReplies(conn, false);
+                } else {
+                    processor.awaitDurable();
+                    flushReplies(conn);
+                    conn.close();
+                }
+            }
+            return;
+        }
+
+        // every complete command from this read is executed before the replies are written once
+        boolean keepOpen = true;
+        try {
+            keepOpen = conn.session.feed(readBuffer.array(), 0, n);
+        } finally {
+            queueReplies(conn, keepOpen);
+        }
+    }
+
+    /**
+     * Send the connection's replies at the end of the pass, and read from it only while its
+     * session is not waiting.
+     */
+    private void queueReplies(Connection conn, boolean keepOpen) {
+        if (!conn.queued) {
+            conn.queued = true;
+            replying.add(conn);
+        }
+        conn.keepOpen &= keepOpen;
+        conn.pause(conn.session.waiting());
+    }
+
+    /**
+     * Write the replies of this pass once the writes behind them may be acknowledged. If the AOF
+     * failed they are never sent, and the connections are dropped instead.
+     */
+    private void flushQueuedReplies() {
+        if (replying.isEmpty()) {
+            return;
+        }
+
+        boolean durable;
+        try {
+            processor.awaitDurable();
+            durable = true;
+        } catch (IOException e) {
+            durable = false;
+        }
+
+        Connection conn;
+        while ((conn = replying.poll()) != null) {
+            conn.queued = false;
+            if (!durable) {
+                conn.close();
+                continue;
+            }
+
+            try {
+                flushReplies(conn);
+                if (!conn.keepOpen && !conn.session.waiting()) {
+                    conn.closeAfterWrite();
+                }
+            } catch (IOException e) {
+                conn.close();
+            }
+        }
+    }
+
+    private void flushReplies(Connection conn) throws IOException {
+        ReplyBuffer out = conn.session.output();
+        if (out.isEmpty()) {
+            return;
+        }
+
+        try {
+            conn.send(ByteBuffer.wrap(out.array(), 0, out.size()));
+        } finally {
+            out.reset();
+        }
+    }
+
+    /**
+     * Ask the loop to stop; the loop thread closes its connections and selector on the way out.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Per-connection state. Everything here is only touched from the owning loop thread.
+     */
+    private static final class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ClientSession session;
+        long greetAt;
+
+        ByteBuffer pendingOut;
+        boolean closing;
+        boolean paused; // not read from while the session waits
+
+        // replies wait in the session until the end of the pass
+        boolean queued;
+        boolean keepOpen = true;
+
+        Connection(SocketChannel channel, SelectionKey key, CommandProcessor processor, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.session = new ClientSession(processor, () -> loop.wake(this));
+        }
+
+        void pause(boolean paused) {
+            this.paused = paused;
+            if (pendingOut == null && key.isValid()) {
+                key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Write as much as the socket accepts right now; whatever is left is copied aside and
+         * reading is paused until the client catches up.
+         */
+        void send(ByteBuffer src) throws IOException {
+            if (pendingOut == null) {
+                channel.write(src);
+                if (!src.hasRemaining()) {
+                    return;
+                }
+
+                pendingOut = ByteBuffer.allocate(Math.max(src.remaining(), 4096));
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            if (pendingOut.remaining() < src.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(pendingOut.capacity() * 2, pendingOut.position() + src.remaining()));
+                pendingOut.flip();
+                bigger.put(pendingOut);
+                pendingOut = bigger;
+            }
+
+            pendingOut.put(src);
+        }
+
+        void drainPending() throws IOException {
+            if (pendingOut == null) {
+                key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+                return;
+            }
+
+            pendingOut.flip();
+            channel.write(pendingOut);
+
+            if (pendingOut.hasRemaining()) {
+                pendingOut.compact();
+                return;
+            }
+
+            pendingOut = null;
+            if (closing) {
+                close();
+            } else {
+                key.interestOps(paused ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        void closeAfterWrite() {
+            closing = true;
+            if (pendingOut == null) {
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.atomkv.server;
+
+import com.atomkv.cluster.ClusterNode;
+import com.atomkv.raft.RaftNode;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking reactor: a single acceptor hands connections round-robin to a fixed
+ * set of {@link EventLoop} threads, so idle clients cost a selection key instead of a thread.
+ */
+public class NioServer implements AutoCloseable {
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+
+    public NioServer(int port, int ioThreads, InMemoryStore store) throws IOException {
+        this(port, ioThreads, ClientSession.DEFAULT_GREETING_DELAY_MILLIS, store);
+    }
+
+    /**
+     * @param greetingDelayMillis how long a silent client may take before it is greeted as a line
+     *                            client; 0 greets immediately, which RESP clients cannot parse
+     */
+    public NioServer(int port, int ioThreads, long greetingDelayMillis, InMemoryStore store) throws IOException {
+        this(port, ioThreads, greetingDelayMillis, store, null);
+    }
+
+    /**
+     * @param cluster the node this server is in a cluster, or null
+     */
+    public NioServer(int port, int ioThreads, long greetingDelayMillis, InMemoryStore store, ClusterNode cluster) throws IOException {
+        this(port, ioThreads, greetingDelayMillis, store, cluster, null);
+    }
+
+    /**
+     * @param raft the node this server is in a Raft group, or null
+     */
+    public NioServer(int port, int ioThreads, long greetingDelayMillis, InMemoryStore store, ClusterNode cluster,
+                     RaftNode raft) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), 1024);
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("event-loop-" + i, new CommandProcessor(store, cluster, raft), greetingDelayMillis);
+        }
+    }
+
+    /**
+     * The port actually bound, useful when constructed with port 0.
+     */
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Start the event loops and accept connections on the calling thread until the server is closed.
+     */
+    public void serve() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+
+        System.out.println("AtomKV listening on port " + port() + " (nio, " + loops.length + " event loops)");
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            SocketChannel ch;
+            try {
+                ch = serverChannel.accept();
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    return;
+                }
+                throw e;
+            }
+
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            loops[next].register(ch);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.atomkv.server;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.persistence.AofBackpressure;
+import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.persistence.FsyncPolicy;
+import com.atomkv.replication.ReplicationBacklog;
+import com.atomkv.store.ExpiryMode;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Startup options for {@link AtomKVServer}, parsed from {@code --name value} command line pairs.
+ * Anything not given on the command line keeps its default.
+ */
+public class ServerConfig {
+    public enum IoMode {
+        /** Selector-based reactor: one acceptor thread plus a fixed set of event loops. */
+        NIO,
+        /** One platform thread per connection running {@link ClientHandler}. */
+        THREADS,
+        /** One virtual thread per connection running {@link ClientHandler}. */
+        VIRTUAL
+    }
+
+    int tcpPort = 6379;
+    int metricsPort = 8080;
+    int maxEntries = 10000;
+    long maxMemory = 0;
+    int shards = 1;
+    EvictionPolicyType evictionPolicy = EvictionPolicyType.LRU;
+    ExpiryMode expiryMode = ExpiryMode.WHEEL;
+    int expiryEffort = 1;
+    Path aofPath = Path.of(System.getProperty("user.home"), ".atomkv", "appendonly.aof");
+    FsyncPolicy appendFsync = FsyncPolicy.EVERYSEC;
+    int autoAofRewritePercentage = 100;
+    long autoAofRewriteMinSize = 64L * 1024 * 1024;
+    boolean aofPreamble = true;
+    int aofLoadThreads = Runtime.getRuntime().availableProcessors();
+    int aofBufferSize = AppendOnlyFile.DEFAULT_BUFFER_SIZE;
+    AofBackpressure aofBackpressure = AofBackpressure.BLOCK;
+    long aofSegmentSize = AppendOnlyFile.DEFAULT_SEGMENT_SIZE;
+    boolean aofLoadTruncated = true;
+    Path snapshotPath = Path.of(System.getProperty("user.home"), ".atomkv", "dump.akv");
+    IoMode ioMode = IoMode.NIO;
+    int ioThreads = Runtime.getRuntime().availableProcessors();
+    long greetingDelayMillis = ClientSession.DEFAULT_GREETING_DELAY_MILLIS;
+    int replPort = 0;
+    int replBacklogSize = ReplicationBacklog.DEFAULT_SIZE;
+    String replicaOfHost;
+    int replicaOfPort;
+    boolean cluster = false;
+    String clusterSlots = "";
+    List<String> clusterNodes = new ArrayList<>();
+    String clusterAnnounce;
+    String raftSelf;
+    List<String> raftNodes = new ArrayList<>();
+    Path raftDir = Path.of(System.getProperty("user.home"), ".atomkv", "raft");
+    String raftAnnounce;
+    long raftElectionTimeoutMillis = 1_000;
+    long raftSnapshotEntries = 100_000;
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+
+        for (int i = 0; i < args.length; i++) {
+            String name = args[i];
+            if (!name.startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("expected --option value, got: " + name);
+            }
+
+            String value = args[++i];
+            switch (name.substring(2).toLowerCase(Locale.ROOT)) {
+                case "port" -> config.tcpPort = Integer.parseInt(value);
+                case "metrics-port" -> config.metricsPort = Integer.parseInt(value);
+                case "maxentries" -> config.maxEntries = Integer.parseInt(value);
+                case "maxmemory" -> config.maxMemory = parseBytes(value);
+                case "shards" -> config.shards = Math.max(1, Integer.parseInt(value));
+                case "eviction" -> config.evictionPolicy = EvictionPolicyType.fromName(value);
+                case "expiry" -> config.expiryMode = ExpiryMode.fromName(value);
+                case "expiry-effort" -> config.expiryEffort = Math.max(1, Math.min(10, Integer.parseInt(value)));
+                case "aof" -> config.aofPath = Path.of(value);
+                case "appendfsync" -> config.appendFsync = FsyncPolicy.fromName(value);
+                case "auto-aof-rewrite-percentage" -> config.autoAofRewritePercentage = Math.max(0, Integer.parseInt(value));
+                case "auto-aof-rewrite-min-size" -> config.autoAofRewriteMinSize = parseBytes(value);
+                case "aof-preamble" -> config.aofPreamble = parseYesNo(name, value);
+                case "aof-load-threads" -> config.aofLoadThreads = Math.max(1, Integer.parseInt(value));
+                case "aof-buffer-size" -> config.aofBufferSize = (int) Math.min(parseBytes(value), 1 << 30);
+                case "aof-backpressure" -> config.aofBackpressure = AofBackpressure.fromName(value);
+                case "aof-segment-size" -> config.aofSegmentSize = parseBytes(value);
+                case "aof-load-truncated" -> config.aofLoadTruncated = parseYesNo(name, value);
+                case "snapshot" -> config.snapshotPath = Path.of(value);
+                case "io" -> config.ioMode = IoMode.valueOf(value.toUpperCase(Locale.ROOT));
+                case "io-threads" -> config.ioThreads = Math.max(1, Integer.parseInt(value));
+                case "greeting-delay-ms" -> config.greetingDelayMillis = Long.parseLong(value);
+                case "repl-port" -> config.replPort = Integer.parseInt(value);
+                case "repl-backlog-size" -> config.replBacklogSize = (int) Math.min(parseBytes(value), 1 << 30);
+                case "replicaof" -> {
+                    int colon = value.lastIndexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException(name + " must be host:port, got: " + value);
+                    }
+                    config.replicaOfHost = value.substring(0, colon);
+                    config.replicaOfPort = Integer.parseInt(value.substring(colon + 1));
+                }
+                case "cluster" -> config.cluster = parseYesNo(name, value);
+                case "cluster-slots" -> config.clusterSlots = value;
+                case "cluster-nodes" -> {
+                    config.clusterNodes.clear();
+                    for (String node : value.split(",")) {
+                        if (!node.isBlank()) {
+                            config.clusterNodes.add(node.trim());
+                        }
+                    }
+                }
+                case "cluster-announce" -> config.clusterAnnounce = value;
+                case "raft-self" -> config.raftSelf = value;
+                case "raft-nodes" -> {
+                    config.raftNodes.clear();
+                    for (String node : value.split(",")) {
+                        if (!node.isBlank()) {
+                            config.raftNodes.add(node.trim());
+                        }
+                    }
+                }
+                case "raft-dir" -> config.raftDir = Path.of(value);
+                case "raft-announce" -> config.raftAnnounce = value;
+                case "raft-election-timeout-ms" -> config.raftElectionTimeoutMillis = Math.max(10, Long.parseLong(value));
+                case "raft-snapshot-entries" -> config.raftSnapshotEntries = Math.max(1, Long.parseLong(value));
+                default -> throw new IllegalArgumentException("unknown option: " + name);
+            }
+        }
+
+        if (config.replPort != 0 && config.replicaOfHost != null) {
+            throw new IllegalArgumentException("a replica cannot serve followers: --repl-port and --replicaof are exclusive");
+        }
+        if (config.raftSelf != null && (config.replPort != 0 || config.replicaOfHost != null || config.cluster)) {
+            throw new IllegalArgumentException("--raft-self cannot be combined with --repl-port, --replicaof or --cluster");
+        }
+
+        return config;
+    }
+
+    static boolean parseYesNo(String name, String value) {
+        return switch (value.toLowerCase(Locale.ROOT)) {
+            case "yes" -> true;
+            case "no" -> false;
+            default -> throw new IllegalArgumentException(name + " must be yes or no, got: " + value);
+        };
+    }
+
+    /**
+     * Byte sizes as Redis writes them: {@code 1048576}, {@code 512kb}, {@code 100mb}, {@code 2gb}.
+     */
+    static long parseBytes(String value) {
+        String v = value.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+
+        if (v.endsWith("gb")) {
+            unit = 1L << 30;
+        } else if (v.endsWith("mb")) {
+            unit = 1L << 20;
+        } else if (v.endsWith("kb")) {
+            unit = 1L << 10;
+        }
+
+        if (unit != 1) {
+            v = v.substring(0, v.length() - 2);
+        } else if (v.endsWith("b")) {
+            v = v.substring(0, v.length() - 1);
+        }
+
+        return Long.parseLong(v.trim()) * unit;
+    }
+
+    public int tcpPort() {
+        return tcpPort;
+    }
+
+    public int metricsPort() {
+        return metricsPort;
+    }
+
+    public int maxEntries() {
+        return maxEntries;
+    }
+
+    public long maxMemory() {
+        return maxMemory;
+    }
+
+    public int shards() {
+        return shards;
+    }
+
+    public EvictionPolicyType evictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public ExpiryMode expiryMode() {
+        return expiryMode;
+    }
+
+    public int expiryEffort() {
+        return expiryEffort;
+    }
+
+    public Path aofPath() {
+        return aofPath;
+    }
+
+    public FsyncPolicy appendFsync() {
+        return appendFsync;
+    }
+
+    public int autoAofRewritePercentage() {
+        return autoAofRewritePercentage;
+    }
+
+    public long autoAofRewriteMinSize() {
+        return autoAofRewriteMinSize;
+    }
+
+    public boolean aofPreamble() {
+        return aofPreamble;
+    }
+
+    public int aofLoadThreads() {
+        return aofLoadThreads;
+    }
+
+    public int aofBufferSize() {
+        return aofBufferSize;
+    }
+
+    public AofBackpressure aofBackpressure() {
+        return aofBackpressure;
+    }
+
+    public long aofSegmentSize() {
+        return aofSegmentSize;
+    }
+
+    public boolean aofLoadTruncated() {
+        return aofLoadTruncated;
+    }
+
+    public Path snapshotPath() {
+        return snapshotPath;
+    }
+
+    public IoMode ioMode() {
+        return ioMode;
+    }
+
+    public int ioThreads() {
+        return ioThreads;
+    }
+
+    public long greetingDelayMillis() {
+        return greetingDelayMillis;
+    }
+
+    /**
+     * Port followers connect to, 0 if this server does not lead.
+     */
+    public int replPort() {
+        return replPort;
+    }
+
+    public int replBacklogSize() {
+        return replBacklogSize;
+    }
+
+    /**
+     * Host of the leader this server follows, null if it is not a replica.
+     */
+    public String replicaOfHost() {
+        return replicaOfHost;
+    }
+
+    public int replicaOfPort() {
+        return replicaOfPort;
+    }
+
+    public boolean cluster() {
+        return cluster;
+    }
+
+    /**
+     * Slots this node owns when it starts, such as {@code 0-5460}; empty for none.
+     */
+    public String clusterSlots() {
+        return clusterSlots;
+    }
+
+    /**
+     * Other nodes to exchange slot tables with, as {@code host:port}.
+     */
+    public List<String> clusterNodes() {
+        return clusterNodes;
+    }
+
+    /**
+     * The address other nodes and redirected clients reach this node at.
+     */
+    public String clusterAnnounce() {
+        return clusterAnnounce != null ? clusterAnnounce : "127.0.0.1:" + tcpPort;
+    }
+
+    /**
+     * This node's address in its Raft group, {@code host:port}; null if it is not in one.
+     */
+    public String raftSelf() {
+        return raftSelf;
+    }
+
+    /**
+     * Raft addresses of all nodes of the group, as {@code host:port}.
+     */
+    public List<String> raftNodes() {
+        return raftNodes;
+    }
+
+    /**
+     * Directory holding the Raft log, the vote and the snapshots.
+     */
+    public Path raftDir() {
+        return raftDir;
+    }
+
+    /**
+     * The client address redirected clients are sent to while this node leads.
+     */
+    public String raftAnnounce() {
+        return raftAnnounce != null ? raftAnnounce : "127.0.0.1:" + tcpPort;
+    }
+
+    public long raftElectionTimeoutMillis() {
+        return raftElectionTimeoutMillis;
+    }
+
+    public long raftSnapshotEntries() {
+        return raftSnapshotEntries;
+    }
+}
@@ -0,0 +1,23 @@
+package com.atomkv.store;
+
+import java.util.Locale;
+
+/**
+ * How the ttl-janitor finds keys whose TTL has passed. Reads always check the TTL themselves;
+ * the janitor only reclaims keys nobody asks for again.
+ */
+public enum ExpiryMode {
+    /** Keys with a TTL are filed in a {@link TimingWheel}; each tick only visits keys due then. */
+    WHEEL,
+    /**
+     * Keys with a TTL are kept in a separate set that is sampled at random, more often while many
+     * of the sampled keys turn out to be expired, within a time budget per cycle.
+     */
+    SAMPLED,
+    /** Walk every entry of every shard once a second. */
+    SCAN;
+
+    public static ExpiryMode fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -1,9 +1,13 @@
 package com.atomkv.store;
 
-import com.atomkv.eviction.EvictionPolicy;
-import com.atomkv.eviction.LRUEvictionPolicy;
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.persistence.AofRecord;
 import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.persistence.SnapshotFile;
+import com.atomkv.replication.ReplicationBacklog;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
@@ -12,86 +16,271 @@ import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.ToIntFunction;
 
 /**
  * Thread-safe in-memory store with TTL, eviction, and AOF persistence hooks.
+ *
+ * <p>Keys are spread over a power-of-two number of {@link Shard}s by hash. Each shard has its own
+ * map, eviction policy and counters, and gets an equal part of {@code maxEntries}, so eviction is
+ * LRU within a shard rather than across the whole store. With one shard the store behaves as a
+ * single LRU cache.
+ *
+ * <p>With a {@code maxMemory} budget every shard also tracks the estimated bytes of its entries
+ * (see {@link Shard#entrySize}) and evicts until it is back under its share of the budget, however
+ * many entries that takes.
+ *
+ * <p>Expired keys are removed when they are read, and in the background by the ttl-janitor
+ * according to the {@link ExpiryMode}.
+ *
+ * <p>Every write is logged as an {@link AofRecord} to the AOF and, on a replication leader, to
+ * the {@link ReplicationBacklog} followers read from. A follower's store is read-only for clients
+ * and changed only by {@link #applyReplicated}.
  */
-public class InMemoryStore {
-    private final ConcurrentHashMap<String, ValueWrapper> map = new ConcurrentHashMap<>();
+public final class InMemoryStore {
+    private final Shard[] shards;
+    private final int shardShift;
     private final ScheduledExecutorService janitor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ttl-janitor"));
-    private final EvictionPolicy evictionPolicy;
-    private final AtomicLong hits = new AtomicLong();
-    private final AtomicLong misses = new AtomicLong();
     private final AppendOnlyFile aof;
+    private final SnapshotFile snapshots;
+    private final ExpiryMode expiryMode;
+    private volatile ReplicationBacklog replication;
+    private volatile boolean readOnly;
+    private volatile boolean expiryDeferred;
+
+    // sampled expiry, derived from the effort
+    private final int samplesPerLoop;
+    private final int acceptableStalePercent;
+    private final long cycleBudgetNanos;
+    private int nextSampledShard; // racing cycles only shift where the next one starts
+
+    private final AtomicLong expireCycleNanos = new AtomicLong();
+    private final AtomicLong expireTimeCapReached = new AtomicLong();
+    private volatile long lastExpireCycleNanos;
 
     public InMemoryStore(int maxEntries, AppendOnlyFile aof) {
-        this.evictionPolicy = new LRUEvictionPolicy(maxEntries);
+        this(maxEntries, 1, aof);
+    }
+
+    public InMemoryStore(int maxEntries, int shards, AppendOnlyFile aof) {
+        this(maxEntries, 0, shards, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+    }
+
+    public InMemoryStore(int maxEntries, long maxMemory, int shards, EvictionPolicyType policy, ExpiryMode expiryMode, AppendOnlyFile aof) {
+        this(maxEntries, maxMemory, shards, policy, expiryMode, 1, aof);
+    }
+
+    public InMemoryStore(int maxEntries, long maxMemory, int shards, EvictionPolicyType policy, ExpiryMode expiryMode,
+                         int expiryEffort, AppendOnlyFile aof) {
+        this(maxEntries, maxMemory, shards, policy, expiryMode, expiryEffort, aof, null);
+    }
+
+    /**
+     * @param maxMemory byte budget for keys, values and per-entry overhead, 0 for no limit
+     * @param shards number of shards, rounded up to a power of two
+     * @param policy eviction policy, one instance per shard
+     * @param expiryMode how the ttl-janitor finds expired keys
+     * @param expiryEffort 1 to 10; with {@link ExpiryMode#SAMPLED}, higher values sample more keys
+     *        per loop, tolerate fewer expired keys before stopping and allow longer cycles
+     * @param snapshots where SAVE and BGSAVE write to, null to refuse them
+     */
+    public InMemoryStore(int maxEntries, long maxMemory, int shards, EvictionPolicyType policy, ExpiryMode expiryMode,
+                         int expiryEffort, AppendOnlyFile aof, SnapshotFile snapshots) {
+        int count = shards <= 1 ? 1 : Integer.highestOneBit(Math.min(shards - 1, 1 << 15)) << 1;
+
+        this.shards = new Shard[count];
+        this.shardShift = 32 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            // spread the remainder so the shard capacities add up to maxEntries
+            int capacity = maxEntries / count + (i < maxEntries % count ? 1 : 0);
+            long memory = maxMemory <= 0 ? 0 : Math.max(1, maxMemory / count);
+            this.shards[i] = new Shard(i, policy.create(capacity), memory, expiryMode);
+        }
+
         this.aof = aof;
-        janitor.scheduleAtFixedRate(this::cleanupExpired, 1, 1, TimeUnit.SECONDS); // run cleanup every second
+        this.snapshots = snapshots;
+        this.expiryMode = expiryMode;
+
+        long periodMillis = expiryMode == ExpiryMode.SCAN ? 1000 : 100;
+
+        int effort = Math.max(1, Math.min(10, expiryEffort)) - 1;
+        this.samplesPerLoop = 20 + 5 * effort;
+        this.acceptableStalePercent = 10 - effort;
+        this.cycleBudgetNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis * (25 + 2 * effort) / 100);
+
+        janitor.scheduleAtFixedRate(this::expireCycle, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Log every write to {@code backlog} from now on, as well as to the AOF. Call before the store
+     * serves requests.
+     */
+    public void replicateTo(ReplicationBacklog backlog) {
+        this.replication = backlog;
+    }
+
+    /**
+     * Refuse writes from clients, as a follower does; {@link #applyReplicated} still changes the
+     * store.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Stop removing keys whose TTL has passed, on reads and in the ttl-janitor; they still read as
+     * missing. Only {@link #expireUpTo} and the writes of {@link #applyReplicated(AofRecord, long)}
+     * remove them then, so replicas that apply the same log at the same clock stay identical
+     * however late each applies it.
+     */
+    public void deferExpiry(boolean deferred) {
+        this.expiryDeferred = deferred;
+    }
+
+    private boolean logging() {
+        return aof != null || replication != null;
+    }
+
+    /**
+     * Log {@code record} before the change it describes is made, so a write the AOF refuses (see
+     * {@link com.atomkv.persistence.AofBackpressure#FAIL}) throws with nothing changed. Callers
+     * hold the key's lock, so nobody sees the record's key between the two.
+     */
+    private void log(AofRecord record) {
+        if (aof != null) {
+            aof.append(record);
+        }
+
+        ReplicationBacklog backlog = replication;
+        if (backlog != null) {
+            backlog.append(record);
+        }
+    }
+
+    /**
+     * Pick the shard from the top bits of a mixed hash; the low bits stay well distributed for the
+     * shard's own ConcurrentHashMap.
+     */
+    private Shard shardFor(String key) {
+        if (shards.length == 1) {
+            return shards[0];
+        }
+
+        int h = key.hashCode() * 0x9E3779B9;
+        return shards[h >>> shardShift];
     }
 
     public Optional<String> get(String key) {
-        ValueWrapper vw = map.get(key);
+        return Optional.ofNullable(getOrNull(key));
+    }
+
+    /**
+     * Same as {@link #get(String)} without the Optional.
+     */
+    public String getOrNull(String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The value of {@code key} as stored, for the per-request path; null if there is none. The
+     * array is shared with the store and must not be modified.
+     */
+    public byte[] getBytes(String key) {
+        Shard shard = shardFor(key);
+        ValueWrapper vw = shard.map.get(key);
 
         if (vw == null) {
-            misses.incrementAndGet();
+            shard.misses.incrementAndGet();
 
-            return Optional.empty();
+            return null;
         }
 
         if (vw.isExpired()) {
-            map.remove(key);
-            evictionPolicy.recordRemove(key);
-            misses.incrementAndGet();
+            if (!expiryDeferred) {
+                shard.expire(key, vw);
+            }
+            shard.misses.incrementAndGet();
 
-            return Optional.empty();
+            return null;
         }
 
-        evictionPolicy.recordAccess(key);
-        hits.incrementAndGet();
+        shard.evictionPolicy.recordAccess(key);
+        shard.hits.incrementAndGet();
 
-        return Optional.of(vw.getValue());
+        return vw.getBytes();
     }
 
     public void set(String key, String value, Duration ttl) {
-        long expireAt = (ttl == null) ? -1 : (System.currentTimeMillis() + ttl.toMillis());
+        set(key, value.getBytes(StandardCharsets.UTF_8), ttl);
+    }
 
-        map.put(key, new ValueWrapper(value, expireAt));
-        evictionPolicy.recordPut(key);
+    /**
+     * Store {@code value} as it is; the store keeps the array, so the caller must not modify it
+     * afterwards.
+     */
+    public void set(String key, byte[] value, Duration ttl) {
+        Shard shard = shardFor(key);
 
-        if (aof != null) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("SET ").append(escape(key)).append(' ').append(escape(value));
+        Lock gate = shard.cutLock.readLock();
+        gate.lock();
+        try {
+            long expireAt = (ttl == null) ? -1 : (System.currentTimeMillis() + ttl.toMillis());
 
-            if (ttl != null) {
-                sb.append(" PX ").append(ttl.toMillis());
+            Lock keyLock = shard.keyLock(key);
+            keyLock.lock();
+            try {
+                if (logging()) {
+                    log(AofRecord.setAt(key, value, expireAt));
+                }
+
+                shard.put(key, new ValueWrapper(value, expireAt));
+            } finally {
+                keyLock.unlock();
             }
-            sb.append(" ");
 
-            aof.append(sb.toString());
+            evictIfNeeded(shard);
+        } finally {
+            gate.unlock();
         }
-
-        evictIfNeeded();
     }
 
     public boolean del(String key) {
-        ValueWrapper removed = map.remove(key);
+        Shard shard = shardFor(key);
 
-        if (removed != null) {
-            evictionPolicy.recordRemove(key);
+        Lock gate = shard.cutLock.readLock();
+        Lock keyLock = shard.keyLock(key);
+        gate.lock();
+        keyLock.lock();
+        try {
+            if (!shard.map.containsKey(key)) {
+                return false;
+            }
 
-            if (aof != null) {
-                aof.append("DEL " + escape(key));
+            if (logging()) {
+                log(AofRecord.del(key));
             }
-            
+
+            shard.remove(key);
             return true;
+        } finally {
+            keyLock.unlock();
+            gate.unlock();
         }
-
-        return false;
     }
 
     public long ttl(String key) {
-        ValueWrapper vw = map.get(key);
+        Shard shard = shardFor(key);
+        ValueWrapper vw = shard.map.get(key);
 
         if (vw == null) {
             return -2;
@@ -102,59 +291,202 @@ public class InMemoryStore {
     }
 
     public boolean persist(String key) {
-        ValueWrapper vw = map.get(key);
+        Shard shard = shardFor(key);
 
-        if (vw == null) {
-            return false;
+        Lock gate = shard.cutLock.readLock();
+        Lock keyLock = shard.keyLock(key);
+        gate.lock();
+        keyLock.lock();
+        try {
+            ValueWrapper vw = shard.map.get(key);
+
+            // an expired key is gone for good, as it is when the PERSIST is replayed
+            if (vw == null || vw.isExpired()) {
+                return false;
+            }
+
+            if (logging()) {
+                log(AofRecord.persist(key));
+            }
+
+            vw.setExpireAtMillis(-1);
+            return true;
+        } finally {
+            keyLock.unlock();
+            gate.unlock();
         }
+    }
 
-        vw.setExpireAtMillis(-1);
-        
-        if (aof != null) {
-            aof.append("PERSIST " + escape(key));
+    /**
+     * Run one janitor cycle now; none while expiry is {@linkplain #deferExpiry deferred}.
+     *
+     * @return number of expired keys removed
+     */
+    public int expireCycle() {
+        return expiryDeferred ? 0 : expireUpTo(System.currentTimeMillis());
+    }
+
+    /**
+     * Run one janitor cycle as if the clock read {@code nowMillis}, even when expiry is
+     * {@linkplain #deferExpiry deferred}.
+     *
+     * @return number of expired keys removed
+     */
+    public int expireUpTo(long nowMillis) {
+        long start = System.nanoTime();
+        try {
+            return switch (expiryMode) {
+                case WHEEL -> expireFromWheels(nowMillis);
+                case SAMPLED -> expireBySampling(start, nowMillis);
+                case SCAN -> expireByScan(nowMillis);
+            };
+        } catch (RuntimeException e) {
+            // never let an exception cancel the scheduled janitor
+            System.err.println("Expiry cycle failed: " + e);
+            return 0;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            lastExpireCycleNanos = elapsed;
+            expireCycleNanos.addAndGet(elapsed);
         }
+    }
 
-        return true;
+    private int expireFromWheels(long now) {
+        List<TimingWheel.Entry> due = new ArrayList<>();
+        int removed = 0;
+
+        for (Shard shard : shards) {
+            due.clear();
+            shard.wheel.advance(now, due);
+
+            for (TimingWheel.Entry e : due) {
+                ValueWrapper vw = shard.map.get(e.key);
+
+                // a SET or EXPIRE with another deadline filed its own entry, and PERSIST cleared it
+                if (vw != null && vw.getExpireAtMillis() == e.expireAtMillis && e.expireAtMillis <= now && shard.expire(e.key, vw)) {
+                    removed++;
+                }
+            }
+        }
+
+        return removed;
     }
 
-    private void cleanupExpired() {
-        long now = System.currentTimeMillis();
+    /**
+     * Sample each shard's TTL keys, starting where the last cycle stopped, and keep sampling a
+     * shard while more than the acceptable share of its sample had expired. Stops early once the
+     * cycle has used its time budget.
+     */
+    private int expireBySampling(long start, long now) {
+        List<String> sample = new ArrayList<>(samplesPerLoop);
+        int removed = 0;
+        int loops = 0;
+
+        for (int visited = 0; visited < shards.length; visited++) {
+            Shard shard = shards[nextSampledShard];
+            nextSampledShard = (nextSampledShard + 1) & (shards.length - 1);
+
+            int sampled;
+            int expired;
+            do {
+                sample.clear();
+                shard.ttlKeys.sample(samplesPerLoop, sample);
+
+                sampled = sample.size();
+                expired = 0;
+                for (String key : sample) {
+                    ValueWrapper vw = shard.map.get(key);
+                    long exp = vw == null ? -1 : vw.getExpireAtMillis();
+
+                    if (exp <= 0) {
+                        // deleted or persisted since it was added; reclaiming it is progress too
+                        shard.ttlKeys.remove(key);
+                        expired++;
+                    } else if (exp <= now) {
+                        if (shard.expire(key, vw)) {
+                            removed++;
+                        }
+                        expired++;
+                    }
+                }
+
+                // the clock is only read every few loops
+                if ((++loops & 15) == 0 && System.nanoTime() - start > cycleBudgetNanos) {
+                    expireTimeCapReached.incrementAndGet();
+                    return removed;
+                }
+            } while (sampled > 0 && expired * 100 > sampled * acceptableStalePercent);
+        }
+
+        return removed;
+    }
+
+    private int expireByScan(long now) {
+        int removed = 0;
         
-        for (Map.Entry<String, ValueWrapper> entry : map.entrySet()) {
-            ValueWrapper v = entry.getValue();
-            
-            if (v.getExpireAtMillis() > 0 && v.getExpireAtMillis() <= now) {
-                map.remove(entry.getKey(), v);
-                evictionPolicy.recordRemove(entry.getKey());
+        for (Shard shard : shards) {
+            for (Map.Entry<String, ValueWrapper> entry : shard.map.entrySet()) {
+                ValueWrapper v = entry.getValue();
+
+                if (v.getExpireAtMillis() > 0 && v.getExpireAtMillis() <= now && shard.expire(entry.getKey(), v)) {
+                    removed++;
+                }
             }
         }
+
+        return removed;
     }
 
-    private void evictIfNeeded() {
-        Optional<String> toEvict = evictionPolicy.evictKeyIfNeeded(map.size());
+    /**
+     * Evict until the shard is within both its entry limit and its byte budget. Callers hold the
+     * shard's cut lock but no key lock. The write that called this is already done, so if the AOF
+     * refuses a delete the shard is left over budget rather than failing that write.
+     */
+    private void evictIfNeeded(Shard shard) {
+        while (shard.overBudget()) {
+            Optional<String> toEvict = shard.evictionPolicy.evictKey();
+            if (toEvict.isEmpty()) {
+                return;
+            }
 
-        toEvict.ifPresent(k -> {
-            map.remove(k);
-            if (aof != null) {
-                aof.append("DEL " + escape(k));
+            String k = toEvict.get();
+            Lock keyLock = shard.keyLock(k);
+            keyLock.lock();
+            try {
+                if (shard.map.containsKey(k) && logging()) {
+                    log(AofRecord.del(k));
+                }
+                shard.remove(k);
+            } catch (IllegalStateException e) {
+                // the AOF refused the delete: keep the key, and try again with the next write
+                shard.evictionPolicy.recordPut(k);
+                return;
+            } finally {
+                keyLock.unlock();
             }
-        });
+        }
     }
 
     public long keys() {
-        return map.size();
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.map.size();
+        }
+        return total;
     }
 
     public boolean exists(String key) {
-        ValueWrapper vw = map.get(key);
+        Shard shard = shardFor(key);
+        ValueWrapper vw = shard.map.get(key);
 
         if (vw == null) {
             return false;
         }
 
         if (vw.isExpired()) {
-            map.remove(key);
-            evictionPolicy.recordRemove(key);
+            if (!expiryDeferred) {
+                shard.expire(key, vw);
+            }
             return false;
         }
 
@@ -162,69 +494,58 @@ public class InMemoryStore {
     }
 
     public long incr(String key) {
-        while (true) {
-            ValueWrapper vw = map.get(key);
+        return increment(key, 1);
+    }
 
-            if (vw == null || vw.isExpired()) {
-                set(key, "1", null);
-                
-                if (aof != null) {
-                    aof.append("INCR " + escape(key));
-                }
+    public long decr(String key) {
+        return increment(key, -1);
+    }
 
-                return 1;
-            }
+    private long increment(String key, long delta) {
+        Shard shard = shardFor(key);
 
-            String v = vw.getValue();
-            long cur = 0;
+        Lock gate = shard.cutLock.readLock();
+        gate.lock();
+        try {
+            long next;
+            Lock keyLock = shard.keyLock(key);
+            keyLock.lock();
             try {
-                cur = Long.parseLong(v == null ? "0" : v);
-            } catch (NumberFormatException e) {
-                throw new RuntimeException("value is not an integer");
-            }
+                ValueWrapper vw = shard.map.get(key);
 
-            long next = cur + 1;
-            vw.setValue(Long.toString(next));
+                if (vw == null || vw.isExpired()) {
+                    next = delta;
+                    byte[] value = ValueWrapper.bytesOf(next);
 
-            if (aof != null) {
-                aof.append("INCR " + escape(key));
-            }
+                    if (logging()) {
+                        log(AofRecord.setAt(key, value, -1));
+                    }
 
-            return next;
-        }
-    }
+                    shard.put(key, new ValueWrapper(value, -1));
+                } else {
+                    byte[] v = vw.getBytes();
+                    try {
+                        next = ValueWrapper.parseLong(v) + delta;
+                    } catch (NumberFormatException e) {
+                        throw new RuntimeException("value is not an integer");
+                    }
 
-    public long decr(String key) {
-        while (true) {
-            ValueWrapper vw = map.get(key);
+                    if (logging()) {
+                        log(delta > 0 ? AofRecord.incr(key) : AofRecord.decr(key));
+                    }
 
-            if (vw == null || vw.isExpired()) {
-                set(key, "-1", null);
-                
-                if (aof != null) {
-                    aof.append("DECR " + escape(key));
+                    byte[] updated = ValueWrapper.bytesOf(next);
+                    vw.setBytes(updated);
+                    shard.resized(v == null ? 0 : v.length, updated.length);
                 }
-                
-                return -1;
-            }
-
-            String v = vw.getValue();
-            long cur = 0;
-
-            try {
-                cur = Long.parseLong(v == null ? "0" : v);
-            } catch (NumberFormatException e) {
-                throw new RuntimeException("value is not an integer");
-            }
-
-            long next = cur - 1;
-            vw.setValue(Long.toString(next));
-
-            if (aof != null) {
-                aof.append("DECR " + escape(key));
+            } finally {
+                keyLock.unlock();
             }
 
+            evictIfNeeded(shard);
             return next;
+        } finally {
+            gate.unlock();
         }
     }
 
@@ -251,28 +572,61 @@ public class InMemoryStore {
         List<String> out = new ArrayList<>();
         long now = System.currentTimeMillis();
 
-        for (Map.Entry<String, ValueWrapper> entry : map.entrySet()) {
-            String k = entry.getKey();
-            ValueWrapper v = entry.getValue();
+        for (Shard shard : shards) {
+            for (Map.Entry<String, ValueWrapper> entry : shard.map.entrySet()) {
+                String k = entry.getKey();
+                ValueWrapper v = entry.getValue();
 
-            if (v == null) {
-                continue;
-            }
+                if (v == null) {
+                    continue;
+                }
 
-            long exp = v.getExpireAtMillis();
+                long exp = v.getExpireAtMillis();
 
-            if (exp > 0 && exp <= now) {
-                continue;
-            }
+                if (exp > 0 && exp <= now) {
+                    continue;
+                }
 
-            if (p.matcher(k).matches()) {
-                out.add(k);
+                if (p.matcher(k).matches()) {
+                    out.add(k);
+                }
             }
         }
 
         return out;
     }
 
+    /**
+     * Keep track of the keys of each of {@code slots} hash slots, so that {@link #keysInSlot} does
+     * not visit every key. The keys already in the store are indexed as well.
+     */
+    public void indexSlots(ToIntFunction<String> slotOf, int slots) {
+        SlotIndex index = new SlotIndex(slotOf, slots);
+        for (Shard shard : shards) {
+            shard.slotIndex = index;
+        }
+
+        // keys put from here on index themselves; one deleted meanwhile is dropped by keysInSlot
+        for (Shard shard : shards) {
+            for (String key : shard.map.keySet()) {
+                index.added(key);
+            }
+        }
+    }
+
+    /**
+     * The live keys of {@code slot}.
+     *
+     * @throws IllegalStateException unless {@link #indexSlots} was called
+     */
+    public List<String> keysInSlot(int slot) {
+        SlotIndex index = shards[0].slotIndex;
+        if (index == null) {
+            throw new IllegalStateException("hash slots are not indexed");
+        }
+        return index.keys(slot, key -> shardFor(key).map.get(key));
+    }
+
     public java.util.List<String> mget(String... keys) {
         java.util.List<String> out = new java.util.ArrayList<>();
         for (String k : keys) {
@@ -291,61 +645,104 @@ public class InMemoryStore {
         for (int i = 0; i < kv.length; i += 2) {
             String k = kv[i];
             String v = kv[i + 1];
+            // each SET is logged, so the MSET itself is not
             set(k, v, null);
         }
+    }
 
-        if (aof != null) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("MSET");
+    public int expire(String key, long seconds) {
+        Shard shard = shardFor(key);
 
-            for (int i = 0; i < kv.length; i += 2) {
-                sb.append(' ').append(escape(kv[i])).append(' ').append(escape(kv[i + 1]));
+        Lock gate = shard.cutLock.readLock();
+        Lock keyLock = shard.keyLock(key);
+        gate.lock();
+        keyLock.lock();
+        try {
+            ValueWrapper vw = shard.map.get(key);
+            if (vw == null || vw.isExpired()) {
+                return 0;
             }
 
-            aof.append(sb.toString());
-        }
-    }
+            long expireAt = System.currentTimeMillis() + seconds * 1000L;
 
-    public int expire(String key, long seconds) {
-        ValueWrapper vw = map.get(key);
-        if (vw == null || vw.isExpired()) {
-            return 0;
-        }
+            if (logging()) {
+                log(AofRecord.expireAt(key, expireAt));
+            }
 
-        long expireAt = System.currentTimeMillis() + seconds * 1000L;
-        vw.setExpireAtMillis(expireAt);
+            vw.setExpireAtMillis(expireAt);
+            shard.scheduleExpiry(key, vw);
 
-        if (aof != null) {
-            aof.append("EXPIRE " + escape(key) + " " + Long.toString(seconds));
+            return 1;
+        } finally {
+            keyLock.unlock();
+            gate.unlock();
         }
-
-        return 1;
     }
 
     public boolean rename(String key, String newKey) {
-        ValueWrapper vw = map.get(key);
-        if (vw == null || vw.isExpired()) return false;
+        Shard from = shardFor(key);
+        Shard to = shardFor(newKey);
+
+        // both shards, in index order, so a cut sees the rename entirely or not at all
+        Lock first = (from.index <= to.index ? from : to).cutLock.readLock();
+        Lock second = (from.index <= to.index ? to : from).cutLock.readLock();
+        first.lock();
+        second.lock();
+        try {
+            List<Lock> keyLocks = keyLocks(from, key, to, newKey);
+            for (Lock l : keyLocks) {
+                l.lock();
+            }
+            try {
+                ValueWrapper vw = from.map.get(key);
+                if (vw == null || vw.isExpired()) return false;
 
-        map.put(newKey, vw);
-        map.remove(key);
+                if (logging()) {
+                    log(AofRecord.rename(key, newKey));
+                }
 
-        if (aof != null) {
-            aof.append("RENAME " + escape(key) + " " + escape(newKey));
+                // the two keys usually live in different shards, each with its own eviction order
+                from.remove(key);
+                to.put(newKey, vw);
+            } finally {
+                for (int i = keyLocks.size() - 1; i >= 0; i--) {
+                    keyLocks.get(i).unlock();
+                }
+            }
+
+            evictIfNeeded(to);
+
+            return true;
+        } finally {
+            second.unlock();
+            first.unlock();
         }
+    }
 
-        return true;
+    /**
+     * The locks of two keys, in the order every thread that takes two takes them.
+     */
+    private static List<Lock> keyLocks(Shard a, String keyA, Shard b, String keyB) {
+        Lock la = a.keyLock(keyA);
+        Lock lb = b.keyLock(keyB);
+        if (la == lb) {
+            return List.of(la);
+        }
+        return a.lockOrder(keyA) < b.lockOrder(keyB) ? List.of(la, lb) : List.of(lb, la);
     }
 
     public String type(String key) {
-        ValueWrapper vw = map.get(key);
+        Shard shard = shardFor(key);
+        ValueWrapper vw = shard.map.get(key);
 
         if (vw == null) {
             return "none";
         }
 
         if (vw.isExpired()) {
-            map.remove(key);
-            evictionPolicy.recordRemove(key);
+            if (!expiryDeferred) {
+                shard.expire(key, vw);
+            }
             return "none";
         }
 
@@ -353,16 +750,16 @@ public class InMemoryStore {
             return "ttl_key";
         }
 
-        String v = vw.getValue();
+        byte[] v = vw.getBytes();
         if (v == null) return "string";
 
         try {
-            Long.parseLong(v);
+            ValueWrapper.parseLong(v);
             return "number";
         } catch (NumberFormatException ignored) {}
 
         try {
-            Double.parseDouble(v);
+            Double.parseDouble(new String(v, StandardCharsets.ISO_8859_1));
             return "number";
         } catch (NumberFormatException ignored) {}
 
@@ -370,50 +767,214 @@ public class InMemoryStore {
     }
 
     public void flushAll() {
-        map.clear();
+        // excludes every other writer, so no write of any key is logged after the FLUSHALL but
+        // applied before it
+        for (Shard shard : shards) {
+            shard.cutLock.writeLock().lock();
+        }
+        try {
+            if (logging()) {
+                log(AofRecord.flushAll());
+            }
 
-        if (aof != null) {
-            aof.append("FLUSHALL");
+            for (Shard shard : shards) {
+                for (String key : shard.map.keySet()) {
+                    shard.remove(key);
+                }
+            }
+        } finally {
+            for (int i = shards.length - 1; i >= 0; i--) {
+                shards[i].cutLock.writeLock().unlock();
+            }
         }
     }
 
     public int append(String key, String suffix) {
-        ValueWrapper vw = map.get(key);
+        return append(key, suffix.getBytes(StandardCharsets.UTF_8));
+    }
 
-        if (vw == null || vw.isExpired()) {
-            set(key, suffix, null);
-            return suffix.length();
-        }
+    /**
+     * @return the length of the value in bytes afterwards
+     */
+    public int append(String key, byte[] suffix) {
+        Shard shard = shardFor(key);
 
-        vw.appendValue(suffix);
+        Lock gate = shard.cutLock.readLock();
+        gate.lock();
+        try {
+            int length;
+            Lock keyLock = shard.keyLock(key);
+            keyLock.lock();
+            try {
+                ValueWrapper vw = shard.map.get(key);
 
-        if (aof != null) {
-            aof.append("APPEND " + escape(key) + " " + escape(suffix));
-        }
+                if (vw == null || vw.isExpired()) {
+                    if (logging()) {
+                        log(AofRecord.setAt(key, suffix, -1));
+                    }
 
-        return vw.getValue() == null ? 0 : vw.getValue().length();
+                    shard.put(key, new ValueWrapper(suffix, -1));
+                    length = suffix.length;
+                } else {
+                    if (logging()) {
+                        log(AofRecord.append(key, suffix));
+                    }
+
+                    vw.appendBytes(suffix);
+                    shard.resized(0, suffix.length);
+                    length = vw.length();
+                }
+            } finally {
+                keyLock.unlock();
+            }
+
+            evictIfNeeded(shard);
+
+            return length;
+        } finally {
+            gate.unlock();
+        }
     }
 
     public long strlen(String key) {
-        ValueWrapper vw = map.get(key);
+        Shard shard = shardFor(key);
+        ValueWrapper vw = shard.map.get(key);
 
         if (vw == null || vw.isExpired()) {
             return 0;
         }
 
-        String v = vw.getValue();
-        return v == null ? 0 : v.length();
+        return vw.length();
+    }
+
+    /**
+     * Estimated bytes held by all entries.
+     */
+    public long usedMemory() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.usedMemory.get();
+        }
+        return total;
+    }
+
+    public long maxMemory() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.maxMemory;
+        }
+        return total;
     }
 
     public long hits() {
-        return hits.get();
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.hits.get();
+        }
+        return total;
     }
 
     public long misses() {
-        return misses.get();
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.misses.get();
+        }
+        return total;
+    }
+
+    /**
+     * Keys removed because their TTL passed, whether found by a read or by the ttl-janitor.
+     */
+    public long expiredKeys() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.expiredKeys.get();
+        }
+        return total;
+    }
+
+    public long lastExpireCycleMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(lastExpireCycleNanos);
+    }
+
+    public long expireCycleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(expireCycleNanos.get());
+    }
+
+    /**
+     * Sampled expiry cycles that stopped because they ran out of time.
+     */
+    public long expireTimeCapReached() {
+        return expireTimeCapReached.get();
+    }
+
+    /**
+     * Start compacting the AOF in the background (BGREWRITEAOF).
+     *
+     * @return false if a rewrite is already running
+     */
+    public boolean rewriteAof() {
+        if (aof == null) {
+            throw new IllegalStateException("AOF is disabled");
+        }
+
+        return aof.rewriteInBackground(this);
+    }
+
+    /**
+     * Write a snapshot on the calling thread.
+     *
+     * @return false if a background save is running
+     */
+    public boolean save() throws java.io.IOException {
+        if (snapshots == null) {
+            throw new IllegalStateException("snapshots are disabled");
+        }
+
+        return snapshots.save(this);
+    }
+
+    /**
+     * @return false if a save is already running
+     */
+    public boolean saveInBackground() {
+        if (snapshots == null) {
+            throw new IllegalStateException("snapshots are disabled");
+        }
+
+        return snapshots.saveInBackground(this);
+    }
+
+    /**
+     * Insert an entry read from a snapshot as it is: not logged to the AOF and not evicted until
+     * {@link #finishLoad()}. Only for loading before the store serves requests.
+     *
+     * @param expireAtMillis absolute deadline, -1 for none
+     */
+    public void loadEntry(String key, byte[] value, long expireAtMillis) {
+        shardFor(key).put(key, new ValueWrapper(value, expireAtMillis));
+    }
+
+    /**
+     * Evict whatever loaded entries put the store over its limits.
+     */
+    public void finishLoad() {
+        for (Shard shard : shards) {
+            evictIfNeeded(shard);
+        }
+    }
+
+    /**
+     * Wait until the AOF lines written by this thread are durable, as far as the fsync policy
+     * promises; call before acknowledging writes.
+     */
+    public void awaitDurable() throws java.io.IOException {
+        if (aof != null) {
+            aof.awaitDurable();
+        }
     }
 
-    public void close() throws Exception {
+    public void close() throws java.io.IOException {
         janitor.shutdownNow();
         if (aof != null) {
             aof.close();
@@ -428,18 +989,20 @@ public class InMemoryStore {
         Map<String, String> copy = new java.util.HashMap<>();
         long now = System.currentTimeMillis();
 
-        for (Map.Entry<String, ValueWrapper> entry : map.entrySet()) {
-            ValueWrapper v = entry.getValue();
-            if (v == null) {
-                continue;
-            }
+        for (Shard shard : shards) {
+            for (Map.Entry<String, ValueWrapper> entry : shard.map.entrySet()) {
+                ValueWrapper v = entry.getValue();
+                if (v == null) {
+                    continue;
+                }
 
-            long exp = v.getExpireAtMillis();
-            if (exp > 0 && exp <= now) {
-                continue;
-            }
+                long exp = v.getExpireAtMillis();
+                if (exp > 0 && exp <= now) {
+                    continue;
+                }
 
-            copy.put(entry.getKey(), v.getValue());
+                copy.put(entry.getKey(), v.getValue());
+            }
         }
 
         return copy;
@@ -453,209 +1016,333 @@ public class InMemoryStore {
         Map<String, Map<String, Object>> out = new java.util.HashMap<>();
         long now = System.currentTimeMillis();
 
-        for (Map.Entry<String, ValueWrapper> entry : map.entrySet()) {
-            ValueWrapper v = entry.getValue();
-            if (v == null) {
-                continue;
-            }
+        for (Shard shard : shards) {
+            for (Map.Entry<String, ValueWrapper> entry : shard.map.entrySet()) {
+                ValueWrapper v = entry.getValue();
+                if (v == null) {
+                    continue;
+                }
 
-            long exp = v.getExpireAtMillis();
-            if (exp > 0 && exp <= now) {
-                continue;
-            }
+                long exp = v.getExpireAtMillis();
+                if (exp > 0 && exp <= now) {
+                    continue;
+                }
 
-            Map<String, Object> meta = new java.util.HashMap<>();
-            meta.put("value", v.getValue());
-            
-            long ttl = (exp <= 0) ? -1L : Math.max(0L, exp - now);
-            meta.put("ttl", ttl);
-            meta.put("expireAt", exp);
+                Map<String, Object> meta = new java.util.HashMap<>();
+                meta.put("value", v.getValue());
 
-            out.put(entry.getKey(), meta);
+                long ttl = (exp <= 0) ? -1L : Math.max(0L, exp - now);
+                meta.put("ttl", ttl);
+                meta.put("expireAt", exp);
+
+                out.put(entry.getKey(), meta);
+            }
         }
 
         return out;
     }
 
-    public void applyCommandFromAOF(String line) {
-        if (line == null || line.isBlank()) {
-            return;
-        }
+    /**
+     * Copy every live entry at a single point in time. Writes that go to the AOF are held back at
+     * every shard while {@code atCut} runs, then each shard lets them go on as soon as it has been
+     * copied, so every logged write is either in the copy or appended after {@code atCut}
+     * returned, never both. A write waits at most for its own shards to be copied, and only
+     * references are copied, so serializing the copy can happen afterwards.
+     */
+    public StoreSnapshot snapshot(Runnable atCut) {
+        return snapshot(atCut, System.currentTimeMillis());
+    }
 
-        String[] parts = splitPreserveQuotes(line);
-        if (parts.length == 0) {
-            return;
+    /**
+     * Same as {@link #snapshot(Runnable)}, leaving out the entries expired as of {@code nowMillis}.
+     */
+    public StoreSnapshot snapshot(Runnable atCut, long nowMillis) {
+        for (Shard shard : shards) {
+            shard.cutLock.writeLock().lock();
         }
 
-        String cmd = parts[0].toUpperCase();
-        
+        int copied = 0;
         try {
-            switch (cmd) {
-                case "SET": {
-                    if (parts.length < 3) {
-                        break;
-                    }
+            atCut.run();
 
-                    String key = unescape(parts[1]);
-                    String value = unescape(parts[2]);
-                    
-                    long px = -1;
-                    if (parts.length >= 5 && "PX".equalsIgnoreCase(parts[3])) {
-                        px = Long.parseLong(parts[4]);
-                    }
-                    
-                    set(key, value, (px > 0) ? Duration.ofMillis(px) : null);
-                    
-                    break;
-                }
+            long now = nowMillis;
+            StoreSnapshot.Builder builder = new StoreSnapshot.Builder((int) Math.min(keys(), Integer.MAX_VALUE));
 
-                case "DEL": {
-                    if (parts.length >= 2) {
-                        del(unescape(parts[1]));
-                    }
-
-                    break;
-                }
+            for (Shard shard : shards) {
+                for (Map.Entry<String, ValueWrapper> entry : shard.map.entrySet()) {
+                    ValueWrapper v = entry.getValue();
+                    long exp = v.getExpireAtMillis();
 
-                case "PERSIST": {
-                    if (parts.length >= 2) {
-                        persist(unescape(parts[1]));
+                    if (exp <= 0 || exp > now) {
+                        builder.add(entry.getKey(), v.getBytes(), exp);
                     }
-
-                    break;
                 }
 
-                case "APPEND": {
-                    if (parts.length >= 3) {
-                        String key = unescape(parts[1]);
-                        String value = unescape(parts[2]);
-                        append(key, value);
-                    }
-
-                    break;
-                }
+                // this shard's writes all come after the cut now, whether or not the rest is copied
+                shard.cutLock.writeLock().unlock();
+                copied++;
+            }
 
-                case "INCR": {
-                    if (parts.length >= 2) {
-                        incr(unescape(parts[1]));
-                    }
+            return builder.build(now);
+        } finally {
+            for (int i = shards.length - 1; i >= copied; i--) {
+                shards[i].cutLock.writeLock().unlock();
+            }
+        }
+    }
 
-                    break;
-                }
+    /**
+     * The live value of {@code key} with its absolute deadline, as a record that recreates it
+     * elsewhere, or null if there is none. Used to move a key to another node.
+     */
+    public AofRecord dump(String key) {
+        Shard shard = shardFor(key);
 
-                case "DECR": {
-                    if (parts.length >= 2) {
-                        decr(unescape(parts[1]));
-                    }
+        Lock gate = shard.cutLock.writeLock();
+        gate.lock();
+        try {
+            ValueWrapper vw = live(shard, key, System.currentTimeMillis());
+            return vw == null ? null : AofRecord.setAt(key, vw.getBytes(), vw.getExpireAtMillis());
+        } finally {
+            gate.unlock();
+        }
+    }
 
-                    break;
-                }
+    /**
+     * The value of {@code key} with its absolute deadline as of {@code nowMillis}, as {@link #dump}
+     * returns it, without removing the key if it has expired by then.
+     */
+    public AofRecord peek(String key, long nowMillis) {
+        ValueWrapper vw = shardFor(key).map.get(key);
+        if (vw == null) {
+            return null;
+        }
 
-                case "MSET": {
-                    if (parts.length >= 3) {
-                        String[] kv = new String[parts.length - 1];
-                        for (int i = 1; i < parts.length; i++) kv[i - 1] = unescape(parts[i]);
-                        mset(kv);
-                    }
+        long expireAt = vw.getExpireAtMillis();
+        return expireAt > 0 && expireAt <= nowMillis ? null : AofRecord.setAt(key, vw.getBytes(), expireAt);
+    }
 
-                    break;
-                }
+    /**
+     * Delete the key of a {@link #dump} record, and log the delete, only if neither its value nor
+     * its deadline has changed since.
+     *
+     * @return false if the key was written or deleted in between
+     */
+    public boolean removeIfUnchanged(AofRecord dumped) {
+        String key = dumped.key();
+        Shard shard = shardFor(key);
 
-                case "EXPIRE": {
-                    if (parts.length >= 3) {
-                        String key = unescape(parts[1]);
-                        long secs = Long.parseLong(parts[2]);
-                        expire(key, secs);
-                    }
+        // excludes every writer of the shard for the compare, not just the writers of this key
+        Lock gate = shard.cutLock.writeLock();
+        gate.lock();
+        try {
+            ValueWrapper vw = shard.map.get(key);
+            // a record has 0 for no deadline where the store has -1
+            if (vw == null || Math.max(0, vw.getExpireAtMillis()) != dumped.number() || !Arrays.equals(vw.getBytes(), dumped.valueBytes())) {
+                return false;
+            }
 
-                    break;
-                }
+            if (logging()) {
+                log(AofRecord.del(key));
+            }
+            shard.remove(key);
+            return true;
+        } finally {
+            gate.unlock();
+        }
+    }
 
-                case "RENAME": {
-                    if (parts.length >= 3) {
-                        rename(unescape(parts[1]), unescape(parts[2]));
-                    }
+    /**
+     * Apply a write received from the replication leader and log it to this store's own AOF.
+     * Nothing is evicted, since the leader's evictions arrive as deletes of their own.
+     */
+    public void applyReplicated(AofRecord record) {
+        applyReplicated(record, System.currentTimeMillis());
+    }
 
-                    break;
+    /**
+     * Same as {@link #applyReplicated(AofRecord)} as if the clock read {@code nowMillis}: relative
+     * TTLs count from it, and keys whose deadline has passed by then are gone.
+     */
+    public void applyReplicated(AofRecord record, long nowMillis) {
+        List<Lock> gates = new ArrayList<>(4);
+        switch (record.op()) {
+            case FLUSHALL, MSET -> {
+                // every key may change, so every other writer is kept out
+                for (Shard shard : shards) {
+                    gates.add(shard.cutLock.writeLock());
                 }
-
-                case "FLUSHALL": {
-                    flushAll();
-                    break;
+            }
+            case RENAME -> {
+                Shard from = shardFor(record.key());
+                Shard to = shardFor(record.value());
+                gates.add((from.index <= to.index ? from : to).cutLock.readLock());
+                if (from != to) {
+                    gates.add((from.index <= to.index ? to : from).cutLock.readLock());
                 }
+                gates.addAll(keyLocks(from, record.key(), to, record.value()));
+            }
+            default -> {
+                Shard shard = shardFor(record.key());
+                gates.add(shard.cutLock.readLock());
+                gates.add(shard.keyLock(record.key()));
+            }
+        }
 
-                default:
-                    // ignore unknown commands
+        for (Lock gate : gates) {
+            gate.lock();
+        }
+        try {
+            if (logging()) {
+                log(record);
+            }
+            try {
+                loadRecord(record, nowMillis);
+            } catch (RuntimeException e) {
+                System.err.println("Error applying replicated record: " + record + " -> " + e.getMessage());
+            }
+        } finally {
+            for (int i = gates.size() - 1; i >= 0; i--) {
+                gates.get(i).unlock();
             }
-        } catch (Exception e) {
-            System.err.println("Error replaying AOF line: " + line + " -> " + e.getMessage());
         }
     }
 
-    private static String escape(String s) {
-        if (s == null) {
-            return "";
+    /**
+     * Load one line of an old text AOF, as {@link #loadRecord} does.
+     */
+    public void applyCommandFromAOF(String line) {
+        AofRecord record;
+        try {
+            record = AofRecord.parseText(line);
+        } catch (NumberFormatException e) {
+            System.err.println("Error replaying AOF line: " + line + " -> " + e.getMessage());
+            return;
         }
-        
-        s = s.trim();
 
-        if (s.contains(" ") || s.contains("\n") || s.contains("\r")) {
-            return '"' + s.replace("\"", "\\\"") + '"';
+        if (record != null) {
+            loadRecord(record);
         }
+    }
 
-        return s;
+    /**
+     * Apply one AOF record while loading: the change is made on the shard directly, without
+     * logging it again and without evicting until {@link #finishLoad()}. Absolute deadlines that
+     * have already passed remove the key, as the janitor would have. Only for loading before the
+     * store serves requests.
+     *
+     * @throws RuntimeException if the record cannot be applied, such as an INCR of a value that is
+     *         not a number; the store is left as it was
+     */
+    public void loadRecord(AofRecord record) {
+        loadRecord(record, System.currentTimeMillis());
     }
 
-    private static String unescape(String s) {
-        if (s == null) {
-            return null;
+    private void loadRecord(AofRecord record, long now) {
+        String key = record.key();
+
+        switch (record.op()) {
+            case SET -> loadValue(key, record.valueBytes(), record.number() > 0 ? now + record.number() : -1, now);
+            case SETPXAT -> loadValue(key, record.valueBytes(), record.number(), now);
+            case DEL -> shardFor(key).remove(key);
+            case PERSIST -> {
+                ValueWrapper vw = live(shardFor(key), key, now);
+                if (vw != null) {
+                    vw.setExpireAtMillis(-1);
+                }
+            }
+            case EXPIRE -> loadDeadline(key, now + record.number() * 1000L, now);
+            case PEXPIREAT -> loadDeadline(key, record.number(), now);
+            case INCR -> loadIncrement(key, 1, now);
+            case DECR -> loadIncrement(key, -1, now);
+            case APPEND -> {
+                Shard shard = shardFor(key);
+                ValueWrapper vw = live(shard, key, now);
+                if (vw == null) {
+                    shard.put(key, new ValueWrapper(record.valueBytes(), -1));
+                } else {
+                    vw.appendBytes(record.valueBytes());
+                    shard.resized(0, record.valueBytes().length);
+                }
+            }
+            case RENAME -> {
+                Shard from = shardFor(key);
+                ValueWrapper vw = live(from, key, now);
+                if (vw != null) {
+                    String newKey = record.value();
+                    from.remove(key);
+                    shardFor(newKey).put(newKey, vw);
+                }
+            }
+            case MSET -> {
+                byte[][] kv = record.pairs();
+                for (int i = 0; i + 1 < kv.length; i += 2) {
+                    loadValue(new String(kv[i], StandardCharsets.UTF_8), kv[i + 1], -1, now);
+                }
+            }
+            case FLUSHALL -> {
+                for (Shard shard : shards) {
+                    for (String k : shard.map.keySet()) {
+                        shard.remove(k);
+                    }
+                }
+            }
         }
+    }
 
-        s = s.trim();
-        
-        if (s.startsWith("\"") && s.endsWith("\"")) {
-            String inner = s.substring(1, s.length() - 1);
-            return inner.replace("\\\"", "\"");
+    private void loadValue(String key, byte[] value, long expireAt, long now) {
+        Shard shard = shardFor(key);
+        if (expireAt > 0 && expireAt <= now) {
+            shard.remove(key);
+        } else {
+            shard.put(key, new ValueWrapper(value, expireAt));
         }
-        
-        return s;
     }
 
-    private static String[] splitPreserveQuotes(String line) {
-        java.util.List<String> parts = new java.util.ArrayList<>();
-
-        if (line == null || line.isBlank()) {
-            return new String[0];
+    private void loadDeadline(String key, long expireAt, long now) {
+        Shard shard = shardFor(key);
+        ValueWrapper vw = live(shard, key, now);
+        if (vw == null) {
+            return;
         }
 
-        StringBuilder cur = new StringBuilder();
-        boolean inQuotes = false;
-
-        for (int i = 0; i < line.length(); i++) {
-            char c = line.charAt(i);
-        
-            if (c == '"') {
-                inQuotes = !inQuotes;
-                cur.append(c);
-                continue;
-            }
+        if (expireAt <= now) {
+            shard.remove(key);
+        } else {
+            vw.setExpireAtMillis(expireAt);
+            shard.scheduleExpiry(key, vw);
+        }
+    }
 
-            if (c == ' ' && !inQuotes) {
-                if (cur.length() > 0) {
-                    parts.add(cur.toString());
-                    cur.setLength(0);
-                }
+    private void loadIncrement(String key, long delta, long now) {
+        Shard shard = shardFor(key);
+        ValueWrapper vw = live(shard, key, now);
+        if (vw == null) {
+            shard.put(key, new ValueWrapper(ValueWrapper.bytesOf(delta), -1));
+            return;
+        }
 
-                continue;
-            }
+        byte[] v = vw.getBytes();
+        byte[] updated = ValueWrapper.bytesOf(ValueWrapper.parseLong(v) + delta);
+        vw.setBytes(updated);
+        shard.resized(v == null ? 0 : v.length, updated.length);
+    }
 
-            cur.append(c);
+    /**
+     * The key's entry, or null if it is missing or its deadline passed during the load.
+     */
+    private static ValueWrapper live(Shard shard, String key, long now) {
+        ValueWrapper vw = shard.map.get(key);
+        if (vw == null) {
+            return null;
         }
 
-        if (cur.length() > 0) {
-            parts.add(cur.toString());
+        long expireAt = vw.getExpireAtMillis();
+        if (expireAt > 0 && expireAt <= now) {
+            shard.remove(key, vw);
+            return null;
         }
 
-        return parts.toArray(new String[0]);
+        return vw;
     }
-}
\ No newline at end of file
+}
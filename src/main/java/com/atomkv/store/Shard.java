@@ -0,0 +1,188 @@
+package com.atomkv.store;
+
+import com.atomkv.eviction.EvictionPolicy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * One independent slice of an {@link InMemoryStore}: its own map, eviction state, memory
+ * accounting and hit/miss counters. Keys never move between shards, so operations on different
+ * shards share nothing.
+ *
+ * <p>Entries are added and removed through {@link #put} and {@link #remove} so that the eviction
+ * policy, {@link #usedMemory}, the expiry index (wheel or sampled key set) and the slot index stay
+ * in step with the map.
+ */
+final class Shard {
+    /**
+     * Rough per-entry cost besides the key characters and value bytes: the key's String header
+     * with its array, the value array's header, the ValueWrapper, the map node and the eviction
+     * policy's own node.
+     */
+    static final long ENTRY_OVERHEAD = 40 + 16 + 24 + 32 + 48;
+
+    private static final int KEY_LOCKS = 64;
+
+    final int index;
+    final ConcurrentHashMap<String, ValueWrapper> map = new ConcurrentHashMap<>();
+    final EvictionPolicy evictionPolicy;
+    final long maxMemory;
+    final TimingWheel wheel; // null unless keys expire through a timing wheel
+    final TtlKeySet ttlKeys; // null unless expired keys are found by sampling
+    final AtomicLong usedMemory = new AtomicLong();
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong expiredKeys = new AtomicLong();
+    volatile SlotIndex slotIndex; // null unless the store serves part of a cluster
+
+    /**
+     * Held shared by every mutation that is written to the AOF, from the change to the append, and
+     * exclusively while {@link InMemoryStore#snapshot(Runnable)} copies the shard or a FLUSHALL
+     * clears it. Either side of a snapshot then sees a logged write entirely or not at all.
+     */
+    final ReentrantReadWriteLock cutLock = new ReentrantReadWriteLock();
+
+    /**
+     * Locks shared by the keys of equal hash bits. A writer holds its key's lock, inside
+     * {@link #cutLock}, from reading the entry to logging the change, so the writes of one key
+     * reach the AOF and the replication backlog in the order they were made and a
+     * read-modify-write cannot lose an update. A thread that needs two takes them in
+     * {@link #lockOrder} order, and evicts only after letting them go.
+     */
+    private final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCKS];
+
+    /**
+     * @param maxMemory byte budget of this shard, 0 for none
+     */
+    Shard(int index, EvictionPolicy evictionPolicy, long maxMemory, ExpiryMode expiryMode) {
+        this.index = index;
+        this.evictionPolicy = evictionPolicy;
+        this.maxMemory = maxMemory;
+        this.wheel = expiryMode == ExpiryMode.WHEEL ? new TimingWheel(System.currentTimeMillis()) : null;
+        this.ttlKeys = expiryMode == ExpiryMode.SAMPLED ? new TtlKeySet(this) : null;
+        for (int i = 0; i < KEY_LOCKS; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+    }
+
+    Lock keyLock(String key) {
+        return keyLocks[stripe(key)];
+    }
+
+    /**
+     * Position of {@code key}'s lock among the locks of all shards.
+     */
+    int lockOrder(String key) {
+        return index * KEY_LOCKS + stripe(key);
+    }
+
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (KEY_LOCKS - 1);
+    }
+
+    static long entrySize(String key, byte[] value) {
+        return ENTRY_OVERHEAD + key.length() + (value == null ? 0 : value.length);
+    }
+
+    /**
+     * Insert or replace; returns the previous wrapper.
+     */
+    ValueWrapper put(String key, ValueWrapper vw) {
+        ValueWrapper previous = map.put(key, vw);
+
+        long delta = entrySize(key, vw.getBytes());
+        if (previous != null) {
+            delta -= entrySize(key, previous.getBytes());
+        }
+        usedMemory.addAndGet(delta);
+        evictionPolicy.recordPut(key);
+        scheduleExpiry(key, vw);
+
+        SlotIndex index = slotIndex;
+        if (previous == null && index != null) {
+            index.added(key);
+        }
+
+        return previous;
+    }
+
+    /**
+     * File the key's current deadline with the expiry wheel or sampled key set, if there is one.
+     * Called again whenever the deadline changes; older wheel entries are discarded when they fire.
+     */
+    void scheduleExpiry(String key, ValueWrapper vw) {
+        long expireAt = vw.getExpireAtMillis();
+        if (expireAt <= 0) {
+            return;
+        }
+
+        if (wheel != null) {
+            wheel.schedule(key, expireAt);
+        } else if (ttlKeys != null) {
+            ttlKeys.add(key);
+        }
+    }
+
+    ValueWrapper remove(String key) {
+        ValueWrapper removed = map.remove(key);
+
+        if (removed != null) {
+            removed(key, removed);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Remove only if the key still maps to {@code expected}, as when an expired entry is reaped.
+     */
+    boolean remove(String key, ValueWrapper expected) {
+        if (!map.remove(key, expected)) {
+            return false;
+        }
+
+        removed(key, expected);
+        return true;
+    }
+
+    /**
+     * Remove an entry whose deadline has passed, counting it in {@link #expiredKeys}.
+     */
+    boolean expire(String key, ValueWrapper expired) {
+        if (!remove(key, expired)) {
+            return false;
+        }
+
+        expiredKeys.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Account for a value that changed length in place (APPEND, INCR).
+     */
+    void resized(int oldLength, int newLength) {
+        usedMemory.addAndGet(newLength - oldLength);
+    }
+
+    boolean overBudget() {
+        return evictionPolicy.capacity() < map.size() || (maxMemory > 0 && usedMemory.get() > maxMemory);
+    }
+
+    private void removed(String key, ValueWrapper vw) {
+        usedMemory.addAndGet(-entrySize(key, vw.getBytes()));
+        evictionPolicy.recordRemove(key);
+        if (ttlKeys != null) {
+            ttlKeys.remove(key);
+        }
+
+        SlotIndex index = slotIndex;
+        if (index != null) {
+            index.removed(key, map);
+        }
+    }
+}
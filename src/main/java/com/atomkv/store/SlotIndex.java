@@ -0,0 +1,67 @@
+package com.atomkv.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * The keys of each hash slot, for a store that serves part of a cluster. The shards keep it up to
+ * date as keys come and go, so finding the keys of one slot does not mean visiting every key.
+ *
+ * <p>A slot may list a key that is already gone after racing with a concurrent put; {@link #keys}
+ * leaves those out and drops them. The opposite never happens: {@link #removed} puts the key back
+ * while the shard still holds it, so a key cannot be missed when its slot is moved.
+ */
+final class SlotIndex {
+    private final ToIntFunction<String> slotOf;
+    private final List<Set<String>> bySlot;
+
+    SlotIndex(ToIntFunction<String> slotOf, int slots) {
+        this.slotOf = slotOf;
+        this.bySlot = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            bySlot.add(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    void added(String key) {
+        bySlot.get(slotOf.applyAsInt(key)).add(key);
+    }
+
+    /**
+     * Forget the key unless {@code map}, its shard's map, still holds it. Called after the key
+     * left the map, so it cannot undo a concurrent put's {@link #added}.
+     */
+    void removed(String key, Map<String, ?> map) {
+        Set<String> keys = bySlot.get(slotOf.applyAsInt(key));
+        keys.remove(key);
+        if (map.containsKey(key)) {
+            keys.add(key);
+        }
+    }
+
+    /**
+     * The keys of {@code slot} that {@code lookup} finds and that have not expired. The ones it
+     * does not find at all are dropped.
+     */
+    List<String> keys(int slot, Function<String, ValueWrapper> lookup) {
+        Set<String> keys = bySlot.get(slot);
+        List<String> live = new ArrayList<>();
+        for (String key : keys) {
+            ValueWrapper vw = lookup.apply(key);
+            if (vw == null) {
+                keys.remove(key);
+                if (lookup.apply(key) != null) {
+                    keys.add(key);
+                }
+            } else if (!vw.isExpired()) {
+                live.add(key);
+            }
+        }
+        return live;
+    }
+}
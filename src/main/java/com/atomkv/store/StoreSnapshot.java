@@ -0,0 +1,83 @@
+package com.atomkv.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Point-in-time copy of every live entry of an {@link InMemoryStore}, taken by
+ * {@link InMemoryStore#snapshot(Runnable)}. Only references are copied; keys are immutable
+ * Strings and the store never changes a value array once stored, so the copy stays valid however
+ * the store changes afterwards.
+ */
+public final class StoreSnapshot {
+    private final String[] keys;
+    private final byte[][] values;
+    private final long[] expireAt;
+    private final int size;
+    private final long takenAtMillis;
+
+    StoreSnapshot(String[] keys, byte[][] values, long[] expireAt, int size, long takenAtMillis) {
+        this.keys = keys;
+        this.values = values;
+        this.expireAt = expireAt;
+        this.size = size;
+        this.takenAtMillis = takenAtMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Wall clock time of the cut; the remaining TTL of an entry is measured from here.
+     */
+    public long takenAtMillis() {
+        return takenAtMillis;
+    }
+
+    public void forEach(EntryVisitor visitor) throws IOException {
+        for (int i = 0; i < size; i++) {
+            visitor.visit(keys[i], values[i], expireAt[i]);
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryVisitor {
+        /**
+         * @param expireAtMillis absolute deadline, -1 for none
+         */
+        void visit(String key, byte[] value, long expireAtMillis) throws IOException;
+    }
+
+    static final class Builder {
+        private String[] keys;
+        private byte[][] values;
+        private long[] expireAt;
+        private int size;
+
+        Builder(int expected) {
+            int capacity = Math.max(16, expected);
+            keys = new String[capacity];
+            values = new byte[capacity][];
+            expireAt = new long[capacity];
+        }
+
+        void add(String key, byte[] value, long expireAtMillis) {
+            if (size == keys.length) {
+                int capacity = size + (size >> 1);
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                expireAt = Arrays.copyOf(expireAt, capacity);
+            }
+
+            keys[size] = key;
+            values[size] = value;
+            expireAt[size] = expireAtMillis;
+            size++;
+        }
+
+        StoreSnapshot build(long takenAtMillis) {
+            return new StoreSnapshot(keys, values, expireAt, size, takenAtMillis);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.atomkv.store;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hierarchical timing wheel of keys waiting to expire, so the janitor only looks at the keys
+ * whose time has come instead of walking the whole map.
+ *
+ * <p>Level 0 has 64 slots of {@link #TICK_MILLIS} each; every level above has 64 slots, each
+ * spanning a whole turn of the level below. An entry is filed at the lowest level whose range
+ * covers its deadline. When the lower level wraps around, the next slot of the level above is
+ * emptied and its entries are filed again, now with finer precision. Deadlines beyond the top
+ * level wait in its furthest slot and are refiled from there.
+ *
+ * <p>Entries are never cancelled. An entry holds only the key and the deadline it was scheduled
+ * for, not the value, so an overwritten value is not kept alive until its old deadline. When it
+ * fires it is ignored unless the key still has that same deadline: after PERSIST it has none, and
+ * after SET or EXPIRE with another deadline a new entry was scheduled for it.
+ */
+final class TimingWheel {
+    static final long TICK_MILLIS = 10;
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 6; // 64^6 ticks of 10 ms is about 21 years
+
+    private final Entry[][] wheels = new Entry[LEVELS][SLOTS];
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long nowMillis) {
+        this.currentTick = nowMillis / TICK_MILLIS;
+    }
+
+    void schedule(String key, long expireAtMillis) {
+        lock.lock();
+        try {
+            // round up, so that by the time the entry fires the deadline really has passed
+            insert(new Entry(key, expireAtMillis, (expireAtMillis + TICK_MILLIS - 1) / TICK_MILLIS));
+            size++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move the wheel up to {@code nowMillis} and collect every entry that came due on the way.
+     * The caller checks each one against the map before removing anything.
+     */
+    void advance(long nowMillis, List<Entry> due) {
+        long target = nowMillis / TICK_MILLIS;
+
+        lock.lock();
+        try {
+            while (currentTick < target) {
+                currentTick++;
+                cascade(due);
+
+                int slot = (int) (currentTick & (SLOTS - 1));
+                Entry e = wheels[0][slot];
+                wheels[0][slot] = null;
+
+                for (; e != null; e = e.next) {
+                    due.add(e);
+                    size--;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * At each boundary of level {@code n}, refile the level {@code n + 1} slot that now begins.
+     * Entries whose tick is the current one are due straight away.
+     */
+    private void cascade(List<Entry> due) {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+                return;
+            }
+
+            int slot = (int) ((currentTick >>> (BITS * level)) & (SLOTS - 1));
+            Entry e = wheels[level][slot];
+            wheels[level][slot] = null;
+
+            while (e != null) {
+                Entry next = e.next;
+                if (e.tick <= currentTick) {
+                    due.add(e);
+                    size--;
+                } else {
+                    insert(e);
+                }
+                e = next;
+            }
+        }
+    }
+
+    private void insert(Entry e) {
+        long delta = e.tick - currentTick;
+
+        if (delta <= 0) {
+            // already due: the next advance picks it up from the slot after the current one
+            e.tick = currentTick + 1;
+            delta = 1;
+        }
+
+        int level = (63 - Long.numberOfLeadingZeros(delta)) / BITS;
+        long tick = e.tick;
+        if (level >= LEVELS) {
+            level = LEVELS - 1;
+            tick = currentTick + (1L << (BITS * LEVELS)) - 1;
+        }
+
+        int slot = (int) ((tick >>> (BITS * level)) & (SLOTS - 1));
+        e.next = wheels[level][slot];
+        wheels[level][slot] = e;
+    }
+
+    static final class Entry {
+        final String key;
+        final long expireAtMillis;
+        long tick;
+        Entry next;
+
+        Entry(String key, long expireAtMillis, long tick) {
+            this.key = key;
+            this.expireAtMillis = expireAtMillis;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.atomkv.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The keys of one shard that have a TTL, kept in an array so that a uniform random sample costs
+ * O(1) per key. A key's position is tracked in a side map, and removal moves the last key into
+ * the hole.
+ *
+ * <p>The set may hold keys that no longer have a deadline (PERSIST, or SET without a TTL) or no
+ * longer exist after racing with a concurrent SET; the sampler drops those when it draws them.
+ * The opposite never happens: {@link #remove} leaves a key in place while the map still holds it
+ * with a deadline, so a key with a TTL cannot be missed by the sampler.
+ */
+final class TtlKeySet {
+    private final ArrayList<String> keys = new ArrayList<>();
+    private final HashMap<String, Integer> positions = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Shard shard;
+
+    TtlKeySet(Shard shard) {
+        this.shard = shard;
+    }
+
+    void add(String key) {
+        lock.lock();
+        try {
+            if (positions.putIfAbsent(key, keys.size()) == null) {
+                keys.add(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget the key unless the shard still maps it to a value with a deadline. The check runs
+     * under the lock, after the caller has changed the map, so it cannot undo a concurrent put's
+     * {@link #add}.
+     */
+    void remove(String key) {
+        lock.lock();
+        try {
+            ValueWrapper current = shard.map.get(key);
+            if (current != null && current.getExpireAtMillis() > 0) {
+                return;
+            }
+
+            Integer position = positions.remove(key);
+            if (position == null) {
+                return;
+            }
+
+            String last = keys.remove(keys.size() - 1);
+            if (position < keys.size()) {
+                keys.set(position, last);
+                positions.put(last, position);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add {@code count} keys picked at random (with replacement) to {@code out}, or every key if
+     * there are no more than that.
+     */
+    void sample(int count, List<String> out) {
+        lock.lock();
+        try {
+            int size = keys.size();
+            if (size <= count) {
+                out.addAll(keys);
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = count; i > 0; i--) {
+                out.add(keys.get(random.nextInt(size)));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return keys.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
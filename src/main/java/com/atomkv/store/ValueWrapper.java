@@ -1,32 +1,65 @@
 package com.atomkv.store;
 
-import java.util.Objects;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
+/**
+ * A stored value with its deadline. The value is kept as the bytes the client sent, so any
+ * payload can be stored and a GET writes it out without decoding. An array is never changed once
+ * stored: APPEND and INCR put a new one in its place, so arrays handed to a reply or taken into a
+ * snapshot stay as they were.
+ */
 public class ValueWrapper {
-    private volatile String value;
+    private volatile byte[] value;
     private volatile long expireAtMillis; // -1 means no expiration
 
-    public ValueWrapper(String value, long expireAtMillis) {
+    public ValueWrapper(byte[] value, long expireAtMillis) {
         this.value = value;
         this.expireAtMillis = expireAtMillis;
     }
 
-    public String getValue() {
+    public ValueWrapper(String value, long expireAtMillis) {
+        this(value == null ? null : value.getBytes(StandardCharsets.UTF_8), expireAtMillis);
+    }
+
+    /**
+     * The stored bytes; callers must not modify them.
+     */
+    public byte[] getBytes() {
         return value;
     }
 
-    public void setValue(String value) {
+    /**
+     * The value decoded as UTF-8.
+     */
+    public String getValue() {
+        byte[] v = value;
+        return v == null ? null : new String(v, StandardCharsets.UTF_8);
+    }
+
+    public void setBytes(byte[] value) {
         this.value = value;
     }
 
-    public void appendValue(String suffix) {
-        if (this.value == null) {
+    public void appendBytes(byte[] suffix) {
+        byte[] v = this.value;
+        if (v == null) {
             this.value = suffix;
         } else {
-            this.value = this.value + suffix;
+            byte[] joined = Arrays.copyOf(v, v.length + suffix.length);
+            System.arraycopy(suffix, 0, joined, v.length, suffix.length);
+            this.value = joined;
         }
     }
 
+    /**
+     * Length of the value in bytes.
+     */
+    public int length() {
+        byte[] v = value;
+        return v == null ? 0 : v.length;
+    }
+
     public long getExpireAtMillis() {
         return expireAtMillis;
     }
@@ -45,9 +78,58 @@ public class ValueWrapper {
         return Math.max(-1, expireAtMillis - System.currentTimeMillis());
     }
 
+    /**
+     * A value as a decimal long, with the same rules as {@link Long#parseLong(String)}; null
+     * counts as 0.
+     *
+     * @throws NumberFormatException if it is not a valid long
+     */
+    static long parseLong(byte[] b) {
+        if (b == null) {
+            return 0;
+        }
+
+        int pos = 0;
+        if (b.length == 0) {
+            throw new NumberFormatException("empty number");
+        }
+
+        boolean negative = b[0] == '-';
+        if (negative || b[0] == '+') {
+            pos++;
+            if (pos == b.length) {
+                throw new NumberFormatException("invalid number");
+            }
+        }
+
+        // accumulate negatively so Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long v = 0;
+
+        for (; pos < b.length; pos++) {
+            int d = b[pos] - '0';
+            if (d < 0 || d > 9 || v < multmin) {
+                throw new NumberFormatException("invalid number");
+            }
+
+            v *= 10;
+            if (v < limit + d) {
+                throw new NumberFormatException("invalid number");
+            }
+            v -= d;
+        }
+
+        return negative ? v : -v;
+    }
+
+    static byte[] bytesOf(long v) {
+        return Long.toString(v).getBytes(StandardCharsets.US_ASCII);
+    }
+
     @Override
     public String toString() {
-        return "ValueWrapper{" + "value='" + value + '\'' + ", expireAtMillis=" + expireAtMillis + '}';
+        return "ValueWrapper{" + "value='" + getValue() + '\'' + ", expireAtMillis=" + expireAtMillis + '}';
     }
 
     @Override
@@ -57,11 +139,11 @@ public class ValueWrapper {
         if (o == null || getClass() != o.getClass())
             return false;
         ValueWrapper that = (ValueWrapper) o;
-        return expireAtMillis == that.expireAtMillis && Objects.equals(value, that.value);
+        return expireAtMillis == that.expireAtMillis && Arrays.equals(value, that.value);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(value, expireAtMillis);
+        return 31 * Arrays.hashCode(value) + Long.hashCode(expireAtMillis);
     }
-}
\ No newline at end of file
+}
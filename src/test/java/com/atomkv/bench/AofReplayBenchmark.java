@@ -0,0 +1,106 @@
+package com.atomkv.bench;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.persistence.AofRecord;
+import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.persistence.FsyncPolicy;
+import com.atomkv.store.ExpiryMode;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Startup replay speed of the old text AOF against the binary one. Writes the same stream of
+ * records, mostly SETs over a bounded keyspace with some INCRs, DELs and TTLs, to one file of
+ * each format until the binary one reaches the given size, then replays each into an empty store
+ * and reports MB/s and records/s. The text file becomes the base of its AOF when it is opened.
+ *
+ * <p>Run with:
+ * <pre>
+ * MAVEN_OPTS=-Xmx4g mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.atomkv.bench.AofReplayBenchmark -Dexec.args="4096 /data/bench"
+ * </pre>
+ * The arguments are the binary file size in MB (default 512) and the directory for the files
+ * (default a temporary one); pick a directory on the disk you care about, and drop the page
+ * cache between generating and replaying to measure cold reads.
+ */
+public class AofReplayBenchmark {
+    private static final int KEYSPACE = 1_000_000;
+    private static final int SHARDS = 16;
+
+    public static void main(String[] args) throws Exception {
+        long targetBytes = (args.length > 0 ? Long.parseLong(args[0]) : 512) << 20;
+        Path dir = args.length > 1 ? Files.createDirectories(Path.of(args[1])) : Files.createTempDirectory("aof-bench");
+
+        Path binary = dir.resolve("replay-binary.aof");
+        Path text = dir.resolve("replay-text.aof");
+        BenchFiles.deleteTree(dir.resolve("replay-binary.aof.d"));
+        BenchFiles.deleteTree(dir.resolve("replay-text.aof.d"));
+        Files.deleteIfExists(text);
+
+        long records = generate(binary, text, targetBytes);
+        System.out.printf("%,d records%n", records);
+        System.out.printf("%-8s %10s %10s %12s %14s%n", "format", "MB", "seconds", "MB/s", "records/s");
+
+        try {
+            replay("text", text, records);
+            System.gc();
+            replay("binary", binary, records);
+        } finally {
+            if (args.length <= 1) {
+                BenchFiles.deleteTree(dir);
+            }
+        }
+    }
+
+    private static long generate(Path binary, Path text, long targetBytes) throws Exception {
+        SplittableRandom random = new SplittableRandom(42);
+        String value = "v".repeat(48);
+        long records = 0;
+
+        try (AppendOnlyFile aof = new AppendOnlyFile(binary, FsyncPolicy.NO);
+             BufferedWriter w = Files.newBufferedWriter(text, StandardCharsets.UTF_8)) {
+            while (aof.currentSize() < targetBytes) {
+                for (int i = 0; i < 10_000; i++, records++) {
+                    String key = "key:" + random.nextInt(KEYSPACE);
+                    int pick = random.nextInt(100);
+
+                    AofRecord r;
+                    if (pick < 70) {
+                        r = AofRecord.set(key, value + records, 0);
+                    } else if (pick < 80) {
+                        r = AofRecord.set(key, value, 3_600_000);
+                    } else if (pick < 95) {
+                        r = AofRecord.incr("counter:" + random.nextInt(KEYSPACE / 100));
+                    } else {
+                        r = AofRecord.del(key);
+                    }
+
+                    aof.append(r);
+                    w.write(r.toString());
+                    w.write('\n');
+                }
+            }
+        }
+
+        return records;
+    }
+
+    private static void replay(String name, Path file, long records) throws Exception {
+        InMemoryStore store = new InMemoryStore(KEYSPACE * 2, 0, SHARDS, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        try (AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO)) {
+            long start = System.nanoTime();
+            aof.replay(store);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double mb = aof.currentSize() / (double) (1 << 20);
+
+            System.out.printf("%-8s %10.1f %10.2f %12.1f %,14.0f%n", name, mb, seconds, mb / seconds, records / seconds);
+        } finally {
+            store.close();
+        }
+    }
+}
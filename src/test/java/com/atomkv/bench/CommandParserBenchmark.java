@@ -0,0 +1,146 @@
+package com.atomkv.bench;
+
+import com.atomkv.protocol.CommandDecoder;
+import com.atomkv.protocol.LineDecoder;
+import com.atomkv.protocol.LineReplyWriter;
+import com.atomkv.protocol.ReplyBuffer;
+import com.atomkv.protocol.RespDecoder;
+import com.atomkv.protocol.RespReplyWriter;
+import com.atomkv.server.CommandProcessor;
+import com.atomkv.store.InMemoryStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing and executing one GET or SET, from request bytes to reply bytes, with no socket
+ * in between. {@code legacy*} is the String pipeline the server used before the byte-level
+ * decoders (readLine, trim, split, toUpperCase, Optional, string concatenation into a Writer);
+ * {@code line*} and {@code resp*} go through the decoders and {@link CommandProcessor}.
+ *
+ * <p>Run with the GC profiler to see bytes allocated per operation ({@code gc.alloc.rate.norm}):
+ * <pre>
+ * mvn -q test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-classpath %classpath org.openjdk.jmh.Main CommandParserBenchmark -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+    private static final byte[] LINE_GET = "GET key:42\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LINE_SET = "SET key:42 value-42\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESP_GET = "*2\r\n$3\r\nGET\r\n$6\r\nkey:42\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESP_SET = "*3\r\n$3\r\nSET\r\n$6\r\nkey:42\r\n$8\r\nvalue-42\r\n".getBytes(StandardCharsets.UTF_8);
+
+    private InMemoryStore store;
+    private ReplyBuffer replies;
+
+    private LineDecoder lineDecoder;
+    private RespDecoder respDecoder;
+    private CommandDecoder.CommandSink lineSink;
+    private CommandDecoder.CommandSink respSink;
+
+    private BufferedWriter legacyOut;
+
+    @Setup
+    public void setUp() {
+        store = new InMemoryStore(100_000, null);
+        for (int i = 0; i < 100; i++) {
+            store.set("key:" + i, "value-" + i, null);
+        }
+
+        CommandProcessor processor = new CommandProcessor(store);
+        replies = new ReplyBuffer(256);
+
+        LineReplyWriter lineWriter = new LineReplyWriter(replies);
+        RespReplyWriter respWriter = new RespReplyWriter(replies, 2);
+        lineDecoder = new LineDecoder();
+        respDecoder = new RespDecoder();
+        lineSink = args -> processor.execute(args, lineWriter);
+        respSink = args -> processor.execute(args, respWriter);
+
+        legacyOut = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Benchmark
+    public int legacyGet() throws IOException {
+        return legacy(LINE_GET);
+    }
+
+    @Benchmark
+    public int legacySet() throws IOException {
+        return legacy(LINE_SET);
+    }
+
+    @Benchmark
+    public int lineGet() throws IOException {
+        return decode(lineDecoder, LINE_GET, lineSink);
+    }
+
+    @Benchmark
+    public int lineSet() throws IOException {
+        return decode(lineDecoder, LINE_SET, lineSink);
+    }
+
+    @Benchmark
+    public int respGet() throws IOException {
+        return decode(respDecoder, RESP_GET, respSink);
+    }
+
+    @Benchmark
+    public int respSet() throws IOException {
+        return decode(respDecoder, RESP_SET, respSink);
+    }
+
+    private int decode(CommandDecoder decoder, byte[] request, CommandDecoder.CommandSink sink) throws IOException {
+        decoder.feed(request, 0, request.length, sink);
+        int written = replies.size();
+        replies.reset();
+        return written;
+    }
+
+    /**
+     * The request path as it was: one String per line, trimmed, split, upper-cased and answered
+     * by concatenation.
+     */
+    private int legacy(byte[] request) throws IOException {
+        String line = new String(request, 0, request.length - 2, StandardCharsets.UTF_8).trim();
+        String[] parts = line.split(" ");
+
+        switch (parts[0].toUpperCase(Locale.ROOT)) {
+            case "GET": {
+                Optional<String> val = store.get(parts[1]);
+                legacyOut.write(val.isPresent() ? "+" + val.get() + "\n" : "$-1\n");
+                break;
+            }
+
+            case "SET": {
+                store.set(parts[1], parts[2], null);
+                legacyOut.write("+OK\n");
+                break;
+            }
+
+            default:
+                legacyOut.write("-ERR unknown command\n");
+        }
+
+        legacyOut.flush();
+        return parts.length;
+    }
+}
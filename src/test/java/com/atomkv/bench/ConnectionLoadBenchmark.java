@@ -0,0 +1,180 @@
+package com.atomkv.bench;
+
+import com.atomkv.server.BlockingServer;
+import com.atomkv.server.NioServer;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test for the connection handling modes: holds thousands of concurrent clients open against
+ * an in-process server and reports how many stayed connected, how many extra platform threads the
+ * server needed to hold them, and GET round-trip latency percentiles.
+ *
+ * <p>Run with:
+ * <pre>
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.atomkv.bench.ConnectionLoadBenchmark -Dexec.args="5000 20"
+ * </pre>
+ * Arguments are the number of clients (default 5000) and requests per client (default 20).
+ * The client side runs on virtual threads, so its carrier threads are part of the thread baseline.
+ */
+public class ConnectionLoadBenchmark {
+    private enum Mode { THREADS, VIRTUAL, NIO }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.printf("%-8s %8s %10s %10s %10s %10s %12s%n",
+                "mode", "clients", "+threads", "p50(us)", "p99(us)", "max(us)", "req/s");
+
+        for (Mode mode : Mode.values()) {
+            run(mode, clients, requests);
+            System.gc();
+            Thread.sleep(1000);
+        }
+    }
+
+    private static void run(Mode mode, int clients, int requests) throws Exception {
+        InMemoryStore store = new InMemoryStore(100_000, null);
+        for (int i = 0; i < 100; i++) {
+            store.set("key:" + i, "value-" + i, null);
+        }
+
+        int baselineThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        AutoCloseable server;
+        int port;
+        Thread acceptor;
+
+        if (mode == Mode.NIO) {
+            NioServer nio = new NioServer(0, Runtime.getRuntime().availableProcessors(), store);
+            server = nio;
+            port = nio.port();
+            acceptor = new Thread(() -> serveQuietly(nio::serve), "bench-acceptor");
+        } else {
+            BlockingServer blocking = new BlockingServer(0, store, mode == Mode.VIRTUAL);
+            server = blocking;
+            port = blocking.port();
+            acceptor = new Thread(() -> serveQuietly(blocking::serve), "bench-acceptor");
+        }
+        acceptor.start();
+
+        long[][] latencies = new long[clients][];
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(clients);
+        // ramp up in waves so the accept backlog never overflows and stalls a handshake
+        Semaphore connecting = new Semaphore(256);
+        long elapsed;
+        int serverThreads;
+
+        try (ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                final int id = c;
+                exec.submit(() -> {
+                    boolean counted = false;
+                    try (Socket s = new Socket()) {
+                        s.setSoTimeout(60_000);
+                        s.setTcpNoDelay(true);
+                        BufferedReader in;
+                        OutputStream out;
+
+                        connecting.acquire();
+                        try {
+                            s.connect(new InetSocketAddress("localhost", port), 30_000);
+                            in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                            out = s.getOutputStream();
+                            in.readLine();
+                        } finally {
+                            connecting.release();
+                        }
+
+                        connected.countDown();
+                        counted = true;
+                        go.await();
+
+                        long[] lat = new long[requests];
+                        byte[] cmd = ("GET key:" + (id % 100) + "\n").getBytes(StandardCharsets.UTF_8);
+                        for (int r = 0; r < requests; r++) {
+                            long t0 = System.nanoTime();
+                            out.write(cmd);
+                            out.flush();
+                            in.readLine();
+                            lat[r] = System.nanoTime() - t0;
+                        }
+                        latencies[id] = lat;
+
+                        // keep the connection open until every client is done so the count stays concurrent
+                        finished.countDown();
+                        finished.await();
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        if (!counted) {
+                            connected.countDown();
+                        }
+                        finished.countDown();
+                    }
+                    return null;
+                });
+            }
+
+            connected.await();
+            serverThreads = ManagementFactory.getThreadMXBean().getThreadCount() - baselineThreads;
+
+            long start = System.nanoTime();
+            go.countDown();
+            finished.await();
+            elapsed = System.nanoTime() - start;
+        }
+
+        server.close();
+        acceptor.join(5000);
+        store.close();
+
+        long[] all = Arrays.stream(latencies)
+                .filter(l -> l != null)
+                .flatMapToLong(Arrays::stream)
+                .sorted()
+                .toArray();
+
+        System.out.printf("%-8s %8d %10d %10.0f %10.0f %10.0f %12.0f%n",
+                mode.name().toLowerCase(),
+                clients - failures.get(),
+                serverThreads,
+                percentile(all, 0.50) / 1000.0,
+                percentile(all, 0.99) / 1000.0,
+                all.length == 0 ? 0 : all[all.length - 1] / 1000.0,
+                all.length / (elapsed / 1e9));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    private interface Serve {
+        void serve() throws Exception;
+    }
+
+    private static void serveQuietly(Serve serve) {
+        try {
+            serve.serve();
+        } catch (Exception ignored) {}
+    }
+}
@@ -0,0 +1,65 @@
+package com.atomkv.bench;
+
+import com.atomkv.eviction.EvictionPolicy;
+import com.atomkv.eviction.EvictionPolicyType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache-hit cost of each eviction policy under contention: every operation is a
+ * {@code recordAccess} of a key the policy already tracks, from 1, 8 and 32 threads.
+ *
+ * <pre>
+ * mvn -q test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-classpath %classpath org.openjdk.jmh.Main EvictionPolicyBenchmark"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvictionPolicyBenchmark {
+    private static final int KEYS = 10_000;
+
+    @Param({"LRU", "APPROX_LRU"})
+    public EvictionPolicyType policy;
+
+    private EvictionPolicy eviction;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        eviction = policy.create(KEYS);
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key:" + i;
+            eviction.recordPut(keys[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void access1() {
+        access();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void access8() {
+        access();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void access32() {
+        access();
+    }
+
+    private void access() {
+        eviction.recordAccess(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
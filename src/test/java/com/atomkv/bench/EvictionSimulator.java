@@ -0,0 +1,128 @@
+package com.atomkv.bench;
+
+import com.atomkv.eviction.EvictionPolicy;
+import com.atomkv.eviction.EvictionPolicyType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Trace-driven hit rate simulator for the eviction policies. Each key of the trace is looked up
+ * in a cache of the given capacity: a hit is reported to the policy as an access, a miss inserts
+ * the key and evicts whatever the policy names until the cache fits again.
+ *
+ * <p>Run with:
+ * <pre>
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.atomkv.bench.EvictionSimulator -Dexec.args="1000 trace.txt"
+ * </pre>
+ * Arguments are the cache capacity (default 1000) and a trace file with one key per line. Without
+ * a file a synthetic trace is used: Zipf-distributed requests over 10x the capacity, interrupted
+ * every 100000 requests by a scan of 5x the capacity of keys that are never seen again, like a
+ * nightly batch job.
+ */
+public class EvictionSimulator {
+
+    public static void main(String[] args) throws IOException {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        List<String> trace = args.length > 1 ? readTrace(Path.of(args[1])) : syntheticTrace(capacity);
+
+        System.out.printf("%,d requests, capacity %,d%n", trace.size(), capacity);
+        System.out.printf("%-12s %10s%n", "policy", "hit rate");
+
+        for (EvictionPolicyType type : EvictionPolicyType.values()) {
+            double hitRate = simulate(type.create(capacity), capacity, trace);
+            System.out.printf("%-12s %9.2f%%%n", type.name().toLowerCase().replace('_', '-'), hitRate * 100);
+        }
+    }
+
+    static double simulate(EvictionPolicy policy, int capacity, List<String> trace) {
+        Set<String> cache = new HashSet<>();
+        long hits = 0;
+
+        for (String key : trace) {
+            if (cache.contains(key)) {
+                hits++;
+                policy.recordAccess(key);
+                continue;
+            }
+
+            cache.add(key);
+            policy.recordPut(key);
+            while (cache.size() > capacity) {
+                String victim = policy.evictKeyIfNeeded(cache.size()).orElseThrow();
+                cache.remove(victim);
+            }
+        }
+
+        return trace.isEmpty() ? 0 : (double) hits / trace.size();
+    }
+
+    private static List<String> readTrace(Path file) throws IOException {
+        List<String> trace = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    trace.add(line);
+                }
+            }
+        }
+        return trace;
+    }
+
+    private static List<String> syntheticTrace(int capacity) {
+        Random random = new Random(42);
+        int universe = capacity * 10;
+        double[] cumulative = zipfCumulative(universe, 0.9);
+        List<String> trace = new ArrayList<>();
+        int scanned = 0;
+
+        for (int i = 1; i <= 1_000_000; i++) {
+            trace.add("key:" + sample(cumulative, random.nextDouble()));
+
+            if (i % 100_000 == 0) {
+                for (int s = 0; s < capacity * 5; s++) {
+                    trace.add("scan:" + scanned++);
+                }
+            }
+        }
+
+        return trace;
+    }
+
+    private static double[] zipfCumulative(int n, double skew) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, double u) {
+        int lo = 0;
+        int hi = cumulative.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cumulative[mid] < u) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
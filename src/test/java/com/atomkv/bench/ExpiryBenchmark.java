@@ -0,0 +1,73 @@
+package com.atomkv.bench;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.store.ExpiryMode;
+import com.atomkv.store.InMemoryStore;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Cost of the ttl-janitor on a large store where only a few keys have a TTL. Fills a store with
+ * the given number of keys, 1% of them expiring at spread-out times over the next few seconds,
+ * then runs an expiry cycle every 100 ms until they are all gone and reports how long the cycles
+ * took, for each {@link ExpiryMode}.
+ *
+ * <p>Run with:
+ * <pre>
+ * MAVEN_OPTS=-Xmx4g mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.atomkv.bench.ExpiryBenchmark -Dexec.args="10000000"
+ * </pre>
+ * The argument is the number of keys (default 10000000). The store's own janitor keeps running
+ * alongside and may get to some keys first.
+ */
+public class ExpiryBenchmark {
+    private static final int SHARDS = 16;
+    private static final long TTL_SPREAD_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+
+        System.out.printf("%,d keys, %,d with a TTL%n", keys, keys / 100);
+        System.out.printf("%-8s %8s %12s %12s %12s%n", "mode", "cycles", "mean ms", "p99 ms", "max ms");
+
+        for (ExpiryMode mode : ExpiryMode.values()) {
+            run(mode, keys);
+            System.gc();
+        }
+    }
+
+    private static void run(ExpiryMode mode, int keys) throws Exception {
+        InMemoryStore store = new InMemoryStore(keys, 0, SHARDS, EvictionPolicyType.LRU, mode, null);
+        try {
+            for (int i = 0; i < keys; i++) {
+                Duration ttl = i % 100 == 0 ? Duration.ofMillis(1000 + (i / 100) % TTL_SPREAD_MILLIS) : null;
+                store.set("key:" + i, "value", ttl);
+            }
+
+            long[] nanos = new long[(int) ((1000 + TTL_SPREAD_MILLIS) / 100) + 20];
+            int cycles = 0;
+
+            while (cycles < nanos.length) {
+                Thread.sleep(100);
+
+                long start = System.nanoTime();
+                store.expireCycle();
+                nanos[cycles++] = System.nanoTime() - start;
+            }
+
+            if (store.keys() != keys - keys / 100) {
+                throw new IllegalStateException(mode + ": " + store.keys() + " keys left");
+            }
+
+            long[] sorted = Arrays.copyOf(nanos, cycles);
+            Arrays.sort(sorted);
+            double mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+
+            System.out.printf("%-8s %8d %12.3f %12.3f %12.3f%n", mode.name().toLowerCase(), cycles, mean,
+                    sorted[(int) (cycles * 0.99)] / 1e6, sorted[cycles - 1] / 1e6);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.atomkv.bench;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.persistence.AofRecord;
+import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.persistence.FsyncPolicy;
+import com.atomkv.store.ExpiryMode;
+import com.atomkv.store.InMemoryStore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * AOF load time by number of load threads. Writes a synthetic binary AOF of the given number of
+ * records, mostly SETs and INCRs over a bounded keyspace with a RENAME, which is a barrier for
+ * the load threads, every 100,000 records, then replays it into an empty store with 1, 2, 4, ... up to the number of
+ * cores load threads.
+ *
+ * <p>Run with:
+ * <pre>
+ * MAVEN_OPTS=-Xmx8g mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.atomkv.bench.ParallelReplayBenchmark -Dexec.args="50000000 /data/bench"
+ * </pre>
+ * The arguments are the number of records (default 50000000) and the directory for the file
+ * (default a temporary one).
+ */
+public class ParallelReplayBenchmark {
+    private static final int KEYSPACE = 2_000_000;
+    private static final int SHARDS = 16;
+
+    public static void main(String[] args) throws Exception {
+        long records = args.length > 0 ? Long.parseLong(args[0]) : 50_000_000L;
+        Path dir = args.length > 1 ? Files.createDirectories(Path.of(args[1])) : Files.createTempDirectory("replay-bench");
+        Path file = dir.resolve("parallel-replay.aof");
+        BenchFiles.deleteTree(dir.resolve("parallel-replay.aof.d"));
+
+        try {
+            long bytes = generate(file, records);
+            System.out.printf("%,d records, %.1f MB, %d cores%n", records, bytes / (double) (1 << 20),
+                    Runtime.getRuntime().availableProcessors());
+            System.out.printf("%-8s %10s %14s%n", "threads", "seconds", "records/s");
+
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; ; threads *= 2) {
+                replay(file, Math.min(threads, cores), records);
+                if (threads >= cores) {
+                    break;
+                }
+                System.gc();
+            }
+        } finally {
+            if (args.length <= 1) {
+                BenchFiles.deleteTree(dir);
+            }
+        }
+    }
+
+    /**
+     * @return the size of the AOF
+     */
+    private static long generate(Path file, long records) throws Exception {
+        SplittableRandom random = new SplittableRandom(42);
+        String value = "v".repeat(32);
+
+        try (AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO)) {
+            for (long i = 0; i < records; i++) {
+                String key = "key:" + random.nextInt(KEYSPACE);
+
+                if (i % 100_000 == 99_999) {
+                    aof.append(AofRecord.rename(key, "key:" + random.nextInt(KEYSPACE)));
+                } else if (random.nextInt(10) < 8) {
+                    aof.append(AofRecord.setAt(key, value, -1));
+                } else {
+                    aof.append(AofRecord.incr("counter:" + random.nextInt(KEYSPACE / 100)));
+                }
+            }
+        }
+
+        try (AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO)) {
+            return aof.currentSize();
+        }
+    }
+
+    private static void replay(Path file, int threads, long records) throws Exception {
+        InMemoryStore store = new InMemoryStore(KEYSPACE * 2, 0, SHARDS, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        try (AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO)) {
+            long start = System.nanoTime();
+            aof.replay(store, threads);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-8d %10.2f %,14.0f%n", threads, seconds, records / seconds);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.atomkv.bench;
+
+import com.atomkv.protocol.CommandArgs;
+import com.atomkv.protocol.LineReplyWriter;
+import com.atomkv.protocol.ReplyBuffer;
+import com.atomkv.server.BlockingServer;
+import com.atomkv.server.CommandProcessor;
+import com.atomkv.server.NioServer;
+import com.atomkv.store.InMemoryStore;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pipelined GET throughput for each server flavour at several pipeline depths.
+ * {@code per-command} replays the pre-pipelining ClientHandler loop, which flushed after every
+ * command; {@code coalesced} is the current blocking handler and {@code nio} the event loops,
+ * both of which write the replies of one read batch at once.
+ *
+ * <p>Run with:
+ * <pre>
+ * mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.atomkv.bench.PipelineBenchmark -Dexec.args="4 200000"
+ * </pre>
+ * Arguments are the number of client connections (default 4) and GETs per connection per run (default 200000).
+ */
+public class PipelineBenchmark {
+    private static final int[] DEPTHS = {1, 16, 100};
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        InMemoryStore store = new InMemoryStore(100_000, null);
+        for (int i = 0; i < 100; i++) {
+            store.set("key:" + i, "value-" + i, null);
+        }
+
+        System.out.printf("%-12s %6s %14s%n", "server", "depth", "ops/s");
+
+        try (LegacyServer legacy = new LegacyServer(store)) {
+            runAll("per-command", legacy.port(), connections, commands);
+        }
+
+        BlockingServer blocking = new BlockingServer(0, store, false);
+        Thread blockingAcceptor = start(blocking::serve);
+        runAll("coalesced", blocking.port(), connections, commands);
+        blocking.close();
+        blockingAcceptor.join(1000);
+
+        NioServer nio = new NioServer(0, Runtime.getRuntime().availableProcessors(), store);
+        Thread nioAcceptor = start(nio::serve);
+        runAll("nio", nio.port(), connections, commands);
+        nio.close();
+        nioAcceptor.join(1000);
+
+        store.close();
+    }
+
+    private static void runAll(String name, int port, int connections, int commands) throws Exception {
+        run(port, connections, commands / 10, DEPTHS[DEPTHS.length - 1]); // warm up
+
+        for (int depth : DEPTHS) {
+            double opsPerSec = run(port, connections, commands, depth);
+            System.out.printf("%-12s %6d %,14.0f%n", name, depth, opsPerSec);
+        }
+    }
+
+    private static double run(int port, int connections, int commands, int depth) throws Exception {
+        ExecutorService exec = Executors.newFixedThreadPool(connections);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+
+        for (int c = 0; c < connections; c++) {
+            final int id = c;
+            futures.add(exec.submit(() -> {
+                client(port, id, commands, depth);
+                return null;
+            }));
+        }
+
+        for (Future<?> f : futures) {
+            f.get();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        exec.shutdown();
+        return (double) connections * commands / (elapsed / 1e9);
+    }
+
+    private static void client(int port, int id, int commands, int depth) throws IOException {
+        try (Socket s = new Socket("localhost", port)) {
+            s.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+            OutputStream out = s.getOutputStream();
+            skipLines(in, 1);
+
+            ByteArrayOutputStream batch = new ByteArrayOutputStream();
+            for (int i = 0; i < depth; i++) {
+                batch.writeBytes(("GET key:" + ((id + i) % 100) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] request = batch.toByteArray();
+
+            for (int done = 0; done < commands; done += depth) {
+                out.write(request);
+                out.flush();
+                skipLines(in, depth);
+            }
+        }
+    }
+
+    private static void skipLines(InputStream in, int lines) throws IOException {
+        int seen = 0;
+        while (seen < lines) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (b == '\n') {
+                seen++;
+            }
+        }
+    }
+
+    private interface Serve {
+        void serve() throws Exception;
+    }
+
+    private static Thread start(Serve serve) {
+        Thread t = new Thread(() -> {
+            try {
+                serve.serve();
+            } catch (Exception ignored) {}
+        }, "bench-acceptor");
+        t.start();
+        return t;
+    }
+
+    /**
+     * The connection loop as it was before pipelining: readLine, execute, flush, repeat.
+     */
+    private static final class LegacyServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 1024);
+        private final ExecutorService clients = Executors.newCachedThreadPool();
+
+        LegacyServer(InMemoryStore store) throws IOException {
+            CommandProcessor processor = new CommandProcessor(store);
+
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket s = serverSocket.accept();
+                        s.setTcpNoDelay(true);
+                        clients.submit(() -> serve(s, processor));
+                    }
+                } catch (IOException ignored) {}
+            }, "legacy-acceptor");
+            acceptor.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private static void serve(Socket socket, CommandProcessor processor) {
+            try (socket;
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                 OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+                out.write("OK AtomKV\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                ReplyBuffer replies = new ReplyBuffer(256);
+                LineReplyWriter writer = new LineReplyWriter(replies);
+                String line;
+
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+
+                    boolean keepOpen = processor.execute(CommandArgs.of(line.split(" ")), writer);
+                    out.write(replies.array(), 0, replies.size());
+                    out.flush();
+                    replies.reset();
+
+                    if (!keepOpen) {
+                        return;
+                    }
+                }
+            } catch (IOException ignored) {}
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            clients.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.atomkv.bench;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.persistence.FsyncPolicy;
+import com.atomkv.persistence.SnapshotFile;
+import com.atomkv.store.ExpiryMode;
+import com.atomkv.store.InMemoryStore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Restart time from a snapshot against replaying an AOF with the same keys. Fills a store with
+ * the given number of keys, 1% of them with a TTL, logging every SET to an AOF, saves a snapshot,
+ * then loads each file into an empty store and reports the time taken.
+ *
+ * <p>Run with:
+ * <pre>
+ * MAVEN_OPTS=-Xmx16g mvn -q test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.atomkv.bench.SnapshotLoadBenchmark -Dexec.args="20000000 /data/bench"
+ * </pre>
+ * The arguments are the number of keys (default 20000000) and the directory for the files
+ * (default a temporary one).
+ */
+public class SnapshotLoadBenchmark {
+    private static final int SHARDS = 16;
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+        Path dir = args.length > 1 ? Files.createDirectories(Path.of(args[1])) : Files.createTempDirectory("snapshot-bench");
+        Path aofFile = dir.resolve("load.aof");
+        Path snapshotFile = dir.resolve("load.akv");
+        BenchFiles.deleteTree(dir.resolve("load.aof.d"));
+        Files.deleteIfExists(snapshotFile);
+
+        try {
+            SnapshotFile snapshots = new SnapshotFile(snapshotFile);
+            InMemoryStore source = new InMemoryStore(keys, 0, SHARDS, EvictionPolicyType.LRU, ExpiryMode.WHEEL, 1,
+                    new AppendOnlyFile(aofFile, FsyncPolicy.NO), snapshots);
+            try {
+                for (int i = 0; i < keys; i++) {
+                    source.set("key:" + i, "value:" + i, i % 100 == 0 ? Duration.ofHours(1) : null);
+                }
+
+                long start = System.nanoTime();
+                source.save();
+                System.out.printf("%,d keys, save %.2f s%n", keys, (System.nanoTime() - start) / 1e9);
+            } finally {
+                source.close();
+            }
+
+            System.out.printf("%-10s %10s %10s %14s%n", "source", "MB", "seconds", "keys/s");
+            System.gc();
+
+            InMemoryStore target = new InMemoryStore(keys, 0, SHARDS, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+            try {
+                long start = System.nanoTime();
+                snapshots.load(target);
+                report("snapshot", Files.size(snapshotFile), keys, System.nanoTime() - start);
+            } finally {
+                target.close();
+            }
+            target = null;
+            System.gc();
+
+            target = new InMemoryStore(keys, 0, SHARDS, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+            try (AppendOnlyFile aof = new AppendOnlyFile(aofFile, FsyncPolicy.NO)) {
+                long start = System.nanoTime();
+                aof.replay(target);
+                report("aof", aof.currentSize(), keys, System.nanoTime() - start);
+            } finally {
+                target.close();
+            }
+        } finally {
+            if (args.length <= 1) {
+                BenchFiles.deleteTree(dir);
+            }
+        }
+    }
+
+    private static void report(String name, long bytes, int keys, long nanos) {
+        double seconds = nanos / 1e9;
+        System.out.printf("%-10s %10.1f %10.2f %,14.0f%n", name, bytes / (double) (1 << 20), seconds, keys / seconds);
+    }
+}
@@ -0,0 +1,53 @@
+package com.atomkv.bench;
+
+import com.atomkv.store.InMemoryStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GET throughput of the store alone, single map versus sharded, with every thread hitting
+ * existing keys so each call goes through the eviction policy's access path.
+ *
+ * <pre>
+ * mvn -q test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+ *     -Dexec.args="-classpath %classpath org.openjdk.jmh.Main StoreShardingBenchmark -t 32"
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class StoreShardingBenchmark {
+    private static final int KEYS = 10_000;
+
+    @Param({"1", "16", "64"})
+    public int shards;
+
+    private InMemoryStore store;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        store = new InMemoryStore(KEYS * 2, shards, null);
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key:" + i;
+            store.set(keys[i], "value-" + i, null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Benchmark
+    public String get() {
+        return store.getOrNull(keys[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+}
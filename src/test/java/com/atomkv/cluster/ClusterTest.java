@@ -0,0 +1,162 @@
+package com.atomkv.cluster;
+
+import com.atomkv.server.NioServer;
+import com.atomkv.store.InMemoryStore;
+import org.junit.jupiter.api.Test;
+
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterTest {
+    @Test
+    public void testSlotsMatchRedisCluster() {
+        assertEquals(0x31C3, HashSlots.crc16("123456789".getBytes(), 0, 9));
+        assertEquals(12182, HashSlots.slot("foo"));
+        assertEquals(5061, HashSlots.slot("bar"));
+
+        // only a non-empty tag is hashed
+        assertEquals(HashSlots.slot("{user1000}.following"), HashSlots.slot("{user1000}.followers"));
+        assertEquals(HashSlots.slot("bar"), HashSlots.slot("foo{bar}{zap}"));
+        assertEquals(HashSlots.slot("{bar"), HashSlots.slot("foo{{bar}}zap"));
+        assertNotEquals(HashSlots.slot(""), HashSlots.slot("foo{}{bar}"));
+    }
+
+    @Test
+    public void testTablesMergeSlotBySlot() {
+        SlotTable a = SlotTable.claim("127.0.0.1:7000", "0-99");
+        SlotTable b = SlotTable.claim("127.0.0.1:7001", "50-199");
+
+        // same epoch: the smaller address wins, whichever side merges
+        SlotTable ab = a.merge(b);
+        assertEquals(ab.encode(), b.merge(a).encode());
+        assertEquals("127.0.0.1:7000", ab.owner(75));
+        assertEquals("127.0.0.1:7001", ab.owner(150));
+        assertNull(ab.owner(200));
+        assertSame(ab, ab.merge(a));
+
+        // a handover at the next epoch beats the older claim
+        SlotTable moved = ab.assign(75, "127.0.0.1:7001");
+        assertEquals("127.0.0.1:7001", ab.merge(moved).owner(75));
+        assertEquals(2, ab.merge(moved).epoch(75));
+
+        SlotTable parsed = SlotTable.parse(moved.encode());
+        assertEquals(moved.encode(), parsed.encode());
+        assertEquals(101, parsed.owned("127.0.0.1:7001"));
+    }
+
+    @Test
+    public void testRedirectsAndLiveMigration() throws Exception {
+        String a = "127.0.0.1:" + freePort();
+        String b = "127.0.0.1:" + freePort();
+
+        InMemoryStore storeA = new InMemoryStore(100_000, 2, null);
+        InMemoryStore storeB = new InMemoryStore(100_000, 2, null);
+        ClusterNode nodeA = new ClusterNode(a, storeA, SlotTable.claim(a, "0-8191"), List.of(b));
+        ClusterNode nodeB = new ClusterNode(b, storeB, SlotTable.claim(b, "8192-16383"), List.of(a));
+        NioServer serverA = new NioServer(port(a), 1, 100, storeA, nodeA);
+        NioServer serverB = new NioServer(port(b), 1, 100, storeB, nodeB);
+        Thread acceptA = serve(serverA);
+        Thread acceptB = serve(serverB);
+
+        try (NodeLink clientA = new NodeLink(a); NodeLink clientB = new NodeLink(b)) {
+            nodeA.start();
+            nodeB.start();
+            awaitTrue(() -> b.equals(nodeA.table().owner(16383)) && a.equals(nodeB.table().owner(0)));
+
+            String low = keyIn(0, 8191, "low");
+            String high = keyIn(8192, 16383, "high");
+            assertEquals("OK", clientA.call("SET", low, "1"));
+            NodeLink.NodeException e = assertThrows(NodeLink.NodeException.class, () -> clientA.call("SET", high, "2"));
+            assertEquals("MOVED " + HashSlots.slot(high) + " " + b, e.getMessage());
+            assertEquals("OK", clientB.call("SET", high, "2"));
+            e = assertThrows(NodeLink.NodeException.class, () -> clientA.call("MSET", low, "1", high, "2"));
+            assertTrue(e.getMessage().startsWith("CROSSSLOT"), e.getMessage());
+            assertEquals((long) HashSlots.slot(high), clientA.call("CLUSTER", "KEYSLOT", high));
+
+            // keys sharing a tag all move with its slot
+            String tag = keyIn(0, 8191, "tag");
+            int slot = HashSlots.slot(tag);
+            for (int i = 0; i < 300; i++) {
+                assertEquals("OK", clientA.call("SET", "{" + tag + "}:" + i, "v" + i));
+            }
+
+            // while the slot moves away, keys that are gone already are asked for at the new owner
+            nodeA.migrating.put(slot, b);
+            e = assertThrows(NodeLink.NodeException.class, () -> clientA.call("GET", "{" + tag + "}:missing"));
+            assertEquals("ASK " + slot + " " + b, e.getMessage());
+            assertEquals("v1", clientA.call("GET", "{" + tag + "}:1"));
+            e = assertThrows(NodeLink.NodeException.class, () -> clientA.call("MGET", "{" + tag + "}:1", "{" + tag + "}:missing"));
+            assertTrue(e.getMessage().startsWith("TRYAGAIN"), e.getMessage());
+            nodeA.migrating.remove(slot);
+
+            // the importing node only serves a client that says ASKING first
+            clientB.call("CLUSTER", "SETSLOT", Integer.toString(slot), "IMPORTING", a);
+            e = assertThrows(NodeLink.NodeException.class, () -> clientB.call("GET", "{" + tag + "}:1"));
+            assertTrue(e.getMessage().startsWith("MOVED"), e.getMessage());
+            assertEquals("OK", clientB.call("ASKING"));
+            assertNull(clientB.call("GET", "{" + tag + "}:1"));
+            clientB.call("CLUSTER", "SETSLOT", Integer.toString(slot), "STABLE");
+
+            assertEquals(300L, nodeA.migrate(slot, b).get(20, TimeUnit.SECONDS));
+            assertEquals(b, nodeA.table().owner(slot));
+            assertEquals(b, nodeB.table().owner(slot));
+
+            e = assertThrows(NodeLink.NodeException.class, () -> clientA.call("GET", "{" + tag + "}:7"));
+            assertEquals("MOVED " + slot + " " + b, e.getMessage());
+            assertEquals("v7", clientB.call("GET", "{" + tag + "}:7"));
+            assertEquals(300, storeB.keys("{" + tag + "}:*").size());
+            assertTrue(storeA.keys("{" + tag + "}:*").isEmpty());
+            assertEquals("1", clientA.call("GET", low));
+        } finally {
+            nodeA.close();
+            nodeB.close();
+            serverA.close();
+            serverB.close();
+            acceptA.join(1000);
+            acceptB.join(1000);
+            storeA.close();
+            storeB.close();
+        }
+    }
+
+    private static String keyIn(int first, int last, String prefix) {
+        for (int i = 0; ; i++) {
+            int slot = HashSlots.slot(prefix + i);
+            if (slot >= first && slot <= last) {
+                return prefix + i;
+            }
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    private static Thread serve(NioServer server) {
+        Thread t = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception ignored) {}
+        });
+        t.start();
+        return t;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
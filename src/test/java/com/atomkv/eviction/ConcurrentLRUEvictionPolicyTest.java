@@ -0,0 +1,73 @@
+package com.atomkv.eviction;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentLRUEvictionPolicyTest {
+
+    @Test
+    public void testEvictsLeastRecentlyAccessed() {
+        ConcurrentLRUEvictionPolicy policy = new ConcurrentLRUEvictionPolicy(3);
+        policy.recordPut("a");
+        policy.recordPut("b");
+        policy.recordPut("c");
+        policy.recordAccess("a");
+
+        assertEquals(Optional.empty(), policy.evictKeyIfNeeded(3));
+
+        policy.recordPut("d");
+        assertEquals(Optional.of("b"), policy.evictKeyIfNeeded(4));
+        assertEquals(Optional.of("c"), policy.evictKeyIfNeeded(4));
+    }
+
+    @Test
+    public void testBufferedAccessDoesNotResurrectRemovedKey() {
+        ConcurrentLRUEvictionPolicy policy = new ConcurrentLRUEvictionPolicy(1);
+        policy.recordPut("gone");
+        policy.recordPut("kept");
+        policy.recordRemove("gone");
+        policy.recordAccess("gone");
+
+        assertEquals(Optional.of("kept"), policy.evictKeyIfNeeded(2));
+        assertEquals(Optional.empty(), policy.evictKeyIfNeeded(2));
+    }
+
+    @Test
+    public void testConcurrentAccessOnlyEvictsTrackedKeys() throws Exception {
+        ConcurrentLRUEvictionPolicy policy = new ConcurrentLRUEvictionPolicy(100);
+        Set<String> live = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 200; i++) {
+            policy.recordPut("k" + i);
+            live.add("k" + i);
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            readers.submit(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    policy.recordAccess("k" + (i % 200));
+                }
+            });
+        }
+
+        Set<String> evicted = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String key = policy.evictKeyIfNeeded(200 - i).orElseThrow();
+            assertTrue(live.contains(key));
+            assertTrue(evicted.add(key), "evicted twice: " + key);
+        }
+
+        readers.shutdown();
+        assertTrue(readers.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(Optional.empty(), policy.evictKeyIfNeeded(100));
+    }
+}
@@ -0,0 +1,59 @@
+package com.atomkv.eviction;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WTinyLFUEvictionPolicyTest {
+
+    @Test
+    public void testHotKeysSurviveScan() {
+        int capacity = 100;
+        WTinyLFUEvictionPolicy policy = new WTinyLFUEvictionPolicy(capacity);
+        Set<String> cache = new HashSet<>();
+
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                access(policy, cache, capacity, "hot" + i);
+            }
+        }
+
+        for (int i = 0; i < capacity * 5; i++) {
+            access(policy, cache, capacity, "scan" + i);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(cache.contains("hot" + i), "hot" + i + " was evicted by the scan");
+        }
+        assertEquals(capacity, cache.size());
+    }
+
+    @Test
+    public void testRemovedKeyIsNeverEvicted() {
+        WTinyLFUEvictionPolicy policy = new WTinyLFUEvictionPolicy(2);
+        policy.recordPut("a");
+        policy.recordPut("b");
+        policy.recordPut("c");
+        policy.recordRemove("a");
+        policy.recordRemove("b");
+
+        assertEquals("c", policy.evictKeyIfNeeded(3).orElseThrow());
+        assertTrue(policy.evictKeyIfNeeded(3).isEmpty());
+    }
+
+    private static void access(EvictionPolicy policy, Set<String> cache, int capacity, String key) {
+        if (cache.contains(key)) {
+            policy.recordAccess(key);
+            return;
+        }
+
+        cache.add(key);
+        policy.recordPut(key);
+        while (cache.size() > capacity) {
+            cache.remove(policy.evictKeyIfNeeded(cache.size()).orElseThrow());
+        }
+    }
+}
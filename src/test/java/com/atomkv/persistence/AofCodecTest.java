@@ -0,0 +1,163 @@
+package com.atomkv.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AofCodecTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testRecordsComeBackExactly() throws Exception {
+        String big = "x".repeat(300_000);
+        List<AofRecord> written = List.of(
+                AofRecord.set("plain", "v", 0),
+                AofRecord.set(" leading space", "say \"hi\"\r\nbye ", 1_500),
+                AofRecord.set("", "", 0),
+                AofRecord.setAt("at", "v", 1_800_000_000_000L),
+                AofRecord.expireAt("at", 1_800_000_000_001L),
+                AofRecord.set("ключ", "значение ✓", Long.MAX_VALUE),
+                AofRecord.set("big", big, 0),
+                AofRecord.set("binary", new byte[]{0, -1, '\r', '\n', (byte) 0xC3}, 0),
+                AofRecord.append("binary", new byte[]{(byte) 0x80}),
+                AofRecord.del("a b"),
+                AofRecord.persist("p"),
+                AofRecord.expire("e", -5),
+                AofRecord.incr("n"),
+                AofRecord.decr("n"),
+                AofRecord.append("s", " \"tail\" "),
+                AofRecord.rename("from", "to"),
+                AofRecord.flushAll(),
+                AofRecord.mset(new byte[][]{
+                        "k1".getBytes(StandardCharsets.UTF_8), "v 1".getBytes(StandardCharsets.UTF_8),
+                        "k2".getBytes(StandardCharsets.UTF_8), new byte[]{(byte) 0xFF, 0}}));
+
+        AofCodec.Output out = new AofCodec.Output(16);
+        for (AofRecord r : written) {
+            AofCodec.encode(r, out);
+        }
+
+        List<AofRecord> read = decode(Arrays.copyOf(out.array(), out.size()));
+        assertEquals(written.size(), read.size());
+
+        for (int i = 0; i < written.size(); i++) {
+            AofRecord w = written.get(i);
+            AofRecord r = read.get(i);
+            assertEquals(w.op(), r.op());
+            assertEquals(w.key(), r.key());
+            assertArrayEquals(w.valueBytes(), r.valueBytes());
+            assertEquals(w.number(), r.number());
+            assertArrayEquals(w.pairs(), r.pairs());
+        }
+    }
+
+    @Test
+    public void testFlippedBitIsReportedWithItsOffset() throws Exception {
+        AofCodec.Output out = new AofCodec.Output(64);
+        AofCodec.encode(AofRecord.set("a", "1", 0), out);
+        int second = out.size();
+        AofCodec.encode(AofRecord.set("b", "2", 0), out);
+
+        byte[] bytes = Arrays.copyOf(out.array(), out.size());
+        bytes[second + 3] ^= 0x10;
+
+        IOException e = assertThrows(IOException.class, () -> decode(bytes));
+        assertTrue(e.getMessage().contains("CRC mismatch"), e.getMessage());
+        assertTrue(e.getMessage().contains("offset " + second), e.getMessage());
+    }
+
+    @Test
+    public void testRecordCutShortIsAnError() throws Exception {
+        AofCodec.Output out = new AofCodec.Output(64);
+        AofCodec.encode(AofRecord.set("a", "1", 0), out);
+        AofCodec.encode(AofRecord.set("b", "2", 0), out);
+
+        byte[] bytes = Arrays.copyOf(out.array(), out.size() - 2);
+        assertThrows(EOFException.class, () -> decode(bytes));
+    }
+
+    @Test
+    public void testGarbageLengthIsRejectedBeforeItIsRead() throws Exception {
+        AofCodec.Output out = new AofCodec.Output(64);
+        AofCodec.encode(AofRecord.set("a", "1", 0), out);
+        int second = out.size();
+
+        // 2^31 - 1, past the longest record there can be
+        byte[] huge = Arrays.copyOf(out.array(), second + 8);
+        System.arraycopy(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}, 0, huge, second, 5);
+        IOException e = assertThrows(IOException.class, () -> decode(huge));
+        assertTrue(e.getMessage().contains("bad record length"), e.getMessage());
+
+        // 100 MB, a length that fits but runs past the end of the file
+        byte[] past = Arrays.copyOf(out.array(), second + 8);
+        System.arraycopy(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, 0x32}, 0, past, second, 4);
+        AofCodec.Reader r = new AofCodec.Reader(Channels.newChannel(new java.io.ByteArrayInputStream(past)), 0, past.length);
+        assertNotNull(r.next());
+        assertThrows(EOFException.class, r::next);
+        assertEquals(second, r.offset());
+    }
+
+    @Test
+    public void testFormatIsToldFromTheFirstBytes() throws Exception {
+        Path text = dir.resolve("text.aof");
+        Files.writeString(text, "SET a 1\n");
+        Path binary = dir.resolve("binary.aof");
+        Files.write(binary, AofCodec.header());
+        Path empty = Files.createFile(dir.resolve("empty.aof"));
+        Path hybrid = dir.resolve("hybrid.aof");
+        Files.write(hybrid, Arrays.copyOf(SnapshotFile.MAGIC, SnapshotFile.HEADER_LENGTH));
+        Path future = dir.resolve("future.aof");
+        byte[] header = AofCodec.header();
+        header[AofCodec.HEADER_LENGTH - 1]++;
+        Files.write(future, header);
+
+        assertEquals(AofCodec.Format.TEXT, format(text));
+        assertEquals(AofCodec.Format.BINARY, format(binary));
+        assertEquals(AofCodec.Format.BINARY, format(empty));
+        assertEquals(AofCodec.Format.SNAPSHOT_PREAMBLE, format(hybrid));
+        assertThrows(IOException.class, () -> format(future));
+    }
+
+    @Test
+    public void testTextFormatKeepsItsOldQuirks() {
+        AofRecord r = AofRecord.parseText("SET \"two words\" v PX 100");
+        assertEquals("two words", r.key());
+        assertEquals(100, r.number());
+        assertEquals("SET \"two words\" v PX 100", r.toString());
+
+        assertNull(AofRecord.parseText("   "));
+        assertNull(AofRecord.parseText("NOPE a"));
+        assertNull(AofRecord.parseText("SET a"));
+        assertEquals(AofRecord.Op.FLUSHALL, AofRecord.parseText("flushall").op());
+    }
+
+    private static List<AofRecord> decode(byte[] bytes) throws IOException {
+        AofCodec.Reader r = new AofCodec.Reader(Channels.newChannel(new java.io.ByteArrayInputStream(bytes)), 0);
+        List<AofRecord> out = new ArrayList<>();
+        for (AofRecord record; (record = r.next()) != null; ) {
+            out.add(record);
+        }
+        return out;
+    }
+
+    private static AofCodec.Format format(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            return AofCodec.format(ch);
+        }
+    }
+}
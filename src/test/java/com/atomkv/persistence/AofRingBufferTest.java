@@ -0,0 +1,104 @@
+package com.atomkv.persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AofRingBufferTest {
+    @Test
+    public void testFullBufferRefusesUntilTheConsumerReads() {
+        AofRingBuffer ring = new AofRingBuffer(1);
+        assertEquals(AofRingBuffer.MIN_CAPACITY, ring.capacity());
+
+        byte[] record = new byte[1_000]; // 1016 bytes with its header, 1024 once aligned
+        int fits = ring.capacity() / 1_024;
+        long last = 0;
+        for (int i = 0; i < fits; i++) {
+            long seq = ring.write(record, 0, record.length, System.nanoTime());
+            assertTrue(seq > last);
+            last = seq;
+        }
+        assertEquals(-1, ring.write(record, 0, record.length, System.nanoTime()));
+        assertEquals(last, ring.size());
+
+        assertEquals(1_024, ring.read((position, nanos, buf, off, len) -> assertEquals(1_000, len), 1));
+        assertTrue(ring.write(record, 0, record.length, System.nanoTime()) > last);
+    }
+
+    @Test
+    public void testRecordsComeOutWholeAcrossTheWrapAndFromTheSide() {
+        AofRingBuffer ring = new AofRingBuffer(AofRingBuffer.MIN_CAPACITY);
+        List<String> written = new ArrayList<>();
+        List<String> read = new ArrayList<>();
+        AofRingBuffer.Consumer collect = (position, nanos, buf, off, len) ->
+                read.add(new String(buf, off, len, StandardCharsets.UTF_8));
+
+        for (int i = 0; i < 5_000; i++) {
+            // odd lengths keep moving where the end of the array falls in a frame
+            char[] chars = new char[i % 100 == 0 ? 9_000 + i : 1 + i % 997];
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            String s = new String(chars);
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+
+            if (ring.write(b, 0, b.length, System.nanoTime()) < 0) {
+                ring.read(collect, ring.capacity());
+                assertTrue(ring.write(b, 0, b.length, System.nanoTime()) > 0);
+            }
+            written.add(s);
+        }
+        ring.read(collect, ring.capacity());
+
+        assertEquals(written, read);
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.oldestAppendNanos());
+    }
+
+    @Test
+    public void testConcurrentProducersKeepTheirOwnOrder() throws Exception {
+        AofRingBuffer ring = new AofRingBuffer(AofRingBuffer.MIN_CAPACITY);
+        int producers = 4;
+        int perProducer = 50_000;
+
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    byte[] b = (id + ":" + i).getBytes(StandardCharsets.UTF_8);
+                    while (ring.write(b, 0, b.length, System.nanoTime()) < 0) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        int[] next = new int[producers];
+        long[] lastPosition = {-1};
+        AofRingBuffer.Consumer check = (position, nanos, buf, off, len) -> {
+            assertTrue(position > lastPosition[0]);
+            lastPosition[0] = position;
+
+            String[] parts = new String(buf, off, len, StandardCharsets.UTF_8).split(":");
+            int id = Integer.parseInt(parts[0]);
+            assertEquals(next[id]++, Integer.parseInt(parts[1]));
+        };
+
+        int total = producers * perProducer;
+        while (Arrays.stream(next).sum() < total) {
+            if (ring.read(check, ring.capacity()) == 0) {
+                ring.awaitRecords(1_000_000);
+            }
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, ring.size());
+    }
+}
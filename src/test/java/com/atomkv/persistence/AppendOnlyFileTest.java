@@ -0,0 +1,836 @@
+package com.atomkv.persistence;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.store.ExpiryMode;
+import com.atomkv.store.InMemoryStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AppendOnlyFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testAlwaysReturnsOnlyOnceTheRecordIsOnDisk() throws Exception {
+        Path file = dir.resolve("always.aof");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+
+        try (AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.ALWAYS)) {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                writers.add(pool.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        AofRecord record = AofRecord.set("t" + thread + "-" + i, "v", 0);
+                        aof.append(record);
+                        aof.awaitDurable();
+
+                        // acknowledged, so it must already be in the file
+                        assertTrue(records(file).contains(record.toString()), record.toString());
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : writers) {
+                f.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(400, records(file).size());
+    }
+
+    @Test
+    public void testCloseWritesEverythingAppended() throws Exception {
+        for (FsyncPolicy policy : FsyncPolicy.values()) {
+            Path file = dir.resolve(policy + ".aof");
+
+            try (AppendOnlyFile aof = new AppendOnlyFile(file, policy)) {
+                for (int i = 0; i < 10_000; i++) {
+                    aof.append(AofRecord.incr("counter" + i));
+                }
+                // only the always policy ever waits
+                aof.awaitDurable();
+            }
+
+            List<String> lines = records(file);
+            assertEquals(10_000, lines.size(), policy.name());
+            assertEquals(10_000, new HashSet<>(lines).size());
+            assertEquals("INCR counter9999", lines.get(9_999));
+        }
+    }
+
+    @Test
+    public void testFullBufferMakesWritersWaitWithoutLosingOrReordering() throws Exception {
+        Path file = dir.resolve("small-buffer.aof");
+        String large = "x".repeat(20_000); // over an eighth of the buffer, so kept outside it
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+
+        try (AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO, true, AofRingBuffer.MIN_CAPACITY, AofBackpressure.BLOCK)) {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int thread = t;
+                writers.add(pool.submit(() -> {
+                    for (int i = 0; i < 20_000; i++) {
+                        aof.append(AofRecord.set("t" + thread, i % 1_000 == 0 ? large + i : Integer.toString(i), 0));
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> f : writers) {
+                f.get();
+            }
+            assertEquals(0, aof.droppedAppends());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<String> lines = records(file);
+        assertEquals(80_000, lines.size());
+        for (int t = 0; t < 4; t++) {
+            String prefix = "SET t" + t + " ";
+            List<String> mine = lines.stream().filter(l -> l.startsWith(prefix)).toList();
+            assertEquals(20_000, mine.size());
+            for (int i = 0; i < mine.size(); i++) {
+                assertEquals(prefix + (i % 1_000 == 0 ? large + i : Integer.toString(i)), mine.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectedWritesLeaveTheStoreUnchanged() throws Exception {
+        Path file = dir.resolve("reject.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO, true, AofRingBuffer.MIN_CAPACITY, AofBackpressure.FAIL);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        String large = "x".repeat(4_000);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            writers.add(pool.submit(() -> {
+                int done = 0;
+                for (int i = 0; i < 5_000; i++) {
+                    try {
+                        store.incr("n");
+                        done++;
+                    } catch (IllegalStateException rejected) {}
+                    try {
+                        store.set("t" + thread + ":" + (i % 100), large, null);
+                    } catch (IllegalStateException rejected) {}
+                }
+                return done;
+            }));
+        }
+        int incremented = 0;
+        for (Future<Integer> f : writers) {
+            incremented += f.get();
+        }
+        pool.shutdown();
+
+        // only the increments that were not refused count, in memory and in the file
+        assertEquals(Integer.toString(incremented), store.getOrNull("n"));
+        Map<String, String> expected = store.snapshot();
+        store.close();
+
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(100_000, null);
+        try {
+            reopened.replay(replayed);
+            assertEquals(expected, replayed.snapshot());
+        } finally {
+            replayed.close();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testAppendAfterCloseIsRefused() throws Exception {
+        Path file = dir.resolve("closed.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.EVERYSEC);
+        aof.append(AofRecord.set("a", "1", 0));
+        aof.close();
+
+        assertThrows(IllegalStateException.class, () -> aof.append(AofRecord.set("b", "2", 0)));
+        aof.awaitDurable();
+        assertEquals(Set.of("SET a 1"), Set.copyOf(records(file)));
+    }
+
+    @Test
+    public void testWriteFailureRefusesWritesAndAcknowledgesNothing() throws Exception {
+        Path file = dir.resolve("broken.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.ALWAYS);
+        InMemoryStore store = new InMemoryStore(100, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            store.set("a", "1", null);
+            store.awaitDurable();
+
+            // the disk goes away under the writer
+            Field channel = AppendOnlyFile.class.getDeclaredField("channel");
+            channel.setAccessible(true);
+            ((FileChannel) channel.get(aof)).close();
+
+            // the first write after it may still be taken, but is never acknowledged
+            try {
+                store.set("b", "2", null);
+            } catch (IllegalStateException refused) {}
+            assertThrows(IOException.class, store::awaitDurable);
+
+            assertThrows(IllegalStateException.class, () -> store.set("c", "3", null));
+            assertNull(store.getOrNull("c"));
+            assertThrows(IOException.class, store::awaitDurable);
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testRewriteKeepsStateAndAppendsMadeDuringIt() throws Exception {
+        Path file = dir.resolve("rewrite.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.EVERYSEC);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+
+        for (int i = 0; i < 1_000; i++) {
+            store.set("counter" + i, "0", null);
+            for (int n = 0; n < 20; n++) {
+                store.incr("counter" + i);
+            }
+        }
+        store.set("ttl", "v", Duration.ofHours(1));
+        store.set("gone", "v", null);
+        store.del("gone");
+
+        // keep writing while the rewrite runs; none of it may be lost
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int n = 0; !stop.get(); n++) {
+                store.incr("counter" + (n % 1_000));
+                store.set("late" + (n % 500), Integer.toString(n), null);
+            }
+        });
+        writer.start();
+
+        assertTrue(store.rewriteAof());
+        while (aof.rewriteInProgress()) {
+            Thread.sleep(5);
+        }
+        stop.set(true);
+        writer.join();
+
+        Map<String, String> expected = store.snapshot();
+        store.close(); // closes the AOF too
+
+        assertEquals(listed(file), onDisk(file));
+        assertEquals(AofCodec.Format.SNAPSHOT_PREAMBLE, format(file));
+
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(100_000, null);
+        try {
+            reopened.replay(replayed);
+            assertEquals(expected, replayed.snapshot());
+            assertTrue(replayed.ttl("ttl") > 0);
+        } finally {
+            replayed.close();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentWritesToOneKeyReplayAsApplied() throws Exception {
+        Path file = dir.resolve("race.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int id = t;
+            writers.add(pool.submit(() -> {
+                for (int n = 0; n < 2_000; n++) {
+                    store.incr("n");
+                    store.append("s", "x");
+                    store.set("k", id + ":" + n, null);
+                    store.incr("k" + (n % 8));
+                }
+            }));
+        }
+        for (Future<?> w : writers) {
+            w.get();
+        }
+        pool.shutdown();
+
+        // no increment was lost, and the log holds the writes in the order memory took them
+        assertEquals("8000", store.getOrNull("n"));
+        assertEquals(8_000, store.strlen("s"));
+
+        Map<String, String> expected = store.snapshot();
+        store.close();
+
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(100_000, null);
+        try {
+            reopened.replay(replayed);
+            assertEquals(expected, replayed.snapshot());
+        } finally {
+            replayed.close();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testRewriteAndWaitListsUnloggedKeysBeforeReturning() throws Exception {
+        Path file = dir.resolve("seeded.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            // loaded as from a snapshot, so none of it is in the AOF yet
+            for (int i = 0; i < 1_000; i++) {
+                store.loadEntry("k" + i, ("v" + i).getBytes(StandardCharsets.UTF_8), -1);
+            }
+            store.finishLoad();
+
+            aof.rewriteAndWait(store);
+            assertFalse(aof.rewriteInProgress());
+            assertTrue(listed(file).get(0).getFileName().toString().contains(".base."));
+        } finally {
+            store.close();
+        }
+
+        Map<String, String> replayed = replay(file, 1);
+        assertEquals(1_000, replayed.size());
+        assertEquals("v999", replayed.get("k999"));
+    }
+
+    @Test
+    public void testRewriteCompactsAndRefusesASecondOneMeanwhile() throws Exception {
+        Path file = dir.resolve("busy.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO, false);
+        InMemoryStore store = new InMemoryStore(1_000_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            for (int i = 0; i < 200_000; i++) {
+                store.set("k" + i, "v", null);
+                store.set("k" + i, "v2", null);
+            }
+
+            assertTrue(store.rewriteAof());
+            assertFalse(store.rewriteAof());
+            while (aof.rewriteInProgress()) {
+                Thread.sleep(5);
+            }
+            assertEquals(200_000, records(file).size());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testPreambleIsLoadedBeforeTheRecordsAfterIt() throws Exception {
+        Path file = dir.resolve("hybrid.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            for (int i = 0; i < 10_000; i++) {
+                store.set("k" + i, "v" + i, i % 10 == 0 ? Duration.ofHours(1) : null);
+            }
+            store.set("n", "5", null);
+
+            assertTrue(store.rewriteAof());
+            while (aof.rewriteInProgress()) {
+                Thread.sleep(5);
+            }
+
+            // the tail changes keys the preamble has
+            store.incr("n");
+            store.del("k1");
+            store.append("k2", "+");
+            store.expire("k3", 60);
+            store.set("new", "x", null);
+        } finally {
+            store.close();
+        }
+
+        assertEquals(AofCodec.Format.SNAPSHOT_PREAMBLE, format(file));
+
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(100_000, null);
+        try {
+            reopened.replay(replayed);
+            assertEquals(10_001, replayed.keys());
+            assertEquals("6", replayed.getOrNull("n"));
+            assertNull(replayed.getOrNull("k1"));
+            assertEquals("v2+", replayed.getOrNull("k2"));
+            assertTrue(replayed.ttl("k3") > 0);
+            assertTrue(replayed.ttl("k10") > 60_000);
+            assertEquals(-1, replayed.ttl("k11"));
+            assertEquals("x", replayed.getOrNull("new"));
+        } finally {
+            replayed.close();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testLegacyTextFileIsReplayedAndConvertedByARewrite() throws Exception {
+        Path file = dir.resolve("legacy.aof");
+        Files.write(file, List.of("SET a 1 ", "SET \"spaced key\" \"two words\" ", "INCR a", "SET t v PX 3600000 ", "DEL gone"));
+
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            assertTrue(aof.isLegacyText());
+            aof.replay(store);
+            assertEquals("2", store.getOrNull("a"));
+            assertEquals("two words", store.getOrNull("spaced key"));
+            assertTrue(store.ttl("t") > 0);
+
+            assertTrue(store.rewriteAof());
+            while (aof.rewriteInProgress()) {
+                Thread.sleep(5);
+            }
+            assertFalse(aof.isLegacyText());
+            store.set("after", "x", null);
+        } finally {
+            store.close();
+        }
+
+        Map<String, String> expected = Map.of("a", "2", "spaced key", "two words", "t", "v", "after", "x");
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(1_000, null);
+        try {
+            assertFalse(reopened.isLegacyText());
+            reopened.replay(replayed);
+            assertEquals(expected, replayed.snapshot());
+        } finally {
+            replayed.close();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testParallelReplayMatchesSequentialReplay() throws Exception {
+        Path file = dir.resolve("parallel.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        java.util.Random random = new java.util.Random(7);
+        try {
+            for (int i = 0; i < 50_000; i++) {
+                String key = "k" + random.nextInt(2_000);
+                switch (random.nextInt(10)) {
+                    case 0, 1, 2 -> store.set(key, "v" + i, random.nextBoolean() ? Duration.ofHours(1) : null);
+                    case 3, 4 -> {
+                        try {
+                            store.incr("n" + random.nextInt(100));
+                        } catch (RuntimeException ignored) {
+                            // not a number
+                        }
+                    }
+                    case 5 -> store.append(key, "+" + i);
+                    case 6 -> store.del(key);
+                    case 7 -> store.rename(key, "k" + random.nextInt(2_000));
+                    case 8 -> store.mset(key, "m" + i, "n" + random.nextInt(100), Integer.toString(i));
+                    default -> store.expire(key, 60 + random.nextInt(60));
+                }
+                if (i == 25_000) {
+                    store.flushAll();
+                }
+            }
+        } finally {
+            store.close();
+        }
+
+        Map<String, String> sequential = replay(file, 1);
+        assertFalse(sequential.isEmpty());
+        for (int threads : new int[]{2, 4, 7}) {
+            assertEquals(sequential, replay(file, threads), threads + " threads");
+        }
+    }
+
+    private static Map<String, String> replay(Path file, int threads) throws Exception {
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        try {
+            aof.replay(store, threads);
+            return store.snapshot();
+        } finally {
+            store.close();
+            aof.close();
+        }
+    }
+
+    /**
+     * The format of the base.
+     */
+    private static AofCodec.Format format(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(listed(file).get(0), StandardOpenOption.READ)) {
+            return AofCodec.format(in);
+        }
+    }
+
+    @Test
+    public void testSegmentsRotateAndARewriteDeletesTheOldOnes() throws Exception {
+        Path file = dir.resolve("segments.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO, true, AppendOnlyFile.DEFAULT_BUFFER_SIZE,
+                AofBackpressure.BLOCK, 16 << 10);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        List<Path> before;
+        try {
+            // a segment is started once a write takes it past 16 KB; one round is over 20 KB
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 2_000; i++) {
+                    store.set("k" + i, "v" + (round * 2_000 + i), null);
+                }
+                while (aof.bufferedBytes() > 0) {
+                    Thread.sleep(1);
+                }
+            }
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (listed(file).size() < 9 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            before = listed(file);
+            assertTrue(before.size() >= 9, before.toString());
+            assertTrue(before.get(0).getFileName().toString().endsWith(".incr.aof"));
+
+            assertTrue(store.rewriteAof());
+            while (aof.rewriteInProgress()) {
+                Thread.sleep(5);
+            }
+            store.set("after", "x", null);
+        } finally {
+            store.close();
+        }
+
+        List<Path> after = listed(file);
+        assertTrue(after.get(0).getFileName().toString().endsWith(".base.akv"));
+        for (Path old : before) {
+            assertFalse(Files.exists(old), old.toString());
+        }
+        assertEquals(after, onDisk(file));
+
+        // a file no manifest lists, as a crash in the middle of a rewrite leaves behind
+        Path stray = file.resolveSibling("segments.aof.d").resolve("segments.aof.99.base.akv");
+        Files.write(stray, new byte[]{1, 2, 3});
+
+        Map<String, String> replayed = replay(file, 1);
+        assertEquals(2_001, replayed.size());
+        assertEquals("v19999", replayed.get("k1999"));
+        assertEquals("x", replayed.get("after"));
+        assertFalse(Files.exists(stray));
+    }
+
+    @Test
+    public void testTornTailIsTruncatedUnlessStrict() throws Exception {
+        Path file = dir.resolve("torn.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.set("k" + i, "v" + i, null);
+            }
+        } finally {
+            store.close();
+        }
+
+        // half of one more record, as a crash in the middle of its write leaves it
+        Path segment = listed(file).get(0);
+        long whole = Files.size(segment);
+        AofCodec.Output out = new AofCodec.Output(64);
+        AofCodec.encode(AofRecord.set("k100", "v100", 0), out);
+        Files.write(segment, Arrays.copyOf(out.array(), out.size() / 2), StandardOpenOption.APPEND);
+
+        AppendOnlyFile strict = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore refused = new InMemoryStore(1_000, null);
+        try {
+            assertThrows(IOException.class, () -> strict.replay(refused, 1, false));
+        } finally {
+            refused.close();
+            strict.close();
+        }
+        assertTrue(Files.size(segment) > whole);
+
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, reopened);
+        try {
+            AofLoadStats stats = reopened.replay(replayed);
+            assertEquals(100, stats.records());
+            assertEquals(out.size() / 2, stats.truncatedBytes());
+            assertEquals(100, replayed.keys());
+            assertEquals(whole, Files.size(segment));
+
+            // appends carry on right after the last whole record
+            replayed.set("after", "x", null);
+        } finally {
+            replayed.close();
+        }
+
+        Map<String, String> after = replay(file, 1);
+        assertEquals(101, after.size());
+        assertEquals("x", after.get("after"));
+    }
+
+    @Test
+    public void testTornRewrittenBaseStopsReplay() throws Exception {
+        Path file = dir.resolve("torn-base.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO, false);
+        InMemoryStore store = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.set("k" + i, "v" + i, null);
+            }
+            assertTrue(store.rewriteAof());
+            while (aof.rewriteInProgress()) {
+                Thread.sleep(5);
+            }
+            store.set("after", "x", null);
+        } finally {
+            store.close();
+        }
+
+        // a rewrite forces its base before listing it, so a short base is not a crash mid-write
+        Path base = listed(file).get(0);
+        assertTrue(base.getFileName().toString().endsWith(".base.aof"));
+        AofCodec.Output out = new AofCodec.Output(64);
+        AofCodec.encode(AofRecord.set("k100", "v100", 0), out);
+        Files.write(base, Arrays.copyOf(out.array(), out.size() / 2), StandardOpenOption.APPEND);
+        long size = Files.size(base);
+
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(1_000, null);
+        try {
+            assertThrows(IOException.class, () -> reopened.replay(replayed));
+        } finally {
+            replayed.close();
+            reopened.close();
+        }
+        assertEquals(size, Files.size(base));
+    }
+
+    @Test
+    public void testCorruptionBeforeTheEndStopsReplay() throws Exception {
+        Path file = dir.resolve("corrupt.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.set("k" + i, "v" + i, null);
+            }
+        } finally {
+            store.close();
+        }
+
+        Path segment = listed(file).get(0);
+        long size = Files.size(segment);
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[]{'X'}), size / 2);
+        }
+
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore replayed = new InMemoryStore(1_000, null);
+        try {
+            assertThrows(IOException.class, () -> reopened.replay(replayed));
+            assertEquals(size, Files.size(segment));
+        } finally {
+            replayed.close();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testBadTextLinesAreSkippedAndCounted() throws Exception {
+        Path file = dir.resolve("text.aof");
+        Files.writeString(file, "SET a 1 \nBOGUS x\nSET b\nINCR a\nSET c 3 PX notanumber\nSET d 4 \nSET e fi");
+
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(1_000, null);
+        try {
+            AofLoadStats stats = aof.replay(store);
+            assertEquals(3, stats.records());
+            assertEquals(3, stats.skipped());
+            assertEquals("SET e fi".length(), stats.truncatedBytes());
+            assertEquals(Map.of("a", "2", "d", "4"), store.snapshot());
+            assertEquals(stats, aof.lastLoad());
+        } finally {
+            store.close();
+            aof.close();
+        }
+
+        AppendOnlyFile strict = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore refused = new InMemoryStore(1_000, null);
+        try {
+            assertThrows(IOException.class, () -> strict.replay(refused, 1, false));
+        } finally {
+            refused.close();
+            strict.close();
+        }
+    }
+
+    @Test
+    public void testRecordsThatCannotBeAppliedAreSkippedAndCounted() throws Exception {
+        Path file = dir.resolve("unapplied.aof");
+        Files.writeString(file, "SET a x \nINCR a\nSET b 2 \nDECR b\n");
+
+        for (int threads : new int[] {1, 4}) {
+            AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+            InMemoryStore store = new InMemoryStore(1_000, null);
+            try {
+                AofLoadStats stats = aof.replay(store, threads);
+                assertEquals(3, stats.records());
+                assertEquals(1, stats.skipped());
+                assertEquals(Map.of("a", "x", "b", "1"), store.snapshot());
+            } finally {
+                store.close();
+                aof.close();
+            }
+        }
+
+        for (int threads : new int[] {1, 4}) {
+            AppendOnlyFile strict = new AppendOnlyFile(file, FsyncPolicy.NO);
+            InMemoryStore refused = new InMemoryStore(1_000, null);
+            try {
+                IOException e = assertThrows(IOException.class, () -> strict.replay(refused, threads, false));
+                assertTrue(e.getMessage().contains("INCR"), e.getMessage());
+            } finally {
+                refused.close();
+                strict.close();
+            }
+        }
+    }
+
+    /**
+     * The files the manifest lists, base first.
+     */
+    private static List<Path> listed(Path file) throws IOException {
+        Path aofDir = file.resolveSibling(file.getFileName() + ".d");
+        List<Path> paths = new ArrayList<>();
+        for (AofManifest.Entry e : AofManifest.read(aofDir.resolve(file.getFileName() + ".manifest")).files()) {
+            paths.add(aofDir.resolve(e.name));
+        }
+        return paths;
+    }
+
+    /**
+     * The files in the AOF's directory besides the manifest, in the manifest's order.
+     */
+    private static List<Path> onDisk(Path file) throws IOException {
+        String manifest = file.getFileName() + ".manifest";
+        try (Stream<Path> paths = Files.list(file.resolveSibling(file.getFileName() + ".d"))) {
+            return paths.filter(p -> !p.getFileName().toString().equals(manifest))
+                    .sorted(Comparator.comparingLong(p -> Long.parseLong(p.getFileName().toString().split("\\.")[2])))
+                    .toList();
+        }
+    }
+
+    private static long size(Path file) throws IOException {
+        long total = 0;
+        for (Path p : listed(file)) {
+            total += Files.size(p);
+        }
+        return total;
+    }
+
+    @Test
+    public void testReplayDoesNotLogAgainAndKeepsOriginalDeadlines() throws Exception {
+        Path file = dir.resolve("restart.aof");
+        AppendOnlyFile aof = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore store = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, aof);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.set("k" + i, "v", null);
+            }
+            store.set("short", "v", Duration.ofMillis(100));
+            store.set("long", "v", Duration.ofHours(1));
+            store.set("expiring", "v", null);
+            store.expire("expiring", 3_600);
+            store.incr("n");
+            store.incr("n");
+        } finally {
+            store.close();
+        }
+        long size = size(file);
+
+        Thread.sleep(150);
+
+        for (int restart = 0; restart < 2; restart++) {
+            AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+            InMemoryStore replayed = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, reopened);
+            try {
+                reopened.replay(replayed);
+
+                assertNull(replayed.getOrNull("short"));
+                assertEquals("2", replayed.getOrNull("n"));
+                long ttl = replayed.ttl("long");
+                assertTrue(ttl > 0 && ttl <= 3_600_000 - 150, Long.toString(ttl));
+                ttl = replayed.ttl("expiring");
+                assertTrue(ttl > 0 && ttl <= 3_600_000 - 150, Long.toString(ttl));
+            } finally {
+                replayed.close();
+            }
+            assertEquals(size, size(file));
+        }
+
+        // eviction happens once, after the whole file is in
+        AppendOnlyFile reopened = new AppendOnlyFile(file, FsyncPolicy.NO);
+        InMemoryStore small = new InMemoryStore(10, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, reopened);
+        try {
+            reopened.replay(small);
+            assertEquals(10, small.keys());
+            assertEquals("2", small.getOrNull("n"));
+        } finally {
+            small.close();
+        }
+    }
+
+    /**
+     * The records in the binary files of an AOF as text, stopping at a record the writer is still
+     * writing.
+     */
+    private static List<String> records(Path file) throws IOException {
+        List<String> out = new ArrayList<>();
+
+        for (Path p : listed(file)) {
+            try (FileChannel in = FileChannel.open(p, StandardOpenOption.READ)) {
+                if (AofCodec.format(in) != AofCodec.Format.BINARY) {
+                    continue;
+                }
+                in.position(AofCodec.HEADER_LENGTH);
+                AofCodec.Reader r = new AofCodec.Reader(in, AofCodec.HEADER_LENGTH);
+                for (AofRecord record; (record = r.next()) != null; ) {
+                    out.add(record.toString());
+                }
+            } catch (EOFException ignored) {
+                // cut short by a write in progress
+                break;
+            }
+        }
+
+        return out;
+    }
+}
@@ -0,0 +1,141 @@
+package com.atomkv.persistence;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.store.ExpiryMode;
+import com.atomkv.store.InMemoryStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testSaveAndLoadAcrossManyWindows() throws Exception {
+        // a tiny window makes nearly every entry straddle a remap
+        SnapshotFile snapshots = new SnapshotFile(dir.resolve("dump.akv"), 64);
+        InMemoryStore store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, 1, null, snapshots);
+        try {
+            for (int i = 0; i < 5_000; i++) {
+                store.set("key:" + i, "value " + i, null);
+            }
+            store.set("big", "x".repeat(10_000), null);
+            store.set(" odd \"key\"\n", "ключ ✓", null);
+            store.set("binary", new byte[]{0, -1, '\r', '\n', (byte) 0xC3}, null);
+            store.set("ttl", "v", Duration.ofHours(1));
+
+            assertTrue(store.save());
+            assertTrue(snapshots.lastSaveMillis() > 0);
+            assertFalse(Files.exists(dir.resolve("dump.akv.tmp")));
+
+            InMemoryStore loaded = new InMemoryStore(100_000, 0, 2, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+            try {
+                assertEquals(store.keys(), snapshots.load(loaded));
+                assertEquals(store.snapshot(), loaded.snapshot());
+                assertArrayEquals(new byte[]{0, -1, '\r', '\n', (byte) 0xC3}, loaded.getBytes("binary"));
+
+                long ttl = loaded.ttl("ttl");
+                assertTrue(ttl > 0 && ttl <= 3_600_000, Long.toString(ttl));
+                assertEquals(-1, loaded.ttl("key:1"));
+            } finally {
+                loaded.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testExpiredEntriesAreNotLoadedAndLimitsApply() throws Exception {
+        SnapshotFile snapshots = new SnapshotFile(dir.resolve("dump.akv"));
+        InMemoryStore store = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, 1, null, snapshots);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.set("k" + i, "v", i % 2 == 0 ? Duration.ofMillis(150) : null);
+            }
+            assertTrue(store.save());
+        } finally {
+            store.close();
+        }
+
+        Thread.sleep(200);
+
+        InMemoryStore small = new InMemoryStore(10, null);
+        try {
+            assertEquals(50, snapshots.load(small));
+            assertEquals(10, small.keys());
+        } finally {
+            small.close();
+        }
+    }
+
+    @Test
+    public void testCorruptionIsDetected() throws Exception {
+        Path file = dir.resolve("dump.akv");
+        SnapshotFile snapshots = new SnapshotFile(file);
+        InMemoryStore store = new InMemoryStore(1_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, 1, null, snapshots);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.set("k" + i, "value" + i, null);
+            }
+            assertTrue(store.save());
+        } finally {
+            store.close();
+        }
+
+        byte[] good = Files.readAllBytes(file);
+
+        byte[] flipped = good.clone();
+        flipped[good.length / 2] ^= 0x01;
+        Files.write(file, flipped);
+        assertThrows(IOException.class, () -> load(snapshots));
+
+        Files.write(file, java.util.Arrays.copyOf(good, good.length - 10));
+        assertThrows(IOException.class, () -> load(snapshots));
+
+        Files.write(file, good);
+        assertEquals(100, load(snapshots));
+    }
+
+    @Test
+    public void testOnlyOneSaveAtATime() throws Exception {
+        SnapshotFile snapshots = new SnapshotFile(dir.resolve("dump.akv"));
+        InMemoryStore store = new InMemoryStore(1_000_000, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, 1, null, snapshots);
+        try {
+            for (int i = 0; i < 200_000; i++) {
+                store.set("k" + i, "v", null);
+            }
+
+            assertTrue(store.saveInBackground());
+            assertFalse(store.saveInBackground());
+            assertFalse(store.save());
+            while (snapshots.saveInProgress()) {
+                Thread.sleep(5);
+            }
+            assertFalse(snapshots.lastBackgroundSaveFailed());
+            assertEquals(200_000, load(snapshots));
+        } finally {
+            store.close();
+        }
+    }
+
+    private static long load(SnapshotFile snapshots) throws Exception {
+        InMemoryStore store = new InMemoryStore(1_000_000, null);
+        try {
+            return snapshots.load(store);
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.atomkv.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LineDecoderTest {
+
+    @Test
+    public void testSplitMatchesTrimAndSplit() throws Exception {
+        String[] lines = {"GET k", "  SET k v\t", "SET k  v", "set\tk v", "DEL a b c", "héllo wörld", "X"};
+        StringBuilder input = new StringBuilder();
+        for (String line : lines) {
+            input.append(line).append("\r\n");
+        }
+        byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+
+        List<List<String>> decoded = new ArrayList<>();
+        new LineDecoder().feed(bytes, 0, bytes.length, args -> decoded.add(List.of(args.toArray(0))));
+
+        assertEquals(lines.length, decoded.size());
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(List.of(lines[i].trim().split(" ")), decoded.get(i));
+        }
+    }
+
+    @Test
+    public void testParseLong() {
+        CommandArgs args = CommandArgs.of("0", "-42", "+7", "9223372036854775807", "-9223372036854775808",
+                "9223372036854775808", "", "-", "12a");
+
+        assertEquals(0, args.parseLong(0));
+        assertEquals(-42, args.parseLong(1));
+        assertEquals(7, args.parseLong(2));
+        assertEquals(Long.MAX_VALUE, args.parseLong(3));
+        assertEquals(Long.MIN_VALUE, args.parseLong(4));
+        for (int i = 5; i < args.count(); i++) {
+            final int index = i;
+            assertThrows(NumberFormatException.class, () -> args.parseLong(index));
+        }
+    }
+}
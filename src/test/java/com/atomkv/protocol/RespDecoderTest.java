@@ -0,0 +1,43 @@
+package com.atomkv.protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RespDecoderTest {
+
+    @Test
+    public void testFrameSplitAtEveryByte() throws Exception {
+        byte[] frame = "*3\r\n$3\r\nSET\r\n$3\r\nk y\r\n$0\r\n\r\n*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.UTF_8);
+        RespDecoder decoder = new RespDecoder();
+        List<String> commands = new ArrayList<>();
+
+        for (int i = 0; i < frame.length; i++) {
+            decoder.feed(frame, i, 1, args -> commands.add(String.join("|", args.toArray(0))));
+        }
+
+        assertEquals(List.of("SET|k y|", "PING"), commands);
+    }
+
+    @Test
+    public void testInlineCommand() throws Exception {
+        byte[] frame = "PING\r\nECHO  hi\r\n".getBytes(StandardCharsets.UTF_8);
+        List<String> commands = new ArrayList<>();
+
+        new RespDecoder().feed(frame, 0, frame.length, args -> commands.add(String.join("|", args.toArray(0))));
+
+        assertEquals(List.of("PING", "ECHO|hi"), commands);
+    }
+
+    @Test
+    public void testMalformedLengthIsRejected() {
+        byte[] frame = "*1\r\n$x\r\n".getBytes(StandardCharsets.UTF_8);
+
+        assertThrows(ProtocolException.class,
+                () -> new RespDecoder().feed(frame, 0, frame.length, args -> true));
+    }
+}
@@ -0,0 +1,242 @@
+package com.atomkv.raft;
+
+import com.atomkv.persistence.AofRecord;
+import com.atomkv.server.NioServer;
+import com.atomkv.store.InMemoryStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RaftTest {
+    private static final long ELECTION_MILLIS = 500;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testLogSurvivesRestartTruncationAndSnapshot() throws Exception {
+        try (RaftLog log = RaftLog.open(dir)) {
+            log.saveState(2, "127.0.0.1:7000");
+            log.append(List.of(RaftLog.Entry.of(1, 100, AofRecord.set("a", "1", 0)),
+                    RaftLog.Entry.of(1, 101, null),
+                    RaftLog.Entry.of(2, 102, AofRecord.del("a"))));
+            log.force();
+        }
+
+        try (RaftLog log = RaftLog.open(dir)) {
+            assertEquals(2, log.term());
+            assertEquals("127.0.0.1:7000", log.votedFor());
+            assertEquals(3, log.lastIndex());
+            assertEquals(2, log.lastTerm());
+            assertEquals(1, log.termAt(2));
+            assertEquals("a", log.get(1).record().key());
+            assertNull(log.get(2).record());
+
+            // a new leader's entries replace the ones it does not have
+            log.truncateFrom(3);
+            log.append(List.of(RaftLog.Entry.of(3, 103, AofRecord.incr("n"))));
+            log.force();
+            assertEquals(3, log.termAt(3));
+
+            Path tmp = log.snapshotTemp();
+            Files.write(tmp, new byte[]{1, 2, 3});
+            log.snapshotSaved(tmp, 2, 1, 101);
+            assertEquals(2, log.baseIndex());
+            assertEquals(-1, log.termAt(1));
+        }
+
+        try (RaftLog log = RaftLog.open(dir)) {
+            assertEquals(2, log.baseIndex());
+            assertEquals(101, log.baseClock());
+            assertEquals(3, log.lastIndex());
+            assertEquals(AofRecord.Op.INCR, log.get(3).record().op());
+            assertNotNull(log.snapshot());
+        }
+    }
+
+    @Test
+    public void testThreeNodesReplicateAndFailOver() throws Exception {
+        int[] raftPorts = {freePort(), freePort(), freePort()};
+        int[] clientPorts = {freePort(), freePort(), freePort()};
+        List<String> members = new ArrayList<>();
+        for (int port : raftPorts) {
+            members.add("127.0.0.1:" + port);
+        }
+
+        InMemoryStore[] stores = new InMemoryStore[3];
+        RaftNode[] nodes = new RaftNode[3];
+        NioServer[] servers = new NioServer[3];
+        Thread[] acceptors = new Thread[3];
+        try {
+            for (int i = 0; i < 3; i++) {
+                stores[i] = new InMemoryStore(100_000, 2, null);
+                nodes[i] = startNode(i, members, clientPorts[i], stores[i]);
+                servers[i] = new NioServer(clientPorts[i], 1, 100, stores[i], null, nodes[i]);
+                acceptors[i] = serve(servers[i]);
+            }
+
+            int first = awaitLeader(nodes, -1);
+            RaftNode leader = nodes[first];
+            for (int i = 0; i < 120; i++) {
+                assertEquals(1L, leader.propose(AofRecord.set("k" + i, "v" + i, 0)).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(6L, leader.propose(AofRecord.append("k0", "tail")).get(5, TimeUnit.SECONDS));
+
+            // clients write and read through the leader; the others send them there
+            int follower = (first + 1) % 3;
+            assertEquals(":1", call(clientPorts[first], "INCR n"));
+            // pipelined writes are proposed together, and the read behind them waits for them
+            assertEquals(List.of("+OK", ":2", ":3", "+3", "-ERR wrong number of args"),
+                    pipeline(clientPorts[first], "SET p 1", "INCR p", "INCR p", "GET p", "GET"));
+            assertEquals("+v5", call(clientPorts[first], "GET k5"));
+            assertEquals("-NOTLEADER 127.0.0.1:" + clientPorts[first], call(clientPorts[follower], "GET k5"));
+            assertEquals("-NOTLEADER 127.0.0.1:" + clientPorts[first], call(clientPorts[follower], "SET x 1"));
+            assertEquals("-ERR no such key", call(clientPorts[first], "RENAME missing other"));
+
+            awaitTrue(() -> {
+                for (InMemoryStore store : stores) {
+                    if (!"1".equals(store.getOrNull("n")) || !"v0tail".equals(store.getOrNull("k0"))) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+            assertTrue(leader.snapshotIndex() > 0, "the log was never compacted");
+
+            // the leader goes away; the other two elect one of them and go on committing
+            servers[first].close();
+            acceptors[first].join(1000);
+            nodes[first].close();
+
+            int second = awaitLeader(nodes, first);
+            assertNotEquals(first, second);
+            for (int i = 120; i < 200; i++) {
+                assertEquals(1L, nodes[second].propose(AofRecord.set("k" + i, "v" + i, 0)).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(2L, nodes[second].propose(AofRecord.incr("n")).get(5, TimeUnit.SECONDS));
+
+            // the old leader comes back as a follower and catches up
+            stores[first].close();
+            stores[first] = new InMemoryStore(100_000, 2, null);
+            nodes[first] = startNode(first, members, clientPorts[first], stores[first]);
+            InMemoryStore restarted = stores[first];
+            awaitTrue(() -> "v199".equals(restarted.getOrNull("k199")) && "2".equals(restarted.getOrNull("n")));
+            assertEquals("v0tail", restarted.getOrNull("k0"));
+            assertEquals(RaftNode.Role.FOLLOWER, nodes[first].role());
+            assertEquals(nodes[second].term(), nodes[first].term());
+        } finally {
+            for (int i = 0; i < 3; i++) {
+                if (servers[i] != null) {
+                    servers[i].close();
+                    acceptors[i].join(1000);
+                }
+                if (nodes[i] != null) {
+                    nodes[i].close();
+                }
+                if (stores[i] != null) {
+                    stores[i].close();
+                }
+            }
+        }
+    }
+
+    private RaftNode startNode(int i, List<String> members, int clientPort, InMemoryStore store) throws Exception {
+        RaftNode node = new RaftNode(members.get(i), "127.0.0.1:" + clientPort, members, dir.resolve("node" + i), store,
+                ELECTION_MILLIS, 50);
+        node.start();
+        return node;
+    }
+
+    /**
+     * Wait until exactly one node other than {@code skip} leads, and return it.
+     */
+    private static int awaitLeader(RaftNode[] nodes, int skip) throws InterruptedException {
+        int[] leader = {-1};
+        awaitTrue(() -> {
+            leader[0] = -1;
+            for (int i = 0; i < nodes.length; i++) {
+                if (i != skip && nodes[i].isLeader()) {
+                    if (leader[0] >= 0) {
+                        return false;
+                    }
+                    leader[0] = i;
+                }
+            }
+            return leader[0] >= 0;
+        });
+        return leader[0];
+    }
+
+    /**
+     * Send one line-protocol command and return the first line of the reply.
+     */
+    private static String call(int port, String command) throws Exception {
+        try (Socket s = new Socket("localhost", port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+
+            assertEquals("OK AtomKV", in.readLine());
+            out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return in.readLine();
+        }
+    }
+
+    /**
+     * Send several line-protocol commands at once and return the first line of each reply.
+     */
+    private static List<String> pipeline(int port, String... commands) throws Exception {
+        try (Socket s = new Socket("localhost", port)) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+
+            assertEquals("OK AtomKV", in.readLine());
+            out.write((String.join("\n", commands) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            List<String> replies = new ArrayList<>();
+            for (int i = 0; i < commands.length; i++) {
+                replies.add(in.readLine());
+            }
+            return replies;
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static Thread serve(NioServer server) {
+        Thread t = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception ignored) {}
+        });
+        t.start();
+        return t;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
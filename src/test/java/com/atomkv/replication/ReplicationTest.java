@@ -0,0 +1,135 @@
+package com.atomkv.replication;
+
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.store.ExpiryMode;
+import com.atomkv.store.InMemoryStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicationTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    public void testFollowerLoadsASnapshotThenStreamsWrites() throws Exception {
+        InMemoryStore leaderStore = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        InMemoryStore followerStore = new InMemoryStore(100_000, 0, 2, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        followerStore.set("stale", "gone after the full resync", null);
+
+        try (ReplicationLeader leader = new ReplicationLeader(0, leaderStore, new ReplicationBacklog(ReplicationBacklog.DEFAULT_SIZE))) {
+            for (int i = 0; i < 1_000; i++) {
+                leaderStore.set("key:" + i, "value " + i, null);
+            }
+            leaderStore.set("ttl", "v", Duration.ofHours(1));
+
+            try (ReplicationFollower follower = new ReplicationFollower("127.0.0.1", leader.port(), followerStore, null,
+                    dir.resolve("sync.akv"))) {
+                assertTrue(followerStore.isReadOnly());
+                awaitTrue(() -> follower.fullSyncs() == 1 && follower.offset() == leader.offset());
+                assertNull(followerStore.getOrNull("stale"));
+
+                leaderStore.incr("counter");
+                leaderStore.incr("counter");
+                leaderStore.append("key:1", "!");
+                leaderStore.del("key:2");
+                leaderStore.rename("key:3", "renamed");
+                leaderStore.mset("a", "1", "b", "2");
+                awaitTrue(() -> follower.offset() == leader.offset());
+
+                assertEquals(leaderStore.snapshot(), followerStore.snapshot());
+                assertEquals("2", followerStore.getOrNull("counter"));
+                assertEquals("value 1!", followerStore.getOrNull("key:1"));
+                assertTrue(followerStore.ttl("ttl") > 0);
+
+                awaitTrue(() -> leader.followers().size() == 1 && leader.followers().get(0).ackedOffset == leader.offset());
+                assertEquals(0, follower.lagBytes());
+                assertEquals(0, follower.lagMillis());
+            }
+        } finally {
+            followerStore.close();
+            leaderStore.close();
+        }
+    }
+
+    @Test
+    public void testReconnectContinuesFromTheBacklogUntilItIsOverwritten() throws Exception {
+        InMemoryStore leaderStore = new InMemoryStore(100_000, 0, 2, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        InMemoryStore followerStore = new InMemoryStore(100_000, 0, 2, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+
+        // the smallest backlog, so a few writes while disconnected overwrite the follower's offset
+        try (ReplicationLeader leader = new ReplicationLeader(0, leaderStore, new ReplicationBacklog(1 << 10))) {
+            leaderStore.set("first", "1", null);
+
+            try (ReplicationFollower follower = new ReplicationFollower("127.0.0.1", leader.port(), followerStore, null,
+                    dir.resolve("sync.akv"))) {
+                awaitTrue(() -> follower.linkUp() && follower.offset() == leader.offset());
+
+                follower.disconnect();
+                leaderStore.set("while-away", "2", null);
+                awaitTrue(() -> follower.partialSyncs() == 1 && follower.offset() == leader.offset());
+                assertEquals(1, follower.fullSyncs());
+                assertEquals("2", followerStore.getOrNull("while-away"));
+
+                follower.disconnect();
+                for (int i = 0; i < 100; i++) {
+                    leaderStore.set("filler:" + i, "x".repeat(20), null);
+                }
+                awaitTrue(() -> follower.fullSyncs() == 2 && follower.offset() == leader.offset());
+                assertEquals(leaderStore.snapshot(), followerStore.snapshot());
+            }
+        } finally {
+            followerStore.close();
+            leaderStore.close();
+        }
+    }
+
+    @Test
+    public void testWritesDuringAFullResyncAreHeldPastTheBacklog() throws Exception {
+        InMemoryStore leaderStore = new InMemoryStore(200_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        InMemoryStore followerStore = new InMemoryStore(200_000, 0, 2, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        AtomicBoolean synced = new AtomicBoolean();
+
+        // writes go on until the follower has loaded the snapshot, far more than the smallest backlog
+        try (ReplicationLeader leader = new ReplicationLeader(0, leaderStore, new ReplicationBacklog(1 << 10))) {
+            for (int i = 0; i < 50_000; i++) {
+                leaderStore.set("key:" + i, "value " + i, null);
+            }
+
+            try (ReplicationFollower follower = new ReplicationFollower("127.0.0.1", leader.port(), followerStore, null,
+                    dir.resolve("sync.akv"))) {
+                Thread writer = new Thread(() -> {
+                    for (int i = 0; !synced.get(); i++) {
+                        leaderStore.set("during:" + (i % 10_000), "x".repeat(20) + i, null);
+                        synced.set(follower.fullSyncs() > 0);
+                    }
+                });
+                writer.start();
+                writer.join();
+
+                awaitTrue(() -> follower.offset() == leader.offset());
+                assertTrue(leader.offset() > 50_000L * 20 + leader.backlog().size());
+                assertEquals(1, follower.fullSyncs());
+                assertEquals(leaderStore.snapshot(), followerStore.snapshot());
+            }
+        } finally {
+            synced.set(true);
+            followerStore.close();
+            leaderStore.close();
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.atomkv.server;
+
+import com.atomkv.store.InMemoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlockingServerTest {
+    private InMemoryStore store;
+    private BlockingServer server;
+    private Thread acceptor;
+
+    private void start(boolean virtualThreads) {
+        try {
+            store = new InMemoryStore(1000, null);
+            server = new BlockingServer(0, store, virtualThreads);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+
+        acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception ignored) {}
+        });
+        acceptor.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.close();
+        acceptor.join(1000);
+        store.close();
+    }
+
+    @Test
+    public void testPipelinedBatchAnsweredInOrder() throws Exception {
+        start(false);
+
+        try (Socket s = new Socket("localhost", server.port())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+            assertEquals("OK AtomKV", in.readLine());
+
+            StringBuilder batch = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                batch.append("SET k").append(i).append(' ').append(i).append('\n');
+            }
+            for (int i = 0; i < 100; i++) {
+                batch.append("GET k").append(i).append('\n');
+            }
+            out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals("+OK", in.readLine());
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals("+" + i, in.readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testPartialTrailingCommandDoesNotHoldBackReplies() throws Exception {
+        start(true);
+
+        try (Socket s = new Socket("localhost", server.port())) {
+            s.setSoTimeout(5000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+            assertEquals("OK AtomKV", in.readLine());
+
+            out.write("PING\nGET mis".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("+PONG", in.readLine());
+
+            out.write("sing\nQUIT\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("$-1", in.readLine());
+            assertEquals("+BYE", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+}
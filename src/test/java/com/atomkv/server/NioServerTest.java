@@ -0,0 +1,136 @@
+package com.atomkv.server;
+
+import com.atomkv.store.InMemoryStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioServerTest {
+    private InMemoryStore store;
+    private NioServer server;
+    private Thread acceptor;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        store = new InMemoryStore(100, null);
+        server = new NioServer(0, 2, store);
+        acceptor = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (Exception ignored) {}
+        });
+        acceptor.start();
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        server.close();
+        acceptor.join(1000);
+        store.close();
+    }
+
+    @Test
+    public void testGreetingAndCommands() throws Exception {
+        try (Socket s = new Socket("localhost", server.port())) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+
+            assertEquals("OK AtomKV", in.readLine());
+
+            out.write("SET k hello\nget k\r\nDEL k\rGET k\n\n  PING  \nNOPE\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            assertEquals("+OK", in.readLine());
+            assertEquals("+hello", in.readLine());
+            assertEquals(":1", in.readLine());
+            assertEquals("$-1", in.readLine());
+            assertEquals("+PONG", in.readLine());
+            assertEquals("-ERR unknown command", in.readLine());
+        }
+    }
+
+    @Test
+    public void testCommandSplitAcrossWritesAndQuit() throws Exception {
+        try (Socket s = new Socket("localhost", server.port())) {
+            s.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = s.getOutputStream();
+
+            assertEquals("OK AtomKV", in.readLine());
+
+            out.write("SET spl".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread.sleep(50);
+            out.write("it value\r".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread.sleep(50);
+            out.write("\nGET split\nQUIT\nPING\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            assertEquals("+OK", in.readLine());
+            assertEquals("+value", in.readLine());
+            assertEquals("+BYE", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    public void testRespClientGetsNoGreeting() throws Exception {
+        try (Socket s = new Socket("localhost", server.port())) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+
+            // the value holds a space and a newline, which the line protocol cannot carry
+            out.write(("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$11\r\nhello\nworld\r\n"
+                    + "*2\r\n$3\r\nGET\r\n$1\r\nk\r\n"
+                    + "*2\r\n$3\r\nGET\r\n$7\r\nmissing\r\n"
+                    + "*2\r\n$5\r\nHELLO\r\n$1\r\n3\r\n").getBytes(StandardCharsets.UTF_8));
+            out.write("*2\r\n$3\r\nGET\r\n$7\r\nmissing\r\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            String expected = "+OK\r\n$11\r\nhello\nworld\r\n$-1\r\n%5\r\n";
+            assertEquals(expected, new String(in.readNBytes(expected.length()), StandardCharsets.UTF_8));
+
+            // skip the HELLO map; the last reply is the RESP3 null
+            byte[] rest = new byte[4096];
+            String tail = "";
+            while (!tail.endsWith("_\r\n")) {
+                int n = in.read(rest);
+                assertTrue(n > 0);
+                tail += new String(rest, 0, n, StandardCharsets.UTF_8);
+            }
+            assertTrue(tail.contains("proto\r\n:3\r\n"));
+        }
+    }
+
+    @Test
+    public void testBinaryValuesComeBackByteForByte() throws Exception {
+        byte[] value = {0, -1, '\r', '\n', (byte) 0xC3};
+        try (Socket s = new Socket("localhost", server.port())) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+
+            // not valid UTF-8, so it only survives if it is never decoded
+            out.write("*3\r\n$3\r\nSET\r\n$3\r\nbin\r\n$5\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(value);
+            out.write("\r\n*3\r\n$6\r\nAPPEND\r\n$3\r\nbin\r\n$1\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.write(0x80);
+            out.write("\r\n*2\r\n$3\r\nGET\r\n$3\r\nbin\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            byte[] expected = new byte[]{'+', 'O', 'K', '\r', '\n', ':', '6', '\r', '\n', '$', '6', '\r', '\n',
+                    0, -1, '\r', '\n', (byte) 0xC3, (byte) 0x80, '\r', '\n'};
+            assertArrayEquals(expected, in.readNBytes(expected.length));
+            assertEquals(6, store.strlen("bin"));
+        }
+    }
+}
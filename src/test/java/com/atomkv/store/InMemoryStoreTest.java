@@ -1,9 +1,18 @@
 package com.atomkv.store;
 
+import com.atomkv.eviction.EvictionPolicyType;
+import com.atomkv.persistence.AofCodec;
+import com.atomkv.persistence.AofRecord;
 import com.atomkv.persistence.AppendOnlyFile;
+import com.atomkv.replication.ReplicationBacklog;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.Map;
@@ -127,4 +136,231 @@ public class InMemoryStoreTest {
         assertFalse(store.exists("old"));
         assertTrue(store.exists("new"));
     }
+
+    @Test
+    public void testShardedCapacityRenameAndFanOut() throws Exception {
+        store = new InMemoryStore(64, 6, null);
+        assertEquals(8, store.shardCount());
+
+        for (int i = 0; i < 1000; i++) {
+            store.set("k" + i, "v" + i, null);
+        }
+
+        // every shard evicts down to its own share of the 64 entries
+        assertEquals(64, store.keys());
+        assertEquals(64, store.keys("k*").size());
+        assertEquals(64, store.snapshot().size());
+
+        store.mset("a", "1", "b", "2", "c", "3");
+        assertEquals(List.of("1", "2", "3"), store.mget("a", "b", "c"));
+        assertTrue(store.rename("a", "renamed"));
+        assertEquals("1", store.get("renamed").orElse(null));
+        assertFalse(store.exists("a"));
+
+        store.flushAll();
+        assertEquals(0, store.keys());
+    }
+
+    @Test
+    public void testMaxMemoryEvictsLargeValues() throws Exception {
+        store = new InMemoryStore(1_000_000, 200_000, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+
+        for (int i = 0; i < 100; i++) {
+            store.set("small" + i, "v", null);
+        }
+        long small = store.usedMemory();
+        assertEquals(100 * Shard.entrySize("small00", "v".getBytes(StandardCharsets.UTF_8)) - 10, small);
+
+        String big = "x".repeat(50_000);
+        for (int i = 0; i < 10; i++) {
+            store.set("big" + i, big, null);
+        }
+
+        // the budget holds three big values plus change; older entries made room for them
+        assertTrue(store.usedMemory() <= 200_000, "used " + store.usedMemory());
+        assertTrue(store.exists("big9"));
+        assertFalse(store.exists("big0"));
+        assertFalse(store.exists("small0"));
+
+        store.append("big9", "yy");
+        long before = store.usedMemory();
+        store.del("big9");
+        assertEquals(before - Shard.entrySize("big9", (big + "yy").getBytes(StandardCharsets.UTF_8)), store.usedMemory());
+
+        store.flushAll();
+        assertEquals(0, store.usedMemory());
+    }
+
+    @Test
+    public void testJanitorExpiresOnlyCurrentDeadlines() throws Exception {
+        for (ExpiryMode mode : ExpiryMode.values()) {
+            store = new InMemoryStore(100, 0, 4, EvictionPolicyType.LRU, mode, null);
+
+            store.set("gone", "v", Duration.ofMillis(50));
+            store.set("extended", "v", Duration.ofMillis(50));
+            store.set("persisted", "v", Duration.ofMillis(50));
+            store.set("overwritten", "v", Duration.ofMillis(50));
+            store.set("renamed", "v", Duration.ofMillis(50));
+
+            store.expire("extended", 60);
+            store.persist("persisted");
+            store.set("overwritten", "v2", null);
+            store.rename("renamed", "renamed2");
+
+            Thread.sleep(100);
+            store.expireCycle();
+            // the store's own janitor may be halfway through the same deadlines
+            for (int i = 0; i < 100 && store.keys() > 3; i++) {
+                Thread.sleep(1);
+            }
+
+            // counted without reading, so only the janitor could have removed them
+            assertEquals(3, store.keys(), mode.name());
+            assertEquals(List.of("extended", "overwritten", "persisted"), store.keys("*").stream().sorted().toList());
+
+            store.close();
+            store = null;
+        }
+    }
+
+    @Test
+    public void testWheelDoesNotKeepOverwrittenValuesAlive() throws Exception {
+        store = new InMemoryStore(100, 0, 1, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+
+        byte[] old = new byte[1 << 20];
+        WeakReference<byte[]> ref = new WeakReference<>(old);
+        store.set("k", old, Duration.ofDays(365));
+        store.set("k", "new".getBytes(StandardCharsets.UTF_8), Duration.ofDays(365));
+        old = null;
+
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+    }
+
+    @Test
+    public void testSampledExpiryKeepsGoingWhileMostSamplesExpired() throws Exception {
+        store = new InMemoryStore(100_000, 0, 4, EvictionPolicyType.LRU, ExpiryMode.SAMPLED, null);
+
+        for (int i = 0; i < 10_000; i++) {
+            store.set("ttl" + i, "v", Duration.ofMillis(20));
+        }
+        for (int i = 0; i < 1_000; i++) {
+            store.set("kept" + i, "v", null);
+        }
+
+        Thread.sleep(50);
+        for (int cycle = 0; cycle < 50 && (store.keys() > 1_000 || store.expiredKeys() < 10_000); cycle++) {
+            store.expireCycle();
+            // the janitor counts a key just after removing it
+            Thread.sleep(1);
+        }
+
+        assertEquals(1_000, store.keys());
+        assertEquals(10_000, store.expiredKeys());
+    }
+
+    @Test
+    public void testReplicatedPersistDoesNotRestoreExpiredKey() throws Exception {
+        store = new InMemoryStore(100, null);
+        store.deferExpiry(true);
+
+        // expired at the entry's clock but not swept yet, as under Raft
+        store.applyReplicated(AofRecord.setAt("gone", "v", 1_000), 500);
+        store.applyReplicated(AofRecord.persist("gone"), 2_000);
+        assertNull(store.peek("gone", 2_000));
+        assertNull(store.peek("gone", 0));
+
+        store.applyReplicated(AofRecord.setAt("kept", "v", 3_000), 500);
+        store.applyReplicated(AofRecord.persist("kept"), 2_000);
+        assertEquals(0, store.peek("kept", 10_000).number());
+    }
+
+    @Test
+    public void testReplicatedMsetKeepsBinaryValues() throws Exception {
+        store = new InMemoryStore(100, null);
+        byte[] binary = {(byte) 0xC3, 0, (byte) 0xFF, '\r', '\n'};
+
+        store.applyReplicated(AofRecord.mset(new byte[][]{
+                "bin".getBytes(StandardCharsets.UTF_8), binary,
+                "ключ".getBytes(StandardCharsets.UTF_8), "v".getBytes(StandardCharsets.UTF_8)}));
+
+        assertArrayEquals(binary, store.getBytes("bin"));
+        assertEquals("v", store.getOrNull("ключ"));
+    }
+
+    @Test
+    public void testSlotIndexFollowsKeys() throws Exception {
+        store = new InMemoryStore(100, 0, 4, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        store.set("before", "v", null);
+        store.indexSlots(key -> key.length(), 16);
+
+        store.set("a1", "v", null);
+        store.set("b1", "v", null);
+        store.set("c1", "v", null);
+        store.del("b1");
+        store.rename("c1", "c11");
+        store.set("d1", "v", Duration.ofMillis(1));
+        Thread.sleep(5);
+
+        assertEquals(List.of("before"), store.keysInSlot(6));
+        assertEquals(List.of("a1"), store.keysInSlot(2));
+        assertEquals(List.of("c11"), store.keysInSlot(3));
+
+        store.flushAll();
+        assertTrue(store.keysInSlot(6).isEmpty());
+    }
+
+    @Test
+    public void testSnapshotCutHoldsUnderConcurrentWrites() throws Exception {
+        store = new InMemoryStore(100_000, 0, 8, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        ReplicationBacklog backlog = new ReplicationBacklog(64 << 20);
+        store.replicateTo(backlog);
+        for (int i = 0; i < 20_000; i++) {
+            store.set("k" + i, "v", null);
+        }
+
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int thread = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    store.incr("counter" + (i % 64));
+                    store.append("k" + (i * 7 + thread) % 20_000, "+");
+                    if (i % 100 == 0) {
+                        store.rename("k" + i, "moved" + thread + ":" + i);
+                    }
+                }
+            });
+            writers[t].start();
+        }
+
+        // with increments and appends, a write both in the copy and after the cut would show
+        long[] cut = new long[1];
+        StoreSnapshot snapshot = store.snapshot(() -> cut[0] = backlog.offset());
+        for (Thread w : writers) {
+            w.join();
+        }
+
+        InMemoryStore rebuilt = new InMemoryStore(100_000, 0, 8, EvictionPolicyType.LRU, ExpiryMode.WHEEL, null);
+        try {
+            snapshot.forEach((key, value, expireAt) -> rebuilt.loadRecord(AofRecord.setAt(key, value, expireAt)));
+
+            ByteArrayOutputStream after = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1 << 16];
+            for (long from = cut[0], n; (n = backlog.read(from, chunk)) > 0; from += n) {
+                after.write(chunk, 0, (int) n);
+            }
+            AofCodec.Reader r = new AofCodec.Reader(Channels.newChannel(new ByteArrayInputStream(after.toByteArray())), cut[0]);
+            for (AofRecord record; (record = r.next()) != null; ) {
+                rebuilt.loadRecord(record);
+            }
+
+            assertEquals(store.snapshot(), rebuilt.snapshot());
+        } finally {
+            rebuilt.close();
+        }
+    }
 }
@@ -0,0 +1,50 @@
+package com.atomkv.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testEntriesFireInTheirTickAcrossLevels() {
+        TimingWheel wheel = new TimingWheel(0);
+        long[] deadlines = {5, 630, 640, 641, 4_097, 12_345, 40_960, 999_999, 40_000_000, 3_000_000_000L};
+        for (long d : deadlines) {
+            wheel.schedule("k" + d, d);
+        }
+        assertEquals(deadlines.length, wheel.size());
+
+        List<TimingWheel.Entry> due = new ArrayList<>();
+        long now = 0;
+        for (long d : deadlines) {
+            long tickEnd = Math.ceilDiv(d, TimingWheel.TICK_MILLIS) * TimingWheel.TICK_MILLIS;
+
+            // nothing fires before the deadline's tick
+            wheel.advance(Math.max(now, tickEnd - 1), due);
+            assertTrue(due.isEmpty(), "early at " + d);
+
+            wheel.advance(tickEnd, due);
+            assertEquals(1, due.size(), "deadline " + d);
+            assertEquals("k" + d, due.get(0).key);
+
+            due.clear();
+            now = tickEnd;
+        }
+
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadlineFiresOnNextTick() {
+        TimingWheel wheel = new TimingWheel(10_000);
+        wheel.schedule("late", 5_000);
+
+        List<TimingWheel.Entry> due = new ArrayList<>();
+        wheel.advance(10_000 + TimingWheel.TICK_MILLIS, due);
+        assertEquals(1, due.size());
+    }
+}